@@ -0,0 +1,130 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.Frame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.frames.PushPromiseFrame;
+import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.Promise;
+
+/**
+ * Completes writes asynchronously, copying each frame's worth of data into a sink buffer.
+ */
+class FakeStream implements Stream {
+
+  private final ExecutorService flusher;
+  private final ByteBuffer sink;
+  private long written;
+
+  FakeStream(ExecutorService flusher, int maxFrameSize) {
+    this.flusher = flusher;
+    this.sink = ByteBuffer.allocateDirect(Math.max(maxFrameSize, Frame.DEFAULT_MAX_LENGTH));
+  }
+
+  @Override
+  public void data(DataFrame frame, Callback callback) {
+    flusher.execute(() -> {
+      ByteBuffer data = frame.getData();
+      while (data.hasRemaining()) {
+        sink.clear();
+        int length = Math.min(sink.remaining(), data.remaining());
+        ByteBuffer slice = data.slice();
+        slice.limit(length);
+        sink.put(slice);
+        data.position(data.position() + length);
+        written += length;
+      }
+      callback.succeeded();
+    });
+  }
+
+  long drain() {
+    try {
+      return flusher.submit(() -> {
+        long result = written;
+        written = 0;
+        return result;
+      }).get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public int getId() {
+    return 1;
+  }
+
+  @Override
+  public Session getSession() {
+    return null;
+  }
+
+  @Override
+  public void headers(HeadersFrame frame, Callback callback) {
+    callback.succeeded();
+  }
+
+  @Override
+  public void push(PushPromiseFrame frame, Promise<Stream> promise, Listener listener) {
+    promise.failed(new UnsupportedOperationException());
+  }
+
+  @Override
+  public void reset(ResetFrame frame, Callback callback) {
+    callback.succeeded();
+  }
+
+  @Override
+  public Object getAttribute(String key) {
+    return null;
+  }
+
+  @Override
+  public void setAttribute(String key, Object value) {
+  }
+
+  @Override
+  public Object removeAttribute(String key) {
+    return null;
+  }
+
+  @Override
+  public boolean isReset() {
+    return false;
+  }
+
+  @Override
+  public boolean isClosed() {
+    return false;
+  }
+
+  @Override
+  public long getIdleTimeout() {
+    return 0;
+  }
+
+  @Override
+  public void setIdleTimeout(long idleTimeout) {
+  }
+}
@@ -0,0 +1,148 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.healthcare;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.io.MappedByteBufferPool;
+import org.eclipse.jetty.util.Callback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Allocation per C-STORE upload with and without pooled buffers.
+ *
+ * The "allocating" variants use a pool that never reuses buffers, i.e. what every upload paid
+ * before, and copy successful response bodies the way the old listener did. Compare
+ * gc.alloc.rate.norm, run with:
+ *   ./gradlew :dicom_util:jmhJar
+ *   java -jar /tmp/gradle_build/dicom_adapter/dicom_util/libs/dicom_util-0.0.1-jmh.jar \
+ *       StowAllocationBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StowAllocationBenchmark {
+
+  private static final int MAX_FRAME_SIZE = 16384;
+  private static final byte[] RESPONSE_BODY =
+      ("{\"00081190\":{\"vr\":\"UR\",\"Value\":[\"https://healthcare.googleapis.com/v1beta1/"
+          + "projects/p/locations/l/datasets/d/dicomStores/s/dicomWeb/studies/1.2.3\"]}}")
+          .getBytes(StandardCharsets.UTF_8);
+
+  @Param({"524288", "8388608"})
+  public int instanceSize;
+
+  private byte[] instance;
+  private ExecutorService flusher;
+  private FakeStream stream;
+  private ByteBufferPool pooled;
+  private ByteBufferPool allocating;
+  private HeadersFrame okHeaders;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    instance = new byte[instanceSize];
+    flusher = Executors.newSingleThreadExecutor();
+    stream = new FakeStream(flusher, MAX_FRAME_SIZE);
+    pooled = new MappedByteBufferPool();
+    allocating = new ByteBufferPool() {
+      @Override
+      public ByteBuffer acquire(int size, boolean direct) {
+        return newByteBuffer(size, direct);
+      }
+
+      @Override
+      public void release(ByteBuffer buffer) {
+      }
+    };
+    okHeaders = new HeadersFrame(1,
+        new MetaData.Response(HttpVersion.HTTP_2, HttpStatus.OK_200, new HttpFields()),
+        null, false);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    flusher.shutdownNow();
+  }
+
+  @Benchmark
+  public long pooledUpload() throws Exception {
+    return upload(pooled);
+  }
+
+  @Benchmark
+  public long allocatingUpload() throws Exception {
+    return upload(allocating);
+  }
+
+  @Benchmark
+  public int pooledResponse() throws Exception {
+    DicomWebClientJetty.ResponseListener listener = new DicomWebClientJetty.ResponseListener(pooled);
+    listener.onHeaders(stream, okHeaders);
+    listener.onData(stream, responseFrame(), Callback.NOOP);
+    listener.awaitDone();
+    listener.release();
+    return listener.getStatus();
+  }
+
+  @Benchmark
+  public int copyingResponse() {
+    // The old listener turned every frame into a byte[] and a String, regardless of the status.
+    StringBuilder resultBuilder = new StringBuilder();
+    DataFrame frame = responseFrame();
+    byte[] bytes = new byte[frame.getData().remaining()];
+    frame.getData().get(bytes);
+    resultBuilder.append(new String(bytes, StandardCharsets.UTF_8));
+    return resultBuilder.length();
+  }
+
+  private long upload(ByteBufferPool bufferPool) throws IOException {
+    new DicomWebClientJetty.DataStream(stream, new ByteArrayInputStream(instance), MAX_FRAME_SIZE,
+        bufferPool).send();
+    return stream.drain();
+  }
+
+  private DataFrame responseFrame() {
+    return new DataFrame(1, ByteBuffer.wrap(RESPONSE_BODY), true);
+  }
+}
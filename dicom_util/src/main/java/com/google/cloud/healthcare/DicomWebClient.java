@@ -29,10 +29,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.UUID;
 import javax.inject.Inject;
 import org.dcm4che3.net.Status;
 import org.json.JSONArray;
+import org.json.JSONObject;
 
 /**
  * A client for communicating with the Cloud Healthcare API.
@@ -57,10 +59,24 @@ public class DicomWebClient implements IDicomWebClient {
    * Makes a WADO-RS call and returns the multipart response.
    */
   public MultipartInput wadoRs(String path) throws IDicomWebClient.DicomWebException {
+    return wadoRs(path, null);
+  }
+
+  /**
+   * Makes a WADO-RS call for instances in the given transfer syntax and returns the multipart
+   * response.
+   */
+  public MultipartInput wadoRs(String path, String transferSyntax)
+      throws IDicomWebClient.DicomWebException {
     try {
       HttpRequest httpRequest =
           requestFactory.buildGetRequest(new GenericUrl(serviceUrlPrefix + "/"
               + StringUtil.trim(path)));
+      if (transferSyntax != null) {
+        httpRequest.getHeaders().setAccept(String.format(
+            "multipart/related; type=\"application/dicom\"; transfer-syntax=%s",
+            transferSyntax));
+      }
       HttpResponse httpResponse = httpRequest.execute();
 
       return new MultipartInput(httpResponse.getContent(), httpResponse.getContentType());
@@ -99,6 +115,31 @@ public class DicomWebClient implements IDicomWebClient {
     }
   }
 
+  /**
+   * Makes a QIDO-RS call and returns a reader decoding the results as the response is received.
+   */
+  public JsonArrayReader qidoRsStream(String path) throws IDicomWebClient.DicomWebException {
+    try {
+      HttpRequest httpRequest =
+          requestFactory.buildGetRequest(new GenericUrl(serviceUrlPrefix + "/"
+              + StringUtil.trim(path)));
+      HttpResponse httpResponse = httpRequest.execute();
+
+      // dcm4che server can return 204 responses.
+      if (httpResponse.getStatusCode() == HttpStatusCodes.STATUS_CODE_NO_CONTENT) {
+        httpResponse.disconnect();
+        return JsonArrayReader.of(new JSONArray());
+      }
+      return new JsonArrayReader(httpResponse.getContent());
+    } catch (HttpResponseException e) {
+      throw new DicomWebException(
+          String.format("QidoRs: %d, %s", e.getStatusCode(), e.getStatusMessage()),
+          e, e.getStatusCode(), Status.UnableToCalculateNumberOfMatches);
+    } catch (IOException | IllegalArgumentException e) {
+      throw new IDicomWebClient.DicomWebException(e);
+    }
+  }
+
   /**
    * Makes a STOW-RS call.
    *
@@ -108,4 +149,15 @@ public class DicomWebClient implements IDicomWebClient {
   public void stowRs(String path, InputStream in) throws IDicomWebClient.DicomWebException {
     throw new UnsupportedOperationException("Not Implemented, use DicomWebClientJetty");
   }
+
+  /**
+   * Makes a STOW-RS call storing several instances.
+   *
+   * @param path The resource path for the STOW-RS request.
+   * @param instances The DICOM input streams.
+   */
+  public JSONObject stowRsMultipart(String path, List<InputStream> instances)
+      throws IDicomWebClient.DicomWebException {
+    throw new UnsupportedOperationException("Not Implemented, use DicomWebClientJetty");
+  }
 }
@@ -2,15 +2,21 @@ package com.google.cloud.healthcare;
 
 import com.github.danieln.multipart.MultipartInput;
 import com.google.auth.oauth2.OAuth2Credentials;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetSocketAddress;
+import java.io.SequenceInputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import org.dcm4che3.data.Tag;
 import org.dcm4che3.net.Status;
+import org.dcm4che3.util.TagUtils;
 import org.eclipse.jetty.http.HttpFields;
 import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpStatus;
@@ -18,16 +24,18 @@ import org.eclipse.jetty.http.HttpURI;
 import org.eclipse.jetty.http.HttpVersion;
 import org.eclipse.jetty.http.MetaData;
 import org.eclipse.jetty.http.MetaData.Response;
-import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.ErrorCode;
+import org.eclipse.jetty.http2.HTTP2Stream;
 import org.eclipse.jetty.http2.api.Stream;
-import org.eclipse.jetty.http2.api.server.ServerSessionListener;
-import org.eclipse.jetty.http2.client.HTTP2Client;
 import org.eclipse.jetty.http2.frames.DataFrame;
 import org.eclipse.jetty.http2.frames.HeadersFrame;
 import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
 import org.eclipse.jetty.util.Callback;
 import org.eclipse.jetty.util.FuturePromise;
-import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.SharedBlockingCallback;
+import org.eclipse.jetty.util.SharedBlockingCallback.Blocker;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -35,15 +43,31 @@ import org.json.JSONObject;
 public class DicomWebClientJetty implements IDicomWebClient {
 
   private static final int CONNECT_PORT = 443;
+  private static final int MAX_STREAM_ATTEMPTS = 2;
+  private static final String FAILED_SOP_SEQUENCE = TagUtils.toHexString(Tag.FailedSOPSequence);
 
   private final String serviceUrlPrefix;
   private final OAuth2Credentials credentials;
+  private final Http2SessionPool sessionPool;
+  private final ByteBufferPool bufferPool;
 
   public DicomWebClientJetty(
       OAuth2Credentials credentials,
       String serviceUrlPrefix) {
+    this(credentials, serviceUrlPrefix, new Http2SessionPool());
+  }
+
+  /**
+   * @param sessionPool HTTP/2 sessions shared by all STOW-RS requests of this client
+   */
+  public DicomWebClientJetty(
+      OAuth2Credentials credentials,
+      String serviceUrlPrefix,
+      Http2SessionPool sessionPool) {
     this.credentials = credentials;
     this.serviceUrlPrefix = StringUtil.trim(serviceUrlPrefix);
+    this.sessionPool = sessionPool;
+    this.bufferPool = sessionPool.getByteBufferPool();
   }
 
   @Override
@@ -51,6 +75,11 @@ public class DicomWebClientJetty implements IDicomWebClient {
     throw new UnsupportedOperationException("Not Implemented, use DicomWebClient");
   }
 
+  @Override
+  public MultipartInput wadoRs(String path, String transferSyntax) throws DicomWebException {
+    throw new UnsupportedOperationException("Not Implemented, use DicomWebClient");
+  }
+
   @Override
   public JSONArray qidoRs(String path) throws DicomWebException {
     throw new UnsupportedOperationException("Not Implemented, use DicomWebClient");
@@ -58,165 +87,376 @@ public class DicomWebClientJetty implements IDicomWebClient {
 
   @Override
   public void stowRs(String path, InputStream in) throws DicomWebException {
+    ResponseListener responseListener = new ResponseListener(bufferPool);
     try {
-      HTTP2Client client = new HTTP2Client();
-      SslContextFactory sslContextFactory = new SslContextFactory.Client();
-      client.addBean(sslContextFactory);
-      client.start();
-
-      HttpURI uri = new HttpURI(serviceUrlPrefix + "/" + StringUtil.trim(path));
-
-      FuturePromise<Session> sessionPromise = new FuturePromise<>();
-      client.connect(sslContextFactory, new InetSocketAddress(uri.getHost(), CONNECT_PORT),
-          new ServerSessionListener.Adapter(), sessionPromise);
-      Session session = sessionPromise.get(5, TimeUnit.SECONDS);
-
-      // Prepare the request
-      HttpFields requestFields = new HttpFields();
-      if (credentials != null) {
-        credentials.getRequestMetadata();
-        requestFields.add(HttpHeader.AUTHORIZATION,
-            "Bearer " + credentials.getAccessToken().getTokenValue());
-      }
-      requestFields.add(HttpHeader.CONTENT_TYPE,
-          "application/dicom");
-      requestFields.add(HttpHeader.ACCEPT,
-          "application/dicom+json");
-      MetaData.Request request = new MetaData.Request("POST", uri, HttpVersion.HTTP_2,
-          requestFields);
-      HeadersFrame headersFrame = new HeadersFrame(request, null, false);
-
-      // Prepare the listener to receive the HTTP response frames.
-      final StringBuilder resultBuilder = new StringBuilder();
-      final CompletableFuture<Integer> responseCodeFuture = new CompletableFuture<>();
-      final CompletableFuture<Boolean> doneFuture = new CompletableFuture<>();
-      Stream.Listener responseListener = new Stream.Listener.Adapter() {
-        @Override
-        public void onReset(Stream stream, ResetFrame frame) {
-          doneFuture.complete(false);
-        }
-
-        @Override
-        public void onHeaders(Stream stream, HeadersFrame frame) {
-          if (frame.getMetaData() instanceof Response) {
-            responseCodeFuture.complete(((Response) frame.getMetaData()).getStatus());
-          }
-        }
-
-        @Override
-        public void onData(Stream stream, DataFrame frame, Callback callback) {
-          byte[] bytes = new byte[frame.getData().remaining()];
-          frame.getData().get(bytes);
-          resultBuilder.append(new String(bytes, StandardCharsets.UTF_8));
+      int httpStatus = post(path, "application/dicom", in, responseListener);
+      if (httpStatus != HttpStatus.OK_200) {
+        throw errorResponse(httpStatus, responseListener.getErrorBody());
+      }
+    } catch (Exception e) {
+      if (e instanceof DicomWebException) {
+        throw (DicomWebException) e;
+      }
+      throw new DicomWebException(e);
+    } finally {
+      responseListener.release();
+    }
+  }
 
-          if (frame.isEndStream()) {
-            doneFuture.complete(true);
+  /**
+   * Sends all instances as parts of one multipart/related request. A 202 (some instances failed)
+   * or 409 (all failed) response carrying a FailedSOPSequence is returned rather than thrown, so
+   * the caller can tell which instances were stored.
+   */
+  @Override
+  public JSONObject stowRsMultipart(String path, List<InputStream> instances)
+      throws DicomWebException {
+    String boundary = "DICOMwebBoundary" + UUID.randomUUID().toString().replace("-", "");
+    ResponseListener responseListener = new ResponseListener(bufferPool);
+    try {
+      int httpStatus = post(path,
+          "multipart/related; type=\"application/dicom\"; boundary=" + boundary,
+          multipartBody(boundary, instances), responseListener);
+      if (httpStatus == HttpStatus.OK_200) {
+        return new JSONObject();
+      }
+      if (httpStatus == HttpStatus.ACCEPTED_202 || httpStatus == HttpStatus.CONFLICT_409) {
+        try {
+          JSONObject response = parseStoreResponse(responseListener.getErrorBody());
+          if (response.has(FAILED_SOP_SEQUENCE)) {
+            return response;
           }
-
-          callback.succeeded();
+        } catch (JSONException e) {
+          // Not a store instances response, reported as an error below.
         }
-      };
-
-      FuturePromise<Stream> streamPromise = new FuturePromise<>();
-      session.newStream(headersFrame, streamPromise, responseListener);
-      Stream stream = streamPromise.get();
+      }
+      throw errorResponse(httpStatus, responseListener.getErrorBody());
+    } catch (Exception e) {
+      if (e instanceof DicomWebException) {
+        throw (DicomWebException) e;
+      }
+      throw new DicomWebException(e);
+    } finally {
+      responseListener.release();
+    }
+  }
 
-      DataStream dataStream = new DataStream(stream, in);
+  /**
+   * POSTs the body and waits for the response. Any response body is left in the listener.
+   */
+  private int post(String path, String contentType, InputStream in,
+      ResponseListener responseListener) throws Exception {
+    HttpURI uri = new HttpURI(serviceUrlPrefix + "/" + StringUtil.trim(path));
+
+    // Prepare the request
+    HttpFields requestFields = new HttpFields();
+    if (credentials != null) {
+      credentials.getRequestMetadata();
+      requestFields.add(HttpHeader.AUTHORIZATION,
+          "Bearer " + credentials.getAccessToken().getTokenValue());
+    }
+    requestFields.add(HttpHeader.CONTENT_TYPE, contentType);
+    requestFields.add(HttpHeader.ACCEPT,
+        "application/dicom+json");
+    MetaData.Request request = new MetaData.Request("POST", uri, HttpVersion.HTTP_2,
+        requestFields);
+    HeadersFrame headersFrame = new HeadersFrame(request, null, false);
+
+    try (PooledStream pooledStream = newStream(uri, headersFrame, responseListener)) {
+      DataStream dataStream = new DataStream(pooledStream.stream, in,
+          pooledStream.lease.getMaxFrameSize(), bufferPool);
       try {
         dataStream.send();
       } catch (IOException e) {
-        if (!doneFuture.isDone()) {
+        if (!responseListener.isDone()) {
+          // Free the server side of the stream as well before its slot is handed out again.
+          pooledStream.stream.reset(new ResetFrame(pooledStream.stream.getId(),
+              ErrorCode.CANCEL_STREAM_ERROR.code), Callback.NOOP);
           throw e;
         }
       }
 
-      doneFuture.get();
-      client.stop();
+      responseListener.awaitDone();
+    }
+    return responseListener.getStatus();
+  }
 
-      int httpStatus = responseCodeFuture.get();
-      if (httpStatus != HttpStatus.OK_200) {
-        try {
-          JSONObject responseJson = new JSONObject(resultBuilder.toString());
-          throw new DicomWebException("Http_" + httpStatus
-              + ", " + responseJson.getJSONObject("error").getString("status")
-              + ", " + responseJson.getJSONObject("error").getString("message"),
-              httpStatus, Status.ProcessingFailure);
-        } catch (JSONException e) {
-          throw new DicomWebException("Http_" + httpStatus, httpStatus, Status.ProcessingFailure);
+  private static DicomWebException errorResponse(int httpStatus, String body) {
+    try {
+      JSONObject responseJson = new JSONObject(body);
+      return new DicomWebException("Http_" + httpStatus
+          + ", " + responseJson.getJSONObject("error").getString("status")
+          + ", " + responseJson.getJSONObject("error").getString("message"),
+          httpStatus, Status.ProcessingFailure);
+    } catch (JSONException e) {
+      return new DicomWebException("Http_" + httpStatus, httpStatus,
+          Status.ProcessingFailure);
+    }
+  }
+
+  /**
+   * The response is a single dataset, some servers wrap it in an array.
+   */
+  private static JSONObject parseStoreResponse(String body) {
+    String trimmed = body.trim();
+    if (trimmed.startsWith("[")) {
+      return new JSONArray(trimmed).getJSONObject(0);
+    }
+    return new JSONObject(trimmed);
+  }
+
+  /**
+   * Streams the instances as parts of a multipart/related body without copying them.
+   */
+  static InputStream multipartBody(String boundary, List<InputStream> instances) {
+    List<InputStream> parts = new ArrayList<>(instances.size() * 2 + 1);
+    for (int i = 0; i < instances.size(); i++) {
+      String delimiter = (i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+          + "Content-Type: application/dicom\r\n\r\n";
+      parts.add(new ByteArrayInputStream(delimiter.getBytes(StandardCharsets.US_ASCII)));
+      parts.add(instances.get(i));
+    }
+    String closeDelimiter = "\r\n--" + boundary + "--\r\n";
+    parts.add(new ByteArrayInputStream(closeDelimiter.getBytes(StandardCharsets.US_ASCII)));
+    return new SequenceInputStream(Collections.enumeration(parts));
+  }
+
+  /**
+   * Opens a stream on a pooled session, waiting for a free stream slot if needed. A session that
+   * went away between being handed out by the pool and the stream being created is retried once
+   * on a fresh session, nothing has been sent on it yet at that point.
+   */
+  private PooledStream newStream(HttpURI uri, HeadersFrame headersFrame,
+      Stream.Listener responseListener) throws Exception {
+    for (int attempt = 1; ; attempt++) {
+      Http2SessionPool.Lease lease = sessionPool.acquire(uri.getHost(),
+          uri.getPort() > 0 ? uri.getPort() : CONNECT_PORT);
+      FuturePromise<Stream> streamPromise = new FuturePromise<>();
+      lease.getSession().newStream(headersFrame, streamPromise, responseListener);
+      try {
+        return new PooledStream(lease, streamPromise.get());
+      } catch (ExecutionException e) {
+        lease.close();
+        if (!lease.getSession().isClosed() || attempt >= MAX_STREAM_ATTEMPTS) {
+          throw e;
         }
       }
-    } catch (Exception e) {
-      if (e instanceof DicomWebException) {
-        throw (DicomWebException) e;
-      }
-      throw new DicomWebException(e);
     }
   }
 
-  private static class DataStream {
+  /**
+   * Stream holding a slot of the session pool until the exchange is complete.
+   */
+  private static class PooledStream implements AutoCloseable {
 
-    private static final int BUFFER_SIZE = 8192;
-
-    private final byte[] buffer = new byte[BUFFER_SIZE];
-    private final InputStream in;
+    private final Http2SessionPool.Lease lease;
     private final Stream stream;
 
-    private boolean endStream = false;
+    private PooledStream(Http2SessionPool.Lease lease, Stream stream) {
+      this.lease = lease;
+      this.stream = stream;
+    }
+
+    @Override
+    public void close() {
+      lease.close();
+    }
+  }
+
+  /**
+   * Collects the response status. The body is only kept for responses other than 200 OK, where it
+   * carries the error message or the failed instances; it is copied into a pooled buffer of bounded
+   * size.
+   */
+  static class ResponseListener extends Stream.Listener.Adapter {
+
+    static final int MAX_ERROR_BODY_SIZE = 64 * 1024;
+    private static final int INITIAL_ERROR_BODY_SIZE = 4 * 1024;
 
-    public DataStream(Stream http2stream, InputStream inputStream) {
-      this.stream = http2stream;
-      this.in = inputStream;
+    private final ByteBufferPool bufferPool;
+    private final CompletableFuture<Integer> statusFuture = new CompletableFuture<>();
+    private final CompletableFuture<Boolean> doneFuture = new CompletableFuture<>();
+    private ByteBuffer errorBody;
+
+    ResponseListener(ByteBufferPool bufferPool) {
+      this.bufferPool = bufferPool;
     }
 
-    public boolean hasNextFrame() {
-      return !endStream;
+    @Override
+    public void onReset(Stream stream, ResetFrame frame) {
+      statusFuture.completeExceptionally(
+          new IOException("Stream reset, error code " + frame.getError()));
+      doneFuture.complete(false);
+    }
+
+    @Override
+    public void onHeaders(Stream stream, HeadersFrame frame) {
+      if (frame.getMetaData() instanceof Response) {
+        statusFuture.complete(((Response) frame.getMetaData()).getStatus());
+      }
+      if (frame.isEndStream()) {
+        doneFuture.complete(true);
+      }
     }
 
-    public DataFrame nextFrame() throws IOException {
-      int read = in.read(buffer);
-      if (read == -1) {
-        endStream = true;
-        return new DataFrame(stream.getId(),
-            ByteBuffer.wrap(buffer, 0, 0), true);
-      } else {
-        return new DataFrame(stream.getId(),
-            ByteBuffer.wrap(buffer, 0, read), false);
+    @Override
+    public void onData(Stream stream, DataFrame frame, Callback callback) {
+      if (statusFuture.getNow(HttpStatus.OK_200) != HttpStatus.OK_200) {
+        appendErrorBody(frame.getData());
       }
+
+      if (frame.isEndStream()) {
+        doneFuture.complete(true);
+      }
+
+      callback.succeeded();
     }
 
-    public void send() throws IOException {
-      CheckerCallback callback = new CheckerCallback();
-      while (hasNextFrame()) {
-        stream.data(nextFrame(), callback);
-        callback.checkAndReset();
+    private void appendErrorBody(ByteBuffer data) {
+      if (errorBody == null) {
+        errorBody = bufferPool.acquire(INITIAL_ERROR_BODY_SIZE, false);
+      }
+      if (BufferUtil.space(errorBody) < data.remaining()
+          && errorBody.capacity() < MAX_ERROR_BODY_SIZE) {
+        int size = Math.min(MAX_ERROR_BODY_SIZE,
+            Math.max(errorBody.capacity() * 2, errorBody.remaining() + data.remaining()));
+        ByteBuffer grown = bufferPool.acquire(size, false);
+        BufferUtil.append(grown, errorBody);
+        bufferPool.release(errorBody);
+        errorBody = grown;
+      }
+      // Anything beyond MAX_ERROR_BODY_SIZE is dropped.
+      BufferUtil.append(errorBody, data);
+    }
+
+    boolean isDone() {
+      return doneFuture.isDone();
+    }
+
+    void awaitDone() throws InterruptedException, ExecutionException {
+      doneFuture.get();
+    }
+
+    int getStatus() throws InterruptedException, ExecutionException {
+      return statusFuture.get();
+    }
+
+    String getErrorBody() {
+      return errorBody == null ? "" : BufferUtil.toString(errorBody, StandardCharsets.UTF_8);
+    }
+
+    void release() {
+      if (errorBody != null) {
+        bufferPool.release(errorBody);
+        errorBody = null;
       }
     }
   }
 
-  private static class CheckerCallback implements Callback {
+  /**
+   * Pumps an input stream into DATA frames of a stream.
+   *
+   * Jetty allows a single pending write per stream, but splits each write into frames of the
+   * negotiated max frame size as the flow-control window allows. The pump therefore writes large
+   * chunks spanning several frames and reads the next chunk while the previous one is still being
+   * sent, only waiting for completion once per chunk. Reads stay on the calling thread, as the
+   * source may block (e.g. on the DIMSE connection) and must not stall Jetty's threads.
+   */
+  static class DataStream {
 
-    private CompletableFuture<Throwable> result = new CompletableFuture<Throwable>();
+    // Upper bound of frames covered by a single write.
+    static final int FRAMES_PER_CHUNK = 16;
 
-    @Override
-    public void succeeded() {
-      result.complete(null);
+    private final Stream stream;
+    private final InputStream in;
+    private final ByteBufferPool bufferPool;
+    private final ByteBuffer[] buffers = new ByteBuffer[2];
+    private final SharedBlockingCallback writeCallback = new SharedBlockingCallback();
+
+    /**
+     * Chunk buffers are taken from the pool and returned once the stream has been sent. They are
+     * heap buffers: the source is an InputStream, so filling a direct buffer would take an extra
+     * copy through a temporary array, while the TLS layer copies into its own buffers either way.
+     */
+    DataStream(Stream stream, InputStream in, int maxFrameSize, ByteBufferPool bufferPool) {
+      this.stream = stream;
+      this.in = in;
+      this.bufferPool = bufferPool;
+      int chunkSize = chunkSize(stream, maxFrameSize);
+      buffers[0] = bufferPool.acquire(chunkSize, false);
+      buffers[1] = bufferPool.acquire(chunkSize, false);
     }
 
-    @Override
-    public void failed(Throwable x) {
-      result.complete(x);
+    /**
+     * Chunks follow the stream's initial send window, between one and FRAMES_PER_CHUNK frames.
+     */
+    static int chunkSize(Stream stream, int maxFrameSize) {
+      int maxChunkSize = maxFrameSize * FRAMES_PER_CHUNK;
+      if (!(stream instanceof HTTP2Stream)) {
+        return maxChunkSize;
+      }
+      int sendWindow = ((HTTP2Stream) stream).getSendWindow();
+      return Math.max(maxFrameSize, Math.min(sendWindow, maxChunkSize));
     }
 
-    public void checkAndReset() throws IOException {
+    void send() throws IOException {
+      Blocker pending = null;
+      ByteBuffer inFlight = null;
       try {
-        Throwable x = result.get();
-        result = new CompletableFuture<>();
-        if (x != null) {
-          throw new IOException(x);
+        for (int current = 0; ; current ^= 1) {
+          ByteBuffer buffer = buffers[current];
+          boolean endStream = fill(buffer);
+
+          // The other buffer becomes writable once the previous chunk has been sent.
+          if (pending != null) {
+            pending.block();
+            pending.close();
+            pending = null;
+            inFlight = null;
+          }
+
+          pending = writeCallback.acquire();
+          inFlight = buffer;
+          stream.data(new DataFrame(stream.getId(), buffer, endStream), pending);
+          if (endStream) {
+            pending.block();
+            inFlight = null;
+            return;
+          }
+        }
+      } finally {
+        if (pending != null) {
+          pending.close();
+        }
+        // A buffer that may still be read by an unfinished write is left to the garbage collector.
+        for (ByteBuffer buffer : buffers) {
+          if (buffer != inFlight) {
+            bufferPool.release(buffer);
+          }
+        }
+      }
+    }
+
+    /**
+     * Reads into the buffer until it is full or the input is exhausted, and flips it for writing.
+     * Returns true if the end of the input was reached.
+     */
+    private boolean fill(ByteBuffer buffer) throws IOException {
+      buffer.clear();
+      byte[] array = buffer.array();
+      int offset = buffer.arrayOffset();
+      int position = 0;
+      int capacity = buffer.capacity();
+      while (position < capacity) {
+        int read = in.read(array, offset + position, capacity - position);
+        if (read == -1) {
+          buffer.limit(position);
+          return true;
         }
-      } catch (InterruptedException | ExecutionException e) {
-        throw new IOException(e);
+        position += read;
       }
+      buffer.limit(position);
+      return false;
     }
   }
 }
@@ -0,0 +1,467 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jetty.http2.BufferingFlowControlStrategy;
+import org.eclipse.jetty.http2.ErrorCode;
+import org.eclipse.jetty.http2.HTTP2Session;
+import org.eclipse.jetty.http2.ISession;
+import org.eclipse.jetty.http2.IStream;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.server.ServerSessionListener;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.frames.Frame;
+import org.eclipse.jetty.http2.frames.GoAwayFrame;
+import org.eclipse.jetty.http2.frames.PingFrame;
+import org.eclipse.jetty.http2.frames.SettingsFrame;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.FuturePromise;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-lived HTTP/2 client holding a small set of sessions per authority (host:port).
+ *
+ * Sessions are dropped from the pool when the server sends GOAWAY, the connection fails or a PING
+ * is left unanswered, so the next caller reconnects. Only sessions with leased streams are
+ * pinged, so that unused ones are closed once idle.
+ *
+ * Each caller leases one stream slot. A session is only handed out while it has fewer open streams
+ * than the server's SETTINGS_MAX_CONCURRENT_STREAMS and its send window is not exhausted;
+ * otherwise callers wait until a stream finishes or the server opens the window again, instead of
+ * queueing unbounded amounts of data inside the client.
+ */
+public class Http2SessionPool implements Closeable {
+
+  public static final int DEFAULT_POOL_SIZE = 2;
+  public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  // Used if the server's SETTINGS do not limit streams, RFC 7540 recommends allowing at least 100.
+  private static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+  private static final float FLOW_CONTROL_BUFFER_RATIO = 0.5f;
+  private static final long CONNECT_TIMEOUT_SECONDS = 5;
+  private static final long PING_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  // Waiting callers re-check admission at least this often, in case a wakeup was missed.
+  private static final long ADMISSION_RECHECK_MILLIS = 1000;
+
+  private static Logger log = LoggerFactory.getLogger(Http2SessionPool.class);
+
+  private final int poolSize;
+  private final HTTP2Client client;
+  private final SslContextFactory sslContextFactory;
+  private final ScheduledExecutorService pingExecutor;
+  private final ConcurrentHashMap<String, AuthorityPool> authorities = new ConcurrentHashMap<>();
+  private final AtomicLong pingCounter = new AtomicLong();
+
+  private final AtomicInteger activeStreams = new AtomicInteger();
+  private final AtomicInteger queuedStreams = new AtomicInteger();
+  private final AtomicLong windowStalls = new AtomicLong();
+
+  public Http2SessionPool() {
+    this(DEFAULT_POOL_SIZE, DEFAULT_IDLE_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param poolSize maximum number of sessions kept open per authority
+   * @param idleTimeoutMillis idle connections are closed after this long
+   */
+  public Http2SessionPool(int poolSize, long idleTimeoutMillis) {
+    this(poolSize, idleTimeoutMillis, PING_INTERVAL_MILLIS, new SslContextFactory.Client());
+  }
+
+  /**
+   * @param sslContextFactory null to connect without TLS
+   */
+  Http2SessionPool(int poolSize, long idleTimeoutMillis, long pingIntervalMillis,
+      SslContextFactory sslContextFactory) {
+    if (poolSize < 1) {
+      throw new IllegalArgumentException("Session pool size must be positive: " + poolSize);
+    }
+    this.poolSize = poolSize;
+    this.client = new HTTP2Client();
+    this.sslContextFactory = sslContextFactory;
+    if (sslContextFactory != null) {
+      client.addBean(sslContextFactory);
+    }
+    client.setIdleTimeout(idleTimeoutMillis);
+    client.setFlowControlStrategyFactory(StallTrackingFlowControlStrategy::new);
+    try {
+      client.start();
+    } catch (Exception e) {
+      throw new IllegalStateException("Failed to start HTTP/2 client", e);
+    }
+
+    pingExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "http2-session-ping");
+      thread.setDaemon(true);
+      return thread;
+    });
+    pingExecutor.scheduleWithFixedDelay(this::pingAll,
+        pingIntervalMillis, pingIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Leases a stream slot on an open session to the given authority, connecting if the pool is not
+   * yet full and blocking while every session is at its stream limit or out of send window.
+   * The returned lease must be closed once the stream is done.
+   */
+  public Lease acquire(String host, int port) throws IOException {
+    String authority = host + ":" + port;
+    return authorities
+        .computeIfAbsent(authority, key -> new AuthorityPool(new InetSocketAddress(host, port)))
+        .acquire();
+  }
+
+  /**
+   * Buffer pool of the underlying client, shared with request and response body handling.
+   */
+  public ByteBufferPool getByteBufferPool() {
+    return client.getByteBufferPool();
+  }
+
+  /**
+   * Number of streams currently leased out.
+   */
+  public int getActiveStreams() {
+    return activeStreams.get();
+  }
+
+  /**
+   * Number of callers waiting for a stream slot.
+   */
+  public int getQueuedStreams() {
+    return queuedStreams.get();
+  }
+
+  /**
+   * Number of times a session or stream ran out of send window since the pool was created.
+   */
+  public long getWindowStalls() {
+    return windowStalls.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    pingExecutor.shutdownNow();
+    try {
+      client.stop();
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void pingAll() {
+    for (AuthorityPool pool : authorities.values()) {
+      pool.ping();
+    }
+  }
+
+  private void signalAll() {
+    for (AuthorityPool pool : authorities.values()) {
+      pool.signal();
+    }
+  }
+
+  /**
+   * A stream slot on a pooled session.
+   */
+  public class Lease implements Closeable {
+
+    private final PooledSession pooled;
+    private final Session session;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Lease(PooledSession pooled, Session session) {
+      this.pooled = pooled;
+      this.session = session;
+    }
+
+    public Session getSession() {
+      return session;
+    }
+
+    /**
+     * Largest DATA frame payload the server accepts on this session.
+     */
+    public int getMaxFrameSize() {
+      return pooled.maxFrameSize;
+    }
+
+    /**
+     * Returns the stream slot to the pool. Safe to call more than once.
+     */
+    @Override
+    public void close() {
+      if (released.compareAndSet(false, true)) {
+        pooled.pool.release(pooled);
+      }
+    }
+  }
+
+  private class AuthorityPool {
+
+    private final InetSocketAddress address;
+    private final List<PooledSession> sessions = new ArrayList<>();
+    private int next;
+
+    private AuthorityPool(InetSocketAddress address) {
+      this.address = address;
+    }
+
+    private Lease acquire() throws IOException {
+      PooledSession pooled;
+      synchronized (this) {
+        boolean queued = false;
+        try {
+          while ((pooled = admit()) == null) {
+            if (!queued) {
+              queued = true;
+              queuedStreams.incrementAndGet();
+            }
+            wait(ADMISSION_RECHECK_MILLIS);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for an HTTP/2 stream");
+        } finally {
+          if (queued) {
+            queuedStreams.decrementAndGet();
+          }
+        }
+        pooled.activeStreams++;
+        activeStreams.incrementAndGet();
+      }
+
+      // Wait for the handshake outside of the lock, so that callers handed an already open
+      // session are not blocked by a connecting one.
+      try {
+        return new Lease(pooled, pooled.await());
+      } catch (IOException e) {
+        release(pooled);
+        remove(pooled);
+        throw e;
+      }
+    }
+
+    /**
+     * Picks the next session with a free stream slot and send window, connecting a new one if
+     * there is none and the pool is not full. Returns null if the caller has to wait.
+     */
+    private PooledSession admit() {
+      sessions.removeIf(PooledSession::isClosed);
+      for (int i = 0; i < sessions.size(); i++) {
+        next = (next + 1) % sessions.size();
+        PooledSession candidate = sessions.get(next);
+        if (candidate.canOpenStream()) {
+          return candidate;
+        }
+      }
+      if (sessions.size() < poolSize) {
+        PooledSession pooled = new PooledSession(this);
+        sessions.add(pooled);
+        pooled.connect();
+        return pooled;
+      }
+      return null;
+    }
+
+    private synchronized void release(PooledSession pooled) {
+      pooled.activeStreams--;
+      activeStreams.decrementAndGet();
+      notifyAll();
+    }
+
+    private synchronized void remove(PooledSession pooled) {
+      sessions.remove(pooled);
+      notifyAll();
+    }
+
+    private synchronized void signal() {
+      notifyAll();
+    }
+
+    /**
+     * Pings the sessions with leased streams. Unused sessions are left for the idle timeout to
+     * close.
+     */
+    private void ping() {
+      List<PooledSession> snapshot = new ArrayList<>();
+      synchronized (this) {
+        for (PooledSession pooled : sessions) {
+          if (pooled.activeStreams > 0) {
+            snapshot.add(pooled);
+          }
+        }
+      }
+      for (PooledSession pooled : snapshot) {
+        pooled.ping();
+      }
+    }
+  }
+
+  private class PooledSession extends ServerSessionListener.Adapter {
+
+    private final AuthorityPool pool;
+    private final FuturePromise<Session> sessionPromise = new FuturePromise<>();
+    private volatile Session session;
+    private volatile boolean closed;
+    private volatile boolean settingsReceived;
+    private volatile int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+    private volatile int maxFrameSize = Frame.DEFAULT_MAX_LENGTH;
+    // Payload of the PING that has not been answered yet, 0 if none is outstanding.
+    private volatile long outstandingPing;
+    // Guarded by the AuthorityPool lock.
+    private int activeStreams;
+
+    private PooledSession(AuthorityPool pool) {
+      this.pool = pool;
+    }
+
+    private void connect() {
+      client.connect(sslContextFactory, pool.address, this, sessionPromise);
+    }
+
+    private Session await() throws IOException {
+      Session current = session;
+      if (current != null) {
+        return current;
+      }
+      try {
+        session = sessionPromise.get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        return session;
+      } catch (Exception e) {
+        closed = true;
+        throw new IOException("Failed to connect to " + pool.address, e);
+      }
+    }
+
+    private boolean isClosed() {
+      return closed || (session != null && session.isClosed());
+    }
+
+    private boolean canOpenStream() {
+      // The stream limit is not known until the server's SETTINGS arrive, until then only the
+      // caller that opened the session uses it.
+      if (!settingsReceived || activeStreams >= maxConcurrentStreams) {
+        return false;
+      }
+      Session current = session;
+      return current instanceof HTTP2Session && ((HTTP2Session) current).getSendWindow() > 0;
+    }
+
+    private void ping() {
+      Session current = session;
+      if (current == null || isClosed()) {
+        return;
+      }
+      if (outstandingPing != 0) {
+        log.warn("HTTP/2 session to {} did not answer PING, reconnecting", pool.address);
+        discard(current);
+        return;
+      }
+      long payload = pingCounter.incrementAndGet();
+      outstandingPing = payload;
+      current.ping(new PingFrame(payload, false), Callback.NOOP);
+    }
+
+    private void discard(Session current) {
+      closed = true;
+      pool.remove(this);
+      current.close(ErrorCode.NO_ERROR.code, "unhealthy", Callback.NOOP);
+    }
+
+    @Override
+    public void onSettings(Session session, SettingsFrame frame) {
+      Map<Integer, Integer> settings = frame.getSettings();
+      Integer maxStreams = settings.get(SettingsFrame.MAX_CONCURRENT_STREAMS);
+      if (maxStreams != null) {
+        maxConcurrentStreams = maxStreams;
+      }
+      Integer frameSize = settings.get(SettingsFrame.MAX_FRAME_SIZE);
+      if (frameSize != null) {
+        maxFrameSize = frameSize;
+      }
+      this.session = session;
+      settingsReceived = true;
+      pool.signal();
+    }
+
+    @Override
+    public void onPing(Session session, PingFrame frame) {
+      if (frame.isReply() && frame.getPayloadAsLong() == outstandingPing) {
+        outstandingPing = 0;
+      }
+    }
+
+    @Override
+    public void onClose(Session session, GoAwayFrame frame) {
+      log.debug("HTTP/2 session to {} closed: {}", pool.address, frame);
+      closed = true;
+      pool.remove(this);
+    }
+
+    @Override
+    public void onFailure(Session session, Throwable failure) {
+      log.warn("HTTP/2 session to {} failed", pool.address, failure);
+      closed = true;
+      pool.remove(this);
+    }
+  }
+
+  /**
+   * Jetty's default client strategy, additionally counting stalls and waking up callers waiting
+   * for a session once its send window reopens.
+   */
+  private class StallTrackingFlowControlStrategy extends BufferingFlowControlStrategy {
+
+    private StallTrackingFlowControlStrategy() {
+      super(FLOW_CONTROL_BUFFER_RATIO);
+    }
+
+    @Override
+    protected void onSessionStalled(ISession session) {
+      super.onSessionStalled(session);
+      windowStalls.incrementAndGet();
+    }
+
+    @Override
+    protected void onStreamStalled(IStream stream) {
+      super.onStreamStalled(stream);
+      windowStalls.incrementAndGet();
+    }
+
+    @Override
+    protected void onSessionUnstalled(ISession session) {
+      super.onSessionUnstalled(session);
+      signalAll();
+    }
+  }
+}
@@ -17,26 +17,75 @@ package com.google.cloud.healthcare;
 import com.github.danieln.multipart.MultipartInput;
 import com.google.api.client.http.HttpStatusCodes;
 import java.io.InputStream;
+import java.util.List;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.net.Status;
 import org.json.JSONArray;
+import org.json.JSONObject;
 
 public interface IDicomWebClient {
 
+  /**
+   * Transfer syntax for {@link #wadoRs(String, String)} asking for instances as they are stored,
+   * without transcoding by the server.
+   */
+  String TRANSFER_SYNTAX_AS_STORED = "*";
+
   MultipartInput wadoRs(String path) throws DicomWebException;
 
+  /**
+   * Makes a WADO-RS call asking for instances in the given transfer syntax.
+   *
+   * @param transferSyntax transfer syntax UID or {@link #TRANSFER_SYNTAX_AS_STORED}, null for the
+   *     server's default
+   */
+  MultipartInput wadoRs(String path, String transferSyntax) throws DicomWebException;
+
   JSONArray qidoRs(String path) throws DicomWebException;
 
+  /**
+   * Makes a QIDO-RS call and returns a reader of its results. Implementations decode the results
+   * one at a time as the response is received. The caller must close the reader.
+   */
+  default JsonArrayReader qidoRsStream(String path) throws DicomWebException {
+    return JsonArrayReader.of(qidoRs(path));
+  }
+
+  /**
+   * Makes QIDO-RS calls for successive pages of results, using the limit and offset query
+   * parameters, and returns a reader of all results. The first page is requested right away,
+   * each next one while the previous one is read. The caller must close the reader.
+   *
+   * @param pageSize maximum number of results per page, 0 for a single
+   *     {@link #qidoRsStream} call
+   */
+  default JsonArrayReader qidoRsPaged(String path, int pageSize) throws DicomWebException {
+    if (pageSize <= 0) {
+      return qidoRsStream(path);
+    }
+    return new QidoPageReader(this, path, pageSize);
+  }
+
   void stowRs(String path, InputStream in) throws DicomWebException;
 
+  /**
+   * Stores several instances with a single multipart/related request.
+   *
+   * @return the store instances response, listing instances that failed in the
+   *     FailedSOPSequence. Empty if all instances were stored.
+   */
+  JSONObject stowRsMultipart(String path, List<InputStream> instances) throws DicomWebException;
+
   /**
    * An exception for errors returned by the DicomWeb server.
    */
   class DicomWebException extends Exception {
 
     private int status = Status.ProcessingFailure;
+    // HTTP status returned by the server, 0 if the request did not get a response.
+    private int httpStatus;
 
     public DicomWebException(String message, int status) {
       super(message);
@@ -59,6 +108,7 @@ public interface IDicomWebClient {
         int defaultDicomStatus) {
       super(message);
       this.status = httpStatusToDicomStatus(httpStatus, defaultDicomStatus);
+      this.httpStatus = httpStatus;
     }
 
     public DicomWebException(
@@ -68,6 +118,7 @@ public interface IDicomWebClient {
         int defaultDicomStatus) {
       super(message, cause);
       this.status = httpStatusToDicomStatus(httpStatus, defaultDicomStatus);
+      this.httpStatus = httpStatus;
     }
 
     public DicomWebException(String message) {
@@ -82,6 +133,10 @@ public interface IDicomWebClient {
       return status;
     }
 
+    public int getHttpStatus() {
+      return httpStatus;
+    }
+
     public Attributes getAttributes() {
       Attributes attrs = new Attributes();
       attrs.setString(Tag.ErrorComment, VR.LO, getMessage());
@@ -0,0 +1,245 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Reads the objects of a JSON array one at a time, such as the results of a QIDO-RS response,
+ * without holding the whole array in memory.
+ *
+ * Objects are either returned as {@link JSONObject}s, or handed to an {@link ObjectDecoder} that
+ * reads them straight from the parser, without building a {@link JSONObject} first.
+ */
+public class JsonArrayReader implements Closeable {
+
+  static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  /**
+   * Decodes one object of the array.
+   */
+  public interface ObjectDecoder<T> {
+
+    /**
+     * @param parser positioned on the object's START_OBJECT token, to be left on its END_OBJECT
+     *     token
+     */
+    T decode(JsonParser parser) throws IOException;
+
+    /**
+     * Decodes an object already in memory, such as a cached result. Decoders that can read it
+     * directly override this, which otherwise serializes it for {@link #decode(JsonParser)}.
+     */
+    default T decode(JSONObject object) throws IOException {
+      try (JsonParser objectParser = JSON_FACTORY.createParser(object.toString())) {
+        objectParser.nextToken();
+        return decode(objectParser);
+      }
+    }
+  }
+
+  private final JsonParser parser;
+  private final Iterator<Object> values;
+  private boolean started;
+  private boolean ended;
+
+  public JsonArrayReader(InputStream in) throws IOException {
+    this.parser = JSON_FACTORY.createParser(in);
+    this.values = null;
+  }
+
+  /**
+   * For subclasses reading the objects from elsewhere, overriding {@link #next()},
+   * {@link #next(ObjectDecoder)} and {@link #close}.
+   */
+  protected JsonArrayReader() {
+    this.parser = null;
+    this.values = null;
+  }
+
+  private JsonArrayReader(JSONArray array) {
+    this.parser = null;
+    this.values = array.iterator();
+  }
+
+  /**
+   * Returns a reader of an array already in memory, null being read as empty.
+   */
+  public static JsonArrayReader of(JSONArray array) {
+    return new JsonArrayReader(array == null ? new JSONArray() : array);
+  }
+
+  /**
+   * Returns a decoder keeping only the named members of each object, such as the attributes a
+   * caller uses out of a QIDO-RS result. The others are skipped without being decoded.
+   */
+  public static ObjectDecoder<JSONObject> projection(String... names) {
+    return new Projection(names);
+  }
+
+  /**
+   * Returns the next object of the array, null once all have been read.
+   */
+  public JSONObject next() throws IDicomWebClient.DicomWebException {
+    if (values != null) {
+      try {
+        return values.hasNext() ? (JSONObject) values.next() : null;
+      } catch (ClassCastException e) {
+        throw new IDicomWebClient.DicomWebException(e);
+      }
+    }
+    return next(JsonArrayReader::readJSONObject);
+  }
+
+  /**
+   * Returns the next object of the array as decoded by the decoder, null once all have been read.
+   * A {@link DicomServiceException} thrown by the decoder keeps its status.
+   */
+  public <T> T next(ObjectDecoder<T> decoder) throws IDicomWebClient.DicomWebException {
+    if (values != null) {
+      JSONObject value = next();
+      return value == null ? null : decode(value, decoder);
+    }
+    if (ended) {
+      return null;
+    }
+    try {
+      if (!started) {
+        started = true;
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+          throw new IDicomWebClient.DicomWebException("A JSON array must start with '['");
+        }
+      }
+      JsonToken token = parser.nextToken();
+      if (token == JsonToken.END_ARRAY) {
+        ended = true;
+        return null;
+      }
+      if (token != JsonToken.START_OBJECT) {
+        throw new IDicomWebClient.DicomWebException("Expected a JSON object, got " + token);
+      }
+      return decoder.decode(parser);
+    } catch (IOException e) {
+      throw decodeError(e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (parser != null) {
+      parser.close();
+    }
+  }
+
+  /**
+   * Decodes an object already in memory, for readers not backed by a parser.
+   */
+  protected static <T> T decode(JSONObject object, ObjectDecoder<T> decoder)
+      throws IDicomWebClient.DicomWebException {
+    try {
+      return decoder.decode(object);
+    } catch (IOException e) {
+      throw decodeError(e);
+    }
+  }
+
+  private static IDicomWebClient.DicomWebException decodeError(IOException e) {
+    if (e instanceof DicomServiceException) {
+      return new IDicomWebClient.DicomWebException(e, ((DicomServiceException) e).getStatus());
+    }
+    return new IDicomWebClient.DicomWebException(e, Status.ProcessingFailure);
+  }
+
+  private static JSONObject readJSONObject(JsonParser parser) throws IOException {
+    JSONObject object = new JSONObject();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      object.put(name, readValue(parser));
+    }
+    return object;
+  }
+
+  private static Object readValue(JsonParser parser) throws IOException {
+    switch (parser.getCurrentToken()) {
+      case START_OBJECT:
+        return readJSONObject(parser);
+      case START_ARRAY:
+        JSONArray array = new JSONArray();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          array.put(readValue(parser));
+        }
+        return array;
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        // Same representation as org.json's own parser, e.g. BigDecimal for long decimals.
+        return JSONObject.stringToValue(parser.getText());
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return JSONObject.NULL;
+      default:
+        throw new IOException("Unexpected JSON token " + parser.getCurrentToken());
+    }
+  }
+
+  private static class Projection implements ObjectDecoder<JSONObject> {
+
+    private final String[] names;
+    private final Set<String> kept;
+
+    private Projection(String[] names) {
+      this.names = names;
+      this.kept = new HashSet<>(Arrays.asList(names));
+    }
+
+    @Override
+    public JSONObject decode(JsonParser parser) throws IOException {
+      JSONObject object = new JSONObject();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        parser.nextToken();
+        if (kept.contains(name)) {
+          object.put(name, readValue(parser));
+        } else {
+          parser.skipChildren();
+        }
+      }
+      return object;
+    }
+
+    @Override
+    public JSONObject decode(JSONObject object) {
+      return new JSONObject(object, names);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Reads the results of a QIDO-RS query one page at a time, see
+ * {@link IDicomWebClient#qidoRsPaged}. At most two pages are held in memory: the one being read
+ * and the next one, which is requested in the background.
+ *
+ * A page with fewer results than the page size is the last one. So is a page with more, from a
+ * server that ignores the limit parameter.
+ */
+class QidoPageReader extends JsonArrayReader {
+
+  private static final ExecutorService pageFetcher = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "qidors-page-fetcher");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final IDicomWebClient dicomWebClient;
+  private final String path;
+  private final int pageSize;
+
+  private Iterator<Object> page;
+  private boolean lastPage;
+  private int nextOffset;
+  private Future<JSONArray> nextPage;
+
+  QidoPageReader(IDicomWebClient dicomWebClient, String path, int pageSize)
+      throws IDicomWebClient.DicomWebException {
+    this.dicomWebClient = dicomWebClient;
+    this.path = path;
+    this.pageSize = pageSize;
+    startPage(dicomWebClient.qidoRs(pagePath(0)));
+  }
+
+  @Override
+  public JSONObject next() throws IDicomWebClient.DicomWebException {
+    while (!page.hasNext()) {
+      if (lastPage) {
+        return null;
+      }
+      try {
+        startPage(nextPage.get());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IDicomWebClient.DicomWebException) {
+          throw (IDicomWebClient.DicomWebException) e.getCause();
+        }
+        throw new IDicomWebClient.DicomWebException(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IDicomWebClient.DicomWebException(e);
+      }
+    }
+    return (JSONObject) page.next();
+  }
+
+  @Override
+  public <T> T next(ObjectDecoder<T> decoder) throws IDicomWebClient.DicomWebException {
+    JSONObject result = next();
+    return result == null ? null : decode(result, decoder);
+  }
+
+  @Override
+  public void close() {
+    if (nextPage != null) {
+      nextPage.cancel(true);
+    }
+  }
+
+  private void startPage(JSONArray results) {
+    page = results.iterator();
+    lastPage = results.length() != pageSize;
+    nextOffset += pageSize;
+    nextPage = null;
+    if (!lastPage) {
+      String nextPagePath = pagePath(nextOffset);
+      nextPage = pageFetcher.submit(() -> dicomWebClient.qidoRs(nextPagePath));
+    }
+  }
+
+  private String pagePath(int offset) {
+    String separator;
+    if (path.indexOf('?') < 0) {
+      separator = "?";
+    } else {
+      separator = path.endsWith("?") || path.endsWith("&") ? "" : "&";
+    }
+    return path + separator + "limit=" + pageSize + "&offset=" + offset;
+  }
+}
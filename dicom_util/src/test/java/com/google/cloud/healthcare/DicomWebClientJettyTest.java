@@ -0,0 +1,241 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.healthcare.IDicomWebClient.DicomWebException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.api.server.ServerSessionListener;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.server.RawHTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.Callback;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class DicomWebClientJettyTest {
+
+  private static final String FAILED_SOP_SEQUENCE = "00081198";
+  private static final String FAILED_RESPONSE = "{\"" + FAILED_SOP_SEQUENCE + "\":{\"vr\":\"SQ\","
+      + "\"Value\":[{\"00081155\":{\"vr\":\"UI\",\"Value\":[\"1.2.3\"]}}]}}";
+
+  private final List<byte[]> instances = Arrays.asList(
+      "first instance".getBytes(StandardCharsets.US_ASCII),
+      // Line breaks in instances must be kept as is.
+      "second\r\ninstance\r\n".getBytes(StandardCharsets.US_ASCII));
+
+  private Server server;
+  private ServerConnector connector;
+  private Http2SessionPool pool;
+  private DicomWebClientJetty client;
+
+  private volatile int responseStatus;
+  private volatile String responseBody;
+  private volatile String requestPath;
+  private volatile String requestContentType;
+  private volatile byte[] requestBody;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new Server();
+    connector = new ServerConnector(server, new RawHTTP2ServerConnectionFactory(
+        new HttpConfiguration(), new StowSessionListener()));
+    connector.setPort(0);
+    server.addConnector(connector);
+    server.start();
+    pool = new Http2SessionPool(
+        1, /* idleTimeoutMillis */ 10000, /* pingIntervalMillis */ 10000,
+        /* sslContextFactory */ null);
+    client = new DicomWebClientJetty(/* credentials */ null,
+        "http://localhost:" + connector.getLocalPort() + "/dicomWeb", pool);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.close();
+    server.stop();
+  }
+
+  @Test
+  public void testStowRsMultipart_ok() throws Exception {
+    responseStatus = HttpStatus.OK_200;
+
+    JSONObject result = client.stowRsMultipart("studies", streams(instances));
+
+    assertThat(result.length()).isEqualTo(0);
+    assertThat(requestPath).isEqualTo("/dicomWeb/studies");
+    assertThat(requestContentType)
+        .startsWith("multipart/related; type=\"application/dicom\"; boundary=");
+    assertParts(requestBody, boundary(requestContentType), instances);
+  }
+
+  @Test
+  public void testStowRsMultipart_acceptedReturnsFailedInstances() throws Exception {
+    responseStatus = HttpStatus.ACCEPTED_202;
+    responseBody = FAILED_RESPONSE;
+
+    JSONObject result = client.stowRsMultipart("studies", streams(instances));
+
+    assertThat(result.getJSONObject(FAILED_SOP_SEQUENCE).getJSONArray("Value").length())
+        .isEqualTo(1);
+    assertParts(requestBody, boundary(requestContentType), instances);
+  }
+
+  @Test
+  public void testStowRsMultipart_conflictReturnsFailedInstances() throws Exception {
+    responseStatus = HttpStatus.CONFLICT_409;
+    responseBody = "[" + FAILED_RESPONSE + "]";
+
+    JSONObject result = client.stowRsMultipart("studies", streams(instances));
+
+    assertThat(result.has(FAILED_SOP_SEQUENCE)).isTrue();
+  }
+
+  @Test
+  public void testStowRsMultipart_conflictWithoutFailedInstancesThrows() throws Exception {
+    responseStatus = HttpStatus.CONFLICT_409;
+    responseBody = "{\"error\":{\"status\":\"ALREADY_EXISTS\",\"message\":\"exists\"}}";
+
+    try {
+      client.stowRsMultipart("studies", streams(instances));
+      fail("Expected DicomWebException");
+    } catch (DicomWebException e) {
+      assertThat(e.getHttpStatus()).isEqualTo(HttpStatus.CONFLICT_409);
+      assertThat(e.getMessage()).contains("ALREADY_EXISTS");
+    }
+  }
+
+  @Test
+  public void testMultipartBody_singleInstance() throws Exception {
+    List<byte[]> single = instances.subList(0, 1);
+
+    byte[] body = readAll(DicomWebClientJetty.multipartBody("boundary", streams(single)));
+
+    assertThat(new String(body, StandardCharsets.US_ASCII)).isEqualTo("--boundary\r\n"
+        + "Content-Type: application/dicom\r\n\r\n"
+        + "first instance"
+        + "\r\n--boundary--\r\n");
+  }
+
+  /**
+   * Splits the body on its delimiters and checks each part's headers and content.
+   */
+  private static void assertParts(byte[] body, String boundary, List<byte[]> expected) {
+    // ISO-8859-1 maps each byte to one char, so contents compare byte for byte.
+    String text = new String(body, StandardCharsets.ISO_8859_1);
+    String firstDelimiter = "--" + boundary + "\r\n";
+    String delimiter = "\r\n--" + boundary + "\r\n";
+    String closeDelimiter = "\r\n--" + boundary + "--\r\n";
+    assertThat(text).startsWith(firstDelimiter);
+    assertThat(text).endsWith(closeDelimiter);
+
+    String[] parts = text
+        .substring(firstDelimiter.length(), text.length() - closeDelimiter.length())
+        .split(delimiter, -1);
+    assertThat(parts).hasLength(expected.size());
+    String headers = "Content-Type: application/dicom\r\n\r\n";
+    for (int i = 0; i < parts.length; i++) {
+      assertThat(parts[i]).startsWith(headers);
+      assertThat(parts[i].substring(headers.length()).getBytes(StandardCharsets.ISO_8859_1))
+          .isEqualTo(expected.get(i));
+    }
+  }
+
+  private static String boundary(String contentType) {
+    return contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+  }
+
+  private static List<InputStream> streams(List<byte[]> contents) {
+    List<InputStream> streams = new ArrayList<>();
+    for (byte[] content : contents) {
+      streams.add(new ByteArrayInputStream(content));
+    }
+    return streams;
+  }
+
+  private static byte[] readAll(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Records each request and answers it with the configured status and body once it is complete.
+   */
+  private class StowSessionListener extends ServerSessionListener.Adapter {
+
+    @Override
+    public Stream.Listener onNewStream(Stream stream, HeadersFrame frame) {
+      MetaData.Request request = (MetaData.Request) frame.getMetaData();
+      requestPath = request.getURI().getPath();
+      requestContentType = request.getFields().get(HttpHeader.CONTENT_TYPE);
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      return new Stream.Listener.Adapter() {
+        @Override
+        public void onData(Stream stream, DataFrame frame, Callback callback) {
+          ByteBuffer data = frame.getData();
+          byte[] bytes = new byte[data.remaining()];
+          data.get(bytes);
+          body.write(bytes, 0, bytes.length);
+          callback.succeeded();
+          if (frame.isEndStream()) {
+            requestBody = body.toByteArray();
+            respond(stream);
+          }
+        }
+      };
+    }
+
+    private void respond(Stream stream) {
+      MetaData.Response response =
+          new MetaData.Response(HttpVersion.HTTP_2, responseStatus, new HttpFields());
+      String body = responseBody;
+      if (body == null) {
+        stream.headers(new HeadersFrame(stream.getId(), response, null, true), Callback.NOOP);
+        return;
+      }
+      stream.headers(new HeadersFrame(stream.getId(), response, null, false),
+          Callback.from(() -> stream.data(new DataFrame(stream.getId(),
+              ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)), true), Callback.NOOP)));
+    }
+  }
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.fasterxml.jackson.core.JsonToken;
 import com.github.danieln.multipart.MultipartInput;
 import com.github.danieln.multipart.PartInput;
 import com.google.api.client.testing.http.HttpTesting;
@@ -65,6 +66,20 @@ public final class DicomWebClientTest {
     assertNull("WadoRs returned more than one part", resp.nextPart());
   }
 
+  @Test
+  public void testDicomWebClient_WadoTransferSyntax() throws Exception {
+    fakeDicomWebServer.addWadoResponse(new byte[] {1});
+    fakeDicomWebServer.addWadoResponse(new byte[] {1});
+
+    client.wadoRs("instanceName", IDicomWebClient.TRANSFER_SYNTAX_AS_STORED);
+    client.wadoRs("instanceName");
+
+    assertThat(fakeDicomWebServer.getRequests().get(0).request.getFirstHeaderValue("Accept"))
+        .isEqualTo("multipart/related; type=\"application/dicom\"; transfer-syntax=*");
+    assertThat(fakeDicomWebServer.getRequests().get(1).request.getFirstHeaderValue("Accept"))
+        .isNull();
+  }
+
   @Test
   public void testDicomWebClient_WadoError() throws Exception {
     fakeDicomWebServer.addResponseWithStatusCode(404);
@@ -85,6 +100,74 @@ public final class DicomWebClientTest {
     assertThat(tagValue).isEqualTo("1.2.840.113619.2.176.3596.3364818.7819.1259708454.108");
   }
 
+  @Test
+  public void testDicomWebClient_QidoStream() throws Exception {
+    fakeDicomWebServer.addJsonResponse(
+        "[{\"0020000E\":{\"vr\":\"UI\",\"Value\":[\"1.2\"]}}, {\"0020000E\":{}} ]");
+
+    try (JsonArrayReader results = client.qidoRsStream("query")) {
+      assertThat(results.next().getJSONObject("0020000E").getJSONArray("Value").getString(0))
+          .isEqualTo("1.2");
+      assertThat(results.next().getJSONObject("0020000E").length()).isEqualTo(0);
+      assertThat(results.next()).isNull();
+      assertThat(results.next()).isNull();
+    }
+  }
+
+  @Test
+  public void testDicomWebClient_QidoStreamDecoder() throws Exception {
+    fakeDicomWebServer.addJsonResponse("[{\"a\":{\"b\":[1]}}, {}]");
+
+    try (JsonArrayReader results = client.qidoRsStream("query")) {
+      JsonArrayReader.ObjectDecoder<String> firstName = parser -> {
+        String name = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          name = name == null ? parser.getCurrentName() : name;
+          parser.nextToken();
+          parser.skipChildren();
+        }
+        return String.valueOf(name);
+      };
+      assertThat(results.next(firstName)).isEqualTo("a");
+      assertThat(results.next(firstName)).isEqualTo("null");
+      assertThat(results.next(firstName)).isNull();
+    }
+  }
+
+  @Test
+  public void testDicomWebClient_QidoStreamProjection() throws Exception {
+    fakeDicomWebServer.addJsonResponse("[{\"00080016\":{\"vr\":\"UI\",\"Value\":[\"1.2\"]},"
+        + "\"00100010\":{\"vr\":\"PN\",\"Value\":[{\"Alphabetic\":\"A^B\"}]},"
+        + "\"00080018\":{\"vr\":\"UI\",\"Value\":[\"1.2.3\"]}}]");
+
+    try (JsonArrayReader results = client.qidoRsStream("query")) {
+      JSONObject result = results.next(JsonArrayReader.projection("00080018", "0020000D"));
+      assertThat(result.keySet()).containsExactly("00080018");
+      assertThat(result.getJSONObject("00080018").getJSONArray("Value").getString(0))
+          .isEqualTo("1.2.3");
+      assertThat(results.next(JsonArrayReader.projection())).isNull();
+    }
+  }
+
+  @Test
+  public void testDicomWebClient_QidoStreamEmpty() throws Exception {
+    fakeDicomWebServer.addJsonResponse(" [ ] ");
+
+    try (JsonArrayReader results = client.qidoRsStream("query")) {
+      assertThat(results.next()).isNull();
+    }
+  }
+
+  @Test
+  public void testDicomWebClient_QidoStreamMalformed() throws Exception {
+    fakeDicomWebServer.addJsonResponse("[{}, 1]");
+
+    try (JsonArrayReader results = client.qidoRsStream("query")) {
+      assertThat(results.next().length()).isEqualTo(0);
+      assertThrows(IDicomWebClient.DicomWebException.class, results::next);
+    }
+  }
+
   @Test
   public void testDicomWebClient_QidoError() throws Exception {
     fakeDicomWebServer.addResponseWithStatusCode(404);
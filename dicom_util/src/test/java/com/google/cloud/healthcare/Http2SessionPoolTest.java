@@ -0,0 +1,88 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.server.ServerSessionListener;
+import org.eclipse.jetty.http2.server.RawHTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class Http2SessionPoolTest {
+
+  private static final long IDLE_TIMEOUT_MILLIS = 1000;
+  private static final long PING_INTERVAL_MILLIS = 100;
+
+  private Server server;
+  private ServerConnector connector;
+  private Http2SessionPool pool;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new Server();
+    connector = new ServerConnector(server, new RawHTTP2ServerConnectionFactory(
+        new HttpConfiguration(), new ServerSessionListener.Adapter()));
+    connector.setPort(0);
+    server.addConnector(connector);
+    server.start();
+    pool = new Http2SessionPool(
+        1, IDLE_TIMEOUT_MILLIS, PING_INTERVAL_MILLIS, /* sslContextFactory */ null);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.close();
+    server.stop();
+  }
+
+  @Test
+  public void testHttp2SessionPool_closesUnusedSession() throws Exception {
+    Session session;
+    try (Http2SessionPool.Lease lease = pool.acquire("localhost", connector.getLocalPort())) {
+      session = lease.getSession();
+    }
+
+    // Pings would keep the session open past the idle timeout.
+    assertThat(awaitClosed(session, IDLE_TIMEOUT_MILLIS * 5)).isTrue();
+    try (Http2SessionPool.Lease lease = pool.acquire("localhost", connector.getLocalPort())) {
+      assertThat(lease.getSession()).isNotSameAs(session);
+    }
+  }
+
+  @Test
+  public void testHttp2SessionPool_keepsLeasedSessionOpen() throws Exception {
+    try (Http2SessionPool.Lease lease = pool.acquire("localhost", connector.getLocalPort())) {
+      assertThat(awaitClosed(lease.getSession(), IDLE_TIMEOUT_MILLIS * 3)).isFalse();
+    }
+  }
+
+  private static boolean awaitClosed(Session session, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (!session.isClosed() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    return session.isClosed();
+  }
+}
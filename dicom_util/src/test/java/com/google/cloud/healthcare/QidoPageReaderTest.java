@@ -0,0 +1,213 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.github.danieln.multipart.MultipartInput;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.dcm4che3.net.Status;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class QidoPageReaderTest {
+
+  @Test
+  public void testQidoRsPaged_readsAllPages() throws Exception {
+    PagingClient client = new PagingClient(5);
+
+    assertThat(readAll(client.qidoRsPaged("instances?00100020=1&", 2)))
+        .containsExactly(0, 1, 2, 3, 4).inOrder();
+    assertThat(client.paths).containsExactly(
+        "instances?00100020=1&limit=2&offset=0",
+        "instances?00100020=1&limit=2&offset=2",
+        "instances?00100020=1&limit=2&offset=4").inOrder();
+  }
+
+  @Test
+  public void testQidoRsPaged_fullLastPage() throws Exception {
+    PagingClient client = new PagingClient(4);
+
+    assertThat(readAll(client.qidoRsPaged("instances", 2))).containsExactly(0, 1, 2, 3).inOrder();
+    assertThat(client.paths).containsExactly(
+        "instances?limit=2&offset=0",
+        "instances?limit=2&offset=2",
+        "instances?limit=2&offset=4").inOrder();
+  }
+
+  @Test
+  public void testQidoRsPaged_limitIgnored() throws Exception {
+    PagingClient client = new PagingClient(5) {
+      @Override
+      public JSONArray qidoRs(String path) {
+        paths.add(path);
+        return page(0, 5);
+      }
+    };
+
+    assertThat(readAll(client.qidoRsPaged("studies?a=b", 2))).hasSize(5);
+    assertThat(client.paths).containsExactly("studies?a=b&limit=2&offset=0");
+  }
+
+  @Test
+  public void testQidoRsPaged_notPaged() throws Exception {
+    PagingClient client = new PagingClient(3);
+
+    assertThat(readAll(client.qidoRsPaged("studies", 0))).hasSize(3);
+    assertThat(client.paths).containsExactly("studies");
+  }
+
+  @Test
+  public void testQidoRsPaged_laterPageError() throws Exception {
+    PagingClient client = new PagingClient(5) {
+      @Override
+      public JSONArray qidoRs(String path) throws DicomWebException {
+        if (path.endsWith("offset=2")) {
+          throw new DicomWebException("test-generated exception", Status.OutOfResources);
+        }
+        return super.qidoRs(path);
+      }
+    };
+
+    try (JsonArrayReader results = client.qidoRsPaged("studies", 2)) {
+      results.next();
+      results.next();
+      try {
+        results.next();
+        fail("expected DicomWebException");
+      } catch (IDicomWebClient.DicomWebException e) {
+        assertThat(e.getStatus()).isEqualTo(Status.OutOfResources);
+      }
+    }
+  }
+
+  @Test
+  public void testQidoRsPaged_projection() throws Exception {
+    PagingClient client = new PagingClient(3);
+
+    try (JsonArrayReader results = client.qidoRsPaged("studies", 2)) {
+      JSONObject result;
+      int count = 0;
+      while ((result = results.next(JsonArrayReader.projection("other"))) != null) {
+        assertThat(result.length()).isEqualTo(0);
+        count++;
+      }
+      assertThat(count).isEqualTo(3);
+    }
+  }
+
+  @Test
+  public void testQidoRsPaged_decodesObjectsInMemory() throws Exception {
+    JsonArrayReader.ObjectDecoder<Integer> index = new JsonArrayReader.ObjectDecoder<Integer>() {
+      @Override
+      public Integer decode(JsonParser parser) {
+        throw new AssertionError("Results already in memory should not be parsed again");
+      }
+
+      @Override
+      public Integer decode(JSONObject object) {
+        return object.getInt("index");
+      }
+    };
+
+    try (JsonArrayReader results = new PagingClient(3).qidoRsPaged("studies", 2)) {
+      assertThat(results.next(index)).isEqualTo(0);
+      assertThat(results.next(index)).isEqualTo(1);
+      assertThat(results.next(index)).isEqualTo(2);
+      assertThat(results.next(index)).isNull();
+    }
+  }
+
+  private static List<Integer> readAll(JsonArrayReader results) throws Exception {
+    List<Integer> indexes = new ArrayList<>();
+    try {
+      JSONObject result;
+      while ((result = results.next()) != null) {
+        indexes.add(result.getInt("index"));
+      }
+    } finally {
+      results.close();
+    }
+    return indexes;
+  }
+
+  /**
+   * Serves {@code total} results, honoring the limit and offset parameters.
+   */
+  private static class PagingClient implements IDicomWebClient {
+
+    protected final List<String> paths = Collections.synchronizedList(new ArrayList<>());
+    private final int total;
+
+    private PagingClient(int total) {
+      this.total = total;
+    }
+
+    @Override
+    public JSONArray qidoRs(String path) throws DicomWebException {
+      paths.add(path);
+      int limit = total;
+      int offset = 0;
+      int query = path.indexOf('?');
+      if (query >= 0) {
+        for (String parameter : path.substring(query + 1).split("&")) {
+          if (parameter.startsWith("limit=")) {
+            limit = Integer.parseInt(parameter.substring("limit=".length()));
+          } else if (parameter.startsWith("offset=")) {
+            offset = Integer.parseInt(parameter.substring("offset=".length()));
+          }
+        }
+      }
+      return page(offset, Math.min(total, offset + limit));
+    }
+
+    protected static JSONArray page(int from, int to) {
+      JSONArray results = new JSONArray();
+      for (int i = from; i < to; i++) {
+        results.put(new JSONObject().put("index", i));
+      }
+      return results;
+    }
+
+    @Override
+    public MultipartInput wadoRs(String path) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MultipartInput wadoRs(String path, String transferSyntax) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void stowRs(String path, InputStream in) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public JSONObject stowRsMultipart(String path, List<InputStream> instances) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
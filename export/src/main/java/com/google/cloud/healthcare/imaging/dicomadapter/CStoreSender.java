@@ -17,40 +17,65 @@ package com.google.cloud.healthcare.imaging.dicomadapter;
 import com.github.danieln.multipart.MultipartInput;
 import com.github.danieln.multipart.PartInput;
 import com.google.cloud.healthcare.DicomWebClient;
+import com.google.cloud.healthcare.JsonArrayReader;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
 import com.google.common.io.CountingInputStream;
 import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
 import org.dcm4che3.data.Tag;
-import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.util.TagUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 // CStoreSender sends DICOM to peer using DIMSE C-STORE protocol.
 public class CStoreSender implements DicomSender {
   private static final String SOP_CLASS_UID_TAG = TagUtils.toHexString(Tag.SOPClassUID);
   private static final String SOP_INSTANCE_UID_TAG = TagUtils.toHexString(Tag.SOPInstanceUID);
-  private final ApplicationEntity applicationEntity;
+  // Attributes of the QIDO-RS result used to send the instance.
+  private static final String[] QIDO_ATTRIBUTES = {SOP_CLASS_UID_TAG, SOP_INSTANCE_UID_TAG};
+  private final AssociationPool associationPool;
+  private final String callingAET;
   private final String dimsePeerAET;
   private final String dimsePeerIP;
   private final int dimsePeerPort;
   private final DicomWebClient dicomWebClient;
+  private final String wadoTransferSyntax;
+  private final AcceptedTransferSyntaxes acceptedTransferSyntaxes =
+      new AcceptedTransferSyntaxes();
 
   CStoreSender(
-      ApplicationEntity applicationEntity,
+      AssociationPool associationPool,
+      String callingAET,
       String dimsePeerAET,
       String dimsePeerIP,
       int dimsePeerPort,
       DicomWebClient dicomWebClient) {
-    this.applicationEntity = applicationEntity;
+    this(associationPool, callingAET, dimsePeerAET, dimsePeerIP, dimsePeerPort, dicomWebClient,
+        null);
+  }
+
+  // wadoTransferSyntax is the transfer syntax to retrieve instances in, null for the source's
+  // default.
+  CStoreSender(
+      AssociationPool associationPool,
+      String callingAET,
+      String dimsePeerAET,
+      String dimsePeerIP,
+      int dimsePeerPort,
+      DicomWebClient dicomWebClient,
+      String wadoTransferSyntax) {
+    this.associationPool = associationPool;
+    this.callingAET = callingAET;
     this.dimsePeerAET = dimsePeerAET;
     this.dimsePeerIP = dimsePeerIP;
     this.dimsePeerPort = dimsePeerPort;
     this.dicomWebClient = dicomWebClient;
+    this.wadoTransferSyntax = wadoTransferSyntax;
   }
 
   @Override
@@ -59,26 +84,52 @@ public class CStoreSender implements DicomSender {
     String qidoUri = qidoFromWadoUri(wadoUri);
 
     // Invoke QIDO-RS to get DICOM tags needed to invoke C-Store.
-    JSONArray qidoResponse = dicomWebClient.qidoRs(qidoUri);
-    if (qidoResponse.length() != 1) {
-      throw new IllegalArgumentException(
-          "Invalid QidoRS JSON array length for response: " + qidoResponse.toString());
+    JSONObject qidoResult;
+    try (JsonArrayReader qidoResponse = dicomWebClient.qidoRsStream(qidoUri)) {
+      qidoResult = qidoResponse.next(JsonArrayReader.projection(QIDO_ATTRIBUTES));
+      if (qidoResult == null || qidoResponse.next(JsonArrayReader.projection()) != null) {
+        throw new IllegalArgumentException(
+            "Invalid QidoRS JSON array length for response to: " + qidoUri);
+      }
     }
-    String sopClassUid = AttributesUtil.getTagValue(qidoResponse.getJSONObject(0),
-        SOP_CLASS_UID_TAG);
-    String sopInstanceUid = AttributesUtil.getTagValue(qidoResponse.getJSONObject(0),
-        SOP_INSTANCE_UID_TAG);
+    String sopClassUid = AttributesUtil.getTagValue(qidoResult, SOP_CLASS_UID_TAG);
+    String sopInstanceUid = AttributesUtil.getTagValue(qidoResult, SOP_INSTANCE_UID_TAG);
 
     // Invoke WADO-RS to get bulk DICOM.
-    MultipartInput resp = dicomWebClient.wadoRs(wadoUri);
+    MultipartInput resp = dicomWebClient.wadoRs(wadoUri, wadoTransferSyntax);
     PartInput part = resp.nextPart();
     if (part == null) {
       throw new IllegalArgumentException("WadoRS response has no parts");
     }
 
     CountingInputStream countingStream = new CountingInputStream(part.getInputStream());
-    DicomClient.connectAndCstore(sopClassUid, sopInstanceUid, countingStream,
-        applicationEntity, dimsePeerAET, dimsePeerIP, dimsePeerPort);
+    DicomInputStream din = new DicomInputStream(countingStream);
+    din.readFileMetaInformation();
+
+    // Consecutive messages of the same SOP class and transfer syntax reuse the association. The
+    // instance is transcoded if the peer only accepts a fallback transfer syntax.
+    String transferSyntax = din.getTransferSyntax();
+    List<String> proposed =
+        acceptedTransferSyntaxes.propose(dimsePeerAET, sopClassUid, transferSyntax);
+    AssociationPool.Lease lease = associationPool.acquire(callingAET, dimsePeerAET,
+        dimsePeerIP, dimsePeerPort,
+        AcceptedTransferSyntaxes.presentationContexts(sopClassUid, proposed));
+    Set<String> accepted = lease.getClient().getAssociation().getTransferSyntaxesFor(sopClassUid);
+    acceptedTransferSyntaxes.record(dimsePeerAET, sopClassUid, proposed, accepted);
+    String selected = AcceptedTransferSyntaxes.select(accepted, transferSyntax);
+    if (selected == null) {
+      lease.close();
+      throw new IllegalArgumentException("No presentation context for " + sopClassUid + " in "
+          + transferSyntax + " or a fallback accepted by " + dimsePeerAET);
+    }
+    try {
+      lease.getClient().cstore(sopClassUid, sopInstanceUid, din, selected);
+    } catch (IOException e) {
+      lease.discard();
+      throw e;
+    } finally {
+      lease.close();
+    }
     MonitoringService.addEvent(Event.BYTES, countingStream.getCount());
   }
 
@@ -88,10 +139,11 @@ public class CStoreSender implements DicomSender {
     Path wadoPath = Paths.get(wadoUri);
     String instanceUid = wadoPath.getFileName().toString();
     Path wadoParentPath = wadoPath.getParent();
-    String qidoUri =
-        String.format(
-            "%s?%s=%s",
-            wadoParentPath.toString(), SOP_INSTANCE_UID_TAG, instanceUid);
-    return qidoUri;
+    StringBuilder qidoUri = new StringBuilder(wadoParentPath.toString())
+        .append('?').append(SOP_INSTANCE_UID_TAG).append('=').append(instanceUid);
+    for (String attribute : QIDO_ATTRIBUTES) {
+      qidoUri.append("&includefield=").append(attribute);
+    }
+    return qidoUri.toString();
   }
 }
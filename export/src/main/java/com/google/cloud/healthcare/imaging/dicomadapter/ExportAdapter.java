@@ -22,6 +22,7 @@ import com.google.auth.http.HttpCredentialsAdapter;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.healthcare.DicomWebClient;
 import com.google.cloud.healthcare.DicomWebClientJetty;
+import com.google.cloud.healthcare.Http2SessionPool;
 import com.google.cloud.healthcare.IDicomWebClient;
 import com.google.cloud.healthcare.LogUtil;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
@@ -32,8 +33,7 @@ import com.google.pubsub.v1.ProjectSubscriptionName;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
-import org.dcm4che3.net.ApplicationEntity;
-import org.dcm4che3.net.Connection;
+import java.util.concurrent.TimeUnit;
 
 public class ExportAdapter {
 
@@ -72,6 +72,9 @@ public class ExportAdapter {
       MonitoringService.disable();
     }
 
+    String wadoTransferSyntax =
+        flags.wadoTransferSyntax.isEmpty() ? null : flags.wadoTransferSyntax;
+
     // Use either C-STORE or STOW-RS to send DICOM, based on flags.
     boolean isStowRs = !flags.peerDicomwebAddress.isEmpty()
         || (!flags.peerDicomwebAddr.isEmpty() && !flags.peerDicomwebStowPath.isEmpty());
@@ -87,29 +90,31 @@ public class ExportAdapter {
       String peerDicomwebAddress =
           isLegacyAdress ? flags.peerDicomwebAddr : flags.peerDicomwebAddress;
       String peerDicomwebStowpath = isLegacyAdress ? flags.peerDicomwebStowPath : "studies";
+      Http2SessionPool sessionPool = new Http2SessionPool(flags.http2SessionPoolSize,
+          TimeUnit.SECONDS.toMillis(flags.http2IdleTimeoutSeconds));
       IDicomWebClient exportDicomWebClient =
           new DicomWebClientJetty(flags.useGcpApplicationDefaultCredentials ? null : credentials,
-              peerDicomwebAddress);
-      dicomSender =
-          new StowRsSender(dicomWebClient, exportDicomWebClient, peerDicomwebStowpath);
+              peerDicomwebAddress, sessionPool);
+      dicomSender = new StowRsSender(dicomWebClient, exportDicomWebClient,
+          peerDicomwebStowpath, wadoTransferSyntax);
       System.out.printf(
           "Export adapter set-up to export via STOW-RS to address: %s, path: %s\n",
           peerDicomwebAddress, peerDicomwebStowpath);
     } else if (isCStore) {
       // C-Store sender.
       //
-      // DIMSE application entity.
-      ApplicationEntity applicationEntity = new ApplicationEntity("EXPORTADAPTER");
-      Connection conn = new Connection();
-      DeviceUtil.createClientDevice(applicationEntity, conn);
-      applicationEntity.addConnection(conn);
+      // Associations to the DIMSE peer, kept open between messages.
+      AssociationPool associationPool = new AssociationPool(
+          TimeUnit.SECONDS.toMillis(flags.associationIdleTimeoutSeconds));
       dicomSender =
           new CStoreSender(
-              applicationEntity,
+              associationPool,
+              "EXPORTADAPTER",
               flags.peerDimseAET,
               flags.peerDimseIP,
               flags.peerDimsePort,
-              dicomWebClient);
+              dicomWebClient,
+              wadoTransferSyntax);
       System.out.printf(
           "Export adapter set-up to export via C-STORE to AET: %s, IP: %s, Port: %d\n",
           flags.peerDimseAET, flags.peerDimseIP, flags.peerDimsePort);
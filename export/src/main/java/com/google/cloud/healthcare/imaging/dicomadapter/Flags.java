@@ -38,6 +38,13 @@ public class Flags {
   )
   public static Integer peerDimsePort = 0;
 
+  @Parameter(
+      names = {"--association_idle_timeout_seconds"},
+      description = "Idle associations to the DIMSE peer are released after this many seconds, "
+          + "0 to release each association after its C-STORE."
+  )
+  public static Integer associationIdleTimeoutSeconds = 60;
+
   /** Flags for exporting via DicomWeb STOW-RS. */
   @Deprecated
   @Parameter(
@@ -69,7 +76,26 @@ public class Flags {
   )
   public static boolean useGcpApplicationDefaultCredentials = false;
 
+  @Parameter(
+      names = {"--http2_session_pool_size"},
+      description = "Number of HTTP/2 sessions kept open to the peer DicomWeb API for STOW-RS."
+  )
+  public static Integer http2SessionPoolSize = 2;
+
+  @Parameter(
+      names = {"--http2_idle_timeout_seconds"},
+      description = "Idle HTTP/2 sessions to the peer DicomWeb API are closed after this many seconds."
+  )
+  public static Integer http2IdleTimeoutSeconds = 300;
+
   /** General flags applicable to both methods of export. */
+  @Parameter(
+      names = {"--wado_transfer_syntax"},
+      description = "Transfer syntax UID to retrieve instances in over WADO-RS, \"*\" to retrieve "
+          + "them as stored without transcoding by the server. Empty for the server's default."
+  )
+  public static String wadoTransferSyntax = "";
+
   @Parameter(
     names = {"--dicomweb_addr"},
     description = "Address for DicomWeb service that sources the DICOM."
@@ -27,21 +27,33 @@ public class StowRsSender implements DicomSender {
   private IDicomWebClient sourceDicomWebClient;
   private IDicomWebClient sinkDicomWebClient;
   private String sinkDicomWebPath;
+  private String wadoTransferSyntax;
 
   StowRsSender(
       IDicomWebClient sourceDicomWebClient,
       IDicomWebClient sinkDicomWebClient,
       String sinkDicomWebPath) {
+    this(sourceDicomWebClient, sinkDicomWebClient, sinkDicomWebPath, null);
+  }
+
+  // wadoTransferSyntax is the transfer syntax to retrieve instances in, null for the source's
+  // default.
+  StowRsSender(
+      IDicomWebClient sourceDicomWebClient,
+      IDicomWebClient sinkDicomWebClient,
+      String sinkDicomWebPath,
+      String wadoTransferSyntax) {
     this.sourceDicomWebClient = sourceDicomWebClient;
     this.sinkDicomWebClient = sinkDicomWebClient;
     this.sinkDicomWebPath = sinkDicomWebPath;
+    this.wadoTransferSyntax = wadoTransferSyntax;
   }
 
   @Override
   public void send(PubsubMessage message) throws Exception {
     // Invoke WADO-RS to get bulk DICOM.
     String wadoUri = message.getData().toStringUtf8();
-    MultipartInput resp = sourceDicomWebClient.wadoRs(wadoUri);
+    MultipartInput resp = sourceDicomWebClient.wadoRs(wadoUri, wadoTransferSyntax);
     PartInput part = resp.nextPart();
     if (part == null) {
       throw new IllegalArgumentException("WadoRS response has no parts");
@@ -31,13 +31,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.io.DicomInputStream;
-import org.dcm4che3.net.ApplicationEntity;
-import org.dcm4che3.net.Connection;
 import org.dcm4che3.net.Device;
 import org.dcm4che3.net.Status;
 import org.dcm4che3.net.TransferCapability;
 import org.dcm4che3.net.service.BasicCEchoSCP;
 import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -54,19 +53,21 @@ public final class ExportMessageReceiverTest {
       "[{\"00020010\":{\"vr\":\"UI\",\"Value\":[\"1\"]},"
           + "\"00080016\":{\"vr\":\"UI\",\"Value\":[\"2\"]},"
           + "\"00080018\":{\"vr\":\"UI\",\"Value\":[\"3\"]}}]";
-  private ApplicationEntity clientAE;
+  private AssociationPool associationPool;
   private DicomInputStream dicom;
 
   @Before
   public void setUp() throws Exception {
-    clientAE = new ApplicationEntity(clientAET);
-    Connection conn = new Connection();
-    DeviceUtil.createClientDevice(clientAE, conn);
-    clientAE.addConnection(conn);
+    associationPool = new AssociationPool(0);
 
     dicom = new DicomInputStream(TestUtils.streamTestFile(TestUtils.TEST_MR_FILE));
   }
 
+  @After
+  public void tearDown() {
+    associationPool.close();
+  }
+
   private int createServerDevice(String sopClass, String transferSyntax, int wantResponseStatus)
       throws Exception {
     int serverPort = PortUtil.getFreePort();
@@ -111,7 +112,8 @@ public final class ExportMessageReceiverTest {
     DicomWebClient dicomWebClient =
         new DicomWebClient(fakeWebServer.createRequestFactory(), HttpTesting.SIMPLE_URL);
     DicomSender dicomSender =
-        new CStoreSender(clientAE, serverAET, serverHost, serverPort, dicomWebClient);
+        new CStoreSender(associationPool, clientAET, serverAET, serverHost, serverPort,
+            dicomWebClient);
     ExportMessageReceiver receiver = new ExportMessageReceiver(dicomSender);
     receiver.receiveMessage(pubsubMessage, replyConsumer);
     return receiver;
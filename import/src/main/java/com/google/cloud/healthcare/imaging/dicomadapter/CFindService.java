@@ -14,14 +14,23 @@
 
 package com.google.cloud.healthcare.imaging.dicomadapter;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.google.cloud.healthcare.IDicomWebClient;
+import com.google.cloud.healthcare.JsonArrayReader;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
+import com.google.common.hash.Hashing;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
@@ -33,8 +42,6 @@ import org.dcm4che3.net.Status;
 import org.dcm4che3.net.pdu.PresentationContext;
 import org.dcm4che3.net.service.BasicCFindSCP;
 import org.dcm4che3.net.service.DicomServiceException;
-import org.dcm4che3.util.TagUtils;
-import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,34 +51,63 @@ public class CFindService extends BasicCFindSCP {
 
   private static Logger log = LoggerFactory.getLogger(CFindService.class);
 
+  // Results decoded ahead of their pending responses, per C-FIND.
+  private static final int MAX_QUEUED_RESULTS = 1000;
+
+  // Decodes results read from a response, and cached or paged ones already in memory as they are.
+  private static final JsonArrayReader.ObjectDecoder<Attributes> RESULT_DECODER =
+      new JsonArrayReader.ObjectDecoder<Attributes>() {
+        @Override
+        public Attributes decode(JsonParser parser) throws IOException {
+          return AttributesUtil.jsonToAttributes(parser);
+        }
+
+        @Override
+        public Attributes decode(JSONObject object) throws IOException {
+          return AttributesUtil.jsonToAttributes(object);
+        }
+      };
+
   private final IDicomWebClient dicomWebClient;
+  private final ExecutorService qidoExecutor;
+  private final int qidoPageSize;
 
   CFindService(IDicomWebClient dicomWebClient) {
-    super(UID.StudyRootQueryRetrieveInformationModelFIND);
-    this.dicomWebClient = dicomWebClient;
+    this(dicomWebClient, 1);
   }
 
-  private static HashMap<String, JSONObject> uniqueResults(List<JSONArray> responses) {
-    HashMap<String, JSONObject> uniqueResults = new HashMap<>();
-    for (JSONArray response : responses) {
-      for (Object result : response) {
-        JSONObject resultJson = (JSONObject) result;
-        String key = getResultKey(resultJson);
-        if (!uniqueResults.containsKey(key)) {
-          uniqueResults.put(key, resultJson);
-        }
-      }
-    }
-    return uniqueResults;
+  CFindService(IDicomWebClient dicomWebClient, int qidoConcurrency) {
+    this(dicomWebClient, qidoConcurrency, 0);
+  }
+
+  /**
+   * @param qidoConcurrency maximum number of QIDO-RS requests run at the same time for queries
+   *     split into several requests, shared by all C-FINDs. 1 runs the requests of a query one
+   *     after another.
+   * @param qidoPageSize number of results requested per QIDO-RS call, 0 to request all at once
+   */
+  CFindService(IDicomWebClient dicomWebClient, int qidoConcurrency, int qidoPageSize) {
+    super(UID.StudyRootQueryRetrieveInformationModelFIND);
+    this.dicomWebClient = dicomWebClient;
+    this.qidoPageSize = qidoPageSize;
+    this.qidoExecutor = qidoConcurrency > 1
+        ? Executors.newFixedThreadPool(qidoConcurrency, runnable -> {
+          Thread thread = new Thread(runnable, "cfind-qidors-worker");
+          thread.setDaemon(true);
+          return thread;
+        })
+        : null;
   }
 
-  private static String getResultKey(JSONObject jsonObject) {
-    return AttributesUtil.getTagValueOrNull(jsonObject,
-        TagUtils.toHexString(Tag.StudyInstanceUID)) + "_" +
-        AttributesUtil.getTagValueOrNull(jsonObject,
-            TagUtils.toHexString(Tag.SeriesInstanceUID)) + "_" +
-        AttributesUtil.getTagValueOrNull(jsonObject,
-            TagUtils.toHexString(Tag.SOPInstanceUID));
+  /**
+   * Returns a fingerprint of the result's study, series and instance UIDs. Keeping fingerprints
+   * rather than results identifies duplicates across QIDO-RS queries in constant space per result.
+   */
+  private static long getResultKey(Attributes attrs) {
+    String key = attrs.getString(Tag.StudyInstanceUID) + "_" +
+        attrs.getString(Tag.SeriesInstanceUID) + "_" +
+        attrs.getString(Tag.SOPInstanceUID);
+    return Hashing.farmHashFingerprint64().hashUnencodedChars(key).asLong();
   }
 
   @Override
@@ -93,6 +129,8 @@ public class CFindService extends BasicCFindSCP {
   private class CFindTask extends DimseTask {
 
     private final Attributes keys;
+    // Fingerprints of the results sent, see getResultKey.
+    private final Set<Long> sentResults = new HashSet<>();
 
     private CFindTask(Association as, PresentationContext pc,
         Attributes cmd, Attributes keys) {
@@ -110,27 +148,26 @@ public class CFindService extends BasicCFindSCP {
         runThread = Thread.currentThread();
 
         String[] qidoPaths = AttributesUtil.attributesToQidoPathArray(keys);
-        List<JSONArray> qidoResults = new ArrayList<>();
-        for (String qidoPath : qidoPaths) {
-          if (canceled) {
-            throw new CancellationException();
+        long start = System.currentTimeMillis();
+        if (qidoExecutor == null || qidoPaths.length == 1) {
+          for (String qidoPath : qidoPaths) {
+            if (canceled) {
+              throw new CancellationException();
+            }
+            try (JsonArrayReader qidoResults = qidoRs(qidoPath)) {
+              Attributes attrs;
+              while ((attrs = qidoResults.next(RESULT_DECODER)) != null) {
+                sendResult(attrs);
+              }
+            }
           }
-          log.info("CFind QidoPath: " + qidoPath);
-          MonitoringService.addEvent(Event.CFIND_QIDORS_REQUEST);
-          JSONArray qidoResult = dicomWebClient.qidoRs(qidoPath);
-          qidoResults.add(qidoResult);
-        }
-        HashMap<String, JSONObject> uniqueResults = uniqueResults(qidoResults);
-
-        for (JSONObject obj : uniqueResults.values()) {
-          if (canceled) {
-            throw new CancellationException();
-          }
-          Attributes attrs = AttributesUtil.jsonToAttributes(obj);
-          as.writeDimseRSP(pc, Commands.mkCFindRSP(cmd, Status.Pending), attrs);
+        } else {
+          qidoRsParallel(qidoPaths);
         }
+        MonitoringService.addEvent(Event.CFIND_QIDORS_MILLIS,
+            System.currentTimeMillis() - start);
         as.writeDimseRSP(pc, Commands.mkCFindRSP(cmd, Status.Success));
-      } catch (CancellationException e) {
+      } catch (CancellationException | InterruptedException e) {
         log.info("Canceled CFind", e);
         MonitoringService.addEvent(Event.CFIND_CANCEL);
         as.tryWriteDimseRSP(pc, Commands.mkCFindRSP(cmd, Status.Cancel));
@@ -152,5 +189,92 @@ public class CFindService extends BasicCFindSCP {
         as.removeCancelRQHandler(msgId);
       }
     }
+
+    /**
+     * Runs the QIDO-RS requests on the shared executor, sending their results in the order they
+     * arrive. This thread is the one interrupted on cancel; outstanding requests are then
+     * cancelled in turn.
+     */
+    private void qidoRsParallel(String[] qidoPaths) throws Throwable {
+      BlockingQueue<QidoResult> results = new LinkedBlockingQueue<>(MAX_QUEUED_RESULTS);
+      List<Future<?>> requests = new ArrayList<>();
+      try {
+        for (String qidoPath : qidoPaths) {
+          requests.add(qidoExecutor.submit(() -> {
+            QidoResult end = QidoResult.END;
+            try (JsonArrayReader qidoResults = qidoRs(qidoPath)) {
+              Attributes attrs;
+              while ((attrs = qidoResults.next(RESULT_DECODER)) != null) {
+                results.put(new QidoResult(attrs));
+              }
+            } catch (InterruptedException e) {
+              // Cancelled, nobody is waiting for the results anymore.
+              return null;
+            } catch (Throwable e) {
+              end = new QidoResult(e);
+            }
+            results.put(end);
+            return null;
+          }));
+        }
+
+        int remainingRequests = qidoPaths.length;
+        while (remainingRequests > 0) {
+          QidoResult result = results.take();
+          if (result.error != null) {
+            throw result.error;
+          }
+          if (result == QidoResult.END) {
+            remainingRequests--;
+          } else {
+            sendResult(result.result);
+          }
+        }
+      } finally {
+        for (Future<?> request : requests) {
+          request.cancel(true);
+        }
+      }
+    }
+
+    private JsonArrayReader qidoRs(String qidoPath) throws IDicomWebClient.DicomWebException {
+      log.info("CFind QidoPath: " + qidoPath);
+      MonitoringService.addEvent(Event.CFIND_QIDORS_REQUEST);
+      return dicomWebClient.qidoRsPaged(qidoPath, qidoPageSize);
+    }
+
+    /**
+     * Sends a pending response for the result, unless one was already sent for another path.
+     */
+    private void sendResult(Attributes attrs) throws IOException {
+      if (canceled) {
+        throw new CancellationException();
+      }
+      if (!sentResults.add(getResultKey(attrs))) {
+        return;
+      }
+      as.writeDimseRSP(pc, Commands.mkCFindRSP(cmd, Status.Pending), attrs);
+    }
+  }
+
+  private static class QidoResult {
+
+    private static final QidoResult END = new QidoResult((Attributes) null);
+
+    private final Attributes result;
+    private final Throwable error;
+
+    private QidoResult(Attributes result) {
+      this.result = result;
+      this.error = null;
+    }
+
+    /**
+     * Result of a request that failed, ending the C-FIND.
+     */
+    private QidoResult(Throwable error) {
+      this.result = null;
+      this.error = error;
+    }
   }
 }
\ No newline at end of file
@@ -15,14 +15,28 @@
 package com.google.cloud.healthcare.imaging.dicomadapter;
 
 import com.google.cloud.healthcare.IDicomWebClient;
+import com.google.cloud.healthcare.JsonArrayReader;
 import com.google.cloud.healthcare.imaging.dicomadapter.cstoresender.ICStoreSender;
 import com.google.cloud.healthcare.imaging.dicomadapter.cstoresender.ICStoreSenderFactory;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
@@ -36,25 +50,92 @@ import org.dcm4che3.net.service.BasicCMoveSCP;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4che3.util.TagUtils;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class CMoveService extends BasicCMoveSCP {
 
+  private static final String STUDY_INSTANCE_UID = TagUtils.toHexString(Tag.StudyInstanceUID);
+  private static final String SERIES_INSTANCE_UID = TagUtils.toHexString(Tag.SeriesInstanceUID);
+  private static final String SOP_INSTANCE_UID = TagUtils.toHexString(Tag.SOPInstanceUID);
+  private static final String SOP_CLASS_UID = TagUtils.toHexString(Tag.SOPClassUID);
+  private static final String AVAILABLE_TRANSFER_SYNTAX_UID =
+      TagUtils.toHexString(Tag.AvailableTransferSyntaxUID);
+  // Attributes of the QIDO-RS results the move uses, requested as includefields. The rest of
+  // each result is skipped as it is read.
+  private static final String[] MOVE_ATTRIBUTES = {
+      STUDY_INSTANCE_UID,
+      SERIES_INSTANCE_UID,
+      SOP_INSTANCE_UID,
+      SOP_CLASS_UID,
+      AVAILABLE_TRANSFER_SYNTAX_UID};
+
+  static final int DEFAULT_WORKER_THREADS = 16;
+
   private static Logger log = LoggerFactory.getLogger(CMoveService.class);
   private final IDicomWebClient dicomWebClient;
   private final AetDictionary aets;
   private final ICStoreSenderFactory cstoreSenderFactory;
+  private final boolean bulkRetrieve;
+  private final int qidoPageSize;
+  private final ExecutorService workers;
 
   CMoveService(
       IDicomWebClient dicomWebClient,
       AetDictionary aets,
       ICStoreSenderFactory cstoreSenderFactory) {
+    this(dicomWebClient, aets, cstoreSenderFactory, false);
+  }
+
+  /**
+   * @param bulkRetrieve whether STUDY and SERIES level moves retrieve each study or series with a
+   * single WADO-RS request, before sending the instances left one by one
+   */
+  CMoveService(
+      IDicomWebClient dicomWebClient,
+      AetDictionary aets,
+      ICStoreSenderFactory cstoreSenderFactory,
+      boolean bulkRetrieve) {
+    this(dicomWebClient, aets, cstoreSenderFactory, bulkRetrieve, 0);
+  }
+
+  /**
+   * @param qidoPageSize number of instances requested per QIDO-RS call, 0 to request all at once
+   */
+  CMoveService(
+      IDicomWebClient dicomWebClient,
+      AetDictionary aets,
+      ICStoreSenderFactory cstoreSenderFactory,
+      boolean bulkRetrieve,
+      int qidoPageSize) {
+    this(dicomWebClient, aets, cstoreSenderFactory, bulkRetrieve, qidoPageSize,
+        DEFAULT_WORKER_THREADS);
+  }
+
+  /**
+   * @param workerThreads number of threads sending instances to destinations with a concurrency
+   * above 1, shared by all moves
+   */
+  CMoveService(
+      IDicomWebClient dicomWebClient,
+      AetDictionary aets,
+      ICStoreSenderFactory cstoreSenderFactory,
+      boolean bulkRetrieve,
+      int qidoPageSize,
+      int workerThreads) {
     super(UID.StudyRootQueryRetrieveInformationModelMOVE);
     this.dicomWebClient = dicomWebClient;
     this.aets = aets;
     this.cstoreSenderFactory = cstoreSenderFactory;
+    this.bulkRetrieve = bulkRetrieve;
+    this.qidoPageSize = qidoPageSize;
+    this.workers = Executors.newFixedThreadPool(Math.max(workerThreads, 1), runnable -> {
+      Thread thread = new Thread(runnable, "cmove-cstore-worker");
+      thread.setDaemon(true);
+      return thread;
+    });
   }
 
   @Override
@@ -70,10 +151,168 @@ public class CMoveService extends BasicCMoveSCP {
     as.getApplicationEntity().getDevice().execute(task);
   }
 
+  /**
+   * Groups the instances into the WADO-RS paths of their studies or series, depending on the
+   * level, mapping each instance's SOP Instance UID to its SOP Class UID. Only groups of more than
+   * one instance are returned.
+   */
+  static Map<String, Map<String, String>> bulkGroups(String level, MoveInstances instances) {
+    Map<String, Map<String, String>> groups = new LinkedHashMap<>();
+    if (!"STUDY".equals(level) && !"SERIES".equals(level)) {
+      return groups;
+    }
+    for (int i = 0; i < instances.size(); i++) {
+      String studyUid = instances.studyUid(i);
+      String seriesUid = instances.seriesUid(i);
+      String instanceUid = instances.instanceUid(i);
+      String classUid = instances.classUid(i);
+      if (studyUid == null || seriesUid == null || instanceUid == null || classUid == null) {
+        continue;
+      }
+      String wadoPath = "STUDY".equals(level)
+          ? String.format("studies/%s", studyUid)
+          : String.format("studies/%s/series/%s", studyUid, seriesUid);
+      groups.computeIfAbsent(wadoPath, key -> new LinkedHashMap<>()).put(instanceUid, classUid);
+    }
+    groups.values().removeIf(group -> group.size() < 2);
+    return groups;
+  }
+
+  /**
+   * The instances to move, read from the QIDO-RS results. Only their UIDs are kept, in one column
+   * per UID rather than an object per instance, and each distinct study, series and SOP class UID
+   * is held once however many instances share it.
+   */
+  static class MoveInstances {
+
+    private final Map<String, String> sharedUids = new HashMap<>();
+    private final Map<String, Set<String>> transferSyntaxes = new HashMap<>();
+    private String[] studyUids;
+    private String[] seriesUids;
+    private String[] instanceUids;
+    private String[] classUids;
+    private int size;
+
+    private MoveInstances(int capacity) {
+      studyUids = new String[capacity];
+      seriesUids = new String[capacity];
+      instanceUids = new String[capacity];
+      classUids = new String[capacity];
+    }
+
+    /**
+     * Reads the instances from the QIDO-RS results, skipping the attributes the move doesn't use.
+     */
+    static MoveInstances read(JsonArrayReader qidoResults)
+        throws IDicomWebClient.DicomWebException {
+      MoveInstances instances = new MoveInstances(16);
+      JsonArrayReader.ObjectDecoder<JSONObject> projection =
+          JsonArrayReader.projection(MOVE_ATTRIBUTES);
+      JSONObject instanceJson;
+      while ((instanceJson = qidoResults.next(projection)) != null) {
+        instances.add(instanceJson);
+      }
+      return instances;
+    }
+
+    static MoveInstances of(JSONArray qidoResult) {
+      MoveInstances instances = new MoveInstances(Math.max(qidoResult.length(), 1));
+      for (Object instance : qidoResult) {
+        instances.add((JSONObject) instance);
+      }
+      return instances;
+    }
+
+    int size() {
+      return size;
+    }
+
+    String studyUid(int index) {
+      return studyUids[index];
+    }
+
+    String seriesUid(int index) {
+      return seriesUids[index];
+    }
+
+    String instanceUid(int index) {
+      return instanceUids[index];
+    }
+
+    String classUid(int index) {
+      return classUids[index];
+    }
+
+    /**
+     * Returns the transfer syntaxes to negotiate for each SOP class. WADO-RS returns instances in
+     * Explicit VR Little Endian unless asked otherwise, the available transfer syntax is proposed
+     * as well where the server reports it, along with Implicit VR Little Endian for destinations
+     * that accept nothing else.
+     */
+    Map<String, Set<String>> transferSyntaxes() {
+      return transferSyntaxes;
+    }
+
+    /**
+     * Returns the instances other than the given ones.
+     */
+    MoveInstances without(Set<String> excludedInstanceUids) {
+      MoveInstances remaining = new MoveInstances(Math.max(size - excludedInstanceUids.size(), 1));
+      for (int i = 0; i < size; i++) {
+        if (!excludedInstanceUids.contains(instanceUids[i])) {
+          remaining.add(studyUids[i], seriesUids[i], instanceUids[i], classUids[i]);
+        }
+      }
+      remaining.transferSyntaxes.putAll(transferSyntaxes);
+      return remaining;
+    }
+
+    private void add(JSONObject instanceJson) {
+      String classUid = AttributesUtil.getTagValueOrNull(instanceJson, SOP_CLASS_UID);
+      if (classUid != null) {
+        Set<String> classTransferSyntaxes =
+            transferSyntaxes.computeIfAbsent(classUid, key -> new LinkedHashSet<>());
+        classTransferSyntaxes.addAll(AcceptedTransferSyntaxes.FALLBACK_TRANSFER_SYNTAXES);
+        String available =
+            AttributesUtil.getTagValueOrNull(instanceJson, AVAILABLE_TRANSFER_SYNTAX_UID);
+        if (available != null) {
+          classTransferSyntaxes.add(available);
+        }
+      }
+      add(shared(AttributesUtil.getTagValueOrNull(instanceJson, STUDY_INSTANCE_UID)),
+          shared(AttributesUtil.getTagValueOrNull(instanceJson, SERIES_INSTANCE_UID)),
+          AttributesUtil.getTagValueOrNull(instanceJson, SOP_INSTANCE_UID),
+          shared(classUid));
+    }
+
+    private void add(String studyUid, String seriesUid, String instanceUid, String classUid) {
+      if (size == instanceUids.length) {
+        int capacity = size * 2;
+        studyUids = Arrays.copyOf(studyUids, capacity);
+        seriesUids = Arrays.copyOf(seriesUids, capacity);
+        instanceUids = Arrays.copyOf(instanceUids, capacity);
+        classUids = Arrays.copyOf(classUids, capacity);
+      }
+      studyUids[size] = studyUid;
+      seriesUids[size] = seriesUid;
+      instanceUids[size] = instanceUid;
+      classUids[size] = classUid;
+      size++;
+    }
+
+    private String shared(String uid) {
+      return uid == null ? null : sharedUids.computeIfAbsent(uid, key -> key);
+    }
+  }
+
   private class CMoveTask extends DimseTask {
 
     private final Attributes keys;
 
+    // Sub-operation results, only updated by the task's thread.
+    private final List<String> failedInstanceUids = new ArrayList<>();
+    private int successfulInstances;
+
     private CMoveTask(Association as, PresentationContext pc,
         Attributes cmd, Attributes keys) {
       super(as, pc, cmd);
@@ -83,7 +322,6 @@ public class CMoveService extends BasicCMoveSCP {
 
     @Override
     public void run() {
-      List<String> failedInstanceUids = new ArrayList<>();
       ICStoreSender cstoreSender = null;
       try {
         if (canceled) {
@@ -103,7 +341,7 @@ public class CMoveService extends BasicCMoveSCP {
         keysCopy.setString(Tag.QueryRetrieveLevel, VR.CS, "IMAGE");
         String qidoPath;
         try {
-          qidoPath = AttributesUtil.attributesToQidoPath(keysCopy);
+          qidoPath = AttributesUtil.attributesToQidoPath(keysCopy, MOVE_ATTRIBUTES);
           log.info("CMove QidoPath: " + qidoPath);
         } catch (DicomServiceException e) {
           log.error("CMove QidoPath error");
@@ -111,11 +349,11 @@ public class CMoveService extends BasicCMoveSCP {
           return;
         }
 
-        JSONArray qidoResult;
+        MoveInstances qidoResult;
         try {
           MonitoringService.addEvent(Event.CMOVE_QIDORS_REQUEST);
-          qidoResult = dicomWebClient.qidoRs(qidoPath);
-          if (qidoResult == null || qidoResult.length() == 0) {
+          qidoResult = qidoRs(qidoPath);
+          if (qidoResult.size() == 0) {
             throw new IDicomWebClient.DicomWebException("No instances to move",
                 Status.UnableToCalculateNumberOfMatches);
           }
@@ -126,46 +364,49 @@ public class CMoveService extends BasicCMoveSCP {
           return;
         }
 
-        cstoreSender = cstoreSenderFactory.create();
-
-        int successfullInstances = 0;
-        int remainingInstances = qidoResult.length();
-        for (Object instance : qidoResult) {
-          sendPendingResponse(remainingInstances, successfullInstances, failedInstanceUids.size());
+        Map<String, Set<String>> transferSyntaxes = qidoResult.transferSyntaxes();
+        MoveInstances instances = qidoResult;
+        if (bulkRetrieve) {
+          cstoreSender = cstoreSenderFactory.create();
+          cstoreSender.prepare(cstoreTarget, transferSyntaxes);
+          instances = cstoreBulk(cstoreSender, cstoreTarget, qidoResult);
+        }
 
-          if (canceled) {
-            throw new CancellationException();
+        int concurrency = Math.min(cstoreTarget.getConcurrency(), instances.size());
+        if (concurrency > 1) {
+          // Each worker sends over a sender of its own.
+          if (cstoreSender != null) {
+            closeSender(cstoreSender);
+            cstoreSender = null;
           }
-
-          JSONObject instanceJson = (JSONObject) instance;
-          String studyUid = AttributesUtil.getTagValue(instanceJson,
-              TagUtils.toHexString(Tag.StudyInstanceUID));
-          String seriesUid = AttributesUtil.getTagValue(instanceJson,
-              TagUtils.toHexString(Tag.SeriesInstanceUID));
-          String instanceUid = AttributesUtil.getTagValue(instanceJson,
-              TagUtils.toHexString(Tag.SOPInstanceUID));
-          String classUid = AttributesUtil.getTagValue(instanceJson,
-              TagUtils.toHexString(Tag.SOPClassUID));
-
-          try {
-            MonitoringService.addEvent(Event.CMOVE_CSTORE_REQUEST);
-            long bytesSent = cstoreSender.cstore(cstoreTarget, studyUid, seriesUid,
-                instanceUid, classUid);
-            successfullInstances++;
-            MonitoringService.addEvent(Event.CMOVE_CSTORE_BYTES, bytesSent);
-          } catch (IDicomWebClient.DicomWebException | IOException e) {
-            MonitoringService.addEvent(Event.CMOVE_CSTORE_ERROR);
-            log.error("Failed CStore within CMove", e);
-            failedInstanceUids.add(instanceUid);
+          moveParallel(cstoreTarget, instances, transferSyntaxes, concurrency);
+        } else {
+          if (cstoreSender == null) {
+            cstoreSender = cstoreSenderFactory.create();
+            cstoreSender.prepare(cstoreTarget, transferSyntaxes);
           }
 
-          remainingInstances--;
+          int remainingInstances = instances.size();
+          for (int i = 0; i < instances.size(); i++) {
+            sendPendingResponse(remainingInstances, successfulInstances,
+                failedInstanceUids.size());
+
+            if (canceled) {
+              throw new CancellationException();
+            }
+
+            if (i + 1 < instances.size()) {
+              prefetch(cstoreSender, cstoreTarget, instances, i + 1);
+            }
+            addResult(cstore(cstoreSender, cstoreTarget, instances, i));
+            remainingInstances--;
+          }
         }
 
         if (failedInstanceUids.isEmpty()) {
           as.tryWriteDimseRSP(pc, Commands.mkCMoveRSP(cmd, Status.Success));
         } else {
-          int status = successfullInstances > 0 ?
+          int status = successfulInstances > 0 ?
               Status.OneOrMoreFailures : Status.UnableToPerformSubOperations;
           sendErrorResponse(status, failedInstanceUids);
         }
@@ -183,15 +424,182 @@ public class CMoveService extends BasicCMoveSCP {
         as.removeCancelRQHandler(msgId);
 
         if (cstoreSender != null) {
-          try {
-            cstoreSender.close();
-          } catch (IOException e) {
-            log.error("Failure closing cstoreSender: ", e);
+          closeSender(cstoreSender);
+        }
+      }
+    }
+
+    private void closeSender(ICStoreSender cstoreSender) {
+      try {
+        cstoreSender.close();
+      } catch (IOException e) {
+        log.error("Failure closing cstoreSender: ", e);
+      }
+    }
+
+    /**
+     * Returns the instances to move, reading the QIDO-RS results page by page and keeping only
+     * the attributes needed to send them.
+     */
+    private MoveInstances qidoRs(String qidoPath) throws IDicomWebClient.DicomWebException {
+      try (JsonArrayReader qidoResults = dicomWebClient.qidoRsPaged(qidoPath, qidoPageSize)) {
+        return MoveInstances.read(qidoResults);
+      } catch (IOException e) {
+        throw new IDicomWebClient.DicomWebException(e);
+      }
+    }
+
+    /**
+     * Sends the instances over {@code concurrency} senders, each on a thread of the shared worker
+     * pool taking the next instance from the shared list. This thread collects their results and
+     * sends the pending responses, so it is the one interrupted on cancel; the workers still
+     * running or queued are then canceled in turn.
+     */
+    private void moveParallel(AetDictionary.Aet target, MoveInstances qidoResult,
+        Map<String, Set<String>> transferSyntaxes, int concurrency) throws Throwable {
+      AtomicInteger nextInstance = new AtomicInteger();
+      BlockingQueue<SubOperation> results = new LinkedBlockingQueue<>();
+      List<Future<?>> workerFutures = new ArrayList<>(concurrency);
+      boolean completed = false;
+      try {
+        for (int i = 0; i < concurrency; i++) {
+          workerFutures.add(workers.submit(() -> {
+            try (ICStoreSender cstoreSender = cstoreSenderFactory.create()) {
+              cstoreSender.prepare(target, transferSyntaxes);
+              int index = nextInstance.getAndIncrement();
+              while (!canceled && index < qidoResult.size()) {
+                int next = nextInstance.getAndIncrement();
+                if (next < qidoResult.size()) {
+                  prefetch(cstoreSender, target, qidoResult, next);
+                }
+                results.add(cstore(cstoreSender, target, qidoResult, index));
+                index = next;
+              }
+            } catch (Throwable e) {
+              // Ends the move, as the instances claimed by this worker would never complete.
+              results.add(new SubOperation(e));
+            }
+          }));
+        }
+
+        int remainingInstances = qidoResult.size();
+        while (remainingInstances > 0) {
+          sendPendingResponse(remainingInstances, successfulInstances,
+              failedInstanceUids.size());
+
+          SubOperation result = results.take();
+          if (result.error != null) {
+            throw result.error;
+          }
+          if (canceled) {
+            throw new CancellationException();
+          }
+          addResult(result);
+          remainingInstances--;
+        }
+        completed = true;
+      } finally {
+        if (!completed) {
+          for (Future<?> workerFuture : workerFutures) {
+            workerFuture.cancel(true);
           }
         }
       }
     }
 
+    /**
+     * Sends one instance. Failures of the sub-operation are part of the result, anything else
+     * ends the move.
+     */
+    private SubOperation cstore(ICStoreSender cstoreSender, AetDictionary.Aet target,
+        MoveInstances instances, int index) throws InterruptedException {
+      String studyUid = instances.studyUid(index);
+      String seriesUid = instances.seriesUid(index);
+      String instanceUid = instances.instanceUid(index);
+      String classUid = instances.classUid(index);
+      if (studyUid == null || seriesUid == null || instanceUid == null || classUid == null) {
+        throw new JSONException("Missing UID in QIDO-RS result of instance " + instanceUid);
+      }
+
+      try {
+        MonitoringService.addEvent(Event.CMOVE_CSTORE_REQUEST);
+        long bytesSent = cstoreSender.cstore(target, studyUid, seriesUid,
+            instanceUid, classUid);
+        MonitoringService.addEvent(Event.CMOVE_CSTORE_BYTES, bytesSent);
+        return new SubOperation(instanceUid, true);
+      } catch (IDicomWebClient.DicomWebException | IOException e) {
+        MonitoringService.addEvent(Event.CMOVE_CSTORE_ERROR);
+        log.error("Failed CStore within CMove", e);
+        return new SubOperation(instanceUid, false);
+      }
+    }
+
+    /**
+     * Sends the instances of each study or series, depending on the C-MOVE's level, from a
+     * single WADO-RS request per study or series. Returns the instances left to send one by one,
+     * including those of failed parts or requests.
+     */
+    private MoveInstances cstoreBulk(ICStoreSender cstoreSender, AetDictionary.Aet target,
+        MoveInstances qidoResult) throws InterruptedException {
+      Set<String> sentInstanceUids = new HashSet<>();
+      Map<String, Map<String, String>> groups =
+          bulkGroups(keys.getString(Tag.QueryRetrieveLevel), qidoResult);
+      for (Map.Entry<String, Map<String, String>> group : groups.entrySet()) {
+        sendPendingResponse(qidoResult.size() - successfulInstances, successfulInstances, 0);
+        if (canceled) {
+          throw new CancellationException();
+        }
+
+        int sentBefore = sentInstanceUids.size();
+        try {
+          MonitoringService.addEvent(Event.CMOVE_BULK_REQUEST);
+          cstoreSender.cstoreBulk(target, group.getKey(), group.getValue(),
+              (instanceUid, bytesSent) -> {
+                if (!sentInstanceUids.add(instanceUid)) {
+                  return;
+                }
+                MonitoringService.addEvent(Event.CMOVE_CSTORE_REQUEST);
+                MonitoringService.addEvent(Event.CMOVE_CSTORE_BYTES, bytesSent);
+                successfulInstances++;
+                sendPendingResponse(qidoResult.size() - successfulInstances,
+                    successfulInstances, 0);
+                if (canceled) {
+                  throw new CancellationException();
+                }
+              });
+        } catch (IDicomWebClient.DicomWebException | IOException e) {
+          log.warn("Bulk retrieval of {} failed", group.getKey(), e);
+        }
+        int unsent = group.getValue().size() - (sentInstanceUids.size() - sentBefore);
+        if (unsent > 0) {
+          MonitoringService.addEvent(Event.CMOVE_BULK_FALLBACK, unsent);
+        }
+      }
+
+      return qidoResult.without(sentInstanceUids);
+    }
+
+    /**
+     * Lets the sender download the instance while the current one is sent.
+     */
+    private void prefetch(ICStoreSender cstoreSender, AetDictionary.Aet target,
+        MoveInstances instances, int index) {
+      String studyUid = instances.studyUid(index);
+      String seriesUid = instances.seriesUid(index);
+      String instanceUid = instances.instanceUid(index);
+      if (studyUid != null && seriesUid != null && instanceUid != null) {
+        cstoreSender.prefetch(target, studyUid, seriesUid, instanceUid);
+      }
+    }
+
+    private void addResult(SubOperation result) {
+      if (result.success) {
+        successfulInstances++;
+      } else {
+        failedInstanceUids.add(result.instanceUid);
+      }
+    }
+
     // It seems WEASIS (at least, GINKGO/AESKULAP don't cancel at all) doesn't just send cancel-rq,
     // when it wants to cancel.
     // Instead it replies with cancel-rq to any move-rsp, including pending
@@ -247,4 +655,26 @@ public class CMoveService extends BasicCMoveSCP {
       as.tryWriteDimseRSP(pc, Commands.mkCMoveRSP(cmd, status), attributes);
     }
   }
+
+  private static class SubOperation {
+
+    private final String instanceUid;
+    private final boolean success;
+    private final Throwable error;
+
+    private SubOperation(String instanceUid, boolean success) {
+      this.instanceUid = instanceUid;
+      this.success = success;
+      this.error = null;
+    }
+
+    /**
+     * Result of a worker that stopped before sending all of its instances.
+     */
+    private SubOperation(Throwable error) {
+      this.instanceUid = null;
+      this.success = false;
+      this.error = error;
+    }
+  }
 }
@@ -19,12 +19,15 @@ import com.google.cloud.healthcare.IDicomWebClient.DicomWebException;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
 import com.google.common.io.CountingInputStream;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Commands;
+import org.dcm4che3.net.Dimse;
 import org.dcm4che3.net.PDVInputStream;
 import org.dcm4che3.net.Status;
 import org.dcm4che3.net.pdu.PresentationContext;
@@ -38,14 +41,142 @@ import org.slf4j.LoggerFactory;
  */
 public class CStoreService extends BasicCStoreSCP {
 
+  // How far into a received dataset its StudyInstanceUID is looked for.
+  private static final int MAX_STUDY_UID_OFFSET = 64 * 1024;
+
   private static Logger log = LoggerFactory.getLogger(CStoreService.class);
 
   private final String path;
   private final IDicomWebClient dicomWebClient;
+  private final StowSpool spool;
+  private final StowUploadPipeline pipeline;
+  private final StowBatcher batcher;
+  private final InstanceCache instanceCache;
+  private final CachingDicomWebClient qidoCache;
+  private final IngestLedger ingestLedger;
 
   CStoreService(String path, IDicomWebClient dicomWebClient) {
+    this(path, dicomWebClient, null, null, null);
+  }
+
+  CStoreService(String path, IDicomWebClient dicomWebClient, StowSpool spool,
+      StowUploadPipeline pipeline, StowBatcher batcher) {
+    this(path, dicomWebClient, spool, pipeline, batcher, null, null);
+  }
+
+  CStoreService(String path, IDicomWebClient dicomWebClient, StowSpool spool,
+      StowUploadPipeline pipeline, StowBatcher batcher, InstanceCache instanceCache,
+      CachingDicomWebClient qidoCache) {
+    this(path, dicomWebClient, spool, pipeline, batcher, instanceCache, qidoCache, null);
+  }
+
+  /**
+   * @param spool if not null, instances are acknowledged once spooled and uploaded later
+   * @param pipeline if not null, instances are buffered and uploaded by its workers, and the
+   *     association's reader moves on to the next request before the response is sent
+   * @param batcher if not null, buffered instances are uploaded in batches, per calling AE
+   * @param instanceCache if not null, received instances are also cached for C-MOVE
+   * @param qidoCache if not null, cached query results that may include a stored instance's
+   *     study are invalidated. Ignored with a spool, which invalidates them once uploaded.
+   * @param ingestLedger if not null, uploaded instances are recorded for storage commitment.
+   *     Ignored with a spool, which records them once uploaded.
+   */
+  CStoreService(String path, IDicomWebClient dicomWebClient, StowSpool spool,
+      StowUploadPipeline pipeline, StowBatcher batcher, InstanceCache instanceCache,
+      CachingDicomWebClient qidoCache, IngestLedger ingestLedger) {
     this.path = path;
     this.dicomWebClient = dicomWebClient;
+    this.spool = spool;
+    this.pipeline = pipeline;
+    this.batcher = batcher;
+    this.instanceCache = instanceCache;
+    this.qidoCache = spool == null ? qidoCache : null;
+    this.ingestLedger = spool == null ? ingestLedger : null;
+  }
+
+  @Override
+  public void onDimseRQ(
+      Association association,
+      PresentationContext presentationContext,
+      Dimse dimse,
+      Attributes request,
+      PDVInputStream inDicomStream)
+      throws IOException {
+    if (pipeline == null || dimse != Dimse.C_STORE_RQ) {
+      super.onDimseRQ(association, presentationContext, dimse, request, inDicomStream);
+      return;
+    }
+
+    Attributes response = Commands.mkCStoreRSP(request, Status.Success);
+    CountingInputStream countingStream = new CountingInputStream(inDicomStream);
+    InputStream dataset = markable(countingStream);
+    String studyInstanceUid;
+    StowUploadPipeline.Instance instance;
+    try {
+      MonitoringService.addEvent(Event.CSTORE_REQUEST);
+      studyInstanceUid = peekStudyInstanceUid(presentationContext, dataset);
+      instance = pipeline.buffer(openInstance(presentationContext, request, dataset));
+    } catch (Throwable e) {
+      throw toServiceException(e);
+    }
+
+    if (!instance.isBuffered()) {
+      // Too large to hold in memory, upload from the reader thread.
+      try {
+        upload(instance.getInputStream());
+      } catch (Throwable e) {
+        throw toServiceException(e);
+      } finally {
+        instance.close();
+      }
+      onStored(association, presentationContext, request, countingStream.getCount(),
+          studyInstanceUid);
+      association.tryWriteDimseRSP(presentationContext, response);
+      return;
+    }
+
+    long size = countingStream.getCount();
+    StowBatcher.Completion completion = failure -> complete(association, presentationContext,
+        dimse, request, response, size, studyInstanceUid, failure);
+    try {
+      if (batcher != null) {
+        batcher.add(association.getCallingAET(), request.getString(Tag.AffectedSOPInstanceUID),
+            instance, completion);
+        return;
+      }
+      pipeline.execute(instance, () -> {
+        Throwable failure = null;
+        try {
+          upload(instance.getInputStream());
+        } catch (Throwable e) {
+          failure = e;
+        } finally {
+          instance.close();
+        }
+        completion.onComplete(failure);
+      });
+    } catch (Throwable e) {
+      instance.close();
+      throw toServiceException(e);
+    }
+  }
+
+  /**
+   * Writes the response for an instance uploaded in the background.
+   */
+  private void complete(Association association, PresentationContext presentationContext,
+      Dimse dimse, Attributes request, Attributes response, long size, String studyInstanceUid,
+      Throwable failure) {
+    if (failure == null) {
+      onStored(association, presentationContext, request, size, studyInstanceUid);
+      association.tryWriteDimseRSP(presentationContext, response);
+      return;
+    }
+    DicomServiceException serviceException = toServiceException(failure);
+    log.error("C-STORE upload failed for association {}", association.toString(), failure);
+    association.tryWriteDimseRSP(presentationContext,
+        serviceException.mkRSP(dimse.commandFieldOfRSP(), request.getInt(Tag.MessageID, 0)),
+        serviceException.getDataset());
   }
 
   @Override
@@ -59,36 +190,90 @@ public class CStoreService extends BasicCStoreSCP {
     try {
       MonitoringService.addEvent(Event.CSTORE_REQUEST);
 
-      String sopClassUID = request.getString(Tag.AffectedSOPClassUID);
-      String sopInstanceUID = request.getString(Tag.AffectedSOPInstanceUID);
-      String transferSyntax = presentationContext.getTransferSyntax();
-      String remoteAeTitle = association.getCallingAET();
+      CountingInputStream countingStream = new CountingInputStream(inDicomStream);
+      InputStream dataset = markable(countingStream);
+      String studyInstanceUid = peekStudyInstanceUid(presentationContext, dataset);
+      upload(openInstance(presentationContext, request, dataset));
 
-      validateParam(sopClassUID, "AffectedSOPClassUID");
-      validateParam(sopInstanceUID, "AffectedSOPInstanceUID");
+      onStored(association, presentationContext, request, countingStream.getCount(),
+          studyInstanceUid);
+      response.setInt(Tag.Status, VR.US, Status.Success);
+    } catch (Throwable e) {
+      throw toServiceException(e);
+    }
+  }
 
-      CountingInputStream countingStream = new CountingInputStream(inDicomStream);
-      InputStream inBuffer =
-          DicomStreamUtil.dicomStreamWithFileMetaHeader(
-              sopInstanceUID, sopClassUID, transferSyntax, countingStream);
+  /**
+   * Validates the request and prepends the file meta header to the received dataset. The
+   * instance is cached once the returned stream has been read to the end.
+   */
+  private InputStream openInstance(PresentationContext presentationContext, Attributes request,
+      InputStream inDicomStream) throws IOException {
+    String sopClassUID = request.getString(Tag.AffectedSOPClassUID);
+    String sopInstanceUID = request.getString(Tag.AffectedSOPInstanceUID);
+    String transferSyntax = presentationContext.getTransferSyntax();
+
+    validateParam(sopClassUID, "AffectedSOPClassUID");
+    validateParam(sopInstanceUID, "AffectedSOPInstanceUID");
 
+    InputStream in = DicomStreamUtil.dicomStreamWithFileMetaHeader(
+        sopInstanceUID, sopClassUID, transferSyntax, inDicomStream);
+    return instanceCache == null ? in : instanceCache.fill(sopInstanceUID, transferSyntax, in);
+  }
+
+  /**
+   * Returns a stream that {@link #peekStudyInstanceUid} can read ahead in, if needed.
+   */
+  private InputStream markable(InputStream inDicomStream) {
+    return qidoCache == null ? inDicomStream : new BufferedInputStream(inDicomStream);
+  }
+
+  /**
+   * Returns the study of the received dataset for invalidating cached query results, without
+   * consuming the stream. Returns null if there is no cache or the study wasn't found.
+   */
+  private String peekStudyInstanceUid(PresentationContext presentationContext,
+      InputStream dataset) throws IOException {
+    if (qidoCache == null) {
+      return null;
+    }
+    return DicomStreamUtil.peekStudyInstanceUid(
+        dataset, presentationContext.getTransferSyntax(), MAX_STUDY_UID_OFFSET);
+  }
+
+  private void upload(InputStream inBuffer) throws IOException, DicomWebException {
+    if (spool != null) {
+      spool.spool(inBuffer);
+    } else {
       dicomWebClient.stowRs(path, inBuffer);
+    }
+  }
 
-      log.info("Received C-STORE for association {}, SOP class {}, TS {}, remote AE {}",
-          association.toString(), sopClassUID, transferSyntax, remoteAeTitle);
-      response.setInt(Tag.Status, VR.US, Status.Success);
+  private void onStored(Association association, PresentationContext presentationContext,
+      Attributes request, long bytes, String studyInstanceUid) {
+    if (qidoCache != null) {
+      // Invalidates all results if the study is unknown.
+      qidoCache.invalidateStudy(studyInstanceUid);
+    }
+    if (ingestLedger != null) {
+      ingestLedger.record(request.getString(Tag.AffectedSOPInstanceUID));
+    }
+    log.info("Received C-STORE for association {}, SOP class {}, TS {}, remote AE {}",
+        association.toString(), request.getString(Tag.AffectedSOPClassUID),
+        presentationContext.getTransferSyntax(), association.getCallingAET());
+    MonitoringService.addEvent(Event.CSTORE_BYTES, bytes);
+  }
 
-      MonitoringService.addEvent(Event.CSTORE_BYTES, countingStream.getCount());
-    } catch (DicomWebException e) {
-      MonitoringService.addEvent(Event.CSTORE_ERROR);
-      throw new DicomServiceException(e.getStatus(), e.getMessage(), e);
-    } catch (DicomServiceException e) {
-      MonitoringService.addEvent(Event.CSTORE_ERROR);
-      throw e;
-    } catch (Throwable e) {
-      MonitoringService.addEvent(Event.CSTORE_ERROR);
-      throw new DicomServiceException(Status.ProcessingFailure, e);
+  private DicomServiceException toServiceException(Throwable e) {
+    MonitoringService.addEvent(Event.CSTORE_ERROR);
+    if (e instanceof DicomWebException) {
+      DicomWebException dicomWebException = (DicomWebException) e;
+      return new DicomServiceException(dicomWebException.getStatus(), e.getMessage(), e);
+    }
+    if (e instanceof DicomServiceException) {
+      return (DicomServiceException) e;
     }
+    return new DicomServiceException(Status.ProcessingFailure, e);
   }
 
   private void validateParam(String value, String name) throws DicomServiceException {
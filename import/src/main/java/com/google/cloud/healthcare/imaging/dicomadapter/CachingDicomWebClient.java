@@ -0,0 +1,178 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import com.github.danieln.multipart.MultipartInput;
+import com.google.cloud.healthcare.IDicomWebClient;
+import com.google.cloud.healthcare.JsonArrayReader;
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.util.TagUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Caches the results of QIDO-RS calls for a while, other calls go to the wrapped client.
+ *
+ * Results are keyed by the QIDO-RS path with its query parameters sorted. Concurrent calls with
+ * the same key wait for a single call to the wrapped client. Entries expire a fixed time after
+ * they are loaded, and the least recently used ones are evicted once the cache holds more than
+ * its maximum number of results. Entries that may include a study are invalidated by
+ * {@link #invalidateStudy} when an instance of it is stored.
+ */
+public class CachingDicomWebClient implements IDicomWebClient {
+
+  private static final String STUDY_PARAMETER = TagUtils.toHexString(Tag.StudyInstanceUID) + "=";
+
+  private final IDicomWebClient dicomWebClient;
+  private final Cache<String, JSONArray> qidoResults;
+  // Incremented by each invalidation, to drop results loaded while one happened.
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * @param ttlMillis how long results are cached
+   * @param maxResults maximum number of results (e.g. studies) held, over all cached calls
+   */
+  public CachingDicomWebClient(IDicomWebClient dicomWebClient, long ttlMillis, long maxResults) {
+    this.dicomWebClient = dicomWebClient;
+    this.qidoResults = CacheBuilder.newBuilder()
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .maximumWeight(maxResults)
+        .<String, JSONArray>weigher((path, results) -> results.length() + 1)
+        .build();
+  }
+
+  @Override
+  public MultipartInput wadoRs(String path) throws DicomWebException {
+    return dicomWebClient.wadoRs(path);
+  }
+
+  @Override
+  public MultipartInput wadoRs(String path, String transferSyntax) throws DicomWebException {
+    return dicomWebClient.wadoRs(path, transferSyntax);
+  }
+
+  @Override
+  public JSONArray qidoRs(String path) throws DicomWebException {
+    String key = normalize(path);
+    long invalidationsBefore = invalidations.get();
+    boolean[] loaded = new boolean[1];
+    JSONArray results;
+    try {
+      results = qidoResults.get(key, () -> {
+        loaded[0] = true;
+        return dicomWebClient.qidoRs(path);
+      });
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), DicomWebException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new DicomWebException(e.getCause());
+    }
+
+    if (!loaded[0]) {
+      MonitoringService.addEvent(Event.CFIND_QIDORS_CACHE_HIT);
+      return results;
+    }
+    MonitoringService.addEvent(Event.CFIND_QIDORS_CACHE_MISS);
+    if (invalidations.get() != invalidationsBefore) {
+      // May predate an instance stored while loading.
+      qidoResults.invalidate(key);
+    }
+    return results;
+  }
+
+  /**
+   * Returns the cached results, which are held in memory anyway.
+   */
+  @Override
+  public JsonArrayReader qidoRsStream(String path) throws DicomWebException {
+    return JsonArrayReader.of(qidoRs(path));
+  }
+
+  @Override
+  public void stowRs(String path, InputStream in) throws DicomWebException {
+    dicomWebClient.stowRs(path, in);
+  }
+
+  @Override
+  public JSONObject stowRsMultipart(String path, List<InputStream> instances)
+      throws DicomWebException {
+    return dicomWebClient.stowRsMultipart(path, instances);
+  }
+
+  /**
+   * Invalidates the results of calls that may match an instance of the study: those of calls
+   * for that study and of calls not restricted to a study.
+   *
+   * @param studyInstanceUid the study, null to invalidate all results
+   */
+  public void invalidateStudy(String studyInstanceUid) {
+    invalidations.incrementAndGet();
+    if (studyInstanceUid == null) {
+      qidoResults.invalidateAll();
+      return;
+    }
+    qidoResults.asMap().keySet().removeIf(key -> {
+      String study = studyParameter(key);
+      return study == null || study.equals(studyInstanceUid);
+    });
+  }
+
+  /**
+   * Returns the path with its query parameters in sorted order and without empty ones.
+   */
+  static String normalize(String path) {
+    int query = path.indexOf('?');
+    if (query < 0) {
+      return path;
+    }
+    String[] parameters = path.substring(query + 1).split("&");
+    Arrays.sort(parameters);
+    StringBuilder normalized = new StringBuilder(path.substring(0, query + 1));
+    for (String parameter : parameters) {
+      if (!parameter.isEmpty()) {
+        normalized.append(parameter).append('&');
+      }
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * Returns the StudyInstanceUID the normalized path is restricted to, null if it isn't.
+   */
+  private static String studyParameter(String key) {
+    int query = key.indexOf('?');
+    if (query < 0) {
+      return null;
+    }
+    for (String parameter : key.substring(query + 1).split("&")) {
+      if (parameter.startsWith(STUDY_PARAMETER)) {
+        return parameter.substring(STUDY_PARAMETER.length());
+      }
+    }
+    return null;
+  }
+}
@@ -14,13 +14,16 @@
 
 package com.google.cloud.healthcare.imaging.dicomadapter;
 
+import com.google.common.io.ByteStreams;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.SequenceInputStream;
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.io.DicomOutputStream;
 import org.dcm4che3.net.PDVInputStream;
 
@@ -47,5 +50,28 @@ public class DicomStreamUtil {
         new ByteArrayInputStream(outBuffer.toByteArray()), inDicomStream);
   }
 
+  /**
+   * Returns the StudyInstanceUID of the dataset at the start of the stream, which is then reset
+   * to where it was. Returns null if it isn't found within the first {@code readLimit} bytes.
+   *
+   * @param in a stream supporting mark, positioned at the start of the dataset
+   */
+  public static String peekStudyInstanceUid(InputStream in, String transferSyntax, int readLimit)
+      throws IOException {
+    in.mark(readLimit);
+    try {
+      // Not closed, that would close the stream.
+      DicomInputStream din =
+          new DicomInputStream(ByteStreams.limit(in, readLimit), transferSyntax);
+      // Stops at the SeriesInstanceUID, which follows the StudyInstanceUID.
+      Attributes attrs = din.readDataset(-1, Tag.SeriesInstanceUID);
+      return attrs == null ? null : attrs.getString(Tag.StudyInstanceUID);
+    } catch (IOException | RuntimeException e) {
+      return null;
+    } finally {
+      in.reset();
+    }
+  }
+
   private DicomStreamUtil() {}
 }
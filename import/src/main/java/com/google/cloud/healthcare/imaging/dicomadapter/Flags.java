@@ -38,6 +38,21 @@ public class Flags {
   )
   Integer dimsePort = 0;
 
+  @Parameter(
+      names = {"--dimse_max_ops_performed"},
+      description = "Maximum number of outstanding operations per association accepted from an "
+          + "SCU proposing an asynchronous operations window, 0 for unlimited. Values other "
+          + "than 1 upload C-STOREs in the background, see --upload_workers."
+  )
+  Integer dimseMaxOpsPerformed = 1;
+
+  @Parameter(
+      names = {"--dimse_max_ops_invoked"},
+      description = "Maximum number of outstanding operations per association this adapter "
+          + "invokes on an SCU proposing an asynchronous operations window, 0 for unlimited."
+  )
+  Integer dimseMaxOpsInvoked = 1;
+
   @Deprecated
   @Parameter(
       names = {"--dicomweb_addr"},
@@ -92,6 +107,210 @@ public class Flags {
   )
   String monitoringProjectId = "";
 
+  @Parameter(
+      names = {"--http2_session_pool_size"},
+      description = "Number of HTTP/2 sessions kept open to the DicomWeb service for C-STORE uploads."
+  )
+  Integer http2SessionPoolSize = 2;
+
+  @Parameter(
+      names = {"--http2_idle_timeout_seconds"},
+      description = "Idle HTTP/2 sessions used for C-STORE uploads are closed after this many seconds."
+  )
+  Integer http2IdleTimeoutSeconds = 300;
+
+  @Parameter(
+      names = {"--spool_dir"},
+      description = "(Optional) Directory to durably spool received instances to. If set, C-STORE "
+          + "succeeds once the instance is on disk and uploads happen in the background."
+  )
+  String spoolDir = "";
+
+  @Parameter(
+      names = {"--spool_max_bytes"},
+      description = "Maximum size of the spool in bytes, further C-STOREs wait for uploads."
+  )
+  Long spoolMaxBytes = 10L * 1024 * 1024 * 1024;
+
+  @Parameter(
+      names = {"--spool_max_files"},
+      description = "Maximum number of instances in the spool, further C-STOREs wait for uploads."
+  )
+  Integer spoolMaxFiles = 100000;
+
+  @Parameter(
+      names = {"--spool_full_wait_seconds"},
+      description = "How long a C-STORE waits for space in a full spool before failing "
+          + "with Out of Resources."
+  )
+  Integer spoolFullWaitSeconds = 30;
+
+  @Parameter(
+      names = {"--spool_upload_threads"},
+      description = "Number of concurrent uploads from the spool."
+  )
+  Integer spoolUploadThreads = 4;
+
+  @Parameter(
+      names = {"--upload_workers"},
+      description = "(Optional) Number of background STOW-RS uploads for C-STORE. If set, "
+          + "instances are buffered in memory so the association can keep receiving while "
+          + "uploads are in flight; the C-STORE response is still sent after the upload. "
+          + "Ignored if --spool_dir is set."
+  )
+  Integer uploadWorkers = 0;
+
+  @Parameter(
+      names = {"--upload_max_inflight_bytes"},
+      description = "Memory budget for instances buffered for background upload. Instances "
+          + "larger than half of it are streamed without buffering."
+  )
+  Long uploadMaxInflightBytes = 256L * 1024 * 1024;
+
+  @Parameter(
+      names = {"--stow_batch_max_instances"},
+      description = "(Optional) If greater than 1, instances from the same calling AE are sent "
+          + "in multipart STOW-RS requests of up to this many instances. Requires "
+          + "--upload_workers; pays off for senders keeping several C-STOREs outstanding."
+  )
+  Integer stowBatchMaxInstances = 0;
+
+  @Parameter(
+      names = {"--stow_batch_max_bytes"},
+      description = "A STOW-RS batch is sent once it holds this many bytes."
+  )
+  Long stowBatchMaxBytes = 16L * 1024 * 1024;
+
+  @Parameter(
+      names = {"--stow_batch_linger_millis"},
+      description = "A STOW-RS batch is sent at the latest this long after its first instance "
+          + "was received."
+  )
+  Integer stowBatchLingerMillis = 50;
+
+  @Parameter(
+      names = {"--cfind_qidors_concurrency"},
+      description = "Maximum number of QIDO-RS requests run at the same time for C-FIND queries "
+          + "split into several requests, e.g. by ModalitiesInStudy. Shared by all C-FINDs; "
+          + "1 runs the requests of a query one after another."
+  )
+  Integer cfindQidorsConcurrency = 4;
+
+  @Parameter(
+      names = {"--commitment_qidors_concurrency"},
+      description = "Maximum number of QIDO-RS requests run at the same time to check the "
+          + "instances of storage commitment requests. Shared by all commitment requests; "
+          + "1 runs the checks one after another."
+  )
+  Integer commitmentQidorsConcurrency = 4;
+
+  @Parameter(
+      names = {"--commitment_qidors_batch_size"},
+      description = "(Optional) Number of instances checked by each storage commitment QIDO-RS "
+          + "request, as a list of SOP Instance UIDs. Only for servers supporting UID list "
+          + "matching; 1 checks each instance with its own request."
+  )
+  Integer commitmentQidorsBatchSize = 1;
+
+  @Parameter(
+      names = {"--qido_page_size"},
+      description = "(Optional) If set, QIDO-RS queries of C-FIND, C-MOVE and storage commitment "
+          + "ask for results in pages of this many, using limit and offset, so that large "
+          + "result sets are never held as one response. 0 asks for all results at once."
+  )
+  Integer qidoPageSize = 0;
+
+  @Parameter(
+      names = {"--cfind_cache_ttl_seconds"},
+      description = "(Optional) If set, QIDO-RS results of C-FIND queries are cached for this "
+          + "many seconds, so that repeated identical queries are answered from memory. "
+          + "Results that may include a study are dropped when an instance of it is stored, "
+          + "i.e. uploaded from the spool if --spool_dir is set."
+  )
+  Integer cfindCacheTtlSeconds = 0;
+
+  @Parameter(
+      names = {"--cfind_cache_max_results"},
+      description = "Maximum number of QIDO-RS results held by the C-FIND cache, the least "
+          + "recently used queries are evicted beyond it."
+  )
+  Long cfindCacheMaxResults = 100000L;
+
+  @Parameter(
+      names = {"--cmove_prefetch_bytes"},
+      description = "(Optional) If set, each C-MOVE association downloads the next instance "
+          + "while the current one is sent, holding up to this many bytes in memory. Instances "
+          + "that don't fit are spilled to a temporary file."
+  )
+  Long cmovePrefetchBytes = 0L;
+
+  @Parameter(
+      names = {"--cmove_prefetch_threads"},
+      description = "(Optional) Number of threads downloading instances ahead, shared by all "
+          + "C-MOVE associations. Only used with --cmove_prefetch_bytes."
+  )
+  Integer cmovePrefetchThreads = 4;
+
+  @Parameter(
+      names = {"--cmove_bulk_retrieve"},
+      description = "(Optional) Retrieve the instances of STUDY and SERIES level C-MOVEs with "
+          + "a single WADO-RS request per study or series, sending each part as it arrives. "
+          + "Instances left after it are sent one by one, in parallel for destinations with a "
+          + "concurrency above 1."
+  )
+  boolean cmoveBulkRetrieve = false;
+
+  @Parameter(
+      names = {"--cmove_worker_threads"},
+      description = "(Optional) Number of threads sending instances to destinations with a "
+          + "concurrency above 1, shared by all C-MOVEs."
+  )
+  Integer cmoveWorkerThreads = 16;
+
+  @Parameter(
+      names = {"--association_idle_timeout_seconds"},
+      description = "(Optional) Outgoing associations for C-MOVE and storage commitment reports "
+          + "are kept open for reuse for this many seconds after use, 0 to release them "
+          + "right away."
+  )
+  Integer associationIdleTimeoutSeconds = 60;
+
+  @Parameter(
+      names = {"--instance_cache_dir"},
+      description = "(Optional) Directory to cache instances in. If set, instances received by "
+          + "C-STORE or retrieved for C-MOVE are kept there, and C-MOVEs of single instances "
+          + "are served from it."
+  )
+  String instanceCacheDir = "";
+
+  @Parameter(
+      names = {"--instance_cache_max_bytes"},
+      description = "Maximum size of the instance cache in bytes, the least recently used "
+          + "instances are deleted beyond it."
+  )
+  Long instanceCacheMaxBytes = 10L * 1024 * 1024 * 1024;
+
+  @Parameter(
+      names = {"--ingest_ledger_dir"},
+      description = "(Optional) Directory to keep a ledger of the instances stored by C-STORE "
+          + "in. If set, storage commitment confirms recorded instances without QIDO-RS. With "
+          + "--spool_dir, instances are recorded once uploaded from the spool."
+  )
+  String ingestLedgerDir = "";
+
+  @Parameter(
+      names = {"--ingest_ledger_max_bytes"},
+      description = "Size of the ingest ledger file in bytes, the ledger is compacted once full."
+  )
+  Integer ingestLedgerMaxBytes = 64 * 1024 * 1024;
+
+  @Parameter(
+      names = {"--ingest_ledger_ttl_seconds"},
+      description = "How long storage commitment relies on the ingest ledger for an instance "
+          + "after it was stored, in case it is deleted from the DICOMweb server later."
+  )
+  Long ingestLedgerTtlSeconds = 24L * 60 * 60;
+
   public Flags() {
   }
 }
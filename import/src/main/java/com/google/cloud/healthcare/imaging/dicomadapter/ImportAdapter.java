@@ -21,14 +21,18 @@ import com.google.auth.http.HttpCredentialsAdapter;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.healthcare.DicomWebClient;
 import com.google.cloud.healthcare.DicomWebClientJetty;
+import com.google.cloud.healthcare.Http2SessionPool;
 import com.google.cloud.healthcare.IDicomWebClient;
 import com.google.cloud.healthcare.LogUtil;
 import com.google.cloud.healthcare.imaging.dicomadapter.cstoresender.CStoreSenderFactory;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.dcm4che3.net.Connection;
 import org.dcm4che3.net.Device;
 import org.dcm4che3.net.service.BasicCEchoSCP;
 import org.dcm4che3.net.service.DicomServiceRegistry;
@@ -38,6 +42,8 @@ import org.slf4j.LoggerFactory;
 
 public class ImportAdapter {
 
+  private static final int DEFAULT_ASYNC_UPLOAD_WORKERS = 16;
+
   private static Logger log = LoggerFactory.getLogger(ImportAdapter.class);
 
   public static void main(String[] args) throws IOException, GeneralSecurityException {
@@ -81,30 +87,93 @@ public class ImportAdapter {
       cstoreDicomwebStowPath = flags.dicomwebStowPath;
     }
 
+    Http2SessionPool sessionPool = new Http2SessionPool(flags.http2SessionPoolSize,
+        TimeUnit.SECONDS.toMillis(flags.http2IdleTimeoutSeconds));
+    MonitoringService.addGauge(Event.HTTP2_ACTIVE_STREAMS, sessionPool::getActiveStreams);
+    MonitoringService.addGauge(Event.HTTP2_QUEUED_STREAMS, sessionPool::getQueuedStreams);
+    MonitoringService.addGauge(Event.HTTP2_WINDOW_STALLS, sessionPool::getWindowStalls);
     IDicomWebClient cstoreDicomWebClient =
-        new DicomWebClientJetty(credentials, cstoreDicomwebAddr);
-    CStoreService cStoreService =
-        new CStoreService(cstoreDicomwebStowPath, cstoreDicomWebClient);
+        new DicomWebClientJetty(credentials, cstoreDicomwebAddr, sessionPool);
+    IDicomWebClient dicomWebClient =
+        new DicomWebClient(requestFactory, flags.dicomwebAddress);
+    CachingDicomWebClient cfindDicomWebClient = null;
+    if (flags.cfindCacheTtlSeconds > 0) {
+      cfindDicomWebClient = new CachingDicomWebClient(dicomWebClient,
+          TimeUnit.SECONDS.toMillis(flags.cfindCacheTtlSeconds), flags.cfindCacheMaxResults);
+    }
+    IngestLedger ingestLedger = null;
+    if (!flags.ingestLedgerDir.isEmpty()) {
+      ingestLedger = new IngestLedger(Paths.get(flags.ingestLedgerDir),
+          flags.ingestLedgerMaxBytes, TimeUnit.SECONDS.toMillis(flags.ingestLedgerTtlSeconds));
+      MonitoringService.addGauge(Event.INGEST_LEDGER_ENTRIES, ingestLedger::getEntries);
+    }
+    StowSpool spool = null;
+    if (!flags.spoolDir.isEmpty()) {
+      spool = new StowSpool(Paths.get(flags.spoolDir), flags.spoolMaxBytes, flags.spoolMaxFiles,
+          TimeUnit.SECONDS.toMillis(flags.spoolFullWaitSeconds), cstoreDicomwebStowPath,
+          cstoreDicomWebClient, flags.spoolUploadThreads, cfindDicomWebClient, ingestLedger);
+      spool.start();
+      MonitoringService.addGauge(Event.SPOOL_FILES, spool::getSpooledFiles);
+      MonitoringService.addGauge(Event.SPOOL_BYTES, spool::getSpooledBytes);
+    }
+    // Overlapping C-STOREs of an asynchronous operations window are only processed concurrently
+    // if uploads happen in the background.
+    int uploadWorkers = flags.uploadWorkers;
+    if (uploadWorkers == 0 && flags.dimseMaxOpsPerformed != Connection.SYNCHRONOUS_MODE) {
+      uploadWorkers = flags.dimseMaxOpsPerformed > 0
+          ? flags.dimseMaxOpsPerformed : DEFAULT_ASYNC_UPLOAD_WORKERS;
+    }
+    StowUploadPipeline uploadPipeline = null;
+    if (spool == null && uploadWorkers > 0) {
+      uploadPipeline = new StowUploadPipeline(uploadWorkers, flags.uploadMaxInflightBytes);
+      MonitoringService.addGauge(Event.CSTORE_PIPELINE_QUEUED, uploadPipeline::getQueueDepth);
+      MonitoringService.addGauge(Event.CSTORE_PIPELINE_BYTES, uploadPipeline::getInFlightBytes);
+    }
+    InstanceCache instanceCache = null;
+    if (!flags.instanceCacheDir.isEmpty()) {
+      instanceCache =
+          new InstanceCache(Paths.get(flags.instanceCacheDir), flags.instanceCacheMaxBytes);
+      MonitoringService.addGauge(Event.INSTANCE_CACHE_BYTES, instanceCache::getBytes);
+    }
+    StowBatcher stowBatcher = null;
+    if (uploadPipeline != null && flags.stowBatchMaxInstances > 1) {
+      stowBatcher = new StowBatcher(cstoreDicomwebStowPath, cstoreDicomWebClient, uploadPipeline,
+          flags.stowBatchMaxInstances, flags.stowBatchMaxBytes, flags.stowBatchLingerMillis);
+    }
+    CStoreService cStoreService = new CStoreService(cstoreDicomwebStowPath, cstoreDicomWebClient,
+        spool, uploadPipeline, stowBatcher, instanceCache, cfindDicomWebClient, ingestLedger);
     serviceRegistry.addDicomService(cStoreService);
 
     // Handle C-FIND
-    IDicomWebClient dicomWebClient =
-        new DicomWebClient(requestFactory, flags.dicomwebAddress);
-    CFindService cFindService = new CFindService(dicomWebClient);
+    CFindService cFindService = new CFindService(
+        cfindDicomWebClient != null ? cfindDicomWebClient : dicomWebClient,
+        flags.cfindQidorsConcurrency, flags.qidoPageSize);
     serviceRegistry.addDicomService(cFindService);
 
+    // Outgoing associations of C-MOVE and storage commitment, opened from one client device.
+    AssociationPool associationPool = new AssociationPool(
+        TimeUnit.SECONDS.toMillis(flags.associationIdleTimeoutSeconds));
+    MonitoringService.addGauge(Event.IDLE_ASSOCIATIONS, associationPool::getIdleCount);
+
     // Handle C-MOVE
     String cstoreSubAet = flags.dimseCmoveAET.equals("") ? flags.dimseAET : flags.dimseCmoveAET;
-    CStoreSenderFactory cStoreSenderFactory = new CStoreSenderFactory(cstoreSubAet, dicomWebClient);
+    CStoreSenderFactory cStoreSenderFactory = new CStoreSenderFactory(cstoreSubAet,
+        dicomWebClient, flags.cmovePrefetchBytes, associationPool, instanceCache,
+        flags.cmovePrefetchThreads);
     AetDictionary aetDict = new AetDictionary(flags.aetDictionaryInline, flags.aetDictionaryPath);
-    CMoveService cMoveService = new CMoveService(dicomWebClient, aetDict, cStoreSenderFactory);
+    CMoveService cMoveService = new CMoveService(dicomWebClient, aetDict, cStoreSenderFactory,
+        flags.cmoveBulkRetrieve, flags.qidoPageSize, flags.cmoveWorkerThreads);
     serviceRegistry.addDicomService(cMoveService);
 
     // Handle Storage Commitment N-ACTION
-    serviceRegistry.addDicomService(new StorageCommitmentService(dicomWebClient, aetDict));
+    serviceRegistry.addDicomService(
+        new StorageCommitmentService(dicomWebClient, aetDict, associationPool,
+            flags.commitmentQidorsConcurrency, flags.commitmentQidorsBatchSize,
+            flags.qidoPageSize, ingestLedger));
 
     // Start DICOM server
-    Device device = DeviceUtil.createServerDevice(flags.dimseAET, flags.dimsePort, serviceRegistry);
+    Device device = DeviceUtil.createServerDevice(flags.dimseAET, flags.dimsePort, serviceRegistry,
+        flags.dimseMaxOpsInvoked, flags.dimseMaxOpsPerformed);
     device.bindConnections();
   }
 }
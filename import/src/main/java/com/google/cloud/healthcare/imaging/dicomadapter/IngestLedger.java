@@ -0,0 +1,354 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only ledger of the SOP Instance UIDs of instances stored by this adapter, so that
+ * storage commitment can confirm them without QIDO-RS.
+ *
+ * Records are appended to a memory-mapped file of fixed size, each with a checksum, so that a
+ * record torn by a crash is dropped when the ledger is reopened. An off-heap hash table indexes
+ * the latest record of each instance. Records older than the TTL are no longer reported, and
+ * once the file is full it is compacted: rewritten with only the latest unexpired records, the
+ * oldest of those dropped if they'd fill more than half of it. Records written just before the
+ * machine itself crashes may be lost, which only means those instances are checked with
+ * QIDO-RS.
+ */
+public class IngestLedger implements Closeable {
+
+  static final String LEDGER_FILE = "ingest.ledger";
+
+  private static final String COMPACT_SUFFIX = ".compact";
+  private static final Pattern UID_PATTERN = Pattern.compile("[0-9.]{1,64}");
+  private static final int MAGIC = 0x444c4731;
+  private static final int HEADER_SIZE = 4;
+  // UID length byte, stored time and checksum, around the UID.
+  private static final int RECORD_OVERHEAD = 1 + 8 + 4;
+  private static final int MAX_RECORD_SIZE = RECORD_OVERHEAD + 64;
+  // Index slots are the hash and the record offset of an instance, 0 for an empty slot.
+  private static final int SLOT_SIZE = 8;
+  private static final int MIN_SLOTS = 1024;
+
+  private static Logger log = LoggerFactory.getLogger(IngestLedger.class);
+
+  private final Path file;
+  private final Path compactFile;
+  private final int maxBytes;
+  private final long ttlMillis;
+
+  // Guarded by this. Null once closed.
+  private MappedByteBuffer records;
+  private int end;
+  private ByteBuffer index;
+  private int slots;
+  private int entries;
+
+  /**
+   * @param maxBytes size of the ledger file
+   * @param ttlMillis how long an instance is reported as stored after being recorded
+   */
+  public IngestLedger(Path directory, int maxBytes, long ttlMillis) throws IOException {
+    if (maxBytes < HEADER_SIZE + 2 * MAX_RECORD_SIZE) {
+      throw new IllegalArgumentException("Ingest ledger too small: " + maxBytes + " bytes");
+    }
+    this.file = directory.resolve(LEDGER_FILE);
+    this.compactFile = directory.resolve(LEDGER_FILE + COMPACT_SUFFIX);
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+    Files.createDirectories(directory);
+    Files.deleteIfExists(compactFile);
+    open();
+  }
+
+  /**
+   * Records that the instance was stored. Failures are logged, the instance is then checked
+   * with QIDO-RS like any other.
+   */
+  public synchronized void record(String sopInstanceUid) {
+    if (records == null || !isPlainUid(sopInstanceUid)) {
+      return;
+    }
+    int length = RECORD_OVERHEAD + sopInstanceUid.length();
+    try {
+      if (end + length > maxBytes) {
+        compact();
+      }
+    } catch (IOException e) {
+      log.warn("Failed to compact ingest ledger {}", file, e);
+      return;
+    }
+
+    records.put(end, (byte) sopInstanceUid.length());
+    records.putLong(end + 1, System.currentTimeMillis());
+    for (int i = 0; i < sopInstanceUid.length(); i++) {
+      records.put(end + 9 + i, (byte) sopInstanceUid.charAt(i));
+    }
+    records.putInt(end + length - 4, checksum(end, length - 4));
+    put(sopInstanceUid.hashCode(), end, sopInstanceUid);
+    end += length;
+  }
+
+  /**
+   * Whether the instance was recorded within the TTL.
+   */
+  public synchronized boolean contains(String sopInstanceUid) {
+    int offset = records == null ? 0 : find(sopInstanceUid);
+    if (offset == 0 || isExpired(offset, System.currentTimeMillis())) {
+      MonitoringService.addEvent(Event.INGEST_LEDGER_MISS);
+      return false;
+    }
+    MonitoringService.addEvent(Event.INGEST_LEDGER_HIT);
+    return true;
+  }
+
+  /**
+   * Instances in the ledger, including expired ones not yet compacted away.
+   */
+  public synchronized int getEntries() {
+    return entries;
+  }
+
+  /**
+   * Rewrites the ledger with only the latest unexpired record of each instance.
+   */
+  synchronized void compact() throws IOException {
+    long now = System.currentTimeMillis();
+    List<Integer> live = new ArrayList<>();
+    long liveBytes = 0;
+    for (int offset = HEADER_SIZE; offset < end; offset += recordSize(offset)) {
+      if (!isExpired(offset, now) && find(uidAt(offset)) == offset) {
+        live.add(offset);
+        liveBytes += recordSize(offset);
+      }
+    }
+    // Leaves room for as many new records, so that compactions stay infrequent.
+    int first = 0;
+    while (liveBytes > (maxBytes - HEADER_SIZE) / 2) {
+      liveBytes -= recordSize(live.get(first++));
+    }
+
+    try (FileChannel channel = FileChannel.open(compactFile, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC);
+      channel.write(header);
+      for (int offset : live.subList(first, live.size())) {
+        channel.write(slice(offset, recordSize(offset)));
+      }
+      channel.force(true);
+    }
+    Files.move(compactFile, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    open();
+    log.info("Compacted ingest ledger {} to {} instances", file, entries);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (records != null) {
+      records.force();
+      records = null;
+      index = null;
+    }
+  }
+
+  /**
+   * Maps the ledger file and indexes its records, dropping those after the first invalid one.
+   */
+  private void open() throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      if (channel.size() > maxBytes) {
+        channel.truncate(maxBytes);
+      }
+      // Mapping extends the file to its full size, with zeros past the last record.
+      records = channel.map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+    }
+    if (records.getInt(0) != MAGIC) {
+      if (records.getInt(0) != 0) {
+        log.warn("Discarding unrecognized ingest ledger {}", file);
+      }
+      zero(0);
+      records.putInt(0, MAGIC);
+    }
+
+    index = null;
+    slots = 0;
+    entries = 0;
+    resize(MIN_SLOTS);
+    end = HEADER_SIZE;
+    int length;
+    while ((length = validRecordSize(end)) > 0) {
+      String sopInstanceUid = uidAt(end);
+      put(sopInstanceUid.hashCode(), end, sopInstanceUid);
+      end += length;
+    }
+    if (end < maxBytes && records.get(end) != 0) {
+      log.warn("Dropping torn records at offset {} of ingest ledger {}", end, file);
+      zero(end);
+    }
+  }
+
+  /**
+   * Returns the size of the record at the offset, or 0 if there is no valid record there.
+   */
+  private int validRecordSize(int offset) {
+    if (offset + RECORD_OVERHEAD > maxBytes) {
+      return 0;
+    }
+    int uidLength = records.get(offset) & 0xff;
+    int length = RECORD_OVERHEAD + uidLength;
+    if (uidLength == 0 || length > MAX_RECORD_SIZE || offset + length > maxBytes) {
+      return 0;
+    }
+    return checksum(offset, length - 4) == records.getInt(offset + length - 4) ? length : 0;
+  }
+
+  private int recordSize(int offset) {
+    return RECORD_OVERHEAD + (records.get(offset) & 0xff);
+  }
+
+  private String uidAt(int offset) {
+    byte[] uid = new byte[records.get(offset) & 0xff];
+    ByteBuffer record = records.duplicate();
+    record.position(offset + 9);
+    record.get(uid);
+    return new String(uid, StandardCharsets.US_ASCII);
+  }
+
+  private boolean isExpired(int offset, long now) {
+    return records.getLong(offset + 1) + ttlMillis <= now;
+  }
+
+  private boolean uidEquals(int offset, String sopInstanceUid) {
+    if ((records.get(offset) & 0xff) != sopInstanceUid.length()) {
+      return false;
+    }
+    for (int i = 0; i < sopInstanceUid.length(); i++) {
+      if (records.get(offset + 9 + i) != (byte) sopInstanceUid.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the offset of the latest record of the instance, 0 if there is none.
+   */
+  private int find(String sopInstanceUid) {
+    if (!isPlainUid(sopInstanceUid)) {
+      return 0;
+    }
+    int hash = sopInstanceUid.hashCode();
+    for (int slot = firstSlot(hash); ; slot = (slot + 1) & (slots - 1)) {
+      int offset = index.getInt(slot * SLOT_SIZE + 4);
+      if (offset == 0) {
+        return 0;
+      }
+      if (index.getInt(slot * SLOT_SIZE) == hash && uidEquals(offset, sopInstanceUid)) {
+        return offset;
+      }
+    }
+  }
+
+  /**
+   * Points the instance's slot at the record, replacing any earlier record of the instance.
+   */
+  private void put(int hash, int offset, String sopInstanceUid) {
+    if ((entries + 1) * 2 > slots) {
+      resize(slots * 2);
+    }
+    for (int slot = firstSlot(hash); ; slot = (slot + 1) & (slots - 1)) {
+      int slotOffset = index.getInt(slot * SLOT_SIZE + 4);
+      if (slotOffset == 0) {
+        entries++;
+      } else if (index.getInt(slot * SLOT_SIZE) != hash
+          || !uidEquals(slotOffset, sopInstanceUid)) {
+        continue;
+      }
+      index.putInt(slot * SLOT_SIZE, hash);
+      index.putInt(slot * SLOT_SIZE + 4, offset);
+      return;
+    }
+  }
+
+  private void resize(int newSlots) {
+    ByteBuffer oldIndex = index;
+    int oldSlots = slots;
+    index = ByteBuffer.allocateDirect(newSlots * SLOT_SIZE);
+    slots = newSlots;
+    for (int oldSlot = 0; oldSlot < oldSlots; oldSlot++) {
+      int offset = oldIndex.getInt(oldSlot * SLOT_SIZE + 4);
+      if (offset == 0) {
+        continue;
+      }
+      int hash = oldIndex.getInt(oldSlot * SLOT_SIZE);
+      int slot = firstSlot(hash);
+      while (index.getInt(slot * SLOT_SIZE + 4) != 0) {
+        slot = (slot + 1) & (slots - 1);
+      }
+      index.putInt(slot * SLOT_SIZE, hash);
+      index.putInt(slot * SLOT_SIZE + 4, offset);
+    }
+  }
+
+  private int firstSlot(int hash) {
+    return (hash ^ (hash >>> 16)) & (slots - 1);
+  }
+
+  private int checksum(int offset, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(slice(offset, length));
+    return (int) crc.getValue();
+  }
+
+  private ByteBuffer slice(int offset, int length) {
+    ByteBuffer slice = records.duplicate();
+    slice.limit(offset + length);
+    slice.position(offset);
+    return slice;
+  }
+
+  private void zero(int from) {
+    byte[] zeros = new byte[8192];
+    ByteBuffer tail = records.duplicate();
+    tail.position(from);
+    while (tail.hasRemaining()) {
+      tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+    }
+  }
+
+  private static boolean isPlainUid(String uid) {
+    return uid != null && UID_PATTERN.matcher(uid).matches();
+  }
+}
@@ -0,0 +1,380 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import com.google.cloud.healthcare.IDicomWebClient;
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Least recently used cache of DICOM Part 10 files on disk, keyed by SOP Instance UID.
+ *
+ * Instances are added by reading them through {@link #fill}, e.g. as they are retrieved from
+ * WADO-RS or received by C-STORE, and served from memory-mapped files by {@link #get}. The least
+ * recently used files are deleted once the cache holds more than its maximum number of bytes.
+ * Each instance is cached in one transfer syntax, that of the last copy filled. Files left in the
+ * directory by a previous run are kept.
+ */
+public class InstanceCache {
+
+  private static final String SUFFIX = ".dcm";
+  private static final String FILL_SUFFIX = ".fill";
+  private static final Pattern UID_PATTERN = Pattern.compile("[0-9.]{1,64}");
+
+  private static Logger log = LoggerFactory.getLogger(InstanceCache.class);
+
+  private final Path directory;
+  private final long maxBytes;
+
+  // Guarded by this. In access order, least recently used first.
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+
+  public InstanceCache(Path directory, long maxBytes) throws IOException {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    Files.createDirectories(directory);
+    load();
+  }
+
+  /**
+   * Returns the cached instance if it is available in the transfer syntax, null otherwise. The
+   * caller should close the stream.
+   *
+   * @param transferSyntax as passed to {@link IDicomWebClient#wadoRs(String, String)}: a transfer
+   *     syntax UID, {@link IDicomWebClient#TRANSFER_SYNTAX_AS_STORED} for any, or null for the
+   *     WADO-RS default of Explicit VR Little Endian
+   */
+  public InputStream get(String sopInstanceUid, String transferSyntax) throws IOException {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(sopInstanceUid);
+    }
+    if (entry == null || !entry.matches(transferSyntax)) {
+      MonitoringService.addEvent(Event.INSTANCE_CACHE_MISS);
+      return null;
+    }
+
+    try (FileChannel channel = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+      InputStream in;
+      if (channel.size() > Integer.MAX_VALUE) {
+        in = Files.newInputStream(entry.file);
+      } else {
+        in = new ByteBufferInputStream(
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+      MonitoringService.addEvent(Event.INSTANCE_CACHE_HIT);
+      return in;
+    } catch (NoSuchFileException e) {
+      // Evicted since looked up.
+      MonitoringService.addEvent(Event.INSTANCE_CACHE_MISS);
+      return null;
+    }
+  }
+
+  /**
+   * Whether {@link #get} would return the instance, without counting it as used.
+   */
+  public synchronized boolean contains(String sopInstanceUid, String transferSyntax) {
+    Entry entry = entries.get(sopInstanceUid);
+    return entry != null && entry.matches(transferSyntax);
+  }
+
+  /**
+   * Returns a stream reading the Part 10 file from {@code in} while writing it to the cache. The
+   * instance is added once the stream has been read to the end; closing it earlier discards the
+   * copy. If the instance can't be cached, {@code in} is returned as is.
+   *
+   * @param transferSyntax the transfer syntax of the file, null to read it from the file meta
+   *     information
+   */
+  public InputStream fill(String sopInstanceUid, String transferSyntax, InputStream in) {
+    if (!UID_PATTERN.matcher(sopInstanceUid).matches()) {
+      return in;
+    }
+    try {
+      Path file = Files.createTempFile(directory, sopInstanceUid, FILL_SUFFIX);
+      return new FillInputStream(in, sopInstanceUid, transferSyntax, file);
+    } catch (IOException e) {
+      log.warn("Failed to cache instance {}", sopInstanceUid, e);
+      return in;
+    }
+  }
+
+  /**
+   * Bytes of cached instances.
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  private void load() throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path file : stream) {
+        if (file.getFileName().toString().endsWith(FILL_SUFFIX)) {
+          Files.deleteIfExists(file);
+        } else if (file.getFileName().toString().endsWith(SUFFIX)) {
+          files.add(file);
+        }
+      }
+    }
+    files.sort(Comparator.comparing(file -> file.toFile().lastModified()));
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      try {
+        add(name.substring(0, name.length() - SUFFIX.length()), readTransferSyntax(file), file,
+            Files.size(file));
+      } catch (IOException e) {
+        log.warn("Deleting unreadable cached instance {}", file, e);
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  private void commit(String sopInstanceUid, String transferSyntax, Path filled)
+      throws IOException {
+    if (transferSyntax == null) {
+      transferSyntax = readTransferSyntax(filled);
+    }
+    long size = Files.size(filled);
+    Path file = directory.resolve(sopInstanceUid + SUFFIX);
+    synchronized (this) {
+      Files.move(filled, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      add(sopInstanceUid, transferSyntax, file, size);
+    }
+  }
+
+  /**
+   * Adds the file, replacing any entry of the instance, and evicts the least recently used ones
+   * beyond the maximum size. Evicted files are deleted under the lock, as a file's path only
+   * depends on its instance: a commit of the same instance must not move a fresh copy there
+   * between the eviction and the deletion.
+   */
+  private synchronized void add(String sopInstanceUid, String transferSyntax, Path file,
+      long size) {
+    Entry replaced = entries.put(sopInstanceUid, new Entry(file, transferSyntax, size));
+    if (replaced != null) {
+      bytes -= replaced.size;
+    }
+    bytes += size;
+    Iterator<Entry> lru = entries.values().iterator();
+    while (bytes > maxBytes && lru.hasNext()) {
+      Entry eldest = lru.next();
+      lru.remove();
+      bytes -= eldest.size;
+      try {
+        // Mapped files stay readable after being deleted.
+        Files.deleteIfExists(eldest.file);
+      } catch (IOException e) {
+        log.warn("Failed to delete evicted instance {}", eldest.file, e);
+      }
+    }
+  }
+
+  private static String readTransferSyntax(Path file) throws IOException {
+    try (DicomInputStream din = new DicomInputStream(file.toFile())) {
+      Attributes fmi = din.readFileMetaInformation();
+      String transferSyntax = fmi == null ? null : fmi.getString(Tag.TransferSyntaxUID);
+      if (transferSyntax == null) {
+        throw new IOException("No transfer syntax in file meta information of " + file);
+      }
+      return transferSyntax;
+    }
+  }
+
+  private static class Entry {
+
+    private final Path file;
+    private final String transferSyntax;
+    private final long size;
+
+    private Entry(Path file, String transferSyntax, long size) {
+      this.file = file;
+      this.transferSyntax = transferSyntax;
+      this.size = size;
+    }
+
+    private boolean matches(String transferSyntax) {
+      if (IDicomWebClient.TRANSFER_SYNTAX_AS_STORED.equals(transferSyntax)) {
+        return true;
+      }
+      return this.transferSyntax.equals(
+          transferSyntax == null ? UID.ExplicitVRLittleEndian : transferSyntax);
+    }
+  }
+
+  private class FillInputStream extends FilterInputStream {
+
+    private final String sopInstanceUid;
+    private final String transferSyntax;
+    private final Path file;
+    private OutputStream out;
+
+    private FillInputStream(InputStream in, String sopInstanceUid, String transferSyntax,
+        Path file) throws IOException {
+      super(in);
+      this.sopInstanceUid = sopInstanceUid;
+      this.transferSyntax = transferSyntax;
+      this.file = file;
+      this.out = Files.newOutputStream(file);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) {
+        finish();
+      } else {
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read == -1) {
+        finish();
+      } else {
+        write(b, off, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes would be missing from the copy.
+      discard();
+      return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      discard();
+      super.close();
+    }
+
+    private void write(byte[] b, int off, int len) {
+      if (out == null) {
+        return;
+      }
+      try {
+        out.write(b, off, len);
+      } catch (IOException e) {
+        log.warn("Failed to cache instance {}", sopInstanceUid, e);
+        discard();
+      }
+    }
+
+    private void finish() {
+      if (out == null) {
+        return;
+      }
+      try {
+        out.close();
+        out = null;
+        commit(sopInstanceUid, transferSyntax, file);
+      } catch (IOException e) {
+        log.warn("Failed to cache instance {}", sopInstanceUid, e);
+        discard();
+      }
+    }
+
+    private void discard() {
+      if (out == null && !Files.exists(file)) {
+        return;
+      }
+      try {
+        if (out != null) {
+          out.close();
+          out = null;
+        }
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        log.warn("Failed to delete partial copy {}", file, e);
+      }
+    }
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int read = Math.min(len, buffer.remaining());
+      buffer.get(b, off, read);
+      return read;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.min(n, buffer.remaining());
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -16,12 +16,24 @@ package com.google.cloud.healthcare.imaging.dicomadapter;
 
 import com.google.cloud.healthcare.IDicomWebClient;
 import com.google.cloud.healthcare.IDicomWebClient.DicomWebException;
+import com.google.cloud.healthcare.JsonArrayReader;
 import com.google.cloud.healthcare.imaging.dicomadapter.AetDictionary.Aet;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
 import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
@@ -33,12 +45,13 @@ import org.dcm4che3.net.Commands;
 import org.dcm4che3.net.Dimse;
 import org.dcm4che3.net.FutureDimseRSP;
 import org.dcm4che3.net.Status;
-import org.dcm4che3.net.pdu.AAssociateRQ;
 import org.dcm4che3.net.pdu.PresentationContext;
 import org.dcm4che3.net.pdu.RoleSelection;
 import org.dcm4che3.net.service.AbstractDicomService;
 import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4che3.util.TagUtils;
 import org.json.JSONArray;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,14 +59,70 @@ public class StorageCommitmentService extends AbstractDicomService {
 
   private static final int EVENT_ID_ALL_SUCCESS = 1;
   private static final int EVENT_ID_FAILURES_PRESENT = 2;
+  private static final String SOP_INSTANCE_UID = TagUtils.toHexString(Tag.SOPInstanceUID);
+  private static final String STUDY_INSTANCE_UID = TagUtils.toHexString(Tag.StudyInstanceUID);
+  private static final String NUMBER_OF_STUDY_RELATED_INSTANCES =
+      TagUtils.toHexString(Tag.NumberOfStudyRelatedInstances);
+  // A study's instances are listed if at most this many per referenced instance of it.
+  private static final int MAX_LISTED_INSTANCES_PER_ITEM = 4;
+  // Attributes of the QIDO-RS results the existence checks read.
+  private static final String[] QIDO_ATTRIBUTES = {SOP_INSTANCE_UID};
+  // UIDs put in QIDO-RS paths as they are, others are looked up one by one.
+  private static final Pattern UID_PATTERN = Pattern.compile("[0-9.]{1,64}");
   private static Logger log = LoggerFactory.getLogger(StorageCommitmentService.class);
   private final IDicomWebClient dicomWebClient;
   private final AetDictionary aets;
+  private final AssociationPool associationPool;
+  private final ExecutorService qidoExecutor;
+  private final int qidoBatchSize;
+  private final int qidoPageSize;
+  private final IngestLedger ingestLedger;
 
   StorageCommitmentService(IDicomWebClient dicomWebClient, AetDictionary aets) {
+    this(dicomWebClient, aets, new AssociationPool(0));
+  }
+
+  StorageCommitmentService(IDicomWebClient dicomWebClient, AetDictionary aets,
+      AssociationPool associationPool) {
+    this(dicomWebClient, aets, associationPool, 1, 1, 0);
+  }
+
+  /**
+   * @param associationPool opens the associations commitment reports are sent on
+   * @param qidoConcurrency maximum number of existence check QIDO-RS requests run at the same
+   *     time, shared by all commitment requests. 1 runs them one after another.
+   * @param qidoBatchSize number of SOP Instance UIDs looked up by each QIDO-RS request, as a UID
+   *     list. 1 for servers without UID list matching.
+   * @param qidoPageSize number of results requested per QIDO-RS call of lookups that may have
+   *     many results, 0 to request all at once
+   */
+  StorageCommitmentService(IDicomWebClient dicomWebClient, AetDictionary aets,
+      AssociationPool associationPool, int qidoConcurrency, int qidoBatchSize,
+      int qidoPageSize) {
+    this(dicomWebClient, aets, associationPool, qidoConcurrency, qidoBatchSize, qidoPageSize,
+        null);
+  }
+
+  /**
+   * @param ingestLedger if not null, instances it holds are reported as stored without QIDO-RS
+   */
+  StorageCommitmentService(IDicomWebClient dicomWebClient, AetDictionary aets,
+      AssociationPool associationPool, int qidoConcurrency, int qidoBatchSize,
+      int qidoPageSize, IngestLedger ingestLedger) {
     super(UID.StorageCommitmentPushModelSOPClass);
     this.dicomWebClient = dicomWebClient;
     this.aets = aets;
+    this.associationPool = associationPool;
+    this.qidoBatchSize = Math.max(qidoBatchSize, 1);
+    this.qidoPageSize = qidoPageSize;
+    this.ingestLedger = ingestLedger;
+    this.qidoExecutor = qidoConcurrency > 1
+        ? Executors.newFixedThreadPool(qidoConcurrency, runnable -> {
+          Thread thread = new Thread(runnable, "commitment-qidors-worker");
+          thread.setDaemon(true);
+          return thread;
+        })
+        : null;
   }
 
   @Override
@@ -124,6 +193,35 @@ public class StorageCommitmentService extends AbstractDicomService {
     }
   }
 
+  private static boolean isPlainUid(String uid) {
+    return uid != null && UID_PATTERN.matcher(uid).matches();
+  }
+
+  /**
+   * QIDO-RS lookup of the existence of some of the referenced instances.
+   */
+  private static class Lookup {
+
+    // Query keys of a single instance lookup, null for one listing instances.
+    private final Attributes instance;
+    private final String qidoPath;
+    private final List<CommitmentItem> items;
+
+    private Lookup(CommitmentItem cmtItem) {
+      this.instance = new Attributes();
+      this.instance.setString(Tag.SOPInstanceUID, VR.UI, cmtItem.getInstanceUid());
+      this.instance.setString(Tag.QueryRetrieveLevel, VR.CS, "IMAGE");
+      this.qidoPath = null;
+      this.items = Collections.singletonList(cmtItem);
+    }
+
+    private Lookup(String qidoPath, List<CommitmentItem> items) {
+      this.instance = null;
+      this.qidoPath = qidoPath;
+      this.items = items;
+    }
+  }
+
   private class CommitmentReportTask implements Runnable {
 
     private final Attributes data;
@@ -141,44 +239,63 @@ public class StorageCommitmentService extends AbstractDicomService {
       List<CommitmentItem> presentInstances = new ArrayList<>();
       List<CommitmentItem> absentInstances = new ArrayList<>();
 
-      Sequence sopSequence = data.getSequence(Tag.ReferencedSOPSequence);
-      for (Attributes attrsItem : sopSequence) {
-        Attributes queryAttributes = new Attributes();
+      // Found SOP Instance UIDs, and failure reasons of items whose lookup failed.
+      Set<String> found = ConcurrentHashMap.newKeySet();
+      Map<CommitmentItem, Integer> failed = new ConcurrentHashMap<>();
+
+      List<CommitmentItem> items = new ArrayList<>();
+      // Items not in the ingest ledger, to look up.
+      List<CommitmentItem> unknownItems = new ArrayList<>();
+      Map<String, List<CommitmentItem>> studies = new LinkedHashMap<>();
+      for (Attributes attrsItem : data.getSequence(Tag.ReferencedSOPSequence)) {
         CommitmentItem cmtItem = new CommitmentItem(
             attrsItem.getString(Tag.ReferencedSOPInstanceUID),
             attrsItem.getString(Tag.ReferencedSOPClassUID));
-        queryAttributes
-            .setString(Tag.SOPInstanceUID, VR.UI, cmtItem.getInstanceUid());
-        queryAttributes.setString(Tag.QueryRetrieveLevel, VR.CS, "IMAGE");
-        try {
-          String qidoPath = AttributesUtil.attributesToQidoPath(queryAttributes);
-          JSONArray qidoResult = dicomWebClient.qidoRs(qidoPath);
-          if (qidoResult == null || qidoResult.length() == 0) {
-            cmtItem.setFailureReason(Status.NoSuchObjectInstance);
-            absentInstances.add(cmtItem);
-          } else {
-            presentInstances.add(cmtItem);
-          }
-        } catch (DicomServiceException | IDicomWebClient.DicomWebException e) {
-          MonitoringService.addEvent(Event.COMMITMENT_QIDORS_ERROR);
-          log.error("Commitment QidoPath/QidoRs error: ", e);
+        items.add(cmtItem);
+        if (ingestLedger != null && ingestLedger.contains(cmtItem.getInstanceUid())) {
+          found.add(cmtItem.getInstanceUid());
+          continue;
+        }
+        unknownItems.add(cmtItem);
+        // Not part of the standard references, but sent by some SCUs.
+        String studyUid = attrsItem.getString(Tag.StudyInstanceUID);
+        if (studyUid != null && isPlainUid(studyUid) && isPlainUid(cmtItem.getInstanceUid())) {
+          studies.computeIfAbsent(studyUid, key -> new ArrayList<>()).add(cmtItem);
+        }
+      }
+
+      runLookups(lookups(unknownItems, studies), found, failed);
 
-          cmtItem.setFailureReason(toFailureReason(e));
+      for (CommitmentItem cmtItem : items) {
+        Integer failureReason = failed.get(cmtItem);
+        if (failureReason == null && !found.contains(cmtItem.getInstanceUid())) {
+          failureReason = Status.NoSuchObjectInstance;
+        }
+        if (failureReason != null) {
+          cmtItem.setFailureReason(failureReason);
           absentInstances.add(cmtItem);
+        } else {
+          presentInstances.add(cmtItem);
         }
       }
 
-      DicomClient dicomClient;
+      AssociationPool.Lease lease;
       try {
-        dicomClient = DicomClient.associatePeer(applicationEntity,
-            remoteAet.getHost(), remoteAet.getPort(), makeAAssociateRQ());
+        lease = associationPool.acquire(applicationEntity.getAETitle(), remoteAet.getName(),
+            remoteAet.getHost(), remoteAet.getPort(),
+            Collections.singletonList(new PresentationContext(
+                1,
+                UID.StorageCommitmentPushModelSOPClass,
+                UID.ExplicitVRLittleEndian)),
+            Collections.singletonList(
+                new RoleSelection(UID.StorageCommitmentPushModelSOPClass, false, true)));
       } catch (Exception e) {
         MonitoringService.addEvent(Event.COMMITMENT_ERROR);
         log.error("associatePeer exception: ", e);
         return;
       }
 
-      Association association = dicomClient.getAssociation();
+      Association association = lease.getClient().getAssociation();
       try {
         FutureDimseRSP handler = new FutureDimseRSP(association.nextMessageID());
 
@@ -199,28 +316,200 @@ public class StorageCommitmentService extends AbstractDicomService {
       } catch (IOException | InterruptedException e) {
         MonitoringService.addEvent(Event.COMMITMENT_ERROR);
         log.error("neventReport error: ", e);
+        lease.discard();
       } finally {
-        try {
-          association.release();
-          association.waitForSocketClose();
-        } catch (Exception e) {
-          log.warn("Send Commitment Report successfully, but failed to close association: ", e);
+        // Kept for the next report to the same peer, unless discarded above.
+        lease.close();
+      }
+    }
+
+    /**
+     * Splits the existence checks into QIDO-RS lookups: one listing the instances of each study
+     * whose referenced instances are a large share of it, UID lists of up to qidoBatchSize
+     * instances, and single instance lookups for the rest.
+     */
+    private List<Lookup> lookups(List<CommitmentItem> items,
+        Map<String, List<CommitmentItem>> studies) {
+      List<Lookup> lookups = new ArrayList<>();
+      Set<CommitmentItem> inStudyLookups = new HashSet<>();
+      Map<String, Integer> studySizes = studySizes(studies);
+      for (Map.Entry<String, List<CommitmentItem>> study : studies.entrySet()) {
+        Integer studySize = studySizes.get(study.getKey());
+        if (studySize != null
+            && studySize <= study.getValue().size() * MAX_LISTED_INSTANCES_PER_ITEM) {
+          lookups.add(new Lookup(
+              "studies/" + study.getKey() + "/instances?includefield=" + SOP_INSTANCE_UID + "&",
+              study.getValue()));
+          inStudyLookups.addAll(study.getValue());
+        }
+      }
+
+      List<CommitmentItem> batch = new ArrayList<>();
+      for (CommitmentItem cmtItem : items) {
+        if (inStudyLookups.contains(cmtItem)) {
+          continue;
+        }
+        if (qidoBatchSize == 1 || !isPlainUid(cmtItem.getInstanceUid())) {
+          lookups.add(new Lookup(cmtItem));
+          continue;
+        }
+        batch.add(cmtItem);
+        if (batch.size() == qidoBatchSize) {
+          lookups.add(uidListLookup(batch));
+          batch = new ArrayList<>();
         }
       }
+      if (batch.size() == 1) {
+        lookups.add(new Lookup(batch.get(0)));
+      } else if (batch.size() > 1) {
+        lookups.add(uidListLookup(batch));
+      }
+      return lookups;
     }
 
-    private AAssociateRQ makeAAssociateRQ() {
-      AAssociateRQ aarq = new AAssociateRQ();
-      aarq.setCallingAET(applicationEntity.getAETitle());
-      aarq.setCalledAET(remoteAet.getName());
-      aarq.addPresentationContext(
-          new PresentationContext(
-              1,
-              UID.StorageCommitmentPushModelSOPClass,
-              UID.ExplicitVRLittleEndian));
-      aarq.addRoleSelection(
-          new RoleSelection(UID.StorageCommitmentPushModelSOPClass, false, true));
-      return aarq;
+    /**
+     * Returns the number of instances of the studies worth listing instead of looking up their
+     * referenced instances: those that would take more than two lookups otherwise, as many as
+     * finding the study's size and listing it. Studies whose size is unknown are left out.
+     */
+    private Map<String, Integer> studySizes(Map<String, List<CommitmentItem>> studies) {
+      List<String> candidates = new ArrayList<>();
+      for (Map.Entry<String, List<CommitmentItem>> study : studies.entrySet()) {
+        if (study.getValue().size() > 2 * qidoBatchSize) {
+          candidates.add(study.getKey());
+        }
+      }
+      Map<String, Integer> studySizes = new ConcurrentHashMap<>();
+      if (qidoExecutor == null || candidates.size() == 1) {
+        for (String studyUid : candidates) {
+          studySize(studyUid, studySizes);
+        }
+        return studySizes;
+      }
+
+      List<Future<?>> requests = new ArrayList<>();
+      try {
+        for (String studyUid : candidates) {
+          requests.add(qidoExecutor.submit(() -> studySize(studyUid, studySizes)));
+        }
+        for (Future<?> request : requests) {
+          request.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        log.error("Commitment study lookup failed: ", e);
+      } finally {
+        for (Future<?> request : requests) {
+          request.cancel(true);
+        }
+      }
+      return studySizes;
+    }
+
+    private void studySize(String studyUid, Map<String, Integer> studySizes) {
+      String qidoPath = "studies?" + STUDY_INSTANCE_UID + "=" + studyUid + "&includefield="
+          + NUMBER_OF_STUDY_RELATED_INSTANCES + "&limit=1";
+      try (JsonArrayReader qidoResult = dicomWebClient.qidoRsStream(qidoPath)) {
+        JSONObject study = qidoResult.next(
+            JsonArrayReader.projection(NUMBER_OF_STUDY_RELATED_INSTANCES));
+        JSONObject element =
+            study == null ? null : study.optJSONObject(NUMBER_OF_STUDY_RELATED_INSTANCES);
+        JSONArray value = element == null ? null : element.optJSONArray("Value");
+        int studySize = value == null ? -1 : value.optInt(0, -1);
+        if (studySize >= 0) {
+          studySizes.put(studyUid, studySize);
+        }
+      } catch (IOException | IDicomWebClient.DicomWebException e) {
+        // The study's referenced instances are looked up like the others.
+        MonitoringService.addEvent(Event.COMMITMENT_QIDORS_ERROR);
+        log.warn("Commitment study size lookup failed: ", e);
+      }
+    }
+
+    private Lookup uidListLookup(List<CommitmentItem> batch) {
+      StringBuilder qidoPath = new StringBuilder("instances?includefield=")
+          .append(SOP_INSTANCE_UID).append('&').append(SOP_INSTANCE_UID).append('=');
+      for (int i = 0; i < batch.size(); i++) {
+        qidoPath.append(i > 0 ? "," : "").append(batch.get(i).getInstanceUid());
+      }
+      return new Lookup(qidoPath.append('&').toString(), batch);
+    }
+
+    /**
+     * Runs the lookups on the shared executor, or on this thread without one.
+     */
+    private void runLookups(List<Lookup> lookups, Set<String> found,
+        Map<CommitmentItem, Integer> failed) {
+      if (qidoExecutor == null || lookups.size() == 1) {
+        for (Lookup lookup : lookups) {
+          lookup(lookup, found, failed);
+        }
+        return;
+      }
+
+      List<Future<?>> requests = new ArrayList<>();
+      try {
+        for (Lookup lookup : lookups) {
+          requests.add(qidoExecutor.submit(() -> lookup(lookup, found, failed)));
+        }
+        for (Future<?> request : requests) {
+          request.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failAll(lookups, failed);
+      } catch (ExecutionException e) {
+        log.error("Commitment lookup failed: ", e);
+        failAll(lookups, failed);
+      } finally {
+        for (Future<?> request : requests) {
+          request.cancel(true);
+        }
+      }
+    }
+
+    private void lookup(Lookup lookup, Set<String> found, Map<CommitmentItem, Integer> failed) {
+      try {
+        if (lookup.instance != null) {
+          // Only whether there is a result is needed.
+          String qidoPath = AttributesUtil.attributesToQidoPath(lookup.instance, QIDO_ATTRIBUTES)
+              + "limit=1";
+          try (JsonArrayReader qidoResult = dicomWebClient.qidoRsStream(qidoPath)) {
+            if (qidoResult.next(JsonArrayReader.projection()) != null) {
+              found.add(lookup.items.get(0).getInstanceUid());
+            }
+          }
+          return;
+        }
+
+        try (JsonArrayReader qidoResult =
+            dicomWebClient.qidoRsPaged(lookup.qidoPath, qidoPageSize)) {
+          JsonArrayReader.ObjectDecoder<JSONObject> projection =
+              JsonArrayReader.projection(QIDO_ATTRIBUTES);
+          JSONObject instance;
+          while ((instance = qidoResult.next(projection)) != null) {
+            String instanceUid = AttributesUtil.getTagValueOrNull(instance, SOP_INSTANCE_UID);
+            if (instanceUid != null) {
+              found.add(instanceUid);
+            }
+          }
+        }
+      } catch (IOException | IDicomWebClient.DicomWebException e) {
+        MonitoringService.addEvent(Event.COMMITMENT_QIDORS_ERROR);
+        log.error("Commitment QidoPath/QidoRs error: ", e);
+        for (CommitmentItem cmtItem : lookup.items) {
+          failed.put(cmtItem, toFailureReason(e));
+        }
+      }
+    }
+
+    private void failAll(List<Lookup> lookups, Map<CommitmentItem, Integer> failed) {
+      for (Lookup lookup : lookups) {
+        for (CommitmentItem cmtItem : lookup.items) {
+          failed.putIfAbsent(cmtItem, Status.ProcessingFailure);
+        }
+      }
     }
 
     private Attributes makeDataset(List<CommitmentItem> presentInstances,
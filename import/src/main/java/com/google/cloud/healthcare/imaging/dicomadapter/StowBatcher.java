@@ -0,0 +1,283 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import com.google.cloud.healthcare.IDicomWebClient;
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4che3.util.TagUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups buffered instances into multipart/related STOW-RS requests.
+ *
+ * Instances are collected per key, e.g. the sending AE, and a batch is sent by the upload
+ * pipeline's workers once it holds the maximum number of instances or bytes, or when the linger
+ * time since its first instance has passed. Instances listed in the FailedSOPSequence of the
+ * response fail with the failure reason as their status, all others succeed.
+ *
+ * Batching only helps if the sender keeps several C-STOREs outstanding, on one or more
+ * associations: an SCU waiting for each response gets one instance per batch, after the linger.
+ */
+public class StowBatcher implements Closeable {
+
+  private static final String FAILED_SOP_SEQUENCE = TagUtils.toHexString(Tag.FailedSOPSequence);
+  private static final String REFERENCED_SOP_INSTANCE_UID =
+      TagUtils.toHexString(Tag.ReferencedSOPInstanceUID);
+  private static final String FAILURE_REASON = TagUtils.toHexString(Tag.FailureReason);
+
+  private static Logger log = LoggerFactory.getLogger(StowBatcher.class);
+
+  /**
+   * Receives the outcome of an instance's upload.
+   */
+  public interface Completion {
+
+    /**
+     * @param failure null if the instance was stored
+     */
+    void onComplete(Throwable failure);
+  }
+
+  private final String path;
+  private final IDicomWebClient dicomWebClient;
+  private final StowUploadPipeline pipeline;
+  private final int maxInstances;
+  private final long maxBytes;
+  private final long lingerMillis;
+  private final ScheduledExecutorService lingerTimer;
+
+  // Guarded by this.
+  private final Map<String, Batch> openBatches = new HashMap<>();
+
+  /**
+   * @param pipeline runs the batch uploads
+   * @param maxInstances a batch is sent once it holds this many instances
+   * @param maxBytes a batch is sent once it holds this many bytes
+   * @param lingerMillis a batch is sent this long after its first instance at the latest
+   */
+  public StowBatcher(String path, IDicomWebClient dicomWebClient, StowUploadPipeline pipeline,
+      int maxInstances, long maxBytes, long lingerMillis) {
+    this.path = path;
+    this.dicomWebClient = dicomWebClient;
+    this.pipeline = pipeline;
+    this.maxInstances = maxInstances;
+    this.maxBytes = maxBytes;
+    this.lingerMillis = lingerMillis;
+    this.lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "stow-batch-linger");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Adds a buffered instance to the open batch for the key. The batcher takes ownership of the
+   * instance and closes it once uploaded.
+   */
+  public void add(String key, String sopInstanceUID, StowUploadPipeline.Instance instance,
+      Completion completion) {
+    Batch full = null;
+    synchronized (this) {
+      Batch batch = openBatches.get(key);
+      if (batch == null) {
+        Batch lingering = new Batch(key);
+        lingering.lingerFuture = lingerTimer.schedule(() -> closeBatch(lingering),
+            lingerMillis, TimeUnit.MILLISECONDS);
+        openBatches.put(key, lingering);
+        batch = lingering;
+      }
+      batch.add(new Entry(sopInstanceUID, instance, completion));
+      if (batch.entries.size() >= maxInstances || batch.bytes >= maxBytes) {
+        openBatches.remove(key);
+        batch.lingerFuture.cancel(false);
+        full = batch;
+      }
+    }
+    if (full != null) {
+      submit(full);
+    }
+  }
+
+  /**
+   * Sends all open batches without waiting for them to fill up, and stops the linger timer.
+   */
+  @Override
+  public void close() {
+    List<Batch> batches;
+    synchronized (this) {
+      batches = new ArrayList<>(openBatches.values());
+      openBatches.clear();
+    }
+    lingerTimer.shutdownNow();
+    for (Batch batch : batches) {
+      submit(batch);
+    }
+  }
+
+  private void closeBatch(Batch batch) {
+    synchronized (this) {
+      if (openBatches.get(batch.key) != batch) {
+        // Already sent when it filled up.
+        return;
+      }
+      openBatches.remove(batch.key);
+    }
+    submit(batch);
+  }
+
+  private void submit(Batch batch) {
+    try {
+      pipeline.execute(() -> upload(batch));
+    } catch (RejectedExecutionException e) {
+      batch.complete(e);
+    }
+  }
+
+  private void upload(Batch batch) {
+    List<InputStream> instances = new ArrayList<>(batch.entries.size());
+    for (Entry entry : batch.entries) {
+      instances.add(entry.instance.getInputStream());
+    }
+
+    JSONObject response;
+    try {
+      MonitoringService.addEvent(Event.STOW_BATCH_REQUEST);
+      MonitoringService.addEvent(Event.STOW_BATCH_INSTANCES, batch.entries.size());
+      response = dicomWebClient.stowRsMultipart(path, instances);
+    } catch (Throwable e) {
+      log.error("Failed to store batch of {} instances", batch.entries.size(), e);
+      batch.complete(e);
+      return;
+    }
+
+    Map<String, Integer> failures = failedInstances(response);
+    batch.releaseInstances();
+    for (Entry entry : batch.entries) {
+      Integer failureReason = failures.get(entry.sopInstanceUID);
+      if (failureReason == null) {
+        entry.completion.onComplete(null);
+      } else {
+        entry.completion.onComplete(new DicomServiceException(failureReason,
+            "Instance rejected by STOW-RS, failure reason " + Integer.toHexString(failureReason)));
+      }
+    }
+  }
+
+  /**
+   * Maps SOP Instance UIDs in the FailedSOPSequence to their failure reason. Failure reasons are
+   * DIMSE status codes (PS3.18 Table 10.5.3-2), ProcessingFailure if missing.
+   */
+  static Map<String, Integer> failedInstances(JSONObject response) {
+    Map<String, Integer> failures = new HashMap<>();
+    if (response == null || !response.has(FAILED_SOP_SEQUENCE)) {
+      return failures;
+    }
+    JSONArray items = response.getJSONObject(FAILED_SOP_SEQUENCE).optJSONArray("Value");
+    for (int i = 0; items != null && i < items.length(); i++) {
+      JSONObject item = items.getJSONObject(i);
+      String sopInstanceUID = firstValue(item, REFERENCED_SOP_INSTANCE_UID);
+      if (sopInstanceUID == null) {
+        continue;
+      }
+      failures.put(sopInstanceUID, parseStatus(firstValue(item, FAILURE_REASON)));
+    }
+    return failures;
+  }
+
+  private static int parseStatus(String failureReason) {
+    if (failureReason == null) {
+      return Status.ProcessingFailure;
+    }
+    try {
+      return Integer.parseInt(failureReason);
+    } catch (NumberFormatException e) {
+      return Status.ProcessingFailure;
+    }
+  }
+
+  private static String firstValue(JSONObject item, String tag) {
+    JSONObject attribute = item.optJSONObject(tag);
+    if (attribute == null) {
+      return null;
+    }
+    JSONArray values = attribute.optJSONArray("Value");
+    if (values == null || values.length() == 0) {
+      return null;
+    }
+    return values.get(0).toString();
+  }
+
+  private static class Entry {
+
+    private final String sopInstanceUID;
+    private final StowUploadPipeline.Instance instance;
+    private final Completion completion;
+
+    private Entry(String sopInstanceUID, StowUploadPipeline.Instance instance,
+        Completion completion) {
+      this.sopInstanceUID = sopInstanceUID;
+      this.instance = instance;
+      this.completion = completion;
+    }
+  }
+
+  private static class Batch {
+
+    private final String key;
+    private final List<Entry> entries = new ArrayList<>();
+    private long bytes;
+    private ScheduledFuture<?> lingerFuture;
+
+    private Batch(String key) {
+      this.key = key;
+    }
+
+    private void add(Entry entry) {
+      entries.add(entry);
+      bytes += entry.instance.getSize();
+    }
+
+    private void releaseInstances() {
+      for (Entry entry : entries) {
+        entry.instance.close();
+      }
+    }
+
+    private void complete(Throwable failure) {
+      releaseInstances();
+      for (Entry entry : entries) {
+        entry.completion.onComplete(failure);
+      }
+    }
+  }
+}
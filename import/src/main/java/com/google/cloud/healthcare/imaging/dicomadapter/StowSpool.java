@@ -0,0 +1,381 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.cloud.healthcare.IDicomWebClient;
+import com.google.cloud.healthcare.IDicomWebClient.DicomWebException;
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
+import com.google.common.io.ByteStreams;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable local queue of received instances, drained to DicomWeb by background uploaders.
+ *
+ * Instances are written to a temporary file, fsync'd and atomically renamed, so every spooled
+ * file is complete. Spooled files left over from a previous run are uploaded after a restart,
+ * temporary files are discarded. Uploads failing with a transient error are retried with
+ * exponential backoff; instances rejected by the server are moved to the "failed" subdirectory.
+ */
+public class StowSpool implements Closeable {
+
+  static final String SPOOL_SUFFIX = ".dcm";
+  static final String TEMP_SUFFIX = ".tmp";
+  static final String FAILED_DIRECTORY = "failed";
+
+  private static final long MIN_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final int HTTP_REQUEST_TIMEOUT = 408;
+  private static final int HTTP_CONFLICT = 409;
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  private static Logger log = LoggerFactory.getLogger(StowSpool.class);
+
+  private final Path directory;
+  private final Path failedDirectory;
+  private final long maxBytes;
+  private final int maxFiles;
+  private final long fullWaitMillis;
+  private final String stowPath;
+  private final IDicomWebClient dicomWebClient;
+  private final int uploadThreads;
+  private final CachingDicomWebClient qidoCache;
+  private final IngestLedger ingestLedger;
+
+  private final BlockingQueue<Path> queue = new LinkedBlockingQueue<>();
+  private final AtomicLong sequence = new AtomicLong();
+  private ExecutorService uploaders;
+
+  // Guarded by this.
+  private long spooledBytes;
+  private int spooledFiles;
+
+  /**
+   * @param directory spool directory, created if missing
+   * @param maxBytes new instances wait while the spool holds this many bytes or more
+   * @param maxFiles new instances wait while the spool holds this many files
+   * @param fullWaitMillis how long a new instance waits for space before being rejected
+   * @param stowPath path STOW-RS requests are sent to
+   * @param uploadThreads number of concurrent uploads
+   */
+  public StowSpool(Path directory, long maxBytes, int maxFiles, long fullWaitMillis,
+      String stowPath, IDicomWebClient dicomWebClient, int uploadThreads) {
+    this(directory, maxBytes, maxFiles, fullWaitMillis, stowPath, dicomWebClient, uploadThreads,
+        null);
+  }
+
+  /**
+   * @param qidoCache if not null, cached query results that may include an uploaded instance's
+   *     study are invalidated once it is uploaded
+   */
+  public StowSpool(Path directory, long maxBytes, int maxFiles, long fullWaitMillis,
+      String stowPath, IDicomWebClient dicomWebClient, int uploadThreads,
+      CachingDicomWebClient qidoCache) {
+    this(directory, maxBytes, maxFiles, fullWaitMillis, stowPath, dicomWebClient, uploadThreads,
+        qidoCache, null);
+  }
+
+  /**
+   * @param ingestLedger if not null, instances are recorded in it once uploaded
+   */
+  public StowSpool(Path directory, long maxBytes, int maxFiles, long fullWaitMillis,
+      String stowPath, IDicomWebClient dicomWebClient, int uploadThreads,
+      CachingDicomWebClient qidoCache, IngestLedger ingestLedger) {
+    this.directory = directory;
+    this.failedDirectory = directory.resolve(FAILED_DIRECTORY);
+    this.maxBytes = maxBytes;
+    this.maxFiles = maxFiles;
+    this.fullWaitMillis = fullWaitMillis;
+    this.stowPath = stowPath;
+    this.dicomWebClient = dicomWebClient;
+    this.uploadThreads = uploadThreads;
+    this.qidoCache = qidoCache;
+    this.ingestLedger = ingestLedger;
+  }
+
+  /**
+   * Recovers instances spooled by a previous run and starts uploading.
+   */
+  public void start() throws IOException {
+    Files.createDirectories(failedDirectory);
+    recover();
+
+    uploaders = Executors.newFixedThreadPool(uploadThreads, runnable -> {
+      Thread thread = new Thread(runnable, "stow-spool-uploader");
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (int i = 0; i < uploadThreads; i++) {
+      uploaders.execute(this::uploadLoop);
+    }
+  }
+
+  /**
+   * Durably stores the instance. Waits for space if the spool is full, and rejects the instance
+   * with OutOfResources if none frees up in time.
+   */
+  public void spool(InputStream in) throws IOException {
+    reserve();
+
+    String name = String.format("%013d-%06d", System.currentTimeMillis(),
+        sequence.incrementAndGet() % 1000000);
+    Path tempFile = directory.resolve(name + TEMP_SUFFIX);
+    Path spoolFile = directory.resolve(name + SPOOL_SUFFIX);
+    long size;
+    try {
+      try (FileChannel channel = FileChannel.open(tempFile,
+          StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        size = ByteStreams.copy(in, Channels.newOutputStream(channel));
+        channel.force(true);
+      }
+      Files.move(tempFile, spoolFile, StandardCopyOption.ATOMIC_MOVE);
+      syncDirectory();
+    } catch (IOException e) {
+      Files.deleteIfExists(tempFile);
+      release(0);
+      throw e;
+    }
+
+    synchronized (this) {
+      spooledBytes += size;
+    }
+    queue.add(spoolFile);
+  }
+
+  public synchronized long getSpooledBytes() {
+    return spooledBytes;
+  }
+
+  public synchronized int getSpooledFiles() {
+    return spooledFiles;
+  }
+
+  @Override
+  public void close() {
+    if (uploaders != null) {
+      uploaders.shutdownNow();
+    }
+  }
+
+  private void recover() throws IOException {
+    List<Path> spoolFiles = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String fileName = file.getFileName().toString();
+        if (fileName.endsWith(TEMP_SUFFIX)) {
+          // Never acknowledged, the sender got an error for these.
+          log.info("Removing incomplete spool file {}", file);
+          Files.delete(file);
+        } else if (fileName.endsWith(SPOOL_SUFFIX)) {
+          spoolFiles.add(file);
+        }
+      }
+    }
+
+    // Names start with the spool time, upload in arrival order.
+    Collections.sort(spoolFiles);
+    long bytes = 0;
+    for (Path file : spoolFiles) {
+      bytes += Files.size(file);
+    }
+    synchronized (this) {
+      spooledFiles += spoolFiles.size();
+      spooledBytes += bytes;
+    }
+    queue.addAll(spoolFiles);
+    if (spoolFiles.size() > 0) {
+      log.info("Recovered {} spooled instances ({} bytes) from {}",
+          spoolFiles.size(), bytes, directory);
+    }
+  }
+
+  private synchronized void reserve() throws DicomServiceException {
+    long deadline = System.currentTimeMillis() + fullWaitMillis;
+    boolean waited = false;
+    while (spooledFiles >= maxFiles || spooledBytes >= maxBytes) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        MonitoringService.addEvent(Event.SPOOL_FULL);
+        throw new DicomServiceException(Status.OutOfResources,
+            "Spool full: " + spooledFiles + " files, " + spooledBytes + " bytes");
+      }
+      if (!waited) {
+        waited = true;
+        MonitoringService.addEvent(Event.SPOOL_WAIT);
+      }
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new DicomServiceException(Status.OutOfResources, e);
+      }
+    }
+    spooledFiles++;
+  }
+
+  private synchronized void release(long size) {
+    spooledFiles--;
+    spooledBytes -= size;
+    notifyAll();
+  }
+
+  private void uploadLoop() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        upload(queue.take());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void upload(Path file) throws InterruptedException {
+    long size;
+    try {
+      size = Files.size(file);
+    } catch (IOException e) {
+      log.error("Spooled file {} disappeared", file, e);
+      release(0);
+      return;
+    }
+
+    long backoffMillis = MIN_BACKOFF_MILLIS;
+    while (true) {
+      try (InputStream in = Files.newInputStream(file)) {
+        dicomWebClient.stowRs(stowPath, in);
+        MonitoringService.addEvent(Event.SPOOL_UPLOAD_BYTES, size);
+        break;
+      } catch (DicomWebException e) {
+        if (e.getHttpStatus() == HTTP_CONFLICT) {
+          log.info("Spooled instance {} already stored", file);
+          break;
+        }
+        if (isPermanent(e.getHttpStatus())) {
+          log.error("Spooled instance {} rejected, moving to {}", file, failedDirectory, e);
+          MonitoringService.addEvent(Event.SPOOL_UPLOAD_FAILED);
+          moveToFailed(file);
+          release(size);
+          return;
+        }
+        MonitoringService.addEvent(Event.SPOOL_UPLOAD_ERROR);
+        log.warn("Failed to upload spooled instance {}, retrying in {} ms",
+            file, backoffMillis, e);
+      } catch (IOException e) {
+        log.error("Failed to read spooled instance {}, moving to {}", file, failedDirectory, e);
+        MonitoringService.addEvent(Event.SPOOL_UPLOAD_FAILED);
+        moveToFailed(file);
+        release(size);
+        return;
+      }
+      Thread.sleep(backoffMillis);
+      backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+    }
+
+    onUploaded(file);
+    try {
+      Files.delete(file);
+    } catch (IOException e) {
+      log.error("Failed to delete uploaded spool file {}", file, e);
+    }
+    release(size);
+  }
+
+  /**
+   * Records the uploaded instance in the ingest ledger, and invalidates cached query results that
+   * may include its study.
+   */
+  private void onUploaded(Path file) {
+    if (qidoCache == null && ingestLedger == null) {
+      return;
+    }
+    String sopInstanceUid = null;
+    String studyInstanceUid = null;
+    try (DicomInputStream din = new DicomInputStream(file.toFile())) {
+      Attributes fmi = din.readFileMetaInformation();
+      sopInstanceUid = fmi == null ? null : fmi.getString(Tag.MediaStorageSOPInstanceUID);
+      if (qidoCache != null) {
+        // Stops at the SeriesInstanceUID, which follows the StudyInstanceUID.
+        Attributes attrs = din.readDataset(-1, Tag.SeriesInstanceUID);
+        studyInstanceUid = attrs == null ? null : attrs.getString(Tag.StudyInstanceUID);
+      }
+    } catch (IOException | RuntimeException e) {
+      log.warn("Failed to read the UIDs of uploaded instance {}", file, e);
+    }
+    if (ingestLedger != null) {
+      ingestLedger.record(sopInstanceUid);
+    }
+    if (qidoCache != null) {
+      // Invalidates all results if the study is unknown.
+      qidoCache.invalidateStudy(studyInstanceUid);
+    }
+  }
+
+  /**
+   * Client errors other than auth, timeout and throttling will not succeed on retry.
+   */
+  private static boolean isPermanent(int httpStatus) {
+    return httpStatus >= 400 && httpStatus < 500
+        && httpStatus != HttpStatusCodes.STATUS_CODE_UNAUTHORIZED
+        && httpStatus != HTTP_REQUEST_TIMEOUT
+        && httpStatus != HTTP_TOO_MANY_REQUESTS;
+  }
+
+  private void moveToFailed(Path file) {
+    try {
+      Files.move(file, failedDirectory.resolve(file.getFileName()),
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.error("Failed to move {} to {}", file, failedDirectory, e);
+    }
+  }
+
+  /**
+   * Makes the rename durable, where the platform supports syncing directories.
+   */
+  private void syncDirectory() {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      log.debug("Unable to sync spool directory {}", directory, e);
+    }
+  }
+}
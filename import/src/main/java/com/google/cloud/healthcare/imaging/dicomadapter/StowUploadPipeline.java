@@ -0,0 +1,203 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory stage between DIMSE receive and STOW-RS upload.
+ *
+ * The association's reader thread copies an instance into memory, charged against a shared byte
+ * budget, and hands it to a fixed pool of upload workers, so a slow upload no longer holds up
+ * the next instance on the association. Receivers wait for budget before buffering a new
+ * instance. Instances larger than half the budget, or that outgrow what is left of it while being
+ * read, are not buffered in full; they are streamed to DicomWeb from the receiving thread. Only
+ * receivers holding no budget ever wait, so partially buffered instances can't starve each other.
+ */
+public class StowUploadPipeline implements Closeable {
+
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private final int maxChunks;
+  private final int maxInstanceChunks;
+  private final Semaphore budget;
+  private final ThreadPoolExecutor workers;
+
+  /**
+   * @param workers number of concurrent uploads
+   * @param maxInFlightBytes memory budget shared by all buffered instances
+   */
+  public StowUploadPipeline(int workers, long maxInFlightBytes) {
+    this.maxChunks =
+        (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxInFlightBytes / CHUNK_SIZE));
+    this.maxInstanceChunks = Math.max(1, maxChunks / 2);
+    this.budget = new Semaphore(maxChunks);
+    // The queue is bounded by the budget, every queued instance holds at least one chunk.
+    this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "stow-upload-worker");
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * Reads the instance into memory, waiting for budget if none is left. If the result is not
+   * {@link Instance#isBuffered() buffered}, the rest of the instance is still unread in
+   * {@code in} and must be streamed by the caller.
+   */
+  public Instance buffer(InputStream in) throws IOException {
+    Instance instance = new Instance();
+    try {
+      acquireFirst();
+      instance.chunks.add(new byte[CHUNK_SIZE]);
+      while (true) {
+        byte[] chunk = instance.chunks.get(instance.chunks.size() - 1);
+        instance.lastChunkLength = ByteStreams.read(in, chunk, 0, CHUNK_SIZE);
+        instance.size += instance.lastChunkLength;
+        if (instance.lastChunkLength < CHUNK_SIZE) {
+          return instance;
+        }
+        if (instance.chunks.size() >= maxInstanceChunks || !budget.tryAcquire()) {
+          MonitoringService.addEvent(Event.CSTORE_PIPELINE_STREAMED);
+          instance.remainder = in;
+          return instance;
+        }
+        instance.chunks.add(new byte[CHUNK_SIZE]);
+      }
+    } catch (IOException | RuntimeException e) {
+      instance.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Runs the upload of a buffered instance on a worker thread. The instance is released if the
+   * pipeline is shut down; otherwise the upload must close it.
+   */
+  public void execute(Instance instance, Runnable upload) {
+    try {
+      execute(upload);
+    } catch (RejectedExecutionException e) {
+      instance.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Runs an upload on a worker thread.
+   */
+  public void execute(Runnable upload) {
+    workers.execute(upload);
+  }
+
+  /**
+   * Number of buffered instances waiting for a worker.
+   */
+  public long getQueueDepth() {
+    return workers.getQueue().size();
+  }
+
+  public long getInFlightBytes() {
+    return (long) (maxChunks - budget.availablePermits()) * CHUNK_SIZE;
+  }
+
+  @Override
+  public void close() {
+    workers.shutdownNow();
+  }
+
+  private void acquireFirst() throws InterruptedIOException {
+    if (budget.tryAcquire()) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    try {
+      budget.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for upload buffer");
+    }
+    MonitoringService.addEvent(Event.CSTORE_PIPELINE_WAIT);
+    MonitoringService.addEvent(Event.CSTORE_PIPELINE_WAIT_MILLIS,
+        System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Instance read by {@link #buffer}. Closing it returns its memory to the budget.
+   */
+  public class Instance implements Closeable {
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private int lastChunkLength;
+    private long size;
+    private InputStream remainder;
+    private boolean closed;
+
+    /**
+     * Whether the whole instance is in memory, rather than just its beginning.
+     */
+    public boolean isBuffered() {
+      return remainder == null;
+    }
+
+    /**
+     * Number of bytes held in memory.
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * Stream over the buffered bytes, followed by the unread remainder if not fully buffered.
+     */
+    public InputStream getInputStream() {
+      List<InputStream> streams = new ArrayList<>(chunks.size() + 1);
+      for (int i = 0; i < chunks.size(); i++) {
+        int length = i == chunks.size() - 1 ? lastChunkLength : CHUNK_SIZE;
+        streams.add(new ByteArrayInputStream(chunks.get(i), 0, length));
+      }
+      if (remainder != null) {
+        streams.add(remainder);
+      }
+      return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    @Override
+    public synchronized void close() {
+      if (!closed) {
+        closed = true;
+        budget.release(chunks.size());
+        chunks.clear();
+      }
+    }
+  }
+}
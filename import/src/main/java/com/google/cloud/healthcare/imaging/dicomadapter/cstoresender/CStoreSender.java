@@ -17,25 +17,125 @@ package com.google.cloud.healthcare.imaging.dicomadapter.cstoresender;
 import com.github.danieln.multipart.MultipartInput;
 import com.github.danieln.multipart.PartInput;
 import com.google.cloud.healthcare.IDicomWebClient;
+import com.google.cloud.healthcare.imaging.dicomadapter.AcceptedTransferSyntaxes;
 import com.google.cloud.healthcare.imaging.dicomadapter.AetDictionary;
+import com.google.cloud.healthcare.imaging.dicomadapter.AssociationPool;
 import com.google.cloud.healthcare.imaging.dicomadapter.CMoveService;
 import com.google.cloud.healthcare.imaging.dicomadapter.DicomClient;
+import com.google.cloud.healthcare.imaging.dicomadapter.InstanceCache;
 import com.google.common.io.CountingInputStream;
 import java.io.IOException;
-import org.dcm4che3.net.ApplicationEntity;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.net.pdu.PresentationContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Sends instances over associations negotiated once per C-MOVE in {@link #prepare}, each
+ * proposing one presentation context per SOP class and transfer syntax pair. Instances of pairs
+ * that weren't prepared or accepted are sent on an association of their own, proposing the
+ * transfer syntaxes chosen by {@link AcceptedTransferSyntaxes}. Instances are transcoded if the
+ * destination only accepts a fallback transfer syntax. Associations are borrowed from the shared
+ * {@link AssociationPool} and returned to it when the sender is closed. Single instances are
+ * read from the {@link InstanceCache}, if any, before being retrieved by WADO-RS.
+ */
 public class CStoreSender implements ICStoreSender {
 
+  // Presentation context IDs are odd numbers from 1 to 255.
+  private static final int MAX_PRESENTATION_CONTEXTS = 128;
+
   private static Logger log = LoggerFactory.getLogger(CMoveService.class);
 
-  private final ApplicationEntity applicationEntity;
+  private final AssociationPool associationPool;
+  private final String callingAet;
   private final IDicomWebClient dicomWebClient;
+  private final InstancePrefetcher prefetcher;
+  private final AcceptedTransferSyntaxes acceptedTransferSyntaxes;
+  private final InstanceCache instanceCache;
+  private final List<Session> sessions = new ArrayList<>();
+  private final Map<String, Session> sessionsByPair = new HashMap<>();
+  private AetDictionary.Aet sessionTarget;
+
+  public CStoreSender(AssociationPool associationPool, String callingAet,
+      IDicomWebClient dicomWebClient) {
+    this(associationPool, callingAet, dicomWebClient, null);
+  }
+
+  /**
+   * @param prefetcher downloads instances passed to {@link #prefetch}, null to only download
+   * instances when they are sent
+   */
+  public CStoreSender(AssociationPool associationPool, String callingAet,
+      IDicomWebClient dicomWebClient, InstancePrefetcher prefetcher) {
+    this(associationPool, callingAet, dicomWebClient, prefetcher,
+        new AcceptedTransferSyntaxes());
+  }
+
+  /**
+   * @param acceptedTransferSyntaxes transfer syntaxes accepted by destinations, shared between
+   * senders
+   */
+  public CStoreSender(AssociationPool associationPool, String callingAet,
+      IDicomWebClient dicomWebClient, InstancePrefetcher prefetcher,
+      AcceptedTransferSyntaxes acceptedTransferSyntaxes) {
+    this(associationPool, callingAet, dicomWebClient, prefetcher, acceptedTransferSyntaxes, null);
+  }
 
-  public CStoreSender(ApplicationEntity applicationEntity, IDicomWebClient dicomWebClient) {
-    this.applicationEntity = applicationEntity;
+  /**
+   * @param instanceCache serves instances sent before and keeps those retrieved, null to always
+   * retrieve instances by WADO-RS
+   */
+  public CStoreSender(AssociationPool associationPool, String callingAet,
+      IDicomWebClient dicomWebClient, InstancePrefetcher prefetcher,
+      AcceptedTransferSyntaxes acceptedTransferSyntaxes, InstanceCache instanceCache) {
+    this.associationPool = associationPool;
+    this.callingAet = callingAet;
     this.dicomWebClient = dicomWebClient;
+    this.prefetcher = prefetcher;
+    this.acceptedTransferSyntaxes = acceptedTransferSyntaxes;
+    this.instanceCache = instanceCache;
+  }
+
+  @Override
+  public void prepare(AetDictionary.Aet target, Map<String, Set<String>> transferSyntaxes)
+      throws InterruptedException {
+    releaseSessions();
+    sessionTarget = target;
+
+    Session session = null;
+    for (Map.Entry<String, Set<String>> sopClass : transferSyntaxes.entrySet()) {
+      for (String transferSyntax : sopClass.getValue()) {
+        if (session == null || session.pcs.size() == MAX_PRESENTATION_CONTEXTS) {
+          session = new Session();
+          sessions.add(session);
+        }
+        session.pcs.add(new PresentationContext(
+            session.pcs.size() * 2 + 1, sopClass.getKey(), transferSyntax));
+        sessionsByPair.put(pairKey(sopClass.getKey(), transferSyntax), session);
+      }
+    }
+    for (Session prepared : sessions) {
+      prepared.connect();
+    }
+  }
+
+  @Override
+  public void prefetch(AetDictionary.Aet target, String studyUid, String seriesUid,
+      String sopInstanceUid) {
+    if (prefetcher != null && (instanceCache == null
+        || !instanceCache.contains(sopInstanceUid, target.getTransferSyntax()))) {
+      prefetcher.prefetch(wadoUri(studyUid, seriesUid, sopInstanceUid),
+          target.getTransferSyntax());
+    }
   }
 
   @Override
@@ -45,24 +145,203 @@ public class CStoreSender implements ICStoreSender {
       String sopInstanceUid,
       String sopClassUid)
       throws IDicomWebClient.DicomWebException, IOException, InterruptedException {
-    String wadoUri =
-        String.format("studies/%s/series/%s/instances/%s", studyUid, seriesUid, sopInstanceUid);
+    String wadoUri = wadoUri(studyUid, seriesUid, sopInstanceUid);
     log.info("CStore wadoUri : " + wadoUri);
 
-    MultipartInput resp = dicomWebClient.wadoRs(wadoUri);
-    PartInput part = resp.nextPart();
-    if (part == null) {
-      throw new IllegalArgumentException("WadoRS response has no parts");
+    if (instanceCache != null) {
+      try (InputStream cached = instanceCache.get(sopInstanceUid, target.getTransferSyntax())) {
+        if (cached != null) {
+          return cstore(target, sopInstanceUid, sopClassUid, cached);
+        }
+      }
+    }
+
+    InstancePrefetcher.Instance prefetched =
+        prefetcher == null ? null : prefetcher.take(wadoUri);
+    try {
+      InputStream in = prefetched == null
+          ? wadoInstance(dicomWebClient, wadoUri, target.getTransferSyntax())
+          : prefetched.getInputStream();
+      if (instanceCache == null) {
+        return cstore(target, sopInstanceUid, sopClassUid, in);
+      }
+      try (InputStream filling = instanceCache.fill(sopInstanceUid, null, in)) {
+        return cstore(target, sopInstanceUid, sopClassUid, filling);
+      }
+    } finally {
+      if (prefetched != null) {
+        prefetched.close();
+      }
+    }
+  }
+
+  @Override
+  public void cstoreBulk(AetDictionary.Aet target,
+      String wadoPath,
+      Map<String, String> sopClassUids,
+      InstanceSentListener listener)
+      throws IDicomWebClient.DicomWebException, IOException, InterruptedException {
+    log.info("CStore bulk wadoUri : " + wadoPath);
+    MultipartInput resp = dicomWebClient.wadoRs(wadoPath, target.getTransferSyntax());
+    PartInput part;
+    while ((part = resp.nextPart()) != null) {
+      CountingInputStream countingStream = new CountingInputStream(part.getInputStream());
+      DicomInputStream din = new DicomInputStream(countingStream);
+      Attributes fmi = din.readFileMetaInformation();
+      String sopInstanceUid = fmi == null ? null : fmi.getString(Tag.MediaStorageSOPInstanceUID);
+      String sopClassUid = sopInstanceUid == null ? null : sopClassUids.get(sopInstanceUid);
+      if (sopClassUid == null) {
+        // Not part of the C-MOVE, skipped by reading the next part.
+        continue;
+      }
+
+      try {
+        send(target, sopInstanceUid, sopClassUid, din);
+      } catch (IOException | IllegalArgumentException e) {
+        log.warn("Failed to send instance {} from bulk retrieval", sopInstanceUid, e);
+        continue;
+      }
+      listener.onSent(sopInstanceUid, countingStream.getCount());
     }
+  }
 
-    CountingInputStream countingStream = new CountingInputStream(part.getInputStream());
-    DicomClient.connectAndCstore(sopClassUid, sopInstanceUid, countingStream,
-        applicationEntity, target.getName(), target.getHost(), target.getPort());
+  private long cstore(AetDictionary.Aet target, String sopInstanceUid, String sopClassUid,
+      InputStream in) throws IOException, InterruptedException {
+    CountingInputStream countingStream = new CountingInputStream(in);
+    DicomInputStream din = new DicomInputStream(countingStream);
+    din.readFileMetaInformation();
+    send(target, sopInstanceUid, sopClassUid, din);
     return countingStream.getCount();
   }
 
+  /**
+   * Sends an instance read up to the end of its file meta information, on the prepared
+   * association if its SOP class was accepted there in its own or a fallback transfer syntax.
+   */
+  private void send(AetDictionary.Aet target, String sopInstanceUid, String sopClassUid,
+      DicomInputStream din) throws IOException, InterruptedException {
+    String transferSyntax = din.getTransferSyntax();
+    if (target == sessionTarget) {
+      Session session = sessionsByPair.get(pairKey(sopClassUid, transferSyntax));
+      if (session == null) {
+        session = sessionsByPair.get(pairKey(sopClassUid,
+            AcceptedTransferSyntaxes.FALLBACK_TRANSFER_SYNTAXES.get(0)));
+      }
+      DicomClient client = session == null ? null : session.connect();
+      String selected = client == null ? null : AcceptedTransferSyntaxes.select(
+          client.getAssociation().getTransferSyntaxesFor(sopClassUid), transferSyntax);
+      if (selected != null) {
+        client.cstore(sopClassUid, sopInstanceUid, din, selected);
+        return;
+      }
+    }
+
+    List<String> proposed =
+        acceptedTransferSyntaxes.propose(target.getName(), sopClassUid, transferSyntax);
+    AssociationPool.Lease lease = associationPool.acquire(callingAet, target.getName(),
+        target.getHost(), target.getPort(),
+        AcceptedTransferSyntaxes.presentationContexts(sopClassUid, proposed));
+    Set<String> accepted = lease.getClient().getAssociation().getTransferSyntaxesFor(sopClassUid);
+    acceptedTransferSyntaxes.record(target.getName(), sopClassUid, proposed, accepted);
+    String selected = AcceptedTransferSyntaxes.select(accepted, transferSyntax);
+    if (selected == null) {
+      lease.close();
+      throw new IOException("No presentation context for " + sopClassUid + " in "
+          + transferSyntax + " or a fallback accepted by " + target.getName());
+    }
+    try {
+      lease.getClient().cstore(sopClassUid, sopInstanceUid, din, selected);
+    } catch (IOException e) {
+      lease.discard();
+      throw e;
+    } finally {
+      lease.close();
+    }
+  }
+
   @Override
   public void close() throws IOException {
-    applicationEntity.getDevice().unbindConnections();
+    if (prefetcher != null) {
+      prefetcher.close();
+    }
+    releaseSessions();
+  }
+
+  private void releaseSessions() {
+    for (Session session : sessions) {
+      session.release();
+    }
+    sessions.clear();
+    sessionsByPair.clear();
+    sessionTarget = null;
+  }
+
+  /**
+   * Returns the stream of the single instance in a WADO-RS response.
+   *
+   * @param transferSyntax transfer syntax to ask for, null for the server's default
+   */
+  static InputStream wadoInstance(IDicomWebClient dicomWebClient, String wadoUri,
+      String transferSyntax) throws IDicomWebClient.DicomWebException, IOException {
+    MultipartInput resp = dicomWebClient.wadoRs(wadoUri, transferSyntax);
+    PartInput part = resp.nextPart();
+    if (part == null) {
+      throw new IllegalArgumentException("WadoRS response has no parts");
+    }
+    return part.getInputStream();
+  }
+
+  private static String wadoUri(String studyUid, String seriesUid, String sopInstanceUid) {
+    return String.format("studies/%s/series/%s/instances/%s", studyUid, seriesUid, sopInstanceUid);
+  }
+
+  private static String pairKey(String sopClassUid, String transferSyntax) {
+    return sopClassUid + "/" + transferSyntax;
+  }
+
+  private class Session {
+
+    private final List<PresentationContext> pcs = new ArrayList<>();
+    private AssociationPool.Lease lease;
+    private boolean failed;
+
+    /**
+     * Returns the session's client, associating again if the peer closed the association.
+     * Returns null if associating failed, once failed the session is not retried.
+     */
+    private DicomClient connect() throws InterruptedException {
+      if (failed) {
+        return null;
+      }
+      if (lease != null) {
+        if (lease.getClient().getAssociation().isReadyForDataTransfer()) {
+          return lease.getClient();
+        }
+        lease.discard();
+        lease = null;
+      }
+      try {
+        lease = associationPool.acquire(callingAet, sessionTarget.getName(),
+            sessionTarget.getHost(), sessionTarget.getPort(), pcs);
+        for (PresentationContext pc : pcs) {
+          acceptedTransferSyntaxes.record(sessionTarget.getName(), pc.getAbstractSyntax(),
+              Collections.singletonList(pc.getTransferSyntax()),
+              lease.getClient().getAssociation().getTransferSyntaxesFor(pc.getAbstractSyntax()));
+        }
+        return lease.getClient();
+      } catch (IOException e) {
+        log.warn("Failed to associate with {}, sending instances on separate associations",
+            sessionTarget, e);
+        failed = true;
+        return null;
+      }
+    }
+
+    private void release() {
+      if (lease != null) {
+        lease.close();
+      }
+      lease = null;
+    }
   }
 }
@@ -15,9 +15,11 @@
 package com.google.cloud.healthcare.imaging.dicomadapter.cstoresender;
 
 import com.google.cloud.healthcare.IDicomWebClient;
-import com.google.cloud.healthcare.imaging.dicomadapter.DeviceUtil;
-import org.dcm4che3.net.ApplicationEntity;
-import org.dcm4che3.net.Connection;
+import com.google.cloud.healthcare.imaging.dicomadapter.AcceptedTransferSyntaxes;
+import com.google.cloud.healthcare.imaging.dicomadapter.AssociationPool;
+import com.google.cloud.healthcare.imaging.dicomadapter.InstanceCache;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,22 +27,73 @@ public class CStoreSenderFactory implements ICStoreSenderFactory {
 
   private static Logger log = LoggerFactory.getLogger(CStoreSenderFactory.class);
 
+  static final int DEFAULT_PREFETCH_THREADS = 4;
+
   private final String cstoreSubAet;
   private final IDicomWebClient dicomWebClient;
+  private final long prefetchBytes;
+  private final AssociationPool associationPool;
+  private final InstanceCache instanceCache;
+  private final ExecutorService prefetchExecutor;
+  private final AcceptedTransferSyntaxes acceptedTransferSyntaxes = new AcceptedTransferSyntaxes();
 
 
   public CStoreSenderFactory(String cstoreSubAet, IDicomWebClient dicomWebClient) {
+    this(cstoreSubAet, dicomWebClient, 0);
+  }
+
+  /**
+   * @param prefetchBytes memory budget of each sender for instances downloaded ahead of their
+   * C-STORE, 0 to download instances only when they are sent
+   */
+  public CStoreSenderFactory(String cstoreSubAet, IDicomWebClient dicomWebClient,
+      long prefetchBytes) {
+    this(cstoreSubAet, dicomWebClient, prefetchBytes, new AssociationPool(0));
+  }
+
+  /**
+   * @param associationPool opens the C-STORE associations, shared by all created senders
+   */
+  public CStoreSenderFactory(String cstoreSubAet, IDicomWebClient dicomWebClient,
+      long prefetchBytes, AssociationPool associationPool) {
+    this(cstoreSubAet, dicomWebClient, prefetchBytes, associationPool, null);
+  }
+
+  /**
+   * @param instanceCache cache of instances shared by all created senders, null for none
+   */
+  public CStoreSenderFactory(String cstoreSubAet, IDicomWebClient dicomWebClient,
+      long prefetchBytes, AssociationPool associationPool, InstanceCache instanceCache) {
+    this(cstoreSubAet, dicomWebClient, prefetchBytes, associationPool, instanceCache,
+        DEFAULT_PREFETCH_THREADS);
+  }
+
+  /**
+   * @param prefetchThreads number of instances downloaded ahead at once, across all senders
+   */
+  public CStoreSenderFactory(String cstoreSubAet, IDicomWebClient dicomWebClient,
+      long prefetchBytes, AssociationPool associationPool, InstanceCache instanceCache,
+      int prefetchThreads) {
     this.cstoreSubAet = cstoreSubAet;
     this.dicomWebClient = dicomWebClient;
+    this.prefetchBytes = prefetchBytes;
+    this.associationPool = associationPool;
+    this.instanceCache = instanceCache;
+    this.prefetchExecutor = prefetchBytes > 0
+        ? Executors.newFixedThreadPool(Math.max(prefetchThreads, 1), runnable -> {
+          Thread thread = new Thread(runnable, "cmove-prefetch");
+          thread.setDaemon(true);
+          return thread;
+        })
+        : null;
   }
 
   @Override
   public ICStoreSender create() {
-    ApplicationEntity subApplicationEntity = new ApplicationEntity(cstoreSubAet);
-    Connection conn = new Connection();
-    DeviceUtil.createClientDevice(subApplicationEntity, conn);
-    subApplicationEntity.addConnection(conn);
-
-    return new CStoreSender(subApplicationEntity, dicomWebClient);
+    InstancePrefetcher prefetcher = prefetchExecutor != null
+        ? new InstancePrefetcher(dicomWebClient, prefetchBytes, prefetchExecutor)
+        : null;
+    return new CStoreSender(associationPool, cstoreSubAet, dicomWebClient, prefetcher,
+        acceptedTransferSyntaxes, instanceCache);
   }
 }
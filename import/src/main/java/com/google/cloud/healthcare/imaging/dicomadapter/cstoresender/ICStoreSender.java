@@ -18,9 +18,47 @@ import com.google.cloud.healthcare.IDicomWebClient;
 import com.google.cloud.healthcare.imaging.dicomadapter.AetDictionary;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
 
 public interface ICStoreSender extends Closeable {
 
+  /**
+   * Called before the first cstore with the transfer syntaxes expected for each SOP class to be
+   * sent, so that they can be negotiated up front. Instances outside of these can still be sent.
+   */
+  default void prepare(AetDictionary.Aet target, Map<String, Set<String>> transferSyntaxes)
+      throws IOException, InterruptedException {
+  }
+
+  /**
+   * Hints that the instance is sent next, so that it can be downloaded while the current one is
+   * being sent. Instances are sent the same whether they were prefetched or not.
+   */
+  default void prefetch(
+      AetDictionary.Aet target,
+      String studyUid,
+      String seriesUid,
+      String sopInstanceUid) {
+  }
+
+  /**
+   * Retrieves a whole study or series with a single WADO-RS request and sends the requested
+   * instances as their parts arrive, calling {@code listener} for each one sent. Instances that
+   * weren't sent, for example because their part failed, are left to {@link #cstore}; the
+   * default implementation sends none.
+   *
+   * @param wadoPath WADO-RS path of the study or series
+   * @param sopClassUids SOP Class UIDs of the instances to send, by SOP Instance UID
+   */
+  default void cstoreBulk(
+      AetDictionary.Aet target,
+      String wadoPath,
+      Map<String, String> sopClassUids,
+      InstanceSentListener listener)
+      throws IDicomWebClient.DicomWebException, IOException, InterruptedException {
+  }
+
   /**
    * Sends instance via c-store (or test stub) to target AET, returns bytes sent
    */
@@ -31,4 +69,9 @@ public interface ICStoreSender extends Closeable {
       String sopInstanceUid,
       String sopClassUid)
       throws IDicomWebClient.DicomWebException, IOException, InterruptedException;
+
+  interface InstanceSentListener {
+
+    void onSent(String sopInstanceUid, long bytesSent);
+  }
 }
@@ -0,0 +1,356 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter.cstoresender;
+
+import com.google.cloud.healthcare.IDicomWebClient;
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.Event;
+import com.google.cloud.healthcare.imaging.dicomadapter.monitoring.MonitoringService;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads instances from WADO-RS ahead of their C-STORE on a background thread, so that fetching
+ * the next instance overlaps with sending the current one. Instances are downloaded one at a time,
+ * in the order they were prefetched. Prefetched instances are held in memory up to a byte budget;
+ * an instance that doesn't fit in what is left of it is spilled to a temporary file.
+ */
+public class InstancePrefetcher implements Closeable {
+
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private static Logger log = LoggerFactory.getLogger(InstancePrefetcher.class);
+
+  private final IDicomWebClient dicomWebClient;
+  private final long maxMemoryBytes;
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+
+  // Guarded by this.
+  private final Map<String, Download> downloads = new HashMap<>();
+  private final Deque<Download> queue = new ArrayDeque<>();
+  private Future<?> downloader;
+  private long memoryBytes;
+  private boolean closed;
+
+  /**
+   * @param maxMemoryBytes memory budget shared by all prefetched instances
+   */
+  public InstancePrefetcher(IDicomWebClient dicomWebClient, long maxMemoryBytes) {
+    this(dicomWebClient, maxMemoryBytes, Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "cmove-prefetch");
+      thread.setDaemon(true);
+      return thread;
+    }), true);
+  }
+
+  /**
+   * @param executor runs the downloads, shared with other prefetchers and left running on close
+   */
+  public InstancePrefetcher(IDicomWebClient dicomWebClient, long maxMemoryBytes,
+      ExecutorService executor) {
+    this(dicomWebClient, maxMemoryBytes, executor, false);
+  }
+
+  private InstancePrefetcher(IDicomWebClient dicomWebClient, long maxMemoryBytes,
+      ExecutorService executor, boolean ownsExecutor) {
+    this.dicomWebClient = dicomWebClient;
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+  }
+
+  /**
+   * Starts downloading the instance in the background, after any previously prefetched ones.
+   *
+   * @param transferSyntax passed to {@link IDicomWebClient#wadoRs(String, String)}
+   */
+  public synchronized void prefetch(String wadoUri, String transferSyntax) {
+    if (closed || downloads.containsKey(wadoUri)) {
+      return;
+    }
+    Download download = new Download(wadoUri, transferSyntax);
+    downloads.put(wadoUri, download);
+    queue.add(download);
+    if (downloader == null) {
+      downloader = executor.submit(this::downloadQueued);
+    }
+  }
+
+  // Runs queued downloads until there are none left, taking up one executor thread at most.
+  private void downloadQueued() {
+    while (true) {
+      Download download;
+      synchronized (this) {
+        download = closed ? null : queue.poll();
+        if (download == null) {
+          downloader = null;
+          return;
+        }
+      }
+      download.run();
+    }
+  }
+
+  /**
+   * Returns the prefetched instance, waiting for its download to finish, or null if it wasn't
+   * prefetched. The caller must close it.
+   */
+  public Instance take(String wadoUri)
+      throws IDicomWebClient.DicomWebException, IOException, InterruptedException {
+    Download download;
+    synchronized (this) {
+      download = downloads.remove(wadoUri);
+    }
+    if (download == null) {
+      return null;
+    }
+
+    long start = System.currentTimeMillis();
+    try {
+      Instance instance = download.get();
+      MonitoringService.addEvent(Event.CMOVE_PREFETCH_WAIT_MILLIS,
+          System.currentTimeMillis() - start);
+      return instance;
+    } catch (InterruptedException e) {
+      download.discard();
+      throw e;
+    }
+  }
+
+  /**
+   * Bytes of prefetched instances held in memory.
+   */
+  public synchronized long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  /**
+   * Stops downloading and releases instances that were prefetched but not taken.
+   */
+  @Override
+  public void close() {
+    List<Download> discarded;
+    synchronized (this) {
+      closed = true;
+      discarded = new ArrayList<>(downloads.values());
+      downloads.clear();
+      queue.clear();
+      if (downloader != null) {
+        downloader.cancel(true);
+        downloader = null;
+      }
+    }
+    if (ownsExecutor) {
+      executor.shutdownNow();
+    }
+    for (Download download : discarded) {
+      download.discard();
+    }
+  }
+
+  private Instance download(String wadoUri, String transferSyntax)
+      throws IDicomWebClient.DicomWebException, IOException {
+    InputStream in = CStoreSender.wadoInstance(dicomWebClient, wadoUri, transferSyntax);
+    List<byte[]> chunks = new ArrayList<>();
+    try {
+      while (true) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int length = ByteStreams.read(in, chunk, 0, CHUNK_SIZE);
+        if (length == 0) {
+          return new Instance(chunks, chunks.isEmpty() ? 0 : CHUNK_SIZE, null);
+        }
+        if (!reserve(CHUNK_SIZE)) {
+          Instance spilled = spill(chunks, chunk, length, in);
+          release(chunks.size());
+          return spilled;
+        }
+        chunks.add(chunk);
+        if (length < CHUNK_SIZE) {
+          return new Instance(chunks, length, null);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      release(chunks.size());
+      throw e;
+    }
+  }
+
+  private Instance spill(List<byte[]> chunks, byte[] lastChunk, int lastChunkLength,
+      InputStream in) throws IOException {
+    MonitoringService.addEvent(Event.CMOVE_PREFETCH_SPILL);
+    Path file = Files.createTempFile("cmove-prefetch", ".dcm");
+    try (OutputStream out = Files.newOutputStream(file)) {
+      for (byte[] chunk : chunks) {
+        out.write(chunk);
+      }
+      out.write(lastChunk, 0, lastChunkLength);
+      ByteStreams.copy(in, out);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(file);
+      throw e;
+    }
+    return new Instance(Collections.emptyList(), 0, file);
+  }
+
+  private synchronized boolean reserve(long bytes) {
+    if (memoryBytes + bytes > maxMemoryBytes) {
+      return false;
+    }
+    memoryBytes += bytes;
+    return true;
+  }
+
+  private synchronized void release(int chunks) {
+    memoryBytes -= (long) chunks * CHUNK_SIZE;
+  }
+
+  /**
+   * Prefetched instance, held in memory or in a temporary file. Closing it releases either.
+   */
+  public class Instance implements Closeable {
+
+    private final List<byte[]> chunks;
+    private final int lastChunkLength;
+    private final Path file;
+    private InputStream fileStream;
+    private boolean closed;
+
+    private Instance(List<byte[]> chunks, int lastChunkLength, Path file) {
+      this.chunks = chunks;
+      this.lastChunkLength = lastChunkLength;
+      this.file = file;
+    }
+
+    /**
+     * Whether the instance was spilled to a temporary file.
+     */
+    public boolean isSpilled() {
+      return file != null;
+    }
+
+    public synchronized InputStream getInputStream() throws IOException {
+      if (file != null) {
+        fileStream = new BufferedInputStream(Files.newInputStream(file));
+        return fileStream;
+      }
+      List<InputStream> streams = new ArrayList<>(chunks.size());
+      for (int i = 0; i < chunks.size(); i++) {
+        int length = i == chunks.size() - 1 ? lastChunkLength : CHUNK_SIZE;
+        streams.add(new ByteArrayInputStream(chunks.get(i), 0, length));
+      }
+      return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    @Override
+    public synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      release(chunks.size());
+      if (file != null) {
+        try {
+          if (fileStream != null) {
+            fileStream.close();
+          }
+          Files.deleteIfExists(file);
+        } catch (IOException e) {
+          log.warn("Failed to delete prefetched instance {}", file, e);
+        }
+      }
+    }
+  }
+
+  private class Download implements Runnable {
+
+    private final String wadoUri;
+    private final String transferSyntax;
+
+    // Guarded by this.
+    private Instance instance;
+    private Throwable failure;
+    private boolean done;
+    private boolean discarded;
+
+    private Download(String wadoUri, String transferSyntax) {
+      this.wadoUri = wadoUri;
+      this.transferSyntax = transferSyntax;
+    }
+
+    @Override
+    public void run() {
+      Instance downloaded = null;
+      Throwable downloadFailure = null;
+      try {
+        downloaded = download(wadoUri, transferSyntax);
+      } catch (Throwable e) {
+        downloadFailure = e;
+      }
+      synchronized (this) {
+        if (discarded && downloaded != null) {
+          downloaded.close();
+        } else {
+          instance = downloaded;
+          failure = downloadFailure;
+        }
+        done = true;
+        notifyAll();
+      }
+    }
+
+    private synchronized Instance get()
+        throws IDicomWebClient.DicomWebException, IOException, InterruptedException {
+      while (!done) {
+        wait();
+      }
+      if (failure instanceof IDicomWebClient.DicomWebException) {
+        throw (IDicomWebClient.DicomWebException) failure;
+      } else if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure != null) {
+        throw new IOException(failure);
+      }
+      return instance;
+    }
+
+    private synchronized void discard() {
+      discarded = true;
+      if (instance != null) {
+        instance.close();
+        instance = null;
+      }
+    }
+  }
+}
@@ -20,12 +20,34 @@ public enum Event implements IMonitoringEvent {
   CSTORE_REQUEST(Constants.prefix + "cstore_requests"),
   CSTORE_ERROR(Constants.prefix + "cstore_errors"),
   CSTORE_BYTES(Constants.prefix + "cstore_bytes"),
+  CSTORE_PIPELINE_QUEUED(Constants.prefix + "cstore_pipeline_queued"),
+  CSTORE_PIPELINE_BYTES(Constants.prefix + "cstore_pipeline_inflight_bytes"),
+  CSTORE_PIPELINE_WAIT(Constants.prefix + "cstore_pipeline_waits"),
+  CSTORE_PIPELINE_WAIT_MILLIS(Constants.prefix + "cstore_pipeline_wait_millis"),
+  CSTORE_PIPELINE_STREAMED(Constants.prefix + "cstore_pipeline_streamed"),
+  STOW_BATCH_REQUEST(Constants.prefix + "stow_batch_requests"),
+  STOW_BATCH_INSTANCES(Constants.prefix + "stow_batch_instances"),
+
+  SPOOL_FILES(Constants.prefix + "spool_files"),
+  SPOOL_BYTES(Constants.prefix + "spool_bytes"),
+  SPOOL_WAIT(Constants.prefix + "spool_waits"),
+  SPOOL_FULL(Constants.prefix + "spool_full_rejects"),
+  SPOOL_UPLOAD_BYTES(Constants.prefix + "spool_upload_bytes"),
+  SPOOL_UPLOAD_ERROR(Constants.prefix + "spool_upload_errors"),
+  SPOOL_UPLOAD_FAILED(Constants.prefix + "spool_upload_failures"),
+
+  HTTP2_ACTIVE_STREAMS(Constants.prefix + "http2_active_streams"),
+  HTTP2_QUEUED_STREAMS(Constants.prefix + "http2_queued_streams"),
+  HTTP2_WINDOW_STALLS(Constants.prefix + "http2_window_stalls_total"),
 
   CFIND_REQUEST(Constants.prefix + "cfind_requests"),
   CFIND_ERROR(Constants.prefix + "cfind_errors"),
   CFIND_CANCEL(Constants.prefix + "cfind_cancels"),
   CFIND_QIDORS_REQUEST(Constants.prefix + "cfind_qidors_requests"),
   CFIND_QIDORS_ERROR(Constants.prefix + "cfind_qidors_errors"),
+  CFIND_QIDORS_MILLIS(Constants.prefix + "cfind_qidors_millis"),
+  CFIND_QIDORS_CACHE_HIT(Constants.prefix + "cfind_qidors_cache_hits"),
+  CFIND_QIDORS_CACHE_MISS(Constants.prefix + "cfind_qidors_cache_misses"),
 
   CMOVE_REQUEST(Constants.prefix + "cmove_requests"),
   CMOVE_ERROR(Constants.prefix + "cmove_errors"),
@@ -36,10 +58,21 @@ public enum Event implements IMonitoringEvent {
   CMOVE_CSTORE_REQUEST(Constants.prefix + "cmove_cstore_requests"),
   CMOVE_CSTORE_ERROR(Constants.prefix + "cmove_cstore_errors"),
   CMOVE_CSTORE_BYTES(Constants.prefix + "cmove_cstore_bytes"),
+  CMOVE_PREFETCH_WAIT_MILLIS(Constants.prefix + "cmove_prefetch_wait_millis"),
+  CMOVE_PREFETCH_SPILL(Constants.prefix + "cmove_prefetch_spills"),
+  CMOVE_BULK_REQUEST(Constants.prefix + "cmove_bulk_wadors_requests"),
+  CMOVE_BULK_FALLBACK(Constants.prefix + "cmove_bulk_fallback_instances"),
+  INSTANCE_CACHE_HIT(Constants.prefix + "instance_cache_hits"),
+  INSTANCE_CACHE_MISS(Constants.prefix + "instance_cache_misses"),
+  INSTANCE_CACHE_BYTES(Constants.prefix + "instance_cache_bytes"),
+  IDLE_ASSOCIATIONS(Constants.prefix + "idle_associations"),
 
   COMMITMENT_REQUEST(Constants.prefix + "commitment_requests"),
   COMMITMENT_ERROR(Constants.prefix + "commitment_errors"),
-  COMMITMENT_QIDORS_ERROR(Constants.prefix + "commitment_qidors_errors");
+  COMMITMENT_QIDORS_ERROR(Constants.prefix + "commitment_qidors_errors"),
+  INGEST_LEDGER_HIT(Constants.prefix + "ingest_ledger_hits"),
+  INGEST_LEDGER_MISS(Constants.prefix + "ingest_ledger_misses"),
+  INGEST_LEDGER_ENTRIES(Constants.prefix + "ingest_ledger_entries");
 
   private final String metricName;
 
@@ -16,6 +16,9 @@ package com.google.cloud.healthcare.imaging.dicomadapter;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
@@ -69,6 +72,23 @@ public class AttributesUtilTest {
         "instances?" + TagUtils.toHexString(Tag.PatientName) + "=%25%26%23%5E+&");
   }
 
+  @Test
+  public void testAttributesToQidoPath_includeFields() throws Exception {
+    Attributes attrs = new Attributes();
+    attrs.setString(Tag.QueryRetrieveLevel, VR.CS, "IMAGE");
+    attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2");
+    attrs.setNull(Tag.SOPInstanceUID, VR.UI);
+    attrs.setNull(Tag.SOPClassUID, VR.UI);
+
+    String result = AttributesUtil.attributesToQidoPath(attrs,
+        TagUtils.toHexString(Tag.SOPInstanceUID), TagUtils.toHexString(Tag.SOPInstanceUID));
+
+    assertThat(result).isEqualTo("instances?"
+        + "includefield=" + TagUtils.toHexString(Tag.SOPInstanceUID) + "&"
+        + "includefield=" + TagUtils.toHexString(Tag.SOPClassUID) + "&"
+        + TagUtils.toHexString(Tag.StudyInstanceUID) + "=1.2&");
+  }
+
   @Test
   public void testAttributesToQidoPathArray_noModalitiesSet() throws Exception {
     Attributes attrs = new Attributes();
@@ -244,4 +264,69 @@ public class AttributesUtilTest {
     sequence.add(sequenceElement);
     assertThat(attrs).isEqualTo(expected);
   }
+
+  @Test
+  public void testJsonToAttributes_doubleWithoutFraction() throws Exception {
+    JSONObject jsonObj = new JSONObject("{\""
+        + TagUtils.toHexString(Tag.EventTimeOffset)
+        + "\": {\"vr\": \"FD\",\"Value\": [2]}}");
+
+    Attributes attrs = AttributesUtil.jsonToAttributes(jsonObj);
+
+    Attributes expected = new Attributes();
+    expected.setDouble(Tag.EventTimeOffset, VR.FD, 2);
+    assertThat(attrs).isEqualTo(expected);
+  }
+
+  @Test
+  public void testJsonToAttributes_sameAsParser() throws Exception {
+    String json = "{\"" + TagUtils.toHexString(Tag.PatientName)
+        + "\": {\"vr\": \"PN\", \"Value\": [{\"Alphabetic\": \"Yamada^Tarou\", "
+        + "\"Phonetic\": \"yamada^tarou\"}, null]}, \""
+        + TagUtils.toHexString(Tag.InstanceNumber) + "\": {\"vr\": \"IS\", \"Value\": [7]}, \""
+        + TagUtils.toHexString(Tag.ReferencedSOPSequence) + "\": {\"vr\": \"SQ\", "
+        + "\"Value\": [{\"" + TagUtils.toHexString(Tag.ReferencedSOPInstanceUID)
+        + "\": {\"vr\": \"UI\", \"Value\": [\"1.2.3\"]}}]}, \""
+        + TagUtils.toHexString(Tag.StudyDescription) + "\": {\"vr\": \"LO\"}}";
+
+    Attributes fromParser;
+    try (JsonParser parser = new JsonFactory().createParser(json)) {
+      parser.nextToken();
+      fromParser = AttributesUtil.jsonToAttributes(parser);
+    }
+
+    assertThat(AttributesUtil.jsonToAttributes(new JSONObject(json))).isEqualTo(fromParser);
+  }
+
+  @Test
+  public void testJsonToAttributes_parser() throws Exception {
+    String json = "[{\"" + TagUtils.toHexString(Tag.PatientName)
+        + "\": {\"Value\": [{\"Alphabetic\": \"Yamada^Tarou\"}, null], \"vr\": \"PN\"}, \""
+        + TagUtils.toHexString(Tag.StudyInstanceUID)
+        + "\": {\"vr\": \"UI\", \"Value\": [\"1.2.3\"]}, \""
+        + TagUtils.toHexString(Tag.NumberOfStudyRelatedInstances)
+        + "\": {\"vr\": \"IS\"}}]";
+
+    Attributes attrs;
+    try (JsonParser parser = new JsonFactory().createParser(json)) {
+      parser.nextToken();
+      parser.nextToken();
+      attrs = AttributesUtil.jsonToAttributes(parser);
+      assertThat(parser.nextToken()).isEqualTo(JsonToken.END_ARRAY);
+    }
+
+    Attributes expected = new Attributes();
+    expected.setString(Tag.PatientName, VR.PN, "Yamada^Tarou", "");
+    expected.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+    expected.setNull(Tag.NumberOfStudyRelatedInstances, VR.IS);
+    assertThat(attrs).isEqualTo(expected);
+  }
+
+  @Test(expected = DicomServiceException.class)
+  public void testJsonToAttributes_noVr() throws Exception {
+    JSONObject jsonObj = new JSONObject("{\""
+        + TagUtils.toHexString(Tag.StudyInstanceUID) + "\": {\"Value\": [\"1.2.3\"]}}");
+
+    AttributesUtil.jsonToAttributes(jsonObj);
+  }
 }
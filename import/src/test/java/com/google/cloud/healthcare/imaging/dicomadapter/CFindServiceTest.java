@@ -14,12 +14,18 @@
 
 package com.google.cloud.healthcare.imaging.dicomadapter;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import com.google.cloud.healthcare.IDicomWebClient;
 import com.google.cloud.healthcare.LogUtil;
 import com.google.cloud.healthcare.imaging.dicomadapter.util.DimseRSPAssert;
 import com.google.cloud.healthcare.imaging.dicomadapter.util.PortUtil;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
@@ -118,19 +124,53 @@ public final class CFindServiceTest {
     }, Status.NotAuthorized);
   }
 
+  @Test
+  public void testCFindService_parallelModalities() throws Exception {
+    Set<String> queriedPaths = ConcurrentHashMap.newKeySet();
+    CountDownLatch allQueried = new CountDownLatch(3);
+    Attributes findData = new Attributes();
+    findData.setString(Tag.QueryRetrieveLevel, VR.CS, "STUDY");
+    findData.setString(Tag.ModalitiesInStudy, VR.CS, "CT", "MR", "PT");
+
+    basicCFindServiceTest(new TestUtils.DicomWebClientTestBase() {
+      @Override
+      public JSONArray qidoRs(String path) throws DicomWebException {
+        queriedPaths.add(path);
+        allQueried.countDown();
+        try {
+          // Only completes if all requests are in flight at the same time.
+          if (!allQueried.await(10, TimeUnit.SECONDS)) {
+            throw new DicomWebException("requests were not concurrent");
+          }
+        } catch (InterruptedException e) {
+          throw new DicomWebException(e);
+        }
+        JSONArray instances = new JSONArray();
+        instances.put(TestUtils.dummyQidorsInstance());
+        return instances;
+      }
+    }, 3, findData, Status.Success);
+
+    assertThat(queriedPaths).hasSize(3);
+  }
+
   public void basicCFindServiceTest(IDicomWebClient serverDicomWebClient,
       int expectedStatus) throws Exception {
+    Attributes findData = new Attributes();
+    findData.setString(Tag.QueryRetrieveLevel, VR.CS, "IMAGE");
+    basicCFindServiceTest(serverDicomWebClient, 1, findData, expectedStatus);
+  }
+
+  public void basicCFindServiceTest(IDicomWebClient serverDicomWebClient, int qidoConcurrency,
+      Attributes findData, int expectedStatus) throws Exception {
     // Create C-STORE DICOM server.
-    int serverPort = createDicomServer(serverDicomWebClient);
+    int serverPort = createDicomServer(serverDicomWebClient, qidoConcurrency);
 
     // Associate with peer AE.
     Association association =
         associate(serverHostname, serverPort,
             UID.StudyRootQueryRetrieveInformationModelFIND, UID.ExplicitVRLittleEndian);
 
-    Attributes findData = new Attributes();
-    findData.setString(Tag.QueryRetrieveLevel, VR.CS, "IMAGE");
-
     // Issue CFIND
     DimseRSPAssert rspAssert = new DimseRSPAssert(association, expectedStatus);
     association.cfind(
@@ -163,12 +203,13 @@ public final class CFindServiceTest {
   }
 
   // Creates a DICOM service and returns the port it is listening on.
-  private int createDicomServer(IDicomWebClient dicomWebClient) throws Exception {
+  private int createDicomServer(IDicomWebClient dicomWebClient, int qidoConcurrency)
+      throws Exception {
     int serverPort = PortUtil.getFreePort();
     DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
     serviceRegistry.addDicomService(new BasicCEchoSCP());
 
-    CFindService cFindService = new CFindService(dicomWebClient);
+    CFindService cFindService = new CFindService(dicomWebClient, qidoConcurrency);
     serviceRegistry.addDicomService(cFindService);
     Device serverDevice = DeviceUtil.createServerDevice(serverAET, serverPort, serviceRegistry);
     serverDevice.bindConnections();
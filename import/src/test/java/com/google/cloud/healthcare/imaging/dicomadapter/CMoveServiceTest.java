@@ -20,8 +20,17 @@ import com.google.cloud.healthcare.imaging.dicomadapter.cstoresender.ICStoreSend
 import com.google.cloud.healthcare.imaging.dicomadapter.cstoresender.ICStoreSenderFactory;
 import com.google.cloud.healthcare.imaging.dicomadapter.util.DimseRSPAssert;
 import com.google.cloud.healthcare.imaging.dicomadapter.util.PortUtil;
+import static com.google.common.truth.Truth.assertThat;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
@@ -35,7 +44,9 @@ import org.dcm4che3.net.pdu.AAssociateRQ;
 import org.dcm4che3.net.pdu.PresentationContext;
 import org.dcm4che3.net.service.BasicCEchoSCP;
 import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.dcm4che3.util.TagUtils;
 import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -56,6 +67,9 @@ public final class CMoveServiceTest {
   // Client properties.
   ApplicationEntity clientAE;
 
+  // Server properties set by individual tests.
+  boolean bulkRetrieve;
+
   @Before
   public void setUp() throws Exception {
     LogUtil.Log4jToStdout();
@@ -233,6 +247,286 @@ public final class CMoveServiceTest {
         , moveDestinationAET);
   }
 
+  @Test
+  public void testCMoveService_preparesSenderOnce() throws Exception {
+    List<Map<String, Set<String>>> prepared = new ArrayList<>();
+    basicCMoveServiceTest(
+        new TestUtils.DicomWebClientTestBase() {
+          @Override
+          public JSONArray qidoRs(String path) throws DicomWebException {
+            JSONArray instances = new JSONArray();
+            instances.put(TestUtils.dummyQidorsInstance());
+            instances.put(TestUtils.dummyQidorsInstance());
+            return instances;
+          }
+        },
+        () -> new CStoreSenderTest() {
+          @Override
+          public void prepare(AetDictionary.Aet target,
+              Map<String, Set<String>> transferSyntaxes) {
+            prepared.add(transferSyntaxes);
+          }
+        },
+        Status.Success,
+        moveDestinationAET);
+
+    assertThat(prepared).hasSize(1);
+    assertThat(prepared.get(0).get("1")).containsExactly(UID.ExplicitVRLittleEndian);
+  }
+
+  @Test
+  public void testTransferSyntaxes_includesAvailableTransferSyntax() {
+    JSONObject instance = TestUtils.dummyQidorsInstance();
+    JSONObject available = new JSONObject();
+    available.put("vr", VR.UI.toString());
+    available.put("Value", new JSONArray().put(UID.JPEG2000));
+    instance.put(TagUtils.toHexString(Tag.AvailableTransferSyntaxUID), available);
+    JSONArray qidoResult = new JSONArray();
+    qidoResult.put(instance);
+    qidoResult.put(TestUtils.dummyQidorsInstance());
+
+    Map<String, Set<String>> transferSyntaxes =
+        CMoveService.MoveInstances.of(qidoResult).transferSyntaxes();
+
+    assertThat(transferSyntaxes.keySet()).containsExactly("1");
+    assertThat(transferSyntaxes.get("1"))
+        .containsExactly(UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian, UID.JPEG2000);
+  }
+
+  @Test
+  public void testCMoveService_parallelSuccess() throws Exception {
+    AtomicInteger active = new AtomicInteger();
+    AtomicInteger maxActive = new AtomicInteger();
+    AtomicInteger sent = new AtomicInteger();
+    basicCMoveServiceTest(
+        instancesClient(6),
+        () -> new CStoreSenderTest() {
+          @Override
+          public long cstore(AetDictionary.Aet target, String studyUid, String seriesUid,
+              String sopInstanceUid, String sopClassUid) throws InterruptedException {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            TimeUnit.MILLISECONDS.sleep(50);
+            active.decrementAndGet();
+            sent.incrementAndGet();
+            return 0;
+          }
+        },
+        Status.Success,
+        moveDestinationAET,
+        3);
+
+    assertThat(sent.get()).isEqualTo(6);
+    assertThat(maxActive.get()).isGreaterThan(1);
+    assertThat(maxActive.get()).isAtMost(3);
+  }
+
+  @Test
+  public void testCMoveService_parallelPartialFail() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    basicCMoveServiceTest(
+        instancesClient(4),
+        () -> new CStoreSenderTest() {
+          @Override
+          public long cstore(AetDictionary.Aet target, String studyUid, String seriesUid,
+              String sopInstanceUid, String sopClassUid)
+              throws IDicomWebClient.DicomWebException {
+            if (attempts.incrementAndGet() % 2 == 0) {
+              throw new IDicomWebClient.DicomWebException("CStore Fail");
+            }
+            return 0;
+          }
+        },
+        Status.OneOrMoreFailures,
+        moveDestinationAET,
+        2);
+  }
+
+  @Test
+  public void testCMoveService_parallelCancel() throws Exception {
+    basicCMoveServiceTest(
+        instancesClient(4),
+        () -> new CStoreSenderTest() {
+          @Override
+          public long cstore(AetDictionary.Aet target, String studyUid, String seriesUid,
+              String sopInstanceUid, String sopClassUid) throws InterruptedException {
+            throw new InterruptedException();
+          }
+        },
+        Status.Cancel,
+        moveDestinationAET,
+        2);
+  }
+
+  @Test
+  public void testCMoveService_prefetchesNextInstance() throws Exception {
+    List<String> calls = new ArrayList<>();
+    basicCMoveServiceTest(
+        instancesClient(3),
+        () -> new CStoreSenderTest() {
+          @Override
+          public void prefetch(AetDictionary.Aet target, String studyUid, String seriesUid,
+              String sopInstanceUid) {
+            calls.add("prefetch");
+          }
+
+          @Override
+          public long cstore(AetDictionary.Aet target, String studyUid, String seriesUid,
+              String sopInstanceUid, String sopClassUid) {
+            calls.add("cstore");
+            return 0;
+          }
+        },
+        Status.Success,
+        moveDestinationAET);
+
+    assertThat(calls)
+        .containsExactly("prefetch", "cstore", "prefetch", "cstore", "cstore")
+        .inOrder();
+  }
+
+  @Test
+  public void testCMoveService_bulkRetrieveFallsBackForUnsentInstances() throws Exception {
+    bulkRetrieve = true;
+    List<String> bulkPaths = new ArrayList<>();
+    List<String> instanceCstores = new ArrayList<>();
+    basicCMoveServiceTest(
+        new TestUtils.DicomWebClientTestBase() {
+          @Override
+          public JSONArray qidoRs(String path) throws DicomWebException {
+            JSONArray instances = new JSONArray();
+            instances.put(qidoInstance("1.1", "1.2", "1.3.1"));
+            instances.put(qidoInstance("1.1", "1.2", "1.3.2"));
+            instances.put(qidoInstance("1.1", "1.2", "1.3.3"));
+            return instances;
+          }
+        },
+        () -> new CStoreSenderTest() {
+          @Override
+          public void cstoreBulk(AetDictionary.Aet target, String wadoPath,
+              Map<String, String> sopClassUids, InstanceSentListener listener) {
+            bulkPaths.add(wadoPath);
+            // The part of the last instance fails.
+            listener.onSent("1.3.1", 10);
+            listener.onSent("1.3.2", 10);
+          }
+
+          @Override
+          public long cstore(AetDictionary.Aet target, String studyUid, String seriesUid,
+              String sopInstanceUid, String sopClassUid) {
+            instanceCstores.add(sopInstanceUid);
+            return 0;
+          }
+        },
+        Status.Success,
+        moveDestinationAET);
+
+    assertThat(bulkPaths).containsExactly("studies/1.1");
+    assertThat(instanceCstores).containsExactly("1.3.3");
+  }
+
+  @Test
+  public void testCMoveService_bulkRetrieveBeforeParallelMove() throws Exception {
+    bulkRetrieve = true;
+    List<String> bulkPaths = Collections.synchronizedList(new ArrayList<>());
+    List<String> instanceCstores = Collections.synchronizedList(new ArrayList<>());
+    basicCMoveServiceTest(
+        new TestUtils.DicomWebClientTestBase() {
+          @Override
+          public JSONArray qidoRs(String path) throws DicomWebException {
+            JSONArray instances = new JSONArray();
+            instances.put(qidoInstance("1.1", "1.2", "1.3.1"));
+            instances.put(qidoInstance("1.1", "1.2", "1.3.2"));
+            instances.put(qidoInstance("1.1", "1.2", "1.3.3"));
+            instances.put(qidoInstance("1.1", "1.2", "1.3.4"));
+            return instances;
+          }
+        },
+        () -> new CStoreSenderTest() {
+          @Override
+          public void cstoreBulk(AetDictionary.Aet target, String wadoPath,
+              Map<String, String> sopClassUids, InstanceSentListener listener) {
+            bulkPaths.add(wadoPath);
+            // The parts of the last two instances fail.
+            listener.onSent("1.3.1", 10);
+            listener.onSent("1.3.2", 10);
+          }
+
+          @Override
+          public long cstore(AetDictionary.Aet target, String studyUid, String seriesUid,
+              String sopInstanceUid, String sopClassUid) {
+            instanceCstores.add(sopInstanceUid);
+            return 0;
+          }
+        },
+        Status.Success,
+        moveDestinationAET,
+        2);
+
+    assertThat(bulkPaths).containsExactly("studies/1.1");
+    assertThat(instanceCstores).containsExactly("1.3.3", "1.3.4");
+  }
+
+  @Test
+  public void testBulkGroups_seriesLevel() {
+    JSONArray qidoResult = new JSONArray();
+    qidoResult.put(qidoInstance("1.1", "1.2", "1.3.1"));
+    qidoResult.put(qidoInstance("1.1", "1.2", "1.3.2"));
+    qidoResult.put(qidoInstance("1.1", "1.4", "1.5.1"));
+
+    CMoveService.MoveInstances instances = CMoveService.MoveInstances.of(qidoResult);
+    Map<String, Map<String, String>> groups = CMoveService.bulkGroups("SERIES", instances);
+
+    // Single instance series are left to per-instance retrieval.
+    assertThat(groups.keySet()).containsExactly("studies/1.1/series/1.2");
+    assertThat(groups.get("studies/1.1/series/1.2").keySet()).containsExactly("1.3.1", "1.3.2");
+    assertThat(CMoveService.bulkGroups("IMAGE", instances)).isEmpty();
+  }
+
+  @Test
+  public void testMoveInstances_sharesUids() {
+    JSONArray qidoResult = new JSONArray();
+    qidoResult.put(qidoInstance(new String("1.1"), new String("1.2"), "1.3.1"));
+    qidoResult.put(qidoInstance(new String("1.1"), new String("1.2"), "1.3.2"));
+
+    CMoveService.MoveInstances instances = CMoveService.MoveInstances.of(qidoResult);
+
+    assertThat(instances.size()).isEqualTo(2);
+    assertThat(instances.studyUid(1)).isSameAs(instances.studyUid(0));
+    assertThat(instances.seriesUid(1)).isSameAs(instances.seriesUid(0));
+    CMoveService.MoveInstances remaining = instances.without(Collections.singleton("1.3.1"));
+    assertThat(remaining.size()).isEqualTo(1);
+    assertThat(remaining.instanceUid(0)).isEqualTo("1.3.2");
+    assertThat(remaining.transferSyntaxes()).isEqualTo(instances.transferSyntaxes());
+  }
+
+  private static JSONObject qidoInstance(String studyUid, String seriesUid, String instanceUid) {
+    JSONObject instance = TestUtils.dummyQidorsInstance();
+    instance.put(TagUtils.toHexString(Tag.StudyInstanceUID), uidAttribute(studyUid));
+    instance.put(TagUtils.toHexString(Tag.SeriesInstanceUID), uidAttribute(seriesUid));
+    instance.put(TagUtils.toHexString(Tag.SOPInstanceUID), uidAttribute(instanceUid));
+    return instance;
+  }
+
+  private static JSONObject uidAttribute(String uid) {
+    JSONObject attribute = new JSONObject();
+    attribute.put("vr", VR.UI.toString());
+    attribute.put("Value", new JSONArray().put(uid));
+    return attribute;
+  }
+
+  private static IDicomWebClient instancesClient(int count) {
+    return new TestUtils.DicomWebClientTestBase() {
+      @Override
+      public JSONArray qidoRs(String path) throws DicomWebException {
+        JSONArray instances = new JSONArray();
+        for (int i = 0; i < count; i++) {
+          instances.put(TestUtils.dummyQidorsInstance());
+        }
+        return instances;
+      }
+    };
+  }
+
   public void basicCMoveServiceTest(IDicomWebClient serverDicomWebClient,
       int expectedStatus) throws Exception {
     basicCMoveServiceTest(serverDicomWebClient,
@@ -245,8 +539,18 @@ public final class CMoveServiceTest {
       ICStoreSenderFactory senderFactory,
       int expectedStatus,
       String moveDestinationAET) throws Exception {
+    basicCMoveServiceTest(serverDicomWebClient, senderFactory, expectedStatus,
+        moveDestinationAET, 1);
+  }
+
+  public void basicCMoveServiceTest(IDicomWebClient serverDicomWebClient,
+      ICStoreSenderFactory senderFactory,
+      int expectedStatus,
+      String moveDestinationAET,
+      int moveDestinationConcurrency) throws Exception {
     // Create C-STORE DICOM server.
-    int serverPort = createDicomServer(serverDicomWebClient, senderFactory);
+    int serverPort =
+        createDicomServer(serverDicomWebClient, senderFactory, moveDestinationConcurrency);
 
     // Associate with peer AE.
     Association association =
@@ -290,15 +594,18 @@ public final class CMoveServiceTest {
   // Creates a DICOM service and returns the port it is listening on.
   private int createDicomServer(
       IDicomWebClient dicomWebClient,
-      ICStoreSenderFactory senderFactory) throws Exception {
+      ICStoreSenderFactory senderFactory,
+      int moveDestinationConcurrency) throws Exception {
     int serverPort = PortUtil.getFreePort();
     DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
     serviceRegistry.addDicomService(new BasicCEchoSCP());
 
     AetDictionary aetDict = new AetDictionary(new AetDictionary.Aet[]{
-        new AetDictionary.Aet(moveDestinationAET, moveDestinationHostname, 0)});
+        new AetDictionary.Aet(moveDestinationAET, moveDestinationHostname, 0,
+            moveDestinationConcurrency)});
 
-    CMoveService cMoveService = new CMoveService(dicomWebClient, aetDict, senderFactory);
+    CMoveService cMoveService =
+        new CMoveService(dicomWebClient, aetDict, senderFactory, bulkRetrieve);
     serviceRegistry.addDicomService(cMoveService);
     Device serverDevice = DeviceUtil.createServerDevice(serverAET, serverPort, serviceRegistry);
     serverDevice.bindConnections();
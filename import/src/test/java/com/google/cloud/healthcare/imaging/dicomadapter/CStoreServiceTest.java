@@ -14,6 +14,8 @@
 
 package com.google.cloud.healthcare.imaging.dicomadapter;
 
+import static com.google.common.truth.Truth.assertThat;
+
 import com.github.danieln.multipart.MultipartInput;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpStatusCodes;
@@ -28,7 +30,11 @@ import com.google.cloud.healthcare.imaging.dicomadapter.util.PortUtil;
 import com.google.cloud.healthcare.util.TestUtils;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.net.ApplicationEntity;
@@ -42,8 +48,12 @@ import org.dcm4che3.net.pdu.PresentationContext;
 import org.dcm4che3.net.service.BasicCEchoSCP;
 import org.dcm4che3.net.service.DicomServiceRegistry;
 import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -57,11 +67,37 @@ public final class CStoreServiceTest {
   // Client properties.
   ApplicationEntity clientAE;
 
+  // Optional upload pipeline and batching for the server.
+  private StowUploadPipeline uploadPipeline;
+  private boolean batchUploads;
+
+  // Optional spool and ingest ledger for the server.
+  private StowSpool spool;
+  private IngestLedger ingestLedger;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  // Asynchronous operations window test.
+  private static final int ASYNC_OPS_WINDOW = 8;
+
+  // If set, every upload waits for this many to be in flight.
+  private CountDownLatch concurrentUploads;
+
   private Association associate(
       String serverHostname, int serverPort, String sopClass, String syntax) throws Exception {
+    return associate(serverHostname, serverPort, sopClass, syntax, Connection.SYNCHRONOUS_MODE);
+  }
+
+  private Association associate(String serverHostname, int serverPort, String sopClass,
+      String syntax, int maxOpsInvoked) throws Exception {
     AAssociateRQ rq = new AAssociateRQ();
     rq.addPresentationContext(new PresentationContext(1, sopClass, syntax));
     rq.setCalledAET(serverAET);
+    if (maxOpsInvoked != Connection.SYNCHRONOUS_MODE) {
+      rq.setMaxOpsInvoked(maxOpsInvoked);
+      rq.setMaxOpsPerformed(Connection.SYNCHRONOUS_MODE);
+    }
     Connection remoteConn = new Connection();
     remoteConn.setHostname(serverHostname);
     remoteConn.setPort(serverPort);
@@ -70,15 +106,25 @@ public final class CStoreServiceTest {
 
   // Creates a DICOM service and returns the port it is listening on.
   private int createDicomServer(boolean connectError, int responseCode) throws Exception {
+    return createDicomServer(connectError, responseCode, Connection.SYNCHRONOUS_MODE);
+  }
+
+  private int createDicomServer(boolean connectError, int responseCode, int maxOps)
+      throws Exception {
     int serverPort = PortUtil.getFreePort();
     DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
     serviceRegistry.addDicomService(new BasicCEchoSCP());
     IDicomWebClient dicomWebClient =
         new MockStowClient(connectError, responseCode);
+    StowBatcher batcher = batchUploads
+        ? new StowBatcher("/studies", dicomWebClient, uploadPipeline, 10, 1024 * 1024, 10)
+        : null;
     CStoreService cStoreService =
-        new CStoreService("/studies", dicomWebClient);
+        new CStoreService("/studies", dicomWebClient, spool, uploadPipeline, batcher, null, null,
+            ingestLedger);
     serviceRegistry.addDicomService(cStoreService);
-    Device serverDevice = DeviceUtil.createServerDevice(serverAET, serverPort, serviceRegistry);
+    Device serverDevice =
+        DeviceUtil.createServerDevice(serverAET, serverPort, serviceRegistry, maxOps, maxOps);
     serverDevice.bindConnections();
     return serverPort;
   }
@@ -97,6 +143,16 @@ public final class CStoreServiceTest {
     device.setScheduledExecutor(Executors.newSingleThreadScheduledExecutor());
   }
 
+  @After
+  public void tearDown() throws Exception {
+    if (spool != null) {
+      spool.close();
+    }
+    if (ingestLedger != null) {
+      ingestLedger.close();
+    }
+  }
+
   @Test
   public void testCStoreService_success() throws Exception {
     basicCStoreServiceTest(
@@ -139,6 +195,136 @@ public final class CStoreServiceTest {
         null);
   }
 
+  @Test
+  public void testCStoreService_pipelineSuccess() throws Exception {
+    uploadPipeline = new StowUploadPipeline(2, 1024 * 1024);
+    basicCStoreServiceTest(
+        false,
+        HttpStatusCodes.STATUS_CODE_OK,
+        Status.Success);
+    assertThat(uploadPipeline.getInFlightBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testCStoreService_pipelineServiceUnavailable() throws Exception {
+    uploadPipeline = new StowUploadPipeline(2, 1024 * 1024);
+    basicCStoreServiceTest(
+        false,
+        HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE,
+        Status.OutOfResources);
+    assertThat(uploadPipeline.getInFlightBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testCStoreService_pipelineNoSopInstanceUid() throws Exception {
+    uploadPipeline = new StowUploadPipeline(2, 1024 * 1024);
+    basicCStoreServiceTest(
+        true, // no stow-rs request will be made
+        HttpStatusCodes.STATUS_CODE_OK,
+        Status.CannotUnderstand,
+        UID.MRImageStorage,
+        null);
+  }
+
+  @Test
+  public void testCStoreService_batchedSuccess() throws Exception {
+    uploadPipeline = new StowUploadPipeline(2, 1024 * 1024);
+    batchUploads = true;
+    basicCStoreServiceTest(
+        false,
+        HttpStatusCodes.STATUS_CODE_OK,
+        Status.Success);
+  }
+
+  @Test
+  public void testCStoreService_batchedServiceUnavailable() throws Exception {
+    uploadPipeline = new StowUploadPipeline(2, 1024 * 1024);
+    batchUploads = true;
+    basicCStoreServiceTest(
+        false,
+        HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE,
+        Status.OutOfResources);
+  }
+
+  @Test
+  public void testCStoreService_recordsIngested() throws Exception {
+    ingestLedger = new IngestLedger(folder.newFolder().toPath(), 4096, 60 * 1000);
+    basicCStoreServiceTest(
+        false,
+        HttpStatusCodes.STATUS_CODE_OK,
+        Status.Success);
+    assertThat(ingestLedger.contains("1.0.0.0")).isTrue();
+  }
+
+  @Test
+  public void testCStoreService_failedNotRecorded() throws Exception {
+    ingestLedger = new IngestLedger(folder.newFolder().toPath(), 4096, 60 * 1000);
+    basicCStoreServiceTest(
+        false,
+        HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE,
+        Status.OutOfResources);
+    assertThat(ingestLedger.contains("1.0.0.0")).isFalse();
+  }
+
+  @Test
+  public void testCStoreService_spooledRecordedOnceUploaded() throws Exception {
+    ingestLedger = new IngestLedger(folder.newFolder().toPath(), 4096, 60 * 1000);
+    spool = new StowSpool(folder.newFolder().toPath(), 16 * 1024 * 1024, 10, 0, "/studies",
+        new MockStowClient(false, HttpStatusCodes.STATUS_CODE_OK), 1, null, ingestLedger);
+    spool.start();
+    basicCStoreServiceTest(
+        false,
+        HttpStatusCodes.STATUS_CODE_OK,
+        Status.Success);
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (spool.getSpooledFiles() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(spool.getSpooledFiles()).isEqualTo(0);
+    assertThat(ingestLedger.contains("1.0.0.0")).isTrue();
+  }
+
+  @Test
+  public void testCStoreService_asyncOpsWindow() throws Exception {
+    // Every upload waits for the whole window to be in flight, which only happens if the
+    // C-STOREs are processed concurrently.
+    concurrentUploads = new CountDownLatch(ASYNC_OPS_WINDOW);
+    uploadPipeline = new StowUploadPipeline(ASYNC_OPS_WINDOW, 16 * 1024 * 1024);
+    try {
+      int serverPort =
+          createDicomServer(false, HttpStatusCodes.STATUS_CODE_OK, ASYNC_OPS_WINDOW);
+      Association association = associate(serverHostname, serverPort,
+          UID.MRImageStorage, UID.ExplicitVRLittleEndian, ASYNC_OPS_WINDOW);
+
+      List<DimseRSPAssert> rspAsserts = new ArrayList<>();
+      for (int i = 0; i < ASYNC_OPS_WINDOW; i++) {
+        InputStream in =
+            new DicomInputStream(TestUtils.streamDICOMStripHeaders(TestUtils.TEST_MR_FILE));
+        DimseRSPAssert rspAssert = new DimseRSPAssert(association, Status.Success);
+        rspAsserts.add(rspAssert);
+        association.cstore(
+            UID.MRImageStorage,
+            "1.0.0." + i,
+            1,
+            new InputStreamDataWriter(in),
+            UID.ExplicitVRLittleEndian,
+            rspAssert);
+      }
+      association.waitForOutstandingRSP();
+
+      association.release();
+      association.waitForSocketClose();
+
+      for (DimseRSPAssert rspAssert : rspAsserts) {
+        rspAssert.assertResult();
+      }
+      assertThat(concurrentUploads.getCount()).isEqualTo(0);
+    } finally {
+      uploadPipeline.close();
+    }
+  }
+
   private void basicCStoreServiceTest(
       boolean connectionError,
       int httpStatus,
@@ -202,6 +388,11 @@ public final class CStoreServiceTest {
       throw new UnsupportedOperationException();
     }
 
+    @Override
+    public MultipartInput wadoRs(String path, String transferSyntax) throws DicomWebException {
+      throw new UnsupportedOperationException();
+    }
+
     @Override
     public JSONArray qidoRs(String path) throws DicomWebException {
       throw new UnsupportedOperationException();
@@ -212,10 +403,29 @@ public final class CStoreServiceTest {
       if (connectError) {
         throw new DicomWebException("connect error");
       }
+      if (concurrentUploads != null) {
+        concurrentUploads.countDown();
+        try {
+          if (!concurrentUploads.await(10, TimeUnit.SECONDS)) {
+            throw new DicomWebException("uploads were not concurrent");
+          }
+        } catch (InterruptedException e) {
+          throw new DicomWebException(e);
+        }
+      }
       if (httpResponseCode != HttpStatusCodes.STATUS_CODE_OK) {
         throw new DicomWebException("mock error", httpResponseCode, Status.ProcessingFailure);
       }
     }
+
+    @Override
+    public JSONObject stowRsMultipart(String path, List<InputStream> instances)
+        throws DicomWebException {
+      for (InputStream in : instances) {
+        stowRs(path, in);
+      }
+      return new JSONObject();
+    }
   }
 
   // TODO(b/73252285): increase test coverage.
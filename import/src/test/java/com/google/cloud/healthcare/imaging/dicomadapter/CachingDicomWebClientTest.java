@@ -0,0 +1,176 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.healthcare.IDicomWebClient.DicomWebException;
+import com.google.cloud.healthcare.imaging.dicomadapter.TestUtils.DicomWebClientTestBase;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dcm4che3.net.Status;
+import org.json.JSONArray;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class CachingDicomWebClientTest {
+
+  private static final long TTL_MILLIS = 60000;
+
+  @Test
+  public void testQidoRs_cachesNormalizedPath() throws Exception {
+    CountingQidoClient upstream = new CountingQidoClient();
+    CachingDicomWebClient client = new CachingDicomWebClient(upstream, TTL_MILLIS, 100);
+
+    client.qidoRs("studies?00080061=CT&00100020=1&");
+    client.qidoRs("studies?00100020=1&00080061=CT&");
+    client.qidoRs("studies?00100020=2&00080061=CT&");
+
+    assertThat(upstream.calls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testQidoRs_expires() throws Exception {
+    CountingQidoClient upstream = new CountingQidoClient();
+    CachingDicomWebClient client = new CachingDicomWebClient(upstream, 1, 100);
+
+    client.qidoRs("studies?00100020=1&");
+    Thread.sleep(10);
+    client.qidoRs("studies?00100020=1&");
+
+    assertThat(upstream.calls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testQidoRs_evictsBeyondMaxResults() throws Exception {
+    CountingQidoClient upstream = new CountingQidoClient();
+    // Each call has one result, weighing 2.
+    CachingDicomWebClient client = new CachingDicomWebClient(upstream, TTL_MILLIS, 2);
+
+    client.qidoRs("studies?00100020=1&");
+    client.qidoRs("studies?00100020=2&");
+    client.qidoRs("studies?00100020=1&");
+
+    assertThat(upstream.calls.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void testQidoRs_coalescesConcurrentCalls() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    CountingQidoClient upstream = new CountingQidoClient() {
+      @Override
+      public JSONArray qidoRs(String path) throws DicomWebException {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new DicomWebException(e);
+        }
+        return super.qidoRs(path);
+      }
+    };
+    CachingDicomWebClient client = new CachingDicomWebClient(upstream, TTL_MILLIS, 100);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<JSONArray>> calls = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        calls.add(executor.submit(() -> client.qidoRs("studies?00100020=1&")));
+      }
+      Thread.sleep(100);
+      release.countDown();
+      for (Future<JSONArray> call : calls) {
+        assertThat(call.get().length()).isEqualTo(1);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(upstream.calls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testQidoRs_errorNotCached() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    CachingDicomWebClient client = new CachingDicomWebClient(new DicomWebClientTestBase() {
+      @Override
+      public JSONArray qidoRs(String path) throws DicomWebException {
+        calls.incrementAndGet();
+        throw new DicomWebException("test-generated exception", Status.OutOfResources);
+      }
+    }, TTL_MILLIS, 100);
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        client.qidoRs("studies?00100020=1&");
+        fail("expected DicomWebException");
+      } catch (DicomWebException e) {
+        assertThat(e.getStatus()).isEqualTo(Status.OutOfResources);
+      }
+    }
+    assertThat(calls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testInvalidateStudy() throws Exception {
+    CountingQidoClient upstream = new CountingQidoClient();
+    CachingDicomWebClient client = new CachingDicomWebClient(upstream, TTL_MILLIS, 100);
+    String study1 = "series?0020000D=1.2.1&";
+    String study2 = "series?0020000D=1.2.2&";
+    String worklist = "studies?00080061=CT&";
+    client.qidoRs(study1);
+    client.qidoRs(study2);
+    client.qidoRs(worklist);
+
+    client.invalidateStudy("1.2.1");
+    client.qidoRs(study1);
+    client.qidoRs(study2);
+    client.qidoRs(worklist);
+
+    // Study 1 and the query not restricted to a study are loaded again.
+    assertThat(upstream.calls.get()).isEqualTo(5);
+
+    client.invalidateStudy(null);
+    client.qidoRs(study2);
+    assertThat(upstream.calls.get()).isEqualTo(6);
+  }
+
+  @Test
+  public void testNormalize() {
+    assertThat(CachingDicomWebClient.normalize("studies")).isEqualTo("studies");
+    assertThat(CachingDicomWebClient.normalize("studies?b=1&&a=2&"))
+        .isEqualTo("studies?a=2&b=1&");
+  }
+
+  private static class CountingQidoClient extends DicomWebClientTestBase {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Override
+    public JSONArray qidoRs(String path) throws DicomWebException {
+      calls.incrementAndGet();
+      JSONArray results = new JSONArray();
+      results.put(TestUtils.dummyQidorsInstance());
+      return results;
+    }
+  }
+}
@@ -0,0 +1,173 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class IngestLedgerTest {
+
+  private static final long TTL = 60 * 1000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path ledgerDir;
+
+  @Before
+  public void setUp() {
+    ledgerDir = folder.getRoot().toPath();
+  }
+
+  @Test
+  public void testIngestLedger_containsRecorded() throws Exception {
+    IngestLedger ledger = new IngestLedger(ledgerDir, 4096, TTL);
+
+    assertThat(ledger.contains("1.2.3")).isFalse();
+    ledger.record("1.2.3");
+    ledger.record("1.2.3");
+
+    assertThat(ledger.contains("1.2.3")).isTrue();
+    assertThat(ledger.contains("1.2.4")).isFalse();
+    assertThat(ledger.contains(null)).isFalse();
+    assertThat(ledger.getEntries()).isEqualTo(1);
+  }
+
+  @Test
+  public void testIngestLedger_ignoresOtherUids() throws Exception {
+    IngestLedger ledger = new IngestLedger(ledgerDir, 4096, TTL);
+
+    ledger.record(null);
+    ledger.record("../1.2.3");
+
+    assertThat(ledger.contains("../1.2.3")).isFalse();
+    assertThat(ledger.getEntries()).isEqualTo(0);
+  }
+
+  @Test
+  public void testIngestLedger_keptOnReopen() throws Exception {
+    IngestLedger ledger = new IngestLedger(ledgerDir, 4096, TTL);
+    ledger.record("1.2.3");
+    ledger.record("1.2.4");
+    ledger.close();
+
+    IngestLedger reopened = new IngestLedger(ledgerDir, 4096, TTL);
+    assertThat(reopened.contains("1.2.3")).isTrue();
+    assertThat(reopened.contains("1.2.4")).isTrue();
+    assertThat(reopened.getEntries()).isEqualTo(2);
+  }
+
+  @Test
+  public void testIngestLedger_dropsTornRecord() throws Exception {
+    IngestLedger ledger = new IngestLedger(ledgerDir, 4096, TTL);
+    ledger.record("1.2.3");
+    ledger.record("1.2.4");
+    ledger.close();
+    // Last byte of the checksum of the second record: header, two records of 13 + 5 bytes.
+    corrupt(4 + 18 + 17);
+
+    IngestLedger reopened = new IngestLedger(ledgerDir, 4096, TTL);
+    assertThat(reopened.contains("1.2.3")).isTrue();
+    assertThat(reopened.contains("1.2.4")).isFalse();
+
+    reopened.record("1.2.5");
+    reopened.close();
+    IngestLedger recovered = new IngestLedger(ledgerDir, 4096, TTL);
+    assertThat(recovered.contains("1.2.3")).isTrue();
+    assertThat(recovered.contains("1.2.5")).isTrue();
+  }
+
+  @Test
+  public void testIngestLedger_expires() throws Exception {
+    IngestLedger ledger = new IngestLedger(ledgerDir, 4096, 50);
+    ledger.record("1.2.3");
+    assertThat(ledger.contains("1.2.3")).isTrue();
+
+    Thread.sleep(100);
+
+    assertThat(ledger.contains("1.2.3")).isFalse();
+    ledger.compact();
+    assertThat(ledger.getEntries()).isEqualTo(0);
+  }
+
+  @Test
+  public void testIngestLedger_compactsWhenFull() throws Exception {
+    // Room for 51 records of 20 bytes.
+    IngestLedger ledger = new IngestLedger(ledgerDir, 1024, TTL);
+    for (int i = 100; i < 300; i++) {
+      ledger.record("1.2." + i);
+    }
+
+    assertThat(ledger.contains("1.2.299")).isTrue();
+    assertThat(ledger.contains("1.2.100")).isFalse();
+    assertThat(ledger.getEntries()).isAtMost(51);
+    assertThat(Files.size(ledgerDir.resolve(IngestLedger.LEDGER_FILE))).isEqualTo(1024);
+
+    ledger.close();
+    IngestLedger reopened = new IngestLedger(ledgerDir, 1024, TTL);
+    assertThat(reopened.contains("1.2.299")).isTrue();
+  }
+
+  @Test
+  public void testIngestLedger_compactKeepsLatestRecord() throws Exception {
+    IngestLedger ledger = new IngestLedger(ledgerDir, 4096, TTL);
+    ledger.record("1.2.3");
+    ledger.record("1.2.4");
+    ledger.record("1.2.3");
+
+    ledger.compact();
+
+    assertThat(ledger.contains("1.2.3")).isTrue();
+    assertThat(ledger.contains("1.2.4")).isTrue();
+    assertThat(ledger.getEntries()).isEqualTo(2);
+  }
+
+  @Test
+  public void testIngestLedger_growsIndex() throws Exception {
+    IngestLedger ledger = new IngestLedger(ledgerDir, 1024 * 1024, TTL);
+    for (int i = 0; i < 5000; i++) {
+      ledger.record("1.2.840." + i);
+    }
+
+    assertThat(ledger.getEntries()).isEqualTo(5000);
+    for (int i = 0; i < 5000; i++) {
+      assertThat(ledger.contains("1.2.840." + i)).isTrue();
+    }
+    assertThat(ledger.contains("1.2.840.5000")).isFalse();
+  }
+
+  private void corrupt(int offset) throws Exception {
+    try (FileChannel channel = FileChannel.open(ledgerDir.resolve(IngestLedger.LEDGER_FILE),
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer b = ByteBuffer.allocate(1);
+      channel.read(b, offset);
+      b.put(0, (byte) (b.get(0) ^ 0xff));
+      b.rewind();
+      channel.write(b, offset);
+    }
+  }
+}
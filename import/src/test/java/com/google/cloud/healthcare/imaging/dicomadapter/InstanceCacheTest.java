@@ -0,0 +1,140 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.healthcare.IDicomWebClient;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.dcm4che3.data.UID;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class InstanceCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path cacheDir;
+
+  @Before
+  public void setUp() {
+    cacheDir = folder.getRoot().toPath();
+  }
+
+  @Test
+  public void testInstanceCache_servesFilledInstance() throws Exception {
+    InstanceCache cache = new InstanceCache(cacheDir, 1024);
+
+    assertThat(cache.get("1.2.3", null)).isNull();
+    fill(cache, "1.2.3", UID.ExplicitVRLittleEndian, new byte[]{1, 2, 3});
+
+    assertThat(read(cache.get("1.2.3", null))).isEqualTo(new byte[]{1, 2, 3});
+    assertThat(read(cache.get("1.2.3", UID.ExplicitVRLittleEndian)))
+        .isEqualTo(new byte[]{1, 2, 3});
+    assertThat(cache.getBytes()).isEqualTo(3);
+  }
+
+  @Test
+  public void testInstanceCache_matchesTransferSyntax() throws Exception {
+    InstanceCache cache = new InstanceCache(cacheDir, 1024);
+    fill(cache, "1.2.3", UID.JPEG2000, new byte[]{1, 2, 3});
+
+    assertThat(cache.get("1.2.3", null)).isNull();
+    assertThat(cache.get("1.2.3", UID.ExplicitVRLittleEndian)).isNull();
+    assertThat(cache.contains("1.2.3", UID.JPEG2000)).isTrue();
+    assertThat(read(cache.get("1.2.3", IDicomWebClient.TRANSFER_SYNTAX_AS_STORED)))
+        .isEqualTo(new byte[]{1, 2, 3});
+  }
+
+  @Test
+  public void testInstanceCache_evictsLeastRecentlyUsed() throws Exception {
+    InstanceCache cache = new InstanceCache(cacheDir, 10);
+    fill(cache, "1.1", UID.ExplicitVRLittleEndian, new byte[4]);
+    fill(cache, "1.2", UID.ExplicitVRLittleEndian, new byte[4]);
+    read(cache.get("1.1", null));
+
+    fill(cache, "1.3", UID.ExplicitVRLittleEndian, new byte[4]);
+
+    assertThat(cache.contains("1.1", null)).isTrue();
+    assertThat(cache.contains("1.2", null)).isFalse();
+    assertThat(cache.contains("1.3", null)).isTrue();
+    assertThat(cache.getBytes()).isEqualTo(8);
+    assertThat(cacheFiles()).isEqualTo(2);
+  }
+
+  @Test
+  public void testInstanceCache_replacesInstance() throws Exception {
+    InstanceCache cache = new InstanceCache(cacheDir, 1024);
+    fill(cache, "1.2.3", UID.JPEG2000, new byte[]{1, 2, 3});
+    fill(cache, "1.2.3", UID.ExplicitVRLittleEndian, new byte[]{4, 5});
+
+    assertThat(read(cache.get("1.2.3", null))).isEqualTo(new byte[]{4, 5});
+    assertThat(cache.getBytes()).isEqualTo(2);
+  }
+
+  @Test
+  public void testInstanceCache_partialReadNotCached() throws Exception {
+    InstanceCache cache = new InstanceCache(cacheDir, 1024);
+
+    try (InputStream in = cache.fill("1.2.3", UID.ExplicitVRLittleEndian,
+        new ByteArrayInputStream(new byte[]{1, 2, 3}))) {
+      in.read();
+    }
+
+    assertThat(cache.contains("1.2.3", null)).isFalse();
+    assertThat(cache.getBytes()).isEqualTo(0);
+    assertThat(cacheFiles()).isEqualTo(0);
+  }
+
+  @Test
+  public void testInstanceCache_invalidUidPassedThrough() throws Exception {
+    InstanceCache cache = new InstanceCache(cacheDir, 1024);
+    InputStream in = new ByteArrayInputStream(new byte[]{1});
+
+    assertThat(cache.fill("../1.2.3", UID.ExplicitVRLittleEndian, in) == in).isTrue();
+  }
+
+  private static void fill(InstanceCache cache, String sopInstanceUid, String transferSyntax,
+      byte[] data) throws IOException {
+    try (InputStream in =
+        cache.fill(sopInstanceUid, transferSyntax, new ByteArrayInputStream(data))) {
+      ByteStreams.exhaust(in);
+    }
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    try (InputStream stream = in) {
+      return ByteStreams.toByteArray(stream);
+    }
+  }
+
+  private long cacheFiles() throws IOException {
+    try (Stream<Path> files = Files.list(cacheDir)) {
+      return files.count();
+    }
+  }
+}
@@ -20,9 +20,14 @@ import com.google.cloud.healthcare.imaging.dicomadapter.util.DimseRSPAssert;
 import com.google.cloud.healthcare.imaging.dicomadapter.util.PortUtil;
 import com.google.common.truth.Truth;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
@@ -43,9 +48,14 @@ import org.dcm4che3.net.service.AbstractDicomService;
 import org.dcm4che3.net.service.BasicCEchoSCP;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.dcm4che3.util.TagUtils;
 import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -63,6 +73,12 @@ public final class StorageCommitmentServiceTest {
   // Client properties.
   ApplicationEntity clientAE;
 
+  // Optional ingest ledger for the server.
+  private IngestLedger ingestLedger;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   @Before
   public void setUp() throws Exception {
     LogUtil.Log4jToStdout();
@@ -78,6 +94,13 @@ public final class StorageCommitmentServiceTest {
     device.setScheduledExecutor(Executors.newSingleThreadScheduledExecutor());
   }
 
+  @After
+  public void tearDown() throws Exception {
+    if (ingestLedger != null) {
+      ingestLedger.close();
+    }
+  }
+
   @Test
   public void testCommitmentService_found() throws Exception {
     Attributes rqAttrs = new Attributes();
@@ -101,6 +124,33 @@ public final class StorageCommitmentServiceTest {
     }, rqAttrs, Status.Success, expectReportAttrs);
   }
 
+  @Test
+  public void testCommitmentService_ingestLedgerHit() throws Exception {
+    ingestLedger = new IngestLedger(folder.getRoot().toPath(), 4096, 60 * 1000);
+    ingestLedger.record("1");
+
+    Attributes rqAttrs = new Attributes();
+    rqAttrs.setString(Tag.TransactionUID, VR.UI, "1");
+    Sequence sequence = rqAttrs.newSequence(Tag.ReferencedSOPSequence, 1);
+    Attributes seqItem = new Attributes();
+    seqItem.setString(Tag.ReferencedSOPInstanceUID, VR.UI, "1");
+    seqItem.setString(Tag.ReferencedSOPClassUID, VR.UI, "1");
+    sequence.add(seqItem);
+
+    Attributes expectReportAttrs = new Attributes(rqAttrs);
+    expectReportAttrs.setString(Tag.RetrieveAETitle, VR.AE, serverAET);
+
+    AtomicInteger qidoRequests = new AtomicInteger();
+    basicCommitmentServiceTest(new TestUtils.DicomWebClientTestBase() {
+      @Override
+      public JSONArray qidoRs(String path) throws DicomWebException {
+        qidoRequests.incrementAndGet();
+        return new JSONArray();
+      }
+    }, rqAttrs, Status.Success, expectReportAttrs);
+    Truth.assertThat(qidoRequests.get()).isEqualTo(0);
+  }
+
   @Test
   public void testCommitmentService_notFound() throws Exception {
     Attributes rqAttrs = new Attributes();
@@ -129,7 +179,138 @@ public final class StorageCommitmentServiceTest {
     }, rqAttrs, Status.Success, expectReportAttrs);
   }
 
+  @Test
+  public void testCommitmentService_batched() throws Exception {
+    String[] instanceUids = {"1.1", "1.2", "1.3"};
+    Attributes rqAttrs = new Attributes();
+    rqAttrs.setString(Tag.TransactionUID, VR.UI, "1");
+    Sequence sequence = rqAttrs.newSequence(Tag.ReferencedSOPSequence, instanceUids.length);
+    for (String instanceUid : instanceUids) {
+      Attributes seqItem = new Attributes();
+      seqItem.setString(Tag.ReferencedSOPInstanceUID, VR.UI, instanceUid);
+      seqItem.setString(Tag.ReferencedSOPClassUID, VR.UI, "1");
+      sequence.add(seqItem);
+    }
+
+    Attributes expectReportAttrs = new Attributes();
+    expectReportAttrs.setString(Tag.RetrieveAETitle, VR.AE, serverAET);
+    expectReportAttrs.setString(Tag.TransactionUID, VR.UI, "1");
+    Sequence failedSequence = expectReportAttrs.newSequence(Tag.FailedSOPSequence, 1);
+    Sequence presentSequence = expectReportAttrs.newSequence(Tag.ReferencedSOPSequence, 2);
+    for (String instanceUid : instanceUids) {
+      Attributes seqItem = new Attributes();
+      seqItem.setString(Tag.ReferencedSOPInstanceUID, VR.UI, instanceUid);
+      seqItem.setString(Tag.ReferencedSOPClassUID, VR.UI, "1");
+      if (instanceUid.equals("1.2")) {
+        seqItem.setInt(Tag.FailureReason, VR.US, Status.NoSuchObjectInstance);
+        failedSequence.add(seqItem);
+      } else {
+        presentSequence.add(seqItem);
+      }
+    }
+
+    // Answers UID list lookups, without instance 1.2.
+    String uidListKey = TagUtils.toHexString(Tag.SOPInstanceUID) + "=";
+    basicCommitmentServiceTest(new TestUtils.DicomWebClientTestBase() {
+      @Override
+      public JSONArray qidoRs(String path) throws DicomWebException {
+        JSONArray instances = new JSONArray();
+        for (String parameter : path.substring(path.indexOf('?') + 1).split("&")) {
+          if (!parameter.startsWith(uidListKey)) {
+            continue;
+          }
+          for (String instanceUid : parameter.substring(uidListKey.length()).split(",")) {
+            if (!instanceUid.equals("1.2")) {
+              JSONObject instance = new JSONObject();
+              instance.put(TagUtils.toHexString(Tag.SOPInstanceUID),
+                  new JSONObject().put("vr", "UI").put("Value", new JSONArray().put(instanceUid)));
+              instances.put(instance);
+            }
+          }
+        }
+        return instances;
+      }
+    }, 2, 2, rqAttrs, Status.Success, expectReportAttrs);
+  }
+
+  @Test
+  public void testCommitmentService_studyListed() throws Exception {
+    // Study 2.1 has few instances besides those referenced, study 2.2 many.
+    String[][] studies = {{"2.1", "1.1", "1.2", "1.3"}, {"2.2", "1.4", "1.5", "1.6"}};
+    Attributes rqAttrs = new Attributes();
+    rqAttrs.setString(Tag.TransactionUID, VR.UI, "1");
+    Sequence sequence = rqAttrs.newSequence(Tag.ReferencedSOPSequence, 6);
+    Attributes expectReportAttrs = new Attributes();
+    expectReportAttrs.setString(Tag.RetrieveAETitle, VR.AE, serverAET);
+    expectReportAttrs.setString(Tag.TransactionUID, VR.UI, "1");
+    Sequence failedSequence = expectReportAttrs.newSequence(Tag.FailedSOPSequence, 1);
+    Sequence presentSequence = expectReportAttrs.newSequence(Tag.ReferencedSOPSequence, 5);
+    for (String[] study : studies) {
+      for (int i = 1; i < study.length; i++) {
+        Attributes seqItem = new Attributes();
+        seqItem.setString(Tag.ReferencedSOPInstanceUID, VR.UI, study[i]);
+        seqItem.setString(Tag.ReferencedSOPClassUID, VR.UI, "1");
+        Attributes reportItem = new Attributes(seqItem);
+        seqItem.setString(Tag.StudyInstanceUID, VR.UI, study[0]);
+        sequence.add(seqItem);
+        if (study[i].equals("1.2")) {
+          reportItem.setInt(Tag.FailureReason, VR.US, Status.NoSuchObjectInstance);
+          failedSequence.add(reportItem);
+        } else {
+          presentSequence.add(reportItem);
+        }
+      }
+    }
+
+    List<String> paths = Collections.synchronizedList(new ArrayList<>());
+    String studyKey = TagUtils.toHexString(Tag.StudyInstanceUID) + "=";
+    basicCommitmentServiceTest(new TestUtils.DicomWebClientTestBase() {
+      @Override
+      public JSONArray qidoRs(String path) throws DicomWebException {
+        paths.add(path);
+        JSONArray results = new JSONArray();
+        if (path.startsWith("studies?" + studyKey)) {
+          String studyUid = path.substring(path.indexOf('=') + 1, path.indexOf('&'));
+          int studySize = studyUid.equals("2.1") ? 4 : 1000;
+          results.put(new JSONObject().put(
+              TagUtils.toHexString(Tag.NumberOfStudyRelatedInstances),
+              new JSONObject().put("vr", "IS").put("Value", new JSONArray().put(studySize))));
+        } else if (path.startsWith("studies/2.1/instances")) {
+          // Lists the study without instance 1.2.
+          results.put(instance("1.1")).put(instance("1.3")).put(instance("1.7"));
+        } else {
+          // Single instance lookups of study 2.2.
+          results.put(TestUtils.dummyQidorsInstance());
+        }
+        return results;
+      }
+    }, 2, 1, rqAttrs, Status.Success, expectReportAttrs);
+
+    // Study 2.1 is listed, the instances of study 2.2 looked up one by one.
+    Truth.assertThat(paths.stream().filter(path -> path.startsWith("studies/"))
+        .collect(Collectors.toList()))
+        .containsExactly("studies/2.1/instances?includefield="
+            + TagUtils.toHexString(Tag.SOPInstanceUID) + "&");
+    Truth.assertThat(paths.stream().filter(path -> path.startsWith("instances?")).count())
+        .isEqualTo(3L);
+  }
+
+  private static JSONObject instance(String instanceUid) {
+    return new JSONObject().put(TagUtils.toHexString(Tag.SOPInstanceUID),
+        new JSONObject().put("vr", "UI").put("Value", new JSONArray().put(instanceUid)));
+  }
+
+  public void basicCommitmentServiceTest(IDicomWebClient serverDicomWebClient,
+      Attributes requestData,
+      int expectedStatus,
+      Attributes expectReportAttrs) throws Exception {
+    basicCommitmentServiceTest(serverDicomWebClient, 1, 1, requestData, expectedStatus,
+        expectReportAttrs);
+  }
+
   public void basicCommitmentServiceTest(IDicomWebClient serverDicomWebClient,
+      int qidoConcurrency,
+      int qidoBatchSize,
       Attributes requestData,
       int expectedStatus,
       Attributes expectReportAttrs) throws Exception {
@@ -137,7 +318,8 @@ public final class StorageCommitmentServiceTest {
     int scuPort = PortUtil.getFreePort();
     CompletableFuture<Boolean> checkFuture = new CompletableFuture<>();
     createSCUDevice(scuPort, expectReportAttrs, checkFuture);
-    int serverPort = createDicomServer(serverDicomWebClient, scuPort);
+    int serverPort = createDicomServer(serverDicomWebClient, qidoConcurrency, qidoBatchSize,
+        scuPort);
 
     // Associate with peer AE.
     Association association =
@@ -176,14 +358,16 @@ public final class StorageCommitmentServiceTest {
   }
 
   // Creates a DICOM service and returns the port it is listening on.
-  private int createDicomServer(IDicomWebClient dicomWebClient, int scuPort) throws Exception {
+  private int createDicomServer(IDicomWebClient dicomWebClient, int qidoConcurrency,
+      int qidoBatchSize, int scuPort) throws Exception {
     int serverPort = PortUtil.getFreePort();
 
     DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
     serviceRegistry.addDicomService(new BasicCEchoSCP());
     AetDictionary aetDict = new AetDictionary(new AetDictionary.Aet[]{
         new AetDictionary.Aet(clientAET, clientHostname, scuPort)});
-    StorageCommitmentService cmtService = new StorageCommitmentService(dicomWebClient, aetDict);
+    StorageCommitmentService cmtService = new StorageCommitmentService(dicomWebClient, aetDict,
+        new AssociationPool(0), qidoConcurrency, qidoBatchSize, 0, ingestLedger);
     serviceRegistry.addDicomService(cmtService);
 
     Device serverDevice = DeviceUtil.createServerDevice(serverAET, serverPort, serviceRegistry);
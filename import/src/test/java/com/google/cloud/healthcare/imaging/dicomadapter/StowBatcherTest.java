@@ -0,0 +1,199 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.healthcare.imaging.dicomadapter.TestUtils.DicomWebClientTestBase;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4che3.util.TagUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class StowBatcherTest {
+
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private StowUploadPipeline pipeline;
+  private StowBatcher batcher;
+
+  @Before
+  public void setUp() {
+    pipeline = new StowUploadPipeline(2, 1024 * 1024);
+  }
+
+  @After
+  public void tearDown() {
+    if (batcher != null) {
+      batcher.close();
+    }
+    pipeline.close();
+  }
+
+  @Test
+  public void testBatcher_sendsFullBatch() throws Exception {
+    RecordingStowClient client = new RecordingStowClient(new JSONObject());
+    batcher = new StowBatcher("studies", client, pipeline, 3, 1024 * 1024,
+        TimeUnit.HOURS.toMillis(1));
+
+    List<CompletableFuture<Throwable>> results = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      results.add(add("AE", "1.2." + i, new byte[]{(byte) i}));
+    }
+
+    for (CompletableFuture<Throwable> result : results) {
+      assertThat(result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isNull();
+    }
+    assertThat(client.getBatches()).hasSize(1);
+    assertThat(client.getBatches().get(0)).hasSize(3);
+    assertThat(client.getBatches().get(0).get(2)).isEqualTo(new byte[]{2});
+    assertThat(pipeline.getInFlightBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testBatcher_sendsAfterLinger() throws Exception {
+    RecordingStowClient client = new RecordingStowClient(new JSONObject());
+    batcher = new StowBatcher("studies", client, pipeline, 100, 1024 * 1024, 10);
+
+    CompletableFuture<Throwable> first = add("AE1", "1.2.1", new byte[]{1});
+    CompletableFuture<Throwable> second = add("AE2", "1.2.2", new byte[]{2});
+
+    assertThat(first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isNull();
+    assertThat(second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isNull();
+    // Separate keys are never batched together.
+    assertThat(client.getBatches()).hasSize(2);
+  }
+
+  @Test
+  public void testBatcher_mapsFailedSops() throws Exception {
+    JSONObject response = new JSONObject();
+    response.put(TagUtils.toHexString(Tag.FailedSOPSequence),
+        sequence(failedSop("1.2.2", Status.DataSetDoesNotMatchSOPClassError)));
+    RecordingStowClient client = new RecordingStowClient(response);
+    batcher = new StowBatcher("studies", client, pipeline, 2, 1024 * 1024,
+        TimeUnit.HOURS.toMillis(1));
+
+    CompletableFuture<Throwable> stored = add("AE", "1.2.1", new byte[]{1});
+    CompletableFuture<Throwable> failed = add("AE", "1.2.2", new byte[]{2});
+
+    assertThat(stored.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isNull();
+    Throwable failure = failed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    assertThat(failure).isInstanceOf(DicomServiceException.class);
+    assertThat(((DicomServiceException) failure).getStatus())
+        .isEqualTo(Status.DataSetDoesNotMatchSOPClassError);
+  }
+
+  @Test
+  public void testBatcher_requestErrorFailsAll() throws Exception {
+    RecordingStowClient client = new RecordingStowClient(null);
+    batcher = new StowBatcher("studies", client, pipeline, 2, 1024 * 1024,
+        TimeUnit.HOURS.toMillis(1));
+
+    CompletableFuture<Throwable> first = add("AE", "1.2.1", new byte[]{1});
+    CompletableFuture<Throwable> second = add("AE", "1.2.2", new byte[]{2});
+
+    assertThat(first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isNotNull();
+    assertThat(second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isNotNull();
+    assertThat(pipeline.getInFlightBytes()).isEqualTo(0);
+  }
+
+  private CompletableFuture<Throwable> add(String key, String sopInstanceUID, byte[] data)
+      throws IOException {
+    CompletableFuture<Throwable> result = new CompletableFuture<>();
+    batcher.add(key, sopInstanceUID, pipeline.buffer(new ByteArrayInputStream(data)),
+        result::complete);
+    return result;
+  }
+
+  private static JSONObject failedSop(String sopInstanceUID, int failureReason) {
+    JSONObject item = new JSONObject();
+    item.put(TagUtils.toHexString(Tag.ReferencedSOPInstanceUID),
+        attribute(VR.UI, sopInstanceUID));
+    item.put(TagUtils.toHexString(Tag.FailureReason), attribute(VR.US, failureReason));
+    return item;
+  }
+
+  private static JSONObject attribute(VR vr, Object value) {
+    JSONObject attribute = new JSONObject();
+    attribute.put("vr", vr.toString());
+    attribute.put("Value", new JSONArray().put(value));
+    return attribute;
+  }
+
+  private static JSONObject sequence(JSONObject item) {
+    JSONObject sequence = new JSONObject();
+    sequence.put("vr", VR.SQ.toString());
+    sequence.put("Value", new JSONArray().put(item));
+    return sequence;
+  }
+
+  private static class RecordingStowClient extends DicomWebClientTestBase {
+
+    private final List<List<byte[]>> batches = Collections.synchronizedList(new ArrayList<>());
+    private final JSONObject response;
+
+    /**
+     * @param response returned for every batch, null to fail the request
+     */
+    RecordingStowClient(JSONObject response) {
+      this.response = response;
+    }
+
+    List<List<byte[]>> getBatches() {
+      return batches;
+    }
+
+    @Override
+    public JSONArray qidoRs(String path) throws DicomWebException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public JSONObject stowRsMultipart(String path, List<InputStream> instances)
+        throws DicomWebException {
+      if (response == null) {
+        throw new DicomWebException("mock error", Status.ProcessingFailure);
+      }
+      List<byte[]> batch = new ArrayList<>();
+      try {
+        for (InputStream in : instances) {
+          batch.add(ByteStreams.toByteArray(in));
+        }
+      } catch (IOException e) {
+        throw new DicomWebException(e);
+      }
+      batches.add(batch);
+      return response;
+    }
+  }
+}
@@ -0,0 +1,226 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.healthcare.imaging.dicomadapter.TestUtils.DicomWebClientTestBase;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class StowSpoolTest {
+
+  private static final long TIMEOUT_MILLIS = 10000;
+  private static final int HTTP_BAD_REQUEST = 400;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path spoolDir;
+  private StowSpool spool;
+
+  @Before
+  public void setUp() {
+    spoolDir = folder.getRoot().toPath();
+  }
+
+  @After
+  public void tearDown() {
+    if (spool != null) {
+      spool.close();
+    }
+  }
+
+  @Test
+  public void testSpool_uploadsAndRemoves() throws Exception {
+    RecordingStowClient client = new RecordingStowClient();
+    spool = new StowSpool(spoolDir, 1024 * 1024, 10, 0, "studies", client, 1);
+    spool.start();
+
+    spool.spool(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+
+    waitFor(() -> spool.getSpooledFiles() == 0);
+    assertThat(client.getUploads()).hasSize(1);
+    assertThat(client.getUploads().get(0)).isEqualTo(new byte[]{1, 2, 3});
+    assertThat(spool.getSpooledBytes()).isEqualTo(0);
+    assertThat(spoolFiles()).isEmpty();
+  }
+
+  @Test
+  public void testSpool_invalidatesCachedResultsOnceUploaded() throws Exception {
+    AtomicInteger qidoCalls = new AtomicInteger();
+    CachingDicomWebClient qidoCache = new CachingDicomWebClient(new DicomWebClientTestBase() {
+      @Override
+      public JSONArray qidoRs(String path) {
+        qidoCalls.incrementAndGet();
+        return new JSONArray();
+      }
+    }, 60000, 100);
+    RecordingStowClient client = new RecordingStowClient();
+    client.blockUploads();
+    spool = new StowSpool(spoolDir, 1024 * 1024, 10, 0, "studies", client, 1, qidoCache);
+    spool.start();
+
+    qidoCache.qidoRs("studies?00100020=1&");
+    spool.spool(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+    // Not stored yet, results loaded now would be as stale as the cached ones.
+    qidoCache.qidoRs("studies?00100020=1&");
+    assertThat(qidoCalls.get()).isEqualTo(1);
+
+    client.unblockUploads();
+    waitFor(() -> spool.getSpooledFiles() == 0);
+    qidoCache.qidoRs("studies?00100020=1&");
+    assertThat(qidoCalls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testSpool_recoversAfterRestart() throws Exception {
+    Files.write(spoolDir.resolve("0000000000001-000001" + StowSpool.SPOOL_SUFFIX),
+        new byte[]{1});
+    Files.write(spoolDir.resolve("0000000000002-000002" + StowSpool.SPOOL_SUFFIX),
+        new byte[]{2});
+    Files.write(spoolDir.resolve("0000000000003-000003" + StowSpool.TEMP_SUFFIX),
+        new byte[]{3});
+
+    RecordingStowClient client = new RecordingStowClient();
+    spool = new StowSpool(spoolDir, 1024 * 1024, 10, 0, "studies", client, 1);
+    spool.start();
+
+    waitFor(() -> spool.getSpooledFiles() == 0);
+    assertThat(client.getUploads()).hasSize(2);
+    assertThat(client.getUploads().get(0)).isEqualTo(new byte[]{1});
+    assertThat(client.getUploads().get(1)).isEqualTo(new byte[]{2});
+    assertThat(spoolFiles()).isEmpty();
+  }
+
+  @Test
+  public void testSpool_fullRejectsWithOutOfResources() throws Exception {
+    RecordingStowClient client = new RecordingStowClient();
+    client.blockUploads();
+    spool = new StowSpool(spoolDir, 1024 * 1024, 1, 100, "studies", client, 1);
+    spool.start();
+
+    spool.spool(new ByteArrayInputStream(new byte[]{1}));
+    try {
+      spool.spool(new ByteArrayInputStream(new byte[]{2}));
+      fail("Expected DicomServiceException");
+    } catch (DicomServiceException e) {
+      assertThat(e.getStatus()).isEqualTo(Status.OutOfResources);
+    }
+
+    client.unblockUploads();
+    waitFor(() -> spool.getSpooledFiles() == 0);
+    spool.spool(new ByteArrayInputStream(new byte[]{3}));
+    waitFor(() -> client.getUploads().size() == 2);
+  }
+
+  @Test
+  public void testSpool_rejectedInstanceMovedToFailed() throws Exception {
+    RecordingStowClient client = new RecordingStowClient();
+    client.failWith(HTTP_BAD_REQUEST);
+    spool = new StowSpool(spoolDir, 1024 * 1024, 10, 0, "studies", client, 1);
+    spool.start();
+
+    spool.spool(new ByteArrayInputStream(new byte[]{1}));
+
+    waitFor(() -> spool.getSpooledFiles() == 0);
+    assertThat(spoolFiles()).isEmpty();
+    assertThat(spoolDir.resolve(StowSpool.FAILED_DIRECTORY).toFile().list()).hasLength(1);
+  }
+
+  private List<String> spoolFiles() {
+    List<String> result = new ArrayList<>();
+    for (File file : spoolDir.toFile().listFiles()) {
+      if (file.isFile()) {
+        result.add(file.getName());
+      }
+    }
+    return result;
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Timed out waiting for condition");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private static class RecordingStowClient extends DicomWebClientTestBase {
+
+    private final List<byte[]> uploads = Collections.synchronizedList(new ArrayList<>());
+    private volatile CountDownLatch block = new CountDownLatch(0);
+    private volatile int failHttpStatus;
+
+    void blockUploads() {
+      block = new CountDownLatch(1);
+    }
+
+    void unblockUploads() {
+      block.countDown();
+    }
+
+    void failWith(int httpStatus) {
+      failHttpStatus = httpStatus;
+    }
+
+    List<byte[]> getUploads() {
+      return uploads;
+    }
+
+    @Override
+    public JSONArray qidoRs(String path) throws DicomWebException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void stowRs(String path, InputStream in) throws DicomWebException {
+      try {
+        block.await();
+        if (failHttpStatus != 0) {
+          throw new DicomWebException("mock error", failHttpStatus, Status.ProcessingFailure);
+        }
+        uploads.add(ByteStreams.toByteArray(in));
+      } catch (InterruptedException | IOException e) {
+        throw new DicomWebException(e);
+      }
+    }
+  }
+}
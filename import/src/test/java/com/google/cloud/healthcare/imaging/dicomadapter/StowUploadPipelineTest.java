@@ -0,0 +1,126 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class StowUploadPipelineTest {
+
+  private static final int CHUNK_SIZE = StowUploadPipeline.CHUNK_SIZE;
+
+  private StowUploadPipeline pipeline;
+
+  @After
+  public void tearDown() {
+    if (pipeline != null) {
+      pipeline.close();
+    }
+  }
+
+  @Test
+  public void testBuffer_smallInstanceBuffered() throws Exception {
+    pipeline = new StowUploadPipeline(1, 4 * CHUNK_SIZE);
+    byte[] data = testData(CHUNK_SIZE + 10);
+
+    StowUploadPipeline.Instance instance = pipeline.buffer(new ByteArrayInputStream(data));
+
+    assertThat(instance.isBuffered()).isTrue();
+    assertThat(instance.getSize()).isEqualTo(data.length);
+    assertThat(pipeline.getInFlightBytes()).isEqualTo(2 * CHUNK_SIZE);
+    assertThat(ByteStreams.toByteArray(instance.getInputStream())).isEqualTo(data);
+    instance.close();
+    assertThat(pipeline.getInFlightBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testBuffer_largeInstanceStreamed() throws Exception {
+    pipeline = new StowUploadPipeline(1, 4 * CHUNK_SIZE);
+    byte[] data = testData(5 * CHUNK_SIZE + 10);
+
+    StowUploadPipeline.Instance instance = pipeline.buffer(new ByteArrayInputStream(data));
+
+    assertThat(instance.isBuffered()).isFalse();
+    assertThat(instance.getSize()).isEqualTo(2 * CHUNK_SIZE);
+    assertThat(ByteStreams.toByteArray(instance.getInputStream())).isEqualTo(data);
+    instance.close();
+    assertThat(pipeline.getInFlightBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testBuffer_streamedWhenBudgetRunsOut() throws Exception {
+    pipeline = new StowUploadPipeline(1, 4 * CHUNK_SIZE);
+    StowUploadPipeline.Instance first =
+        pipeline.buffer(new ByteArrayInputStream(testData(CHUNK_SIZE + 10)));
+    StowUploadPipeline.Instance second =
+        pipeline.buffer(new ByteArrayInputStream(testData(10)));
+
+    byte[] data = testData(2 * CHUNK_SIZE);
+    StowUploadPipeline.Instance third = pipeline.buffer(new ByteArrayInputStream(data));
+
+    assertThat(third.isBuffered()).isFalse();
+    assertThat(ByteStreams.toByteArray(third.getInputStream())).isEqualTo(data);
+    first.close();
+    second.close();
+    third.close();
+    assertThat(pipeline.getInFlightBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testBuffer_waitsForBudget() throws Exception {
+    pipeline = new StowUploadPipeline(1, 2 * CHUNK_SIZE);
+    StowUploadPipeline.Instance first =
+        pipeline.buffer(new ByteArrayInputStream(testData(10)));
+    StowUploadPipeline.Instance other =
+        pipeline.buffer(new ByteArrayInputStream(testData(10)));
+
+    CompletableFuture<StowUploadPipeline.Instance> second = CompletableFuture.supplyAsync(() -> {
+      try {
+        return pipeline.buffer(new ByteArrayInputStream(testData(10)));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    try {
+      second.get(100, TimeUnit.MILLISECONDS);
+      throw new AssertionError("Expected buffer() to wait for budget");
+    } catch (TimeoutException expected) {
+    }
+
+    first.close();
+    StowUploadPipeline.Instance instance = second.get(10, TimeUnit.SECONDS);
+    assertThat(instance.isBuffered()).isTrue();
+    instance.close();
+    other.close();
+  }
+
+  private static byte[] testData(int size) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) i;
+    }
+    return data;
+  }
+}
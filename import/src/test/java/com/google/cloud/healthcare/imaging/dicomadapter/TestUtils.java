@@ -17,6 +17,7 @@ package com.google.cloud.healthcare.imaging.dicomadapter;
 import com.github.danieln.multipart.MultipartInput;
 import com.google.cloud.healthcare.IDicomWebClient;
 import java.io.InputStream;
+import java.util.List;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.util.TagUtils;
@@ -50,9 +51,20 @@ public class TestUtils {
       return null;
     }
 
+    @Override
+    public MultipartInput wadoRs(String path, String transferSyntax) throws DicomWebException {
+      return wadoRs(path);
+    }
+
     @Override
     public void stowRs(String path, InputStream in) throws DicomWebException {
 
     }
+
+    @Override
+    public JSONObject stowRsMultipart(String path, List<InputStream> instances)
+        throws DicomWebException {
+      return new JSONObject();
+    }
   }
 }
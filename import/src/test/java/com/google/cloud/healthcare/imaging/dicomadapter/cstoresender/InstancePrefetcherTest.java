@@ -0,0 +1,196 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter.cstoresender;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.github.danieln.multipart.MultipartInput;
+import com.google.cloud.healthcare.IDicomWebClient.DicomWebException;
+import com.google.cloud.healthcare.imaging.dicomadapter.TestUtils.DicomWebClientTestBase;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.dcm4che3.net.Status;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class InstancePrefetcherTest {
+
+  private static final int CHUNK_SIZE = InstancePrefetcher.CHUNK_SIZE;
+  private static final String BOUNDARY = "prefetch-test";
+
+  private final WadoClient client = new WadoClient();
+  private InstancePrefetcher prefetcher;
+
+  @After
+  public void tearDown() {
+    if (prefetcher != null) {
+      prefetcher.close();
+    }
+  }
+
+  @Test
+  public void testPrefetch_smallInstanceInMemory() throws Exception {
+    prefetcher = new InstancePrefetcher(client, 4 * CHUNK_SIZE);
+    byte[] data = client.add("a", CHUNK_SIZE + 10);
+
+    prefetcher.prefetch("a", null);
+    InstancePrefetcher.Instance instance = prefetcher.take("a");
+
+    assertThat(instance.isSpilled()).isFalse();
+    assertThat(prefetcher.getMemoryBytes()).isEqualTo(2 * CHUNK_SIZE);
+    assertThat(ByteStreams.toByteArray(instance.getInputStream())).isEqualTo(data);
+    instance.close();
+    assertThat(prefetcher.getMemoryBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testPrefetch_chunkSizedInstance() throws Exception {
+    prefetcher = new InstancePrefetcher(client, 4 * CHUNK_SIZE);
+    byte[] data = client.add("a", 2 * CHUNK_SIZE);
+
+    prefetcher.prefetch("a", null);
+    InstancePrefetcher.Instance instance = prefetcher.take("a");
+
+    assertThat(ByteStreams.toByteArray(instance.getInputStream())).isEqualTo(data);
+    instance.close();
+  }
+
+  @Test
+  public void testPrefetch_largeInstanceSpilled() throws Exception {
+    prefetcher = new InstancePrefetcher(client, 2 * CHUNK_SIZE);
+    byte[] data = client.add("a", 5 * CHUNK_SIZE + 10);
+
+    prefetcher.prefetch("a", null);
+    InstancePrefetcher.Instance instance = prefetcher.take("a");
+
+    assertThat(instance.isSpilled()).isTrue();
+    assertThat(prefetcher.getMemoryBytes()).isEqualTo(0);
+    assertThat(ByteStreams.toByteArray(instance.getInputStream())).isEqualTo(data);
+    instance.close();
+  }
+
+  @Test
+  public void testTake_notPrefetched() throws Exception {
+    prefetcher = new InstancePrefetcher(client, 2 * CHUNK_SIZE);
+
+    assertThat(prefetcher.take("a")).isNull();
+  }
+
+  @Test
+  public void testTake_downloadError() throws Exception {
+    prefetcher = new InstancePrefetcher(client, 2 * CHUNK_SIZE);
+
+    prefetcher.prefetch("missing", null);
+    try {
+      prefetcher.take("missing");
+      throw new AssertionError("Expected DicomWebException");
+    } catch (DicomWebException expected) {
+      assertThat(expected.getStatus()).isEqualTo(Status.ProcessingFailure);
+    }
+  }
+
+  @Test
+  public void testClose_releasesUntakenInstances() throws Exception {
+    prefetcher = new InstancePrefetcher(client, 4 * CHUNK_SIZE);
+    client.add("a", 10);
+    client.add("b", 10);
+
+    prefetcher.prefetch("a", null);
+    prefetcher.prefetch("b", null);
+    prefetcher.take("a").close();
+    prefetcher.close();
+
+    assertThat(prefetcher.getMemoryBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void testPrefetch_sharedExecutor() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      prefetcher = new InstancePrefetcher(client, 4 * CHUNK_SIZE, executor);
+      InstancePrefetcher other = new InstancePrefetcher(client, 4 * CHUNK_SIZE, executor);
+      byte[] a = client.add("a", 10);
+      client.add("b", 10);
+      byte[] c = client.add("c", 10);
+
+      prefetcher.prefetch("a", null);
+      other.prefetch("b", null);
+      other.prefetch("c", null);
+      other.close();
+      prefetcher.prefetch("c", null);
+
+      // Closing a prefetcher leaves the shared executor to the others.
+      assertThat(executor.isShutdown()).isFalse();
+      try (InstancePrefetcher.Instance instance = prefetcher.take("a")) {
+        assertThat(ByteStreams.toByteArray(instance.getInputStream())).isEqualTo(a);
+      }
+      try (InstancePrefetcher.Instance instance = prefetcher.take("c")) {
+        assertThat(ByteStreams.toByteArray(instance.getInputStream())).isEqualTo(c);
+      }
+      assertThat(other.take("b")).isNull();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static class WadoClient extends DicomWebClientTestBase {
+
+    private final Map<String, byte[]> instances = new HashMap<>();
+
+    byte[] add(String path, int size) {
+      byte[] data = new byte[size];
+      for (int i = 0; i < size; i++) {
+        data[i] = (byte) i;
+      }
+      instances.put(path, data);
+      return data;
+    }
+
+    @Override
+    public synchronized MultipartInput wadoRs(String path) throws DicomWebException {
+      byte[] data = instances.get(path);
+      if (data == null) {
+        throw new DicomWebException("Not found", Status.ProcessingFailure);
+      }
+      try {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\nContent-Type: application/dicom\r\n\r\n")
+            .getBytes(StandardCharsets.UTF_8));
+        body.write(data);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return new MultipartInput(new ByteArrayInputStream(body.toByteArray()),
+            "multipart/related; type=\"application/dicom\"; boundary=" + BOUNDARY);
+      } catch (IOException e) {
+        throw new DicomWebException(e);
+      }
+    }
+
+    @Override
+    public JSONArray qidoRs(String path) throws DicomWebException {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,239 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.util.TagUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding of a QIDO-RS response into C-FIND results, with the streaming decoder and with the
+ * org.json based one it replaced.
+ *
+ * Responses hold the attributes the Cloud Healthcare API returns by default at each query level.
+ * Run with:
+ *   ./gradlew :util:jmhJar
+ *   java -jar /tmp/gradle_build/dicom_adapter/util/libs/util-0.0.1-jmh.jar \
+ *       JsonToAttributesBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonToAttributesBenchmark {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  @Param({"STUDY", "SERIES", "IMAGE"})
+  public String level;
+
+  @Param({"1000"})
+  public int results;
+
+  private byte[] response;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < results; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      appendResult(json, i);
+    }
+    response = json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public void streaming(Blackhole blackhole) throws IOException {
+    try (JsonParser parser = JSON_FACTORY.createParser(new ByteArrayInputStream(response))) {
+      parser.nextToken();
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        blackhole.consume(AttributesUtil.jsonToAttributes(parser));
+      }
+    }
+  }
+
+  @Benchmark
+  public void orgJson(Blackhole blackhole) throws IOException {
+    JSONTokener tokener = new JSONTokener(
+        new InputStreamReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8));
+    for (Object result : new JSONArray(tokener)) {
+      blackhole.consume(orgJsonToAttributes((JSONObject) result));
+    }
+  }
+
+  private void appendResult(StringBuilder json, int i) {
+    String study = "1.2.840.113619.2.176.3596.3364818.7819.1259708454." + i;
+    String series = study + ".1";
+    json.append('{');
+    appendString(json, Tag.SpecificCharacterSet, "CS", "ISO_IR 192");
+    appendString(json, Tag.StudyDate, "DA", "20191017");
+    appendString(json, Tag.StudyTime, "TM", "101530.123");
+    appendString(json, Tag.AccessionNumber, "SH", "A" + i);
+    appendString(json, Tag.ReferringPhysicianName, "PN", null);
+    appendString(json, Tag.PatientID, "LO", "PID" + i);
+    json.append('"').append(TagUtils.toHexString(Tag.PatientName))
+        .append("\":{\"vr\":\"PN\",\"Value\":[{\"Alphabetic\":\"Yamada^Tarou\","
+            + "\"Ideographic\":\"山田^太郎\",\"Phonetic\":\"やまだ^たろう\"}]},");
+    appendString(json, Tag.PatientBirthDate, "DA", "19700101");
+    appendString(json, Tag.PatientSex, "CS", "M");
+    appendString(json, Tag.StudyInstanceUID, "UI", study);
+    appendString(json, Tag.StudyID, "SH", "S" + i);
+    switch (level) {
+      case "STUDY":
+        appendString(json, Tag.ModalitiesInStudy, "CS", "MR");
+        appendNumber(json, Tag.NumberOfStudyRelatedSeries, "IS", "4");
+        appendNumber(json, Tag.NumberOfStudyRelatedInstances, "IS", "480");
+        break;
+      case "SERIES":
+        appendString(json, Tag.Modality, "CS", "MR");
+        appendString(json, Tag.SeriesInstanceUID, "UI", series);
+        appendNumber(json, Tag.SeriesNumber, "IS", "1");
+        appendNumber(json, Tag.NumberOfSeriesRelatedInstances, "IS", "120");
+        appendRequestAttributes(json);
+        break;
+      default:
+        appendString(json, Tag.Modality, "CS", "MR");
+        appendString(json, Tag.SeriesInstanceUID, "UI", series);
+        appendNumber(json, Tag.SeriesNumber, "IS", "1");
+        appendString(json, Tag.SOPClassUID, "UI", "1.2.840.10008.5.1.4.1.1.4");
+        appendString(json, Tag.SOPInstanceUID, "UI", series + "." + i);
+        appendNumber(json, Tag.InstanceNumber, "IS", String.valueOf(i));
+        appendNumber(json, Tag.Rows, "US", "512");
+        appendNumber(json, Tag.Columns, "US", "512");
+        appendNumber(json, Tag.BitsAllocated, "US", "16");
+        appendNumber(json, Tag.NumberOfFrames, "IS", "1");
+        appendRequestAttributes(json);
+    }
+    appendString(json, Tag.RetrieveURL, "UR",
+        "https://healthcare.googleapis.com/v1beta1/projects/p/locations/l/datasets/d/"
+            + "dicomStores/s/dicomWeb/studies/" + study);
+    json.setLength(json.length() - 1);
+    json.append('}');
+  }
+
+  private static void appendRequestAttributes(StringBuilder json) {
+    json.append('"').append(TagUtils.toHexString(Tag.RequestAttributesSequence))
+        .append("\":{\"vr\":\"SQ\",\"Value\":[{");
+    appendString(json, Tag.RequestedProcedureID, "SH", "RP1");
+    appendString(json, Tag.ScheduledProcedureStepID, "SH", "SPS1");
+    json.setLength(json.length() - 1);
+    json.append("}]},");
+  }
+
+  private static void appendString(StringBuilder json, int tag, String vr, String value) {
+    json.append('"').append(TagUtils.toHexString(tag)).append("\":{\"vr\":\"").append(vr);
+    if (value != null) {
+      json.append("\",\"Value\":[\"").append(value).append("\"]},");
+    } else {
+      json.append("\"},");
+    }
+  }
+
+  private static void appendNumber(StringBuilder json, int tag, String vr, String value) {
+    json.append('"').append(TagUtils.toHexString(tag)).append("\":{\"vr\":\"").append(vr)
+        .append("\",\"Value\":[").append(value).append("]},");
+  }
+
+  // The org.json based decoder, as it was before the streaming one replaced it.
+
+  private static Attributes orgJsonToAttributes(JSONObject jsonDataset) {
+    Attributes attributes = new Attributes();
+    for (String tag : jsonDataset.keySet()) {
+      JSONObject element = jsonDataset.getJSONObject(tag);
+      int tagInt = TagUtils.forName(tag);
+      VR vr = VR.valueOf(element.getString("vr"));
+      if (element.has("Value")) {
+        orgJsonSetAttributeValue(attributes, tagInt, vr, (JSONArray) element.get("Value"));
+      } else {
+        attributes.setValue(tagInt, vr, null);
+      }
+    }
+    return attributes;
+  }
+
+  private static void orgJsonSetAttributeValue(Attributes attrs, int tag, VR vr,
+      JSONArray jsonValues) {
+    if (vr == VR.PN) {
+      List<String> results = new ArrayList<>();
+      for (Object itemObj : jsonValues) {
+        JSONObject item = (JSONObject) itemObj;
+        String alphabetic = item.has("Alphabetic") ? item.getString("Alphabetic") : "";
+        String ideographic = item.has("Ideographic") ? item.getString("Ideographic") : "";
+        String phonetic = item.has("Phonetic") ? item.getString("Phonetic") : "";
+        StringBuilder result = new StringBuilder();
+        result.append(alphabetic);
+        if (ideographic.length() > 0 || phonetic.length() > 0) {
+          result.append("=");
+        }
+        result.append(ideographic);
+        if (phonetic.length() > 0) {
+          result.append("=");
+        }
+        result.append(phonetic);
+        results.add(result.toString());
+      }
+      attrs.setString(tag, VR.PN, results.toArray(new String[0]));
+    } else if (vr.isStringType() || vr == VR.AT) {
+      String[] values = jsonValues.toList().stream().map(Object::toString)
+          .collect(Collectors.toList()).toArray(new String[]{});
+      attrs.setString(tag, vr, values);
+    } else if (vr.isIntType()) {
+      int[] values = jsonValues.toList().stream().mapToInt(i -> Integer.parseInt(i.toString()))
+          .toArray();
+      attrs.setInt(tag, vr, values);
+    } else if (vr == VR.SQ) {
+      Sequence sequence = attrs.newSequence(tag, jsonValues.length());
+      for (Object seqElement : jsonValues) {
+        sequence.add(orgJsonToAttributes((JSONObject) seqElement));
+      }
+    } else {
+      double[] values = jsonValues.toList().stream().mapToDouble(i -> (Double) i).toArray();
+      attrs.setDouble(tag, vr, values);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.pdu.PresentationContext;
+
+/**
+ * Remembers the transfer syntaxes each peer AET accepted per SOP class, to choose what to propose
+ * when sending an instance.
+ *
+ * Until a peer's choice is known, the instance's own transfer syntax is proposed along with the
+ * {@link #FALLBACK_TRANSFER_SYNTAXES} it can be transcoded to, each in a presentation context of
+ * its own. Once known, only the transfer syntax the instance will be sent in is proposed. The
+ * answer to each proposal only updates what is known of the transfer syntaxes it included.
+ */
+public class AcceptedTransferSyntaxes {
+
+  /**
+   * Proposed in addition to the instance's transfer syntax, in order of preference. The instance
+   * is transcoded if the peer only accepts one of these.
+   */
+  public static final List<String> FALLBACK_TRANSFER_SYNTAXES = Collections.unmodifiableList(
+      Arrays.asList(UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian));
+
+  private final Map<String, Set<String>> accepted = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the transfer syntaxes to propose to the peer for an instance of the SOP class.
+   */
+  public List<String> propose(String peerAet, String sopClassUid, String transferSyntax) {
+    Set<String> peerAccepted = accepted.get(key(peerAet, sopClassUid));
+    if (peerAccepted != null) {
+      String selected = select(peerAccepted, transferSyntax);
+      if (selected != null) {
+        return Collections.singletonList(selected);
+      }
+    }
+    return withFallbacks(transferSyntax);
+  }
+
+  /**
+   * Returns the transfer syntax followed by the fallbacks other than itself that it can be
+   * transcoded to.
+   */
+  public static List<String> withFallbacks(String transferSyntax) {
+    Set<String> proposed = new LinkedHashSet<>();
+    proposed.add(transferSyntax);
+    for (String fallback : FALLBACK_TRANSFER_SYNTAXES) {
+      if (Transcoder.canTranscode(transferSyntax, fallback)) {
+        proposed.add(fallback);
+      }
+    }
+    return new ArrayList<>(proposed);
+  }
+
+  /**
+   * Records which of the proposed transfer syntaxes the peer accepted for the SOP class on an
+   * association. Others accepted before are still known, and all are proposed again once none is
+   * known to be accepted.
+   *
+   * @param transferSyntaxes accepted transfer syntaxes, null if none
+   */
+  public void record(String peerAet, String sopClassUid, Collection<String> proposed,
+      Collection<String> transferSyntaxes) {
+    accepted.compute(key(peerAet, sopClassUid), (key, known) -> {
+      Set<String> updated = known == null ? new LinkedHashSet<>() : new LinkedHashSet<>(known);
+      for (String transferSyntax : proposed) {
+        if (transferSyntaxes != null && transferSyntaxes.contains(transferSyntax)) {
+          updated.add(transferSyntax);
+        } else {
+          updated.remove(transferSyntax);
+        }
+      }
+      return updated.isEmpty() ? null : updated;
+    });
+  }
+
+  /**
+   * Returns the transfer syntax to send an instance in, its own if accepted, otherwise the first
+   * accepted fallback it can be transcoded to. Returns null if there is none.
+   */
+  public static String select(Collection<String> accepted, String transferSyntax) {
+    if (accepted == null) {
+      return null;
+    }
+    if (accepted.contains(transferSyntax)) {
+      return transferSyntax;
+    }
+    for (String fallback : FALLBACK_TRANSFER_SYNTAXES) {
+      if (accepted.contains(fallback) && Transcoder.canTranscode(transferSyntax, fallback)) {
+        return fallback;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns one presentation context per transfer syntax, so that the peer can accept each of
+   * them.
+   */
+  public static List<PresentationContext> presentationContexts(String sopClassUid,
+      List<String> transferSyntaxes) {
+    List<PresentationContext> pcs = new ArrayList<>(transferSyntaxes.size());
+    for (String transferSyntax : transferSyntaxes) {
+      pcs.add(new PresentationContext(pcs.size() * 2 + 1, sopClassUid, transferSyntax));
+    }
+    return pcs;
+  }
+
+  private static String key(String peerAet, String sopClassUid) {
+    return peerAet + "/" + sopClassUid;
+  }
+}
@@ -51,7 +51,8 @@ public class AetDictionary {
       for (Object elem : jsonArray) {
         JSONObject elemJson = (JSONObject) elem;
         String name = elemJson.getString("name");
-        aetMap.put(name, new Aet(name, elemJson.getString("host"), elemJson.getInt("port")));
+        aetMap.put(name, new Aet(name, elemJson.getString("host"), elemJson.getInt("port"),
+            elemJson.optInt("concurrency", 1), elemJson.optString("transferSyntax", null)));
       }
 
       log.info("aetMap = {}", aetMap);
@@ -75,11 +76,30 @@ public class AetDictionary {
     private String name;
     private String host;
     private int port;
+    private int concurrency;
+    private String transferSyntax;
 
     public Aet(String name, String host, int port) {
+      this(name, host, port, 1);
+    }
+
+    /**
+     * @param concurrency maximum number of associations a single C-MOVE opens to this AET
+     */
+    public Aet(String name, String host, int port, int concurrency) {
+      this(name, host, port, concurrency, null);
+    }
+
+    /**
+     * @param transferSyntax transfer syntax to retrieve instances sent to this AET in over
+     * WADO-RS, "*" for as stored, null for the DICOMweb server's default
+     */
+    public Aet(String name, String host, int port, int concurrency, String transferSyntax) {
       this.name = name;
       this.host = host;
       this.port = port;
+      this.concurrency = concurrency;
+      this.transferSyntax = transferSyntax;
     }
 
     public String getName() {
@@ -106,12 +126,30 @@ public class AetDictionary {
       this.port = port;
     }
 
+    public int getConcurrency() {
+      return concurrency;
+    }
+
+    public void setConcurrency(int concurrency) {
+      this.concurrency = concurrency;
+    }
+
+    public String getTransferSyntax() {
+      return transferSyntax;
+    }
+
+    public void setTransferSyntax(String transferSyntax) {
+      this.transferSyntax = transferSyntax;
+    }
+
     @Override
     public String toString() {
       return "Aet{" +
           "name='" + name + '\'' +
           ", host='" + host + '\'' +
           ", port=" + port +
+          ", concurrency=" + concurrency +
+          ", transferSyntax='" + transferSyntax + '\'' +
           "}";
     }
   }
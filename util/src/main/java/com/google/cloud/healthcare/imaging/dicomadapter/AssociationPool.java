@@ -0,0 +1,285 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.pdu.RoleSelection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide client {@link Device} with a pool of idle associations.
+ *
+ * All outgoing associations are opened from one long-lived device, with an application entity
+ * per calling AET, instead of a device with its own executors per use. Associations returned to
+ * the pool are reused by the next caller asking for the same calling AET, called AET, host, port,
+ * presentation contexts and role selections, and released once idle for longer than the idle
+ * timeout. A pooled association is only ever used by one caller at a time.
+ */
+public class AssociationPool implements Closeable {
+
+  private static Logger log = LoggerFactory.getLogger(AssociationPool.class);
+
+  private final long idleTimeoutMillis;
+  private final Device device;
+  private final Connection connection;
+  private final ExecutorService executor;
+  private final ScheduledExecutorService scheduledExecutor;
+
+  // Guarded by this.
+  private final Map<String, ApplicationEntity> applicationEntities = new HashMap<>();
+  private final Map<String, Deque<Idle>> idleAssociations = new HashMap<>();
+  private boolean closed;
+
+  /**
+   * @param idleTimeoutMillis how long a returned association is kept for reuse, 0 to release
+   * associations as soon as they are returned
+   */
+  public AssociationPool(long idleTimeoutMillis) {
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.device = new Device("dicom-to-dicomweb-adapter-client");
+    this.connection = new Connection();
+    this.executor = Executors.newCachedThreadPool();
+    this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+    device.addConnection(connection);
+    device.setExecutor(executor);
+    device.setScheduledExecutor(scheduledExecutor);
+    if (idleTimeoutMillis > 0) {
+      long period = Math.max(idleTimeoutMillis / 2, 100);
+      scheduledExecutor.scheduleWithFixedDelay(this::releaseExpired, period, period,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Returns an association to the peer, reusing an idle one if possible. The caller must close
+   * the returned lease, or discard it if the association can't be reused.
+   */
+  public Lease acquire(String callingAet, String calledAet, String host, int port,
+      List<PresentationContext> pcs) throws IOException, InterruptedException {
+    return acquire(callingAet, calledAet, host, port, pcs, Collections.emptyList());
+  }
+
+  public Lease acquire(String callingAet, String calledAet, String host, int port,
+      List<PresentationContext> pcs, List<RoleSelection> roleSelections)
+      throws IOException, InterruptedException {
+    String key = key(callingAet, calledAet, host, port, pcs, roleSelections);
+    ApplicationEntity applicationEntity;
+    synchronized (this) {
+      if (closed) {
+        throw new IOException("Association pool closed");
+      }
+      Deque<Idle> idle = idleAssociations.get(key);
+      while (idle != null && !idle.isEmpty()) {
+        DicomClient client = idle.pop().client;
+        if (client.getAssociation().isReadyForDataTransfer()) {
+          return new Lease(key, client);
+        }
+      }
+      applicationEntity = applicationEntities.computeIfAbsent(callingAet, this::newApplicationEntity);
+    }
+
+    AAssociateRQ rq = new AAssociateRQ();
+    for (PresentationContext pc : pcs) {
+      rq.addPresentationContext(pc);
+    }
+    for (RoleSelection roleSelection : roleSelections) {
+      rq.addRoleSelection(roleSelection);
+    }
+    rq.setCalledAET(calledAet);
+    try {
+      return new Lease(key, DicomClient.associatePeer(applicationEntity, host, port, rq));
+    } catch (IncompatibleConnectionException | GeneralSecurityException e) {
+      // calling code doesn't need to distinguish these
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Releases all idle associations and stops the device's executors. Leased associations are
+   * released when returned.
+   */
+  @Override
+  public void close() {
+    List<Idle> released = new ArrayList<>();
+    synchronized (this) {
+      closed = true;
+      for (Deque<Idle> idle : idleAssociations.values()) {
+        released.addAll(idle);
+      }
+      idleAssociations.clear();
+    }
+    for (Idle idle : released) {
+      idle.client.release();
+    }
+    scheduledExecutor.shutdownNow();
+    executor.shutdown();
+  }
+
+  /**
+   * Number of idle associations kept for reuse.
+   */
+  public synchronized long getIdleCount() {
+    long count = 0;
+    for (Deque<Idle> idle : idleAssociations.values()) {
+      count += idle.size();
+    }
+    return count;
+  }
+
+  private ApplicationEntity newApplicationEntity(String callingAet) {
+    ApplicationEntity applicationEntity = new ApplicationEntity(callingAet);
+    applicationEntity.addConnection(connection);
+    device.addApplicationEntity(applicationEntity);
+    return applicationEntity;
+  }
+
+  private void giveBack(String key, DicomClient client) {
+    if (idleTimeoutMillis > 0 && client.getAssociation().isReadyForDataTransfer()) {
+      synchronized (this) {
+        if (!closed) {
+          idleAssociations.computeIfAbsent(key, k -> new ArrayDeque<>())
+              .push(new Idle(client, System.currentTimeMillis()));
+          return;
+        }
+      }
+    }
+    client.release();
+  }
+
+  /**
+   * Runs on the device's single scheduled executor, which also times out its associations, so
+   * releasing the expired ones (waiting for their sockets to close) is handed to the executor.
+   */
+  private void releaseExpired() {
+    long expiry = System.currentTimeMillis() - idleTimeoutMillis;
+    List<Idle> expired = new ArrayList<>();
+    synchronized (this) {
+      Iterator<Deque<Idle>> queues = idleAssociations.values().iterator();
+      while (queues.hasNext()) {
+        Deque<Idle> idle = queues.next();
+        // Most recently returned first, expired ones are at the end.
+        while (!idle.isEmpty() && idle.peekLast().since < expiry) {
+          expired.add(idle.removeLast());
+        }
+        if (idle.isEmpty()) {
+          queues.remove();
+        }
+      }
+    }
+    for (Idle idle : expired) {
+      log.debug("Releasing idle association {}", idle.client.getAssociation());
+      try {
+        executor.execute(idle.client::release);
+      } catch (RejectedExecutionException e) {
+        // Closing, the executor no longer takes new tasks.
+        idle.client.release();
+      }
+    }
+  }
+
+  private static String key(String callingAet, String calledAet, String host, int port,
+      List<PresentationContext> pcs, List<RoleSelection> roleSelections) {
+    StringBuilder key = new StringBuilder()
+        .append(callingAet).append('|')
+        .append(calledAet).append('|')
+        .append(host).append(':').append(port);
+    for (PresentationContext pc : pcs) {
+      key.append('|').append(pc.getPCID()).append('=').append(pc.getAbstractSyntax());
+      for (String transferSyntax : pc.getTransferSyntaxes()) {
+        key.append(',').append(transferSyntax);
+      }
+    }
+    for (RoleSelection roleSelection : roleSelections) {
+      key.append("|role=").append(roleSelection.getSOPClassUID())
+          .append(',').append(roleSelection.isSCU())
+          .append(',').append(roleSelection.isSCP());
+    }
+    return key.toString();
+  }
+
+  /**
+   * Association borrowed from the pool.
+   */
+  public class Lease implements Closeable {
+
+    private final String key;
+    private final DicomClient client;
+    private boolean returned;
+
+    private Lease(String key, DicomClient client) {
+      this.key = key;
+      this.client = client;
+    }
+
+    public DicomClient getClient() {
+      return client;
+    }
+
+    /**
+     * Returns the association to the pool for reuse.
+     */
+    @Override
+    public void close() {
+      if (!returned) {
+        returned = true;
+        giveBack(key, client);
+      }
+    }
+
+    /**
+     * Aborts the association instead of returning it, e.g. after an I/O error left it in an
+     * unknown state.
+     */
+    public void discard() {
+      if (!returned) {
+        returned = true;
+        client.getAssociation().abort();
+      }
+    }
+  }
+
+  private static class Idle {
+
+    private final DicomClient client;
+    private final long since;
+
+    private Idle(DicomClient client, long since) {
+      this.client = client;
+      this.since = since;
+    }
+  }
+}
@@ -14,21 +14,22 @@
 
 package com.google.cloud.healthcare.imaging.dicomadapter;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.net.Status;
 import org.dcm4che3.net.service.DicomServiceException;
-import org.dcm4che3.util.TagUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -39,6 +40,14 @@ public class AttributesUtil {
   private static final String PN_IDEOGRAPHIC = "Ideographic";
   private static final String PN_PHONETIC = "Phonetic";
   private static final String PN_DELIMITER = "=";
+  private static final String VR_FIELD = "vr";
+  private static final String VALUE_FIELD = "Value";
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  // Enough for most C-FIND keys without growing.
+  private static final int QIDO_PATH_CAPACITY = 256;
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
   public static String getTagValue(JSONObject json, String tag) throws JSONException {
     JSONObject jsonTag = json.getJSONObject(tag);
@@ -93,98 +102,338 @@ public class AttributesUtil {
   /**
    * Returns corresponding QIDO-RS path
    *
+   * Parameters are in a fixed order: the additional includeFields, includeFields for the empty
+   * attributes, then search keys by tag.
+   *
    * @param attrs dcm4che Attributes to convert
    * @param includeFields additonal includeFields for QIDO-RS
    */
   public static String attributesToQidoPath(Attributes attrs, String... includeFields)
       throws DicomServiceException {
-    HashSet<Integer> nonEmptyKeys = new HashSet<>();
-    HashSet<String> includeFieldSet = new HashSet<>(Arrays.asList(includeFields));
     // SpecificCharacterSet is not supported, and passing it as param or include would be wrong
     attrs.remove(Tag.SpecificCharacterSet);
-    for (int tag : attrs.tags()) {
-      if (attrs.containsValue(tag)) {
-        nonEmptyKeys.add(tag);
-      } else {
-        includeFieldSet.add(TagUtils.toHexString(tag));
-      }
-    }
 
-    StringBuilder qidoPath = new StringBuilder();
-    if (nonEmptyKeys.contains(Tag.QueryRetrieveLevel)) {
-      switch (attrs.getString(Tag.QueryRetrieveLevel)) {
-        case "STUDY":
-          qidoPath.append("studies");
-          break;
-        case "SERIES":
-          qidoPath.append("series");
-          break;
-        case "IMAGE":
-          qidoPath.append("instances");
-          break;
-        default:
-          throw new DicomServiceException(Status.ProcessingFailure,
-              "Invalid QueryRetrieveLevel specified");
-      }
-      nonEmptyKeys.remove(Tag.QueryRetrieveLevel);
-    } else {
+    String level = attrs.getString(Tag.QueryRetrieveLevel);
+    if (level == null) {
       throw new DicomServiceException(Status.ProcessingFailure, "No QueryRetrieveLevel specified");
     }
-
-    if (nonEmptyKeys.size() > 0 || includeFieldSet.size() > 0) {
-      qidoPath.append("?");
+    StringBuilder qidoPath = new StringBuilder(QIDO_PATH_CAPACITY);
+    switch (level) {
+      case "STUDY":
+        qidoPath.append("studies");
+        break;
+      case "SERIES":
+        qidoPath.append("series");
+        break;
+      case "IMAGE":
+        qidoPath.append("instances");
+        break;
+      default:
+        throw new DicomServiceException(Status.ProcessingFailure,
+            "Invalid QueryRetrieveLevel specified");
     }
 
-    if (includeFieldSet.size() > 0) {
-      for (String includeField : includeFieldSet) {
-        qidoPath.append("includefield=" + includeField + "&");
+    // Sorted and without duplicates, so no set is needed to walk them.
+    int[] tags = attrs.tags();
+    int query = qidoPath.length();
+    for (int i = 0; i < includeFields.length; i++) {
+      if (indexOf(includeFields, includeFields[i]) == i) {
+        qidoPath.append("includefield=").append(includeFields[i]).append('&');
+      }
+    }
+    for (int tag : tags) {
+      if (!attrs.containsValue(tag)) {
+        String includeField = TagStrings.toHexString(tag);
+        if (indexOf(includeFields, includeField) < 0) {
+          qidoPath.append("includefield=").append(includeField).append('&');
+        }
       }
     }
 
-    for (int keyTag : nonEmptyKeys) {
+    for (int tag : tags) {
+      if (tag == Tag.QueryRetrieveLevel || !attrs.containsValue(tag)) {
+        continue;
+      }
       // non-string type search keys don't seem to exist
       // multiple values are valid for UID lists, but unsupported by api. Invalid for other VRs.
-      String[] values = attrs.getStrings(keyTag);
-      if (values.length > 1) {
+      if (attrs.getString(tag, 1, null) != null) {
         throw new DicomServiceException(Status.ProcessingFailure,
-            "Multiple values per tag not supported, tag: " + TagUtils.toHexString(keyTag));
+            "Multiple values per tag not supported, tag: " + TagStrings.toHexString(tag));
+      }
+      qidoPath.append(TagStrings.toHexString(tag)).append('=');
+      appendUrlEncoded(qidoPath, attrs.getString(tag));
+      qidoPath.append('&');
+    }
+
+    if (qidoPath.length() > query) {
+      qidoPath.insert(query, '?');
+    }
+    return qidoPath.toString();
+  }
+
+  private static int indexOf(String[] values, String value) {
+    for (int i = 0; i < values.length; i++) {
+      if (values[i].equals(value)) {
+        return i;
       }
+    }
+    return -1;
+  }
 
-      for (String value : values) {
-        String encodedValue;
-        try {
-          encodedValue = URLEncoder.encode(value, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-          throw new DicomServiceException(Status.ProcessingFailure, e);
+  /**
+   * Appends the value as {@link java.net.URLEncoder} encodes it in UTF-8. Values that need no
+   * escaping, such as UIDs and most code strings, are appended as they are.
+   */
+  static void appendUrlEncoded(StringBuilder out, String value) {
+    int length = value.length();
+    int plain = 0;
+    while (plain < length && isUrlSafe(value.charAt(plain))) {
+      plain++;
+    }
+    out.append(value, 0, plain);
+    for (int i = plain; i < length; i++) {
+      char c = value.charAt(i);
+      if (isUrlSafe(c)) {
+        out.append(c);
+      } else if (c == ' ') {
+        out.append('+');
+      } else {
+        int codePoint = c;
+        if (Character.isHighSurrogate(c) && i + 1 < length
+            && Character.isLowSurrogate(value.charAt(i + 1))) {
+          codePoint = Character.toCodePoint(c, value.charAt(++i));
+        } else if (Character.isSurrogate(c)) {
+          // Unpaired, encoded as the replacement String.getBytes uses.
+          codePoint = '?';
         }
-        qidoPath.append(TagUtils.toHexString(keyTag) + "=" + encodedValue + "&");
+        appendUtf8Escaped(out, codePoint);
       }
     }
+  }
 
-    return qidoPath.toString();
+  private static boolean isUrlSafe(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+        || c == '.' || c == '-' || c == '*' || c == '_';
+  }
+
+  private static void appendUtf8Escaped(StringBuilder out, int codePoint) {
+    if (codePoint < 0x80) {
+      appendEscaped(out, codePoint);
+    } else if (codePoint < 0x800) {
+      appendEscaped(out, 0xC0 | (codePoint >> 6));
+      appendEscaped(out, 0x80 | (codePoint & 0x3F));
+    } else if (codePoint < 0x10000) {
+      appendEscaped(out, 0xE0 | (codePoint >> 12));
+      appendEscaped(out, 0x80 | ((codePoint >> 6) & 0x3F));
+      appendEscaped(out, 0x80 | (codePoint & 0x3F));
+    } else {
+      appendEscaped(out, 0xF0 | (codePoint >> 18));
+      appendEscaped(out, 0x80 | ((codePoint >> 12) & 0x3F));
+      appendEscaped(out, 0x80 | ((codePoint >> 6) & 0x3F));
+      appendEscaped(out, 0x80 | (codePoint & 0x3F));
+    }
+  }
+
+  private static void appendEscaped(StringBuilder out, int b) {
+    out.append('%').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
   }
 
   /**
-   * Converts QIDO_RS json reply to dcm4che Attributes
+   * Converts QIDO_RS json reply to dcm4che Attributes, reading the objects as they are rather
+   * than serializing them for {@link #jsonToAttributes(JsonParser)}.
    */
   public static Attributes jsonToAttributes(JSONObject jsonDataset) throws DicomServiceException {
     Attributes attributes = new Attributes();
-    for (String tag : jsonDataset.keySet()) {
-      JSONObject element = jsonDataset.getJSONObject(tag);
-      int tagInt = TagUtils.forName(tag);
-      VR vr = VR.valueOf(element.getString("vr"));
-      if (isBinaryVr(vr)) {
+    for (String name : jsonDataset.keySet()) {
+      int tag = TagStrings.forName(name);
+      Object element = jsonDataset.get(name);
+      if (!(element instanceof JSONObject)) {
         throw new DicomServiceException(Status.ProcessingFailure,
-            "Binary VR not supported: " + vr.toString());
-      } else if (element.has("Value")) {
-        setAttributeValue(attributes, tagInt, vr, (JSONArray) element.get("Value"));
-      } else {
-        attributes.setValue(tagInt, vr, null);
+            "Expected a DICOM JSON element for tag " + TagStrings.toHexString(tag));
       }
+      readElement((JSONObject) element, attributes, tag);
     }
     return attributes;
   }
 
+  private static void readElement(JSONObject element, Attributes attrs, int tag)
+      throws DicomServiceException {
+    if (element.isNull(VR_FIELD)) {
+      throw new DicomServiceException(Status.ProcessingFailure,
+          "No VR for tag " + TagStrings.toHexString(tag));
+    }
+    VR vr = parseVr(element.get(VR_FIELD).toString());
+    if (isBinaryVr(vr)) {
+      throw new DicomServiceException(Status.ProcessingFailure,
+          "Binary VR not supported: " + vr.toString());
+    }
+    if (element.isNull(VALUE_FIELD)) {
+      attrs.setValue(tag, vr, null);
+      return;
+    }
+    Object value = element.get(VALUE_FIELD);
+    if (!(value instanceof JSONArray)) {
+      throw new DicomServiceException(Status.ProcessingFailure,
+          "Expected a Value array for tag " + TagStrings.toHexString(tag));
+    }
+    readValues((JSONArray) value, attrs, tag, vr);
+  }
+
+  private static void readValues(JSONArray values, Attributes attrs, int tag, VR vr)
+      throws DicomServiceException {
+    int count = values.length();
+    if (vr == VR.PN) {
+      String[] names = new String[count];
+      for (int i = 0; i < count; i++) {
+        JSONObject name = values.optJSONObject(i);
+        names[i] = name == null ? "" : patientName(name.optString(PN_ALPHABETIC),
+            name.optString(PN_IDEOGRAPHIC), name.optString(PN_PHONETIC));
+      }
+      attrs.setString(tag, vr, names);
+    } else if (vr.isStringType() || vr == VR.AT) {
+      String[] strings = new String[count];
+      for (int i = 0; i < count; i++) {
+        strings[i] = valueText(values.get(i));
+      }
+      attrs.setString(tag, vr, strings);
+    } else if (vr.isIntType()) {
+      int[] ints = new int[count];
+      for (int i = 0; i < count; i++) {
+        Object value = values.get(i);
+        // Unsigned values above Integer.MAX_VALUE (UL) are stored as their 32 bits.
+        ints[i] = value instanceof Number
+            ? (int) ((Number) value).longValue()
+            : (int) Long.parseLong(value.toString());
+      }
+      attrs.setInt(tag, vr, ints);
+    } else {
+      switch (vr) {
+        case SQ:
+          Sequence sequence = attrs.newSequence(tag, count);
+          for (int i = 0; i < count; i++) {
+            JSONObject item = values.optJSONObject(i);
+            sequence.add(item == null ? new Attributes() : jsonToAttributes(item));
+          }
+          break;
+        case FL:
+        case FD:
+          double[] doubles = new double[count];
+          for (int i = 0; i < count; i++) {
+            Object value = values.get(i);
+            doubles[i] = value instanceof Number
+                ? ((Number) value).doubleValue()
+                : Double.parseDouble(value.toString());
+          }
+          attrs.setDouble(tag, vr, doubles);
+          break;
+        default:
+          throw new DicomServiceException(Status.ProcessingFailure,
+              "Unsupported VR " + vr.toString());
+      }
+    }
+  }
+
+  // Numbers (DS, IS) keep the text they are serialized as, nulls are empty values.
+  private static String valueText(Object value) {
+    if (value == JSONObject.NULL) {
+      return "";
+    }
+    return value instanceof Number
+        ? JSONObject.numberToString((Number) value)
+        : value.toString();
+  }
+
+  /**
+   * Decodes a DICOM JSON dataset (PS3.18 F.2) straight from the parser into dcm4che Attributes.
+   *
+   * @param parser positioned on the dataset's START_OBJECT token, left on its END_OBJECT token
+   */
+  public static Attributes jsonToAttributes(JsonParser parser) throws IOException {
+    if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+      throw new JsonParseException("Expected a DICOM JSON dataset", parser.getCurrentLocation());
+    }
+    Attributes attributes = new Attributes();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      int tag = TagStrings.forName(parser.getCurrentName());
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException("Expected a DICOM JSON element for tag "
+            + TagStrings.toHexString(tag), parser.getCurrentLocation());
+      }
+      readElement(parser, attributes, tag);
+    }
+    return attributes;
+  }
+
+  /**
+   * Reads an element object, from START_OBJECT to END_OBJECT. The value is decoded as it is
+   * read, unless it precedes the VR, in which case it is copied aside until the VR is known.
+   */
+  private static void readElement(JsonParser parser, Attributes attrs, int tag)
+      throws IOException {
+    VR vr = null;
+    String deferredValue = null;
+    boolean hasValue = false;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      switch (field) {
+        case VR_FIELD:
+          vr = parseVr(parser.getText());
+          if (isBinaryVr(vr)) {
+            throw new DicomServiceException(Status.ProcessingFailure,
+                "Binary VR not supported: " + vr.toString());
+          }
+          break;
+        case VALUE_FIELD:
+          if (token == JsonToken.VALUE_NULL) {
+            break;
+          }
+          if (token != JsonToken.START_ARRAY) {
+            throw new JsonParseException("Expected a Value array for tag "
+                + TagStrings.toHexString(tag), parser.getCurrentLocation());
+          }
+          hasValue = true;
+          if (vr != null) {
+            readValues(parser, attrs, tag, vr);
+          } else {
+            deferredValue = copyValue(parser);
+          }
+          break;
+        default:
+          // InlineBinary or BulkDataURI, only found with binary VRs.
+          parser.skipChildren();
+      }
+    }
+    if (vr == null) {
+      throw new DicomServiceException(Status.ProcessingFailure,
+          "No VR for tag " + TagStrings.toHexString(tag));
+    }
+    if (deferredValue != null) {
+      try (JsonParser valueParser = JSON_FACTORY.createParser(deferredValue)) {
+        valueParser.nextToken();
+        readValues(valueParser, attrs, tag, vr);
+      }
+    } else if (!hasValue) {
+      attrs.setValue(tag, vr, null);
+    }
+  }
+
+  private static VR parseVr(String vr) throws DicomServiceException {
+    try {
+      return VR.valueOf(vr);
+    } catch (IllegalArgumentException | NullPointerException e) {
+      throw new DicomServiceException(Status.ProcessingFailure, "Invalid VR: " + vr);
+    }
+  }
+
+  private static String copyValue(JsonParser parser) throws IOException {
+    StringWriter value = new StringWriter();
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(value)) {
+      generator.copyCurrentStructure(parser);
+    }
+    return value.toString();
+  }
+
   private static boolean isBinaryVr(VR vr) {
     switch (vr) {
       case OB:
@@ -199,31 +448,33 @@ public class AttributesUtil {
     }
   }
 
-  private static void setAttributeValue(Attributes attrs, int tag, VR vr, JSONArray jsonValues)
-      throws DicomServiceException {
+  /**
+   * Reads a Value array, from START_ARRAY to END_ARRAY, into the attribute.
+   */
+  private static void readValues(JsonParser parser, Attributes attrs, int tag, VR vr)
+      throws IOException {
     if (vr == VR.PN) {
-      setPatientNames(attrs, tag, jsonValues);
+      attrs.setString(tag, vr, readPatientNames(parser));
     } else if (vr.isStringType() || vr == VR.AT) {
-      String[] values = jsonValues.toList().stream().map(Object::toString)
-          .collect(Collectors.toList()).toArray(new String[]{});
-      attrs.setString(tag, vr, values);
+      attrs.setString(tag, vr, readStrings(parser));
     } else if (vr.isIntType()) {
-      int[] values = jsonValues.toList().stream().mapToInt(i -> Integer.parseInt(i.toString()))
-          .toArray();
-      attrs.setInt(tag, vr, values);
+      attrs.setInt(tag, vr, readInts(parser));
     } else {
       switch (vr) {
         case SQ:
-          Sequence sequence = attrs.newSequence(tag, jsonValues.length());
-          for (Object seqElement : jsonValues) {
-            Attributes seqElementAttributes = jsonToAttributes((JSONObject) seqElement);
-            sequence.add(seqElementAttributes);
+          Sequence sequence = attrs.newSequence(tag, 1);
+          JsonToken token;
+          while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == JsonToken.VALUE_NULL) {
+              sequence.add(new Attributes());
+            } else {
+              sequence.add(jsonToAttributes(parser));
+            }
           }
           break;
         case FL:
         case FD:
-          double[] dValues = jsonValues.toList().stream().mapToDouble(i -> (Double) i).toArray();
-          attrs.setDouble(tag, vr, dValues);
+          attrs.setDouble(tag, vr, readDoubles(parser));
           break;
         default:
           throw new DicomServiceException(Status.ProcessingFailure,
@@ -232,26 +483,91 @@ public class AttributesUtil {
     }
   }
 
-  private static void setPatientNames(Attributes attrs, int tag, JSONArray jsonValues) {
-    List<String> results = new ArrayList<>();
-    for (Object itemObj : jsonValues) {
-      JSONObject item = (JSONObject) itemObj;
-      String alphabetic = item.has(PN_ALPHABETIC) ? item.getString(PN_ALPHABETIC) : "";
-      String ideographic = item.has(PN_IDEOGRAPHIC) ? item.getString(PN_IDEOGRAPHIC) : "";
-      String phonetic = item.has(PN_PHONETIC) ? item.getString(PN_PHONETIC) : "";
-      StringBuilder result = new StringBuilder();
-      result.append(alphabetic);
-      if (ideographic.length() > 0 || phonetic.length() > 0) {
-        result.append(PN_DELIMITER);
+  private static String[] readStrings(JsonParser parser) throws IOException {
+    List<String> values = new ArrayList<>(1);
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      // Numbers (DS, IS) keep their text as is, nulls are empty values.
+      values.add(token == JsonToken.VALUE_NULL ? "" : parser.getText());
+    }
+    return values.toArray(new String[0]);
+  }
+
+  private static int[] readInts(JsonParser parser) throws IOException {
+    int[] values = new int[1];
+    int count = 0;
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      if (count == values.length) {
+        values = Arrays.copyOf(values, count * 2);
       }
-      result.append(ideographic);
-      if (phonetic.length() > 0) {
-        result.append(PN_DELIMITER);
+      // Unsigned values above Integer.MAX_VALUE (UL) are stored as their 32 bits.
+      values[count++] = token == JsonToken.VALUE_STRING
+          ? (int) Long.parseLong(parser.getText())
+          : (int) parser.getLongValue();
+    }
+    return count == values.length ? values : Arrays.copyOf(values, count);
+  }
+
+  private static double[] readDoubles(JsonParser parser) throws IOException {
+    double[] values = new double[1];
+    int count = 0;
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      if (count == values.length) {
+        values = Arrays.copyOf(values, count * 2);
       }
-      result.append(phonetic);
-      results.add(result.toString());
+      values[count++] = token == JsonToken.VALUE_STRING
+          ? Double.parseDouble(parser.getText())
+          : parser.getDoubleValue();
     }
+    return count == values.length ? values : Arrays.copyOf(values, count);
+  }
 
-    attrs.setString(tag, VR.PN, results.toArray(new String[0]));
+  private static String[] readPatientNames(JsonParser parser) throws IOException {
+    List<String> results = new ArrayList<>(1);
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      if (token == JsonToken.VALUE_NULL) {
+        results.add("");
+        continue;
+      }
+      String alphabetic = "";
+      String ideographic = "";
+      String phonetic = "";
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String group = parser.getCurrentName();
+        parser.nextToken();
+        switch (group) {
+          case PN_ALPHABETIC:
+            alphabetic = parser.getText();
+            break;
+          case PN_IDEOGRAPHIC:
+            ideographic = parser.getText();
+            break;
+          case PN_PHONETIC:
+            phonetic = parser.getText();
+            break;
+          default:
+            parser.skipChildren();
+        }
+      }
+      results.add(patientName(alphabetic, ideographic, phonetic));
+    }
+    return results.toArray(new String[0]);
+  }
+
+  private static String patientName(String alphabetic, String ideographic, String phonetic) {
+    StringBuilder result = new StringBuilder();
+    result.append(alphabetic);
+    if (ideographic.length() > 0 || phonetic.length() > 0) {
+      result.append(PN_DELIMITER);
+    }
+    result.append(ideographic);
+    if (phonetic.length() > 0) {
+      result.append(PN_DELIMITER);
+    }
+    result.append(phonetic);
+    return result.toString();
   }
 }
@@ -36,14 +36,29 @@ public class DeviceUtil {
    */
   static Device createServerDevice(
       String applicationEntityName, Integer dicomPort, DicomServiceRegistry serviceRegistry) {
+    return createServerDevice(applicationEntityName, dicomPort, serviceRegistry,
+        Connection.SYNCHRONOUS_MODE, Connection.SYNCHRONOUS_MODE);
+  }
+
+  /**
+   * Creates a DICOM server listening to the port for the given services handling all syntaxes,
+   * which accepts the asynchronous operations window proposed by an SCU up to the given limits
+   * (0 for unlimited, 1 for synchronous operation only).
+   */
+  static Device createServerDevice(
+      String applicationEntityName,
+      Integer dicomPort,
+      DicomServiceRegistry serviceRegistry,
+      int maxOpsInvoked,
+      int maxOpsPerformed) {
     TransferCapability transferCapability =
         new TransferCapability(
             null /* commonName */,
             ALL_ALLOWED_SOP_CLASSES,
             TransferCapability.Role.SCP,
             ALL_ALLOWED_TRANSFER_SYNTAXES);
-    return createServerDevice(
-        applicationEntityName, dicomPort, serviceRegistry, transferCapability);
+    return createServerDevice(applicationEntityName, dicomPort, serviceRegistry,
+        transferCapability, maxOpsInvoked, maxOpsPerformed);
   }
 
   /**
@@ -54,10 +69,24 @@ public class DeviceUtil {
       Integer dicomPort,
       DicomServiceRegistry serviceRegistry,
       TransferCapability transferCapability) {
+    return createServerDevice(applicationEntityName, dicomPort, serviceRegistry,
+        transferCapability, Connection.SYNCHRONOUS_MODE, Connection.SYNCHRONOUS_MODE);
+  }
+
+  private static Device createServerDevice(
+      String applicationEntityName,
+      Integer dicomPort,
+      DicomServiceRegistry serviceRegistry,
+      TransferCapability transferCapability,
+      int maxOpsInvoked,
+      int maxOpsPerformed) {
     // Create a DICOM device.
     Device device = new Device("dicom-to-dicomweb-adapter-server");
     Connection connection = new Connection();
     connection.setPort(dicomPort);
+    // Limits for the asynchronous operations window negotiated with each SCU.
+    connection.setMaxOpsInvoked(maxOpsInvoked);
+    connection.setMaxOpsPerformed(maxOpsPerformed);
     device.addConnection(connection);
 
     // Create an application entity (a network node) listening on input port.
@@ -17,11 +17,13 @@ package com.google.cloud.healthcare.imaging.dicomadapter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.GeneralSecurityException;
+import java.util.Collection;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Association;
 import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.DataWriter;
 import org.dcm4che3.net.DimseRSPHandler;
 import org.dcm4che3.net.FutureDimseRSP;
 import org.dcm4che3.net.IncompatibleConnectionException;
@@ -29,12 +31,16 @@ import org.dcm4che3.net.InputStreamDataWriter;
 import org.dcm4che3.net.Status;
 import org.dcm4che3.net.pdu.AAssociateRQ;
 import org.dcm4che3.net.pdu.PresentationContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * DicomClient is used to handle client-side legacy DICOM requests on given association.
  */
 public class DicomClient {
 
+  private static Logger log = LoggerFactory.getLogger(DicomClient.class);
+
   private Association association;
 
   public DicomClient(Association association) {
@@ -57,6 +63,25 @@ public class DicomClient {
     return associatePeer(clientAE, peerHostname, peerPort, rq);
   }
 
+  /**
+   * Creates a new DicomClient by creating an association to the given peer, proposing all given
+   * presentation contexts.
+   */
+  public static DicomClient associatePeer(
+      ApplicationEntity clientAE,
+      String peerAET,
+      String peerHostname,
+      int peerPort,
+      Collection<PresentationContext> pcs)
+      throws IOException, InterruptedException, IncompatibleConnectionException, GeneralSecurityException {
+    AAssociateRQ rq = new AAssociateRQ();
+    for (PresentationContext pc : pcs) {
+      rq.addPresentationContext(pc);
+    }
+    rq.setCalledAET(peerAET);
+    return associatePeer(clientAE, peerHostname, peerPort, rq);
+  }
+
   public static DicomClient associatePeer(
       ApplicationEntity clientAE,
       String peerHostname,
@@ -80,35 +105,84 @@ public class DicomClient {
       int dimsePeerPort) throws IOException, InterruptedException {
     DicomInputStream din = new DicomInputStream(in);
     din.readFileMetaInformation();
+    connectAndCstore(sopClassUid, sopInstanceUid, din,
+        applicationEntity, dimsePeerAet, dimsePeerHost, dimsePeerPort);
+  }
 
-    PresentationContext pc = new PresentationContext(1, sopClassUid, din.getTransferSyntax());
+  /**
+   * Sends the instance on a new association, for a stream positioned after its file meta
+   * information. The instance's transfer syntax is proposed along with the
+   * {@link AcceptedTransferSyntaxes#FALLBACK_TRANSFER_SYNTAXES}, and the instance is transcoded
+   * if only a fallback is accepted.
+   */
+  public static void connectAndCstore(
+      String sopClassUid,
+      String sopInstanceUid,
+      DicomInputStream din,
+      ApplicationEntity applicationEntity,
+      String dimsePeerAet,
+      String dimsePeerHost,
+      int dimsePeerPort) throws IOException, InterruptedException {
     DicomClient dicomClient;
     try {
       dicomClient = DicomClient.associatePeer(applicationEntity,
-          dimsePeerAet, dimsePeerHost, dimsePeerPort, pc);
+          dimsePeerAet, dimsePeerHost, dimsePeerPort,
+          AcceptedTransferSyntaxes.presentationContexts(sopClassUid,
+              AcceptedTransferSyntaxes.withFallbacks(din.getTransferSyntax())));
     } catch (IOException | IncompatibleConnectionException | GeneralSecurityException e) {
       // calling code doesn't need to distinguish these
       throw new IOException(e);
     }
 
-    Association association = dicomClient.getAssociation();
     try {
-      FutureDimseRSP handler = new FutureDimseRSP(association.nextMessageID());
-      dicomClient.cstore(
-          sopClassUid, sopInstanceUid, din.getTransferSyntax(), din, handler);
-      handler.next();
-      int dimseStatus = handler.getCommand().getInt(Tag.Status, /* default status */ -1);
-      if (dimseStatus != Status.Success) {
-        throw new IllegalArgumentException("C-STORE failed with status code: " + dimseStatus);
+      String transferSyntax = AcceptedTransferSyntaxes.select(
+          dicomClient.getAssociation().getTransferSyntaxesFor(sopClassUid),
+          din.getTransferSyntax());
+      if (transferSyntax == null) {
+        throw new IOException("No presentation context for " + sopClassUid + " accepted by "
+            + dimsePeerAet);
       }
+      dicomClient.cstore(sopClassUid, sopInstanceUid, din, transferSyntax);
     } finally {
-      try {
-        association.release();
-        association.waitForSocketClose();
-      } catch (Exception e) {
-        System.err.println("Send C-STORE successfully, but failed to close association");
-        e.printStackTrace();
-      }
+      dicomClient.release();
+    }
+  }
+
+  /**
+   * Sends the instance on this client's association and waits for the response. The association
+   * must have an accepted presentation context for the instance's SOP class and transfer syntax.
+   */
+  public void cstore(String sopClassUid, String sopInstanceUid, DicomInputStream din)
+      throws IOException, InterruptedException {
+    cstore(sopClassUid, sopInstanceUid, din, din.getTransferSyntax());
+  }
+
+  /**
+   * Sends the instance in the given transfer syntax, transcoding it if it is stored in another
+   * one, and waits for the response.
+   */
+  public void cstore(String sopClassUid, String sopInstanceUid, DicomInputStream din,
+      String transferSyntax) throws IOException, InterruptedException {
+    FutureDimseRSP handler = new FutureDimseRSP(association.nextMessageID());
+    DataWriter data = Transcoder.dataWriter(din, transferSyntax);
+    association.cstore(
+        sopClassUid, sopInstanceUid, /* priority */ 1, data, transferSyntax, handler);
+    handler.next();
+    int dimseStatus = handler.getCommand().getInt(Tag.Status, /* default status */ -1);
+    if (dimseStatus != Status.Success) {
+      throw new IllegalArgumentException("C-STORE failed with status code: " + dimseStatus);
+    }
+  }
+
+  /**
+   * Releases the association, logging rather than throwing on failure.
+   */
+  public void release() {
+    try {
+      association.release();
+      association.waitForSocketClose();
+    } catch (Exception e) {
+      log.warn("Failed to close association", e);
     }
   }
 
@@ -0,0 +1,119 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.util.TagUtils;
+
+/**
+ * Hex strings and keywords of the standard tags, computed once from {@link Tag}, so that
+ * QIDO-RS paths and DICOM JSON are built and read without formatting or parsing tags each time.
+ * Other tags fall back to {@link TagUtils}.
+ */
+public class TagStrings {
+
+  // Sorted by tag, for the hex strings.
+  private static final int[] TAGS;
+  private static final String[] HEX_STRINGS;
+  // Sorted by keyword, for the tags.
+  private static final String[] KEYWORDS;
+  private static final int[] KEYWORD_TAGS;
+
+  static {
+    List<Field> fields = new ArrayList<>();
+    for (Field field : Tag.class.getFields()) {
+      if (field.getType() == int.class && Modifier.isStatic(field.getModifiers())) {
+        fields.add(field);
+      }
+    }
+
+    int[] tags = new int[fields.size()];
+    String[] keywords = new String[fields.size()];
+    for (int i = 0; i < tags.length; i++) {
+      try {
+        tags[i] = fields.get(i).getInt(null);
+      } catch (IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+      keywords[i] = fields.get(i).getName();
+    }
+
+    int[] sortedTags = tags.clone();
+    Arrays.sort(sortedTags);
+    int distinct = 0;
+    for (int i = 0; i < sortedTags.length; i++) {
+      if (i == 0 || sortedTags[i] != sortedTags[i - 1]) {
+        sortedTags[distinct++] = sortedTags[i];
+      }
+    }
+    TAGS = Arrays.copyOf(sortedTags, distinct);
+    HEX_STRINGS = new String[distinct];
+    for (int i = 0; i < distinct; i++) {
+      HEX_STRINGS[i] = TagUtils.toHexString(TAGS[i]);
+    }
+
+    Integer[] byKeyword = new Integer[keywords.length];
+    for (int i = 0; i < byKeyword.length; i++) {
+      byKeyword[i] = i;
+    }
+    Arrays.sort(byKeyword, Comparator.comparing(i -> keywords[i]));
+    KEYWORDS = new String[keywords.length];
+    KEYWORD_TAGS = new int[keywords.length];
+    for (int i = 0; i < byKeyword.length; i++) {
+      KEYWORDS[i] = keywords[byKeyword[i]];
+      KEYWORD_TAGS[i] = tags[byKeyword[i]];
+    }
+  }
+
+  private TagStrings() {
+  }
+
+  /**
+   * Same as {@link TagUtils#toHexString(int)}, returning the same instance for standard tags.
+   */
+  public static String toHexString(int tag) {
+    int index = Arrays.binarySearch(TAGS, tag);
+    return index >= 0 ? HEX_STRINGS[index] : TagUtils.toHexString(tag);
+  }
+
+  /**
+   * Same as {@link TagUtils#forName(String)}: the tag of an 8 digit hex string or of a keyword.
+   */
+  public static int forName(String name) {
+    if (name.length() == 8) {
+      int tag = 0;
+      for (int i = 0; i < 8; i++) {
+        int digit = Character.digit(name.charAt(i), 16);
+        if (digit < 0) {
+          return forKeyword(name);
+        }
+        tag = (tag << 4) | digit;
+      }
+      return tag;
+    }
+    return forKeyword(name);
+  }
+
+  private static int forKeyword(String keyword) {
+    int index = Arrays.binarySearch(KEYWORDS, keyword);
+    return index >= 0 ? KEYWORD_TAGS[index] : TagUtils.forName(keyword);
+  }
+}
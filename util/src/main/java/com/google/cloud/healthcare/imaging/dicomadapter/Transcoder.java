@@ -0,0 +1,122 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.imageio.ImageIO;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.imageio.codec.Decompressor;
+import org.dcm4che3.imageio.codec.ImageReaderFactory;
+import org.dcm4che3.imageio.codec.TransferSyntaxType;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.net.DataWriter;
+import org.dcm4che3.net.DataWriterAdapter;
+import org.dcm4che3.net.InputStreamDataWriter;
+import org.dcm4che3.net.PDVOutputStream;
+
+/**
+ * Writes instances in a transfer syntax other than the one they are stored in.
+ *
+ * Only transcoding to transfer syntaxes with native (unencapsulated) pixel data is supported.
+ * Encapsulated pixel data is decompressed frame by frame as it is written to the association,
+ * which requires an image reader for the source transfer syntax to be installed.
+ */
+public class Transcoder {
+
+  // Whether an image reader is installed, per encapsulated transfer syntax.
+  private static final Map<String, Boolean> DECOMPRESSIBLE = new ConcurrentHashMap<>();
+
+  private Transcoder() {
+  }
+
+  /**
+   * Whether instances stored in the source transfer syntax can be sent in the target one.
+   */
+  public static boolean canTranscode(String sourceTransferSyntax, String targetTransferSyntax) {
+    if (sourceTransferSyntax.equals(targetTransferSyntax)) {
+      return true;
+    }
+    if (TransferSyntaxType.forUID(targetTransferSyntax).isPixeldataEncapsulated()) {
+      return false;
+    }
+    return !TransferSyntaxType.forUID(sourceTransferSyntax).isPixeldataEncapsulated()
+        || DECOMPRESSIBLE.computeIfAbsent(sourceTransferSyntax, Transcoder::hasImageReader);
+  }
+
+  /**
+   * Returns a writer of the dataset read from the stream, positioned after its file meta
+   * information, in the given transfer syntax. The dataset is streamed as is if it is already in
+   * that transfer syntax.
+   */
+  public static DataWriter dataWriter(DicomInputStream din, String transferSyntax)
+      throws IOException {
+    String sourceTransferSyntax = din.getTransferSyntax();
+    if (sourceTransferSyntax.equals(transferSyntax)) {
+      return new InputStreamDataWriter(din);
+    }
+    if (!canTranscode(sourceTransferSyntax, transferSyntax)) {
+      throw new IllegalArgumentException("Can't transcode from " + sourceTransferSyntax
+          + " to " + transferSyntax);
+    }
+
+    try {
+      Attributes dataset = din.readDataset(-1, -1);
+      if (TransferSyntaxType.forUID(sourceTransferSyntax).isPixeldataEncapsulated()) {
+        Decompressor.decompress(dataset, sourceTransferSyntax);
+      }
+      return new TranscodingDataWriter(new DataWriterAdapter(dataset), sourceTransferSyntax);
+    } catch (RuntimeException e) {
+      throw transcodingFailure(sourceTransferSyntax, transferSyntax, e);
+    }
+  }
+
+  private static boolean hasImageReader(String transferSyntax) {
+    ImageReaderFactory.ImageReaderParam param =
+        ImageReaderFactory.getImageReaderParam(transferSyntax);
+    return param != null && ImageIO.getImageReadersByFormatName(param.formatName).hasNext();
+  }
+
+  private static IOException transcodingFailure(String sourceTransferSyntax,
+      String transferSyntax, RuntimeException e) {
+    return new IOException("Failed to transcode from " + sourceTransferSyntax + " to "
+        + transferSyntax, e);
+  }
+
+  /**
+   * Reports failures of frames decompressed as they are written as IOExceptions, so that only
+   * the instance being sent fails.
+   */
+  private static class TranscodingDataWriter implements DataWriter {
+
+    private final DataWriter writer;
+    private final String sourceTransferSyntax;
+
+    private TranscodingDataWriter(DataWriter writer, String sourceTransferSyntax) {
+      this.writer = writer;
+      this.sourceTransferSyntax = sourceTransferSyntax;
+    }
+
+    @Override
+    public void writeTo(PDVOutputStream out, String transferSyntax) throws IOException {
+      try {
+        writer.writeTo(out, transferSyntax);
+      } catch (RuntimeException e) {
+        throw transcodingFailure(sourceTransferSyntax, transferSyntax, e);
+      }
+    }
+  }
+}
@@ -36,6 +36,7 @@ import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,6 +54,7 @@ public class MonitoringService {
   private final MetricServiceClient client;
   private final ScheduledExecutorService service;
   private final HashMap<IMonitoringEvent, Long> aggregateEvents;
+  private final HashMap<IMonitoringEvent, LongSupplier> gauges;
   private final IMonitoringEvent[] monitoredEvents;
   private final MonitoredResource monitoredResource;
 
@@ -63,6 +65,7 @@ public class MonitoringService {
     client = MetricServiceClient.create();
 
     aggregateEvents = new HashMap<>();
+    gauges = new HashMap<>();
 
     this.projectId = projectId;
     this.monitoredEvents = monitoredEvents;
@@ -135,6 +138,20 @@ public class MonitoringService {
     addEvent(eventType, 1L);
   }
 
+  /**
+   * Registers a value that is sampled on every flush instead of being summed from events,
+   * e.g. the current depth of a queue.
+   */
+  public static void addGauge(IMonitoringEvent eventType, LongSupplier supplier) {
+    if (INSTANCE == null) {
+      if (ENABLED) {
+        log.warn("MonitoringService enabled, but not initialized. Skipping gauge: {}", eventType);
+      }
+    } else {
+      INSTANCE._addGauge(eventType, supplier);
+    }
+  }
+
   private void shutdown() {
     service.shutdown();
     client.shutdown();
@@ -147,12 +164,23 @@ public class MonitoringService {
     }
   }
 
+  private void _addGauge(IMonitoringEvent eventType, LongSupplier supplier) {
+    synchronized (gauges) {
+      gauges.put(eventType, supplier);
+    }
+  }
+
   private void flush() {
     HashMap<IMonitoringEvent, Long> flushEvents = null;
     synchronized (aggregateEvents) {
       flushEvents = new HashMap<>(aggregateEvents);
       aggregateEvents.clear();
     }
+    synchronized (gauges) {
+      for (Map.Entry<IMonitoringEvent, LongSupplier> gauge : gauges.entrySet()) {
+        flushEvents.put(gauge.getKey(), gauge.getValue().getAsLong());
+      }
+    }
 
     try {
       Timestamp flushTime = Timestamps.fromMillis(System.currentTimeMillis());
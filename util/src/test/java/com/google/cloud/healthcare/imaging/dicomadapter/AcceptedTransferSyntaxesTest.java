@@ -0,0 +1,129 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class AcceptedTransferSyntaxesTest {
+  private final String peerAET = "PEER";
+
+  @Test
+  public void testPropose_unknownPeerProposesFallbacks() {
+    AcceptedTransferSyntaxes accepted = new AcceptedTransferSyntaxes();
+
+    assertThat(accepted.propose(peerAET, UID.CTImageStorage, UID.JPEG2000)).containsExactly(
+        UID.JPEG2000, UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian).inOrder();
+    assertThat(accepted.propose(peerAET, UID.CTImageStorage, UID.ExplicitVRLittleEndian))
+        .containsExactly(UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian).inOrder();
+  }
+
+  @Test
+  public void testPropose_noFallbacksWithoutImageReader() {
+    AcceptedTransferSyntaxes accepted = new AcceptedTransferSyntaxes();
+
+    assertThat(accepted.propose(peerAET, UID.CTImageStorage, UID.JPEGLSLossless))
+        .containsExactly(UID.JPEGLSLossless);
+  }
+
+  @Test
+  public void testPropose_knownPeerProposesSelected() {
+    AcceptedTransferSyntaxes accepted = new AcceptedTransferSyntaxes();
+    accepted.record(peerAET, UID.CTImageStorage,
+        accepted.propose(peerAET, UID.CTImageStorage, UID.JPEG2000),
+        Arrays.asList(UID.ImplicitVRLittleEndian, UID.ExplicitVRLittleEndian));
+
+    assertThat(accepted.propose(peerAET, UID.CTImageStorage, UID.JPEG2000))
+        .containsExactly(UID.ExplicitVRLittleEndian);
+    assertThat(accepted.propose(peerAET, UID.CTImageStorage, UID.ImplicitVRLittleEndian))
+        .containsExactly(UID.ImplicitVRLittleEndian);
+    // Other SOP classes and peers are not affected.
+    assertThat(accepted.propose(peerAET, UID.MRImageStorage, UID.JPEG2000)).hasSize(3);
+    assertThat(accepted.propose("OTHER", UID.CTImageStorage, UID.JPEG2000)).hasSize(3);
+  }
+
+  @Test
+  public void testRecord_ignoresEmpty() {
+    AcceptedTransferSyntaxes accepted = new AcceptedTransferSyntaxes();
+    accepted.record(peerAET, UID.CTImageStorage,
+        accepted.propose(peerAET, UID.CTImageStorage, UID.JPEG2000), Collections.emptySet());
+
+    assertThat(accepted.propose(peerAET, UID.CTImageStorage, UID.JPEG2000)).hasSize(3);
+  }
+
+  @Test
+  public void testRecord_narrowedProposalKeepsOthers() {
+    AcceptedTransferSyntaxes accepted = new AcceptedTransferSyntaxes();
+    List<String> accepting = Arrays.asList(UID.JPEG2000, UID.ExplicitVRLittleEndian);
+    // A JPEG 2000 instance, then a JPEG one sent in a fallback, then JPEG 2000 again.
+    accepted.record(peerAET, UID.CTImageStorage,
+        accepted.propose(peerAET, UID.CTImageStorage, UID.JPEG2000), accepting);
+    List<String> proposed = accepted.propose(peerAET, UID.CTImageStorage, UID.JPEGBaseline1);
+    assertThat(proposed).containsExactly(UID.ExplicitVRLittleEndian);
+    accepted.record(peerAET, UID.CTImageStorage, proposed,
+        Arrays.asList(UID.ExplicitVRLittleEndian));
+
+    assertThat(accepted.propose(peerAET, UID.CTImageStorage, UID.JPEG2000))
+        .containsExactly(UID.JPEG2000);
+  }
+
+  @Test
+  public void testRecord_forgetsRejected() {
+    AcceptedTransferSyntaxes accepted = new AcceptedTransferSyntaxes();
+    accepted.record(peerAET, UID.CTImageStorage,
+        accepted.propose(peerAET, UID.CTImageStorage, UID.JPEG2000),
+        Arrays.asList(UID.JPEG2000));
+    // The peer's configuration changed.
+    accepted.record(peerAET, UID.CTImageStorage,
+        accepted.propose(peerAET, UID.CTImageStorage, UID.JPEG2000), null);
+
+    assertThat(accepted.propose(peerAET, UID.CTImageStorage, UID.JPEG2000)).hasSize(3);
+  }
+
+  @Test
+  public void testSelect() {
+    assertThat(AcceptedTransferSyntaxes.select(
+        Arrays.asList(UID.JPEG2000, UID.ExplicitVRLittleEndian), UID.JPEG2000))
+        .isEqualTo(UID.JPEG2000);
+    assertThat(AcceptedTransferSyntaxes.select(
+        Arrays.asList(UID.ImplicitVRLittleEndian), UID.JPEG2000))
+        .isEqualTo(UID.ImplicitVRLittleEndian);
+    assertThat(AcceptedTransferSyntaxes.select(
+        Arrays.asList(UID.JPEGBaseline1), UID.JPEG2000)).isNull();
+    assertThat(AcceptedTransferSyntaxes.select(
+        Arrays.asList(UID.ExplicitVRLittleEndian), UID.JPEGLSLossless)).isNull();
+    assertThat(AcceptedTransferSyntaxes.select(null, UID.JPEG2000)).isNull();
+  }
+
+  @Test
+  public void testPresentationContexts_oddIds() {
+    List<PresentationContext> pcs = AcceptedTransferSyntaxes.presentationContexts(
+        UID.CTImageStorage, Arrays.asList(UID.JPEG2000, UID.ExplicitVRLittleEndian));
+
+    assertThat(pcs).hasSize(2);
+    assertThat(pcs.get(1).getPCID()).isEqualTo(3);
+    assertThat(pcs.get(1).getAbstractSyntax()).isEqualTo(UID.CTImageStorage);
+    assertThat(pcs.get(1).getTransferSyntax()).isEqualTo(UID.ExplicitVRLittleEndian);
+  }
+}
@@ -0,0 +1,137 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.healthcare.imaging.dicomadapter.util.PortUtil;
+import com.google.cloud.healthcare.imaging.dicomadapter.util.StubCStoreService;
+import java.util.Collections;
+import java.util.List;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.TransferCapability;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicCEchoSCP;
+import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class AssociationPoolTest {
+  private final String serverAET = "SERVER";
+  private final String serverHost = "localhost";
+  private final String clientAET = "CLIENT";
+
+  private final List<PresentationContext> mrContexts = Collections.singletonList(
+      new PresentationContext(1, UID.MRImageStorage, UID.ExplicitVRLittleEndian));
+  private final List<PresentationContext> ctContexts = Collections.singletonList(
+      new PresentationContext(1, UID.CTImageStorage, UID.ExplicitVRLittleEndian));
+
+  private int serverPort;
+  private Device serverDevice;
+  private AssociationPool pool;
+
+  @Before
+  public void setUp() throws Exception {
+    serverPort = PortUtil.getFreePort();
+    DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
+    serviceRegistry.addDicomService(new BasicCEchoSCP());
+    serviceRegistry.addDicomService(new StubCStoreService(Status.Success));
+    TransferCapability transferCapability =
+        new TransferCapability(null /* commonName */, "*", TransferCapability.Role.SCP, "*");
+    serverDevice =
+        DeviceUtil.createServerDevice(serverAET, serverPort, serviceRegistry, transferCapability);
+    serverDevice.bindConnections();
+  }
+
+  @After
+  public void tearDown() {
+    if (pool != null) {
+      pool.close();
+    }
+    serverDevice.unbindConnections();
+  }
+
+  @Test
+  public void testAssociationPool_reusesReturnedAssociation() throws Exception {
+    pool = new AssociationPool(60000);
+
+    Association first = acquireAndReturn(mrContexts);
+    assertThat(pool.getIdleCount()).isEqualTo(1);
+    Association second = acquireAndReturn(mrContexts);
+
+    assertThat(second == first).isTrue();
+    assertThat(first.isReadyForDataTransfer()).isTrue();
+  }
+
+  @Test
+  public void testAssociationPool_differentPresentationContexts() throws Exception {
+    pool = new AssociationPool(60000);
+
+    Association mr = acquireAndReturn(mrContexts);
+    Association ct = acquireAndReturn(ctContexts);
+
+    assertThat(ct == mr).isFalse();
+    assertThat(pool.getIdleCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testAssociationPool_zeroIdleTimeoutReleases() throws Exception {
+    pool = new AssociationPool(0);
+
+    Association first = acquireAndReturn(mrContexts);
+    first.waitForSocketClose();
+
+    assertThat(pool.getIdleCount()).isEqualTo(0);
+    assertThat(acquireAndReturn(mrContexts) == first).isFalse();
+  }
+
+  @Test
+  public void testAssociationPool_discardedNotReused() throws Exception {
+    pool = new AssociationPool(60000);
+
+    AssociationPool.Lease lease =
+        pool.acquire(clientAET, serverAET, serverHost, serverPort, mrContexts);
+    Association discarded = lease.getClient().getAssociation();
+    lease.discard();
+    lease.close();
+
+    assertThat(pool.getIdleCount()).isEqualTo(0);
+    assertThat(acquireAndReturn(mrContexts) == discarded).isFalse();
+  }
+
+  @Test
+  public void testAssociationPool_releasesIdleAssociations() throws Exception {
+    pool = new AssociationPool(100);
+
+    Association association = acquireAndReturn(mrContexts);
+    association.waitForSocketClose();
+
+    assertThat(pool.getIdleCount()).isEqualTo(0);
+  }
+
+  private Association acquireAndReturn(List<PresentationContext> pcs) throws Exception {
+    try (AssociationPool.Lease lease =
+        pool.acquire(clientAET, serverAET, serverHost, serverPort, pcs)) {
+      return lease.getClient().getAssociation();
+    }
+  }
+}
@@ -57,5 +57,17 @@ public final class DeviceUtilTest {
     TransferCapability gotTransferCapability = transferCapabilities.iterator().next();
     assertThat(gotTransferCapability.getSopClass()).isEqualTo("*");
     assertThat(gotTransferCapability.getRole()).isEqualTo(TransferCapability.Role.SCP);
+    assertThat(connections.get(0).getMaxOpsPerformed()).isEqualTo(Connection.SYNCHRONOUS_MODE);
+  }
+
+  @Test
+  public void testDeviceUtil_asyncOpsWindow() throws Exception {
+    Device device = DeviceUtil.createServerDevice("server", 11111, new DicomServiceRegistry(),
+        4 /* maxOpsInvoked */, 0 /* maxOpsPerformed, unlimited */);
+
+    List<Connection> connections = device.listConnections();
+    assertThat(connections).hasSize(1);
+    assertThat(connections.get(0).getMaxOpsInvoked()).isEqualTo(4);
+    assertThat(connections.get(0).getMaxOpsPerformed()).isEqualTo(0);
   }
 }
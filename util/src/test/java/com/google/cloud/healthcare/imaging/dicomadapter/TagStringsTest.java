@@ -0,0 +1,60 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.net.URLEncoder;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.util.TagUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class TagStringsTest {
+
+  @Test
+  public void testToHexString_standardTag() {
+    assertThat(TagStrings.toHexString(Tag.StudyInstanceUID))
+        .isEqualTo(TagUtils.toHexString(Tag.StudyInstanceUID));
+    assertThat(TagStrings.toHexString(Tag.StudyInstanceUID))
+        .isSameAs(TagStrings.toHexString(Tag.StudyInstanceUID));
+  }
+
+  @Test
+  public void testToHexString_privateTag() {
+    assertThat(TagStrings.toHexString(0x00091001)).isEqualTo("00091001");
+  }
+
+  @Test
+  public void testForName() {
+    assertThat(TagStrings.forName("0020000D")).isEqualTo(Tag.StudyInstanceUID);
+    assertThat(TagStrings.forName("0020000d")).isEqualTo(Tag.StudyInstanceUID);
+    assertThat(TagStrings.forName("StudyInstanceUID")).isEqualTo(Tag.StudyInstanceUID);
+    assertThat(TagStrings.forName("PatientName")).isEqualTo(Tag.PatientName);
+  }
+
+  @Test
+  public void testAppendUrlEncoded_sameAsUrlEncoder() throws Exception {
+    String[] values = {"", "1.2.840.10008.5.1.4.1.1.4", "CT", "Yamada*", "20190101-20191231",
+        "%&#^ ", "A?B", "山田^太郎", "😀", "\uD83D", "a+b/c=d"};
+    for (String value : values) {
+      StringBuilder encoded = new StringBuilder("x=");
+      AttributesUtil.appendUrlEncoded(encoded, value);
+      assertThat(encoded.toString()).isEqualTo("x=" + URLEncoder.encode(value, "UTF-8"));
+    }
+  }
+}
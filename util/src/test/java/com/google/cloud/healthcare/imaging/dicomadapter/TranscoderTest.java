@@ -0,0 +1,171 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.healthcare.imaging.dicomadapter;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.healthcare.imaging.dicomadapter.util.PortUtil;
+import com.google.cloud.healthcare.util.TestUtils;
+import java.io.IOException;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.InputStreamDataWriter;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.TransferCapability;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicCEchoSCP;
+import org.dcm4che3.net.service.BasicCStoreSCP;
+import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class TranscoderTest {
+  private final String serverAET = "SERVER";
+  private final String serverHost = "localhost";
+
+  private final String clientAET = "CLIENT";
+  private ApplicationEntity clientAE;
+
+  private int serverPort;
+  private Device serverDevice;
+  private ReceivingCStoreService receiver;
+
+  @Before
+  public void setUp() throws Exception {
+    clientAE = new ApplicationEntity(clientAET);
+    Connection conn = new Connection();
+    DeviceUtil.createClientDevice(clientAE, conn);
+    clientAE.addConnection(conn);
+
+    // The peer only accepts MR instances in Implicit VR Little Endian, a fallback syntax.
+    serverPort = PortUtil.getFreePort();
+    receiver = new ReceivingCStoreService();
+    DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
+    serviceRegistry.addDicomService(new BasicCEchoSCP());
+    serviceRegistry.addDicomService(receiver);
+    TransferCapability transferCapability =
+        new TransferCapability(null /* commonName */, UID.MRImageStorage,
+            TransferCapability.Role.SCP, UID.ImplicitVRLittleEndian);
+    serverDevice =
+        DeviceUtil.createServerDevice(serverAET, serverPort, serviceRegistry, transferCapability);
+    serverDevice.bindConnections();
+  }
+
+  @After
+  public void tearDown() {
+    serverDevice.unbindConnections();
+  }
+
+  @Test
+  public void testTranscoder_connectAndCstoreToFallback() throws Exception {
+    Attributes expected = readTestDataset();
+
+    DicomClient.connectAndCstore(UID.MRImageStorage, "1.0.0.0",
+        TestUtils.streamTestFile(TestUtils.TEST_MR_FILE), clientAE,
+        serverAET, serverHost, serverPort);
+
+    assertThat(receiver.transferSyntax).isEqualTo(UID.ImplicitVRLittleEndian);
+    assertReceived(expected);
+  }
+
+  @Test
+  public void testTranscoder_cstoreInFallbackTransferSyntax() throws Exception {
+    Attributes expected = readTestDataset();
+    DicomInputStream din =
+        new DicomInputStream(TestUtils.streamTestFile(TestUtils.TEST_MR_FILE));
+    din.readFileMetaInformation();
+    assertThat(din.getTransferSyntax()).isEqualTo(UID.ExplicitVRLittleEndian);
+
+    DicomClient client = DicomClient.associatePeer(clientAE, serverAET, serverHost, serverPort,
+        new PresentationContext(1, UID.MRImageStorage, UID.ImplicitVRLittleEndian));
+    try {
+      client.cstore(UID.MRImageStorage, "1.0.0.0", din, UID.ImplicitVRLittleEndian);
+    } finally {
+      client.release();
+    }
+
+    assertThat(receiver.transferSyntax).isEqualTo(UID.ImplicitVRLittleEndian);
+    assertReceived(expected);
+  }
+
+  @Test
+  public void testTranscoder_sameTransferSyntaxStreamed() throws Exception {
+    DicomInputStream din =
+        new DicomInputStream(TestUtils.streamTestFile(TestUtils.TEST_MR_FILE));
+    din.readFileMetaInformation();
+
+    assertThat(Transcoder.dataWriter(din, UID.ExplicitVRLittleEndian))
+        .isInstanceOf(InputStreamDataWriter.class);
+  }
+
+  @Test
+  public void testTranscoder_canTranscode() {
+    assertThat(Transcoder.canTranscode(UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian))
+        .isTrue();
+    assertThat(Transcoder.canTranscode(UID.JPEGBaseline1, UID.JPEGBaseline1)).isTrue();
+    // Only transcoding to native pixel data is supported.
+    assertThat(Transcoder.canTranscode(UID.ExplicitVRLittleEndian, UID.JPEGBaseline1)).isFalse();
+  }
+
+  private void assertReceived(Attributes expected) throws IOException {
+    Attributes received = receiver.dataset;
+    assertThat(received).isNotNull();
+    assertThat(received.getString(Tag.SOPInstanceUID))
+        .isEqualTo(expected.getString(Tag.SOPInstanceUID));
+    assertThat(received.getString(Tag.StudyInstanceUID))
+        .isEqualTo(expected.getString(Tag.StudyInstanceUID));
+    assertThat(received.getInt(Tag.Rows, -1)).isEqualTo(expected.getInt(Tag.Rows, -1));
+    assertThat(received.getInt(Tag.Columns, -1)).isEqualTo(expected.getInt(Tag.Columns, -1));
+    assertThat(received.getBytes(Tag.PixelData)).isEqualTo(expected.getBytes(Tag.PixelData));
+  }
+
+  private static Attributes readTestDataset() throws IOException {
+    try (DicomInputStream din =
+        new DicomInputStream(TestUtils.streamTestFile(TestUtils.TEST_MR_FILE))) {
+      return din.readDataset(-1, -1);
+    }
+  }
+
+  /** Keeps the last received dataset, decoded in the transfer syntax it was sent in. */
+  private static class ReceivingCStoreService extends BasicCStoreSCP {
+    private volatile String transferSyntax;
+    private volatile Attributes dataset;
+
+    @Override
+    protected void store(
+        Association association,
+        PresentationContext presentationContext,
+        Attributes request,
+        PDVInputStream dataStream,
+        Attributes response)
+        throws IOException {
+      transferSyntax = presentationContext.getTransferSyntax();
+      dataset = dataStream.readDataset(transferSyntax);
+      response.setInt(Tag.Status, VR.US, Status.Success);
+    }
+  }
+}